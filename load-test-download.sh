@@ -0,0 +1,41 @@
+#!/bin/bash
+
+#
+# Compares the zero-copy (sendfile) download with the FileReadFlux download of GET file/{filename}.
+# Usage: ./load-test-download.sh [size] [requests] [parallelism]
+# A large test file can be created with e.g.: head -c 100M /dev/urandom > FILES/file-100m.bin
+#
+
+size=${1:-10k}
+requests=${2:-200}
+parallelism=${3:-10}
+base="http://localhost:8080"
+
+function gcPauseCount() {
+  curl --silent "${base}/actuator/metrics/jvm.gc.pause" | sed -E 's/.*"statistic":"COUNT","value":([0-9]+).*/\1/'
+}
+
+function heapUsed() {
+  curl --silent "${base}/actuator/metrics/jvm.memory.used?tag=area:heap" | sed -E 's/.*"statistic":"VALUE","value":([0-9.E]+).*/\1/'
+}
+
+function run() {
+  local zeroCopy=$1
+  local url="${base}/file/file-${size}.bin?zero-copy=${zeroCopy}"
+  local gcBefore=$(gcPauseCount)
+  local start=$(date +%s%3N)
+  seq 1 ${requests} | xargs -P ${parallelism} -I{} curl --silent --output /dev/null "${url}"
+  local end=$(date +%s%3N)
+  local gcAfter=$(gcPauseCount)
+  echo "zero-copy=${zeroCopy} size=${size} requests=${requests} parallelism=${parallelism}" \
+    "millis=$(( end - start ))" \
+    "gc-pauses=$(( gcAfter - gcBefore ))" \
+    "heap-used=$(heapUsed)"
+}
+
+# warm up both paths
+seq 1 10 | xargs -P 2 -I{} curl --silent --output /dev/null "${base}/file/file-${size}.bin?zero-copy=false"
+seq 1 10 | xargs -P 2 -I{} curl --silent --output /dev/null "${base}/file/file-${size}.bin?zero-copy=true"
+
+run false
+run true
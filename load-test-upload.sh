@@ -1,14 +1,53 @@
 #!/bin/bash
 
+#
+# Uploads a file repeatedly with POST file/{filename} and reports the duration and the throughput.
+# Usage: ./load-test-upload.sh [size] [requests] [parallelism]
+# A large test file can be created with e.g.: head -c 100M /dev/urandom > FILES/file-100m.bin
+# With SERVER_PID=<pid of the application> the write system calls of the run are counted by strace.
+#
+
 size=${1:-10k}
+requests=${2:-100}
+parallelism=${3:-1}
+base="http://localhost:8080"
+file="FILES/file-${size}.bin"
+
+function upload() {
+  curl --silent --output /dev/null --fail \
+    --request POST \
+    --header "Content-Type: application/octet-stream" \
+    --data-binary @${file} \
+    "${base}/file/test-${size}-$1.bin"
+}
+export -f upload
+export base size file
+
+# warm up
+seq 1 5 | xargs -P 1 -I{} bash -c 'upload warmup-{}'
+
+if [[ -n "${SERVER_PID}" ]]; then
+  strace -f -c -e trace=write,pwrite64,pwritev -p ${SERVER_PID} -o target/strace-upload.txt &
+  stracePid=$!
+  sleep 1
+fi
+
+start=$(date +%s%3N)
+seq 1 ${requests} | xargs -P ${parallelism} -I{} bash -c 'upload {}'
+end=$(date +%s%3N)
+
+if [[ -n "${stracePid}" ]]; then
+  kill -INT ${stracePid}
+  wait ${stracePid}
+fi
 
-typeset -i i=0
+bytes=$(( $(stat -c %s ${file}) * requests ))
+millis=$(( end - start ))
+echo "size=${size} requests=${requests} parallelism=${parallelism}" \
+  "millis=${millis}" \
+  "mib-per-second=$(( bytes * 1000 / 1048576 / (millis > 0 ? millis : 1) ))"
+if [[ -n "${stracePid}" ]]; then
+  cat target/strace-upload.txt
+fi
 
-while (( i < 100 )); do
-  curl --request POST \
-    --header "Content-Type: text/plain" \
-    --data-binary @FILES/file-${size}.bin \
-    "http://localhost:8080/file/test-${size}-${i}.txt"
-  let i+=1
-  echo
-done
+rm -f FILES/test-${size}-*.bin
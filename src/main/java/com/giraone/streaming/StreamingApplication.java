@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 import org.springframework.core.env.Environment;
 import org.springframework.util.StringUtils;
 
@@ -12,6 +13,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class StreamingApplication {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(StreamingApplication.class);
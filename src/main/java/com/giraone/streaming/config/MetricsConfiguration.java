@@ -0,0 +1,54 @@
+package com.giraone.streaming.config;
+
+import com.giraone.streaming.service.AdaptiveChunkSizePolicy;
+import com.giraone.streaming.service.DirectBufferPool;
+import com.giraone.streaming.service.FileChannelFactory;
+import com.giraone.streaming.service.FileCommitter;
+import com.giraone.streaming.service.HotFileCache;
+import com.giraone.streaming.service.OpenFileCache;
+import com.giraone.streaming.service.base64.IncludePrefetch;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Exports the metrics of the statically used streaming components through the actuator endpoints.
+ */
+@Configuration(proxyBeanMethods = false)
+public class MetricsConfiguration {
+
+    @Bean
+    public MeterBinder directBufferPoolMetrics() {
+        return DirectBufferPool.DEFAULT;
+    }
+
+    @Bean
+    public MeterBinder adaptiveChunkSizePolicyMetrics() {
+        return AdaptiveChunkSizePolicy.DEFAULT;
+    }
+
+    @Bean
+    public MeterBinder includePrefetchMetrics() {
+        return IncludePrefetch.METRICS;
+    }
+
+    @Bean
+    public MeterBinder fileCommitterMetrics() {
+        return FileCommitter.METRICS;
+    }
+
+    @Bean
+    public MeterBinder hotFileCacheMetrics() {
+        return HotFileCache.METRICS;
+    }
+
+    @Bean
+    public MeterBinder openFileCacheMetrics() {
+        return OpenFileCache.METRICS;
+    }
+
+    @Bean
+    public MeterBinder fileChannelFactoryMetrics() {
+        return FileChannelFactory.METRICS;
+    }
+}
@@ -0,0 +1,672 @@
+package com.giraone.streaming.config;
+
+import com.giraone.streaming.service.FileChannelFactory;
+import com.giraone.streaming.service.FileCommitter;
+import com.giraone.streaming.service.FileIoEngine;
+import com.giraone.streaming.service.FluxUtil;
+import com.giraone.streaming.service.ReadModePolicy;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Application specific settings, bound from the {@code streaming.*} properties in {@code application.yml}.
+ */
+@ConfigurationProperties(prefix = "streaming")
+public class StreamingProperties {
+
+    private final Download download = new Download();
+    private final Base64 base64 = new Base64();
+    private final Upload upload = new Upload();
+    private final Io io = new Io();
+    private final Buffers buffers = new Buffers();
+    private final VirtualThreads virtualThreads = new VirtualThreads();
+
+    public Download getDownload() {
+        return download;
+    }
+
+    public Base64 getBase64() {
+        return base64;
+    }
+
+    public Upload getUpload() {
+        return upload;
+    }
+
+    public Io getIo() {
+        return io;
+    }
+
+    public Buffers getBuffers() {
+        return buffers;
+    }
+
+    public VirtualThreads getVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Settings for {@code GET file/{filename}}.
+     */
+    public static class Download {
+
+        /**
+         * Hand the file region to Reactor Netty (sendfile on Linux) instead of reading it through the JVM heap.
+         */
+        private boolean zeroCopy = true;
+
+        /**
+         * Number of chunk reads in flight, when the file is not sent by zero-copy.
+         */
+        private int readAhead = 4;
+
+        /**
+         * Maximum number of SHA-256 digests of uploaded files, that are kept as entity tags for conditional requests.
+         */
+        private int validatorCacheSize = 10000;
+
+        /**
+         * The {@link FileIoEngine} threads, on which the downloaded files are read: aio or virtual-threads.
+         */
+        private FileIoEngine ioEngine = FileIoEngine.AIO;
+
+        private final Cache cache = new Cache();
+        private final Mapped mapped = new Mapped();
+        private final Handles handles = new Handles();
+
+        public boolean isZeroCopy() {
+            return zeroCopy;
+        }
+
+        public void setZeroCopy(boolean zeroCopy) {
+            this.zeroCopy = zeroCopy;
+        }
+
+        public int getReadAhead() {
+            return readAhead;
+        }
+
+        public void setReadAhead(int readAhead) {
+            this.readAhead = readAhead;
+        }
+
+        public int getValidatorCacheSize() {
+            return validatorCacheSize;
+        }
+
+        public void setValidatorCacheSize(int validatorCacheSize) {
+            this.validatorCacheSize = validatorCacheSize;
+        }
+
+        public Cache getCache() {
+            return cache;
+        }
+
+        public Mapped getMapped() {
+            return mapped;
+        }
+
+        public Handles getHandles() {
+            return handles;
+        }
+
+        public FileIoEngine getIoEngine() {
+            return ioEngine;
+        }
+
+        public void setIoEngine(FileIoEngine ioEngine) {
+            this.ioEngine = ioEngine;
+        }
+    }
+
+    /**
+     * Settings for reading downloaded files by memory mappings, when they are not sent by zero-copy, see
+     * {@link ReadModePolicy}.
+     */
+    public static class Mapped {
+
+        /**
+         * Read large files as slices of memory mappings instead of positional reads into pooled buffers.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Minimum number of bytes of a downloaded file region, that is read by a memory mapping.
+         */
+        private long threshold = ReadModePolicy.DEFAULT_MAPPED_THRESHOLD;
+
+        /**
+         * Maximum size in bytes of one memory mapping.
+         */
+        private int windowSize = FluxUtil.DEFAULT_MAP_WINDOW_SIZE;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(long threshold) {
+            this.threshold = threshold;
+        }
+
+        public int getWindowSize() {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize) {
+            this.windowSize = windowSize;
+        }
+    }
+
+    /**
+     * Settings for keeping the channels and validators of the downloaded and included files open, see
+     * {@link com.giraone.streaming.service.OpenFileCache}.
+     */
+    public static class Handles {
+
+        /**
+         * Share the open channels of the files between requests and keep them open, while they are used.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Maximum number of files, that are kept open, while they are not used.
+         */
+        private int maxEntries = 1024;
+
+        /**
+         * Time, for which the size and modification time of an open file are used without checking them.
+         */
+        private Duration maxAge = Duration.ofSeconds(1);
+
+        /**
+         * Time, after which a file, that is not used, is closed.
+         */
+        private Duration idleTimeout = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxEntries() {
+            return maxEntries;
+        }
+
+        public void setMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public Duration getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+    }
+
+    /**
+     * Settings for keeping small, frequently downloaded files in memory, see
+     * {@link com.giraone.streaming.service.HotFileCache}.
+     */
+    public static class Cache {
+
+        /**
+         * Serve small files from direct buffers instead of reading them for each request.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Maximum number of bytes of all cached files.
+         */
+        private long capacity = 32L * 1024 * 1024;
+
+        /**
+         * Maximum size in bytes of a cached file.
+         */
+        private int maxFileSize = 1024 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(long capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getMaxFileSize() {
+            return maxFileSize;
+        }
+
+        public void setMaxFileSize(int maxFileSize) {
+            this.maxFileSize = maxFileSize;
+        }
+    }
+
+    /**
+     * Settings for the Base64 endpoints.
+     */
+    public static class Base64 {
+
+        private final Parallel parallel = new Parallel();
+        private final Prefetch prefetch = new Prefetch();
+        private final Sidecar sidecar = new Sidecar();
+
+        /**
+         * The {@link FileIoEngine} threads, on which the included files are read: aio or virtual-threads.
+         */
+        private FileIoEngine ioEngine = FileIoEngine.AIO;
+
+        public Parallel getParallel() {
+            return parallel;
+        }
+
+        public Prefetch getPrefetch() {
+            return prefetch;
+        }
+
+        public Sidecar getSidecar() {
+            return sidecar;
+        }
+
+        public FileIoEngine getIoEngine() {
+            return ioEngine;
+        }
+
+        public void setIoEngine(FileIoEngine ioEngine) {
+            this.ioEngine = ioEngine;
+        }
+    }
+
+    /**
+     * Settings for keeping the Base64 encoded form of included files on disk, see
+     * {@link com.giraone.streaming.service.base64.Base64SidecarCache}.
+     */
+    public static class Sidecar {
+
+        /**
+         * Read included files from their Base64 encoded sidecar files, that are built in the background.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Maximum number of bytes of all sidecar files.
+         */
+        private long maxBytes = 1024L * 1024 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Settings for subscribing the next includes, while the current one is streamed, see
+     * {@link com.giraone.streaming.service.base64.IncludePrefetch}.
+     */
+    public static class Prefetch {
+
+        /**
+         * Number of includes, that are read in addition to the current one; 0 reads them one after the other.
+         */
+        private int includes = 1;
+
+        /**
+         * Maximum number of bytes, that are prefetched for one request.
+         */
+        private long maxBytes = 4L * 1024 * 1024;
+
+        public int getIncludes() {
+            return includes;
+        }
+
+        public void setIncludes(int includes) {
+            this.includes = includes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    /**
+     * Settings for encoding large files on more than one thread, see
+     * {@link com.giraone.streaming.service.base64.ParallelBase64Encoder}.
+     */
+    public static class Parallel {
+
+        /**
+         * Encode files, that are larger than the threshold, in parallel segments.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Minimum file size in bytes for parallel encoding.
+         */
+        private long threshold = 64L * 1024 * 1024;
+
+        /**
+         * Size of a segment in bytes; must be a multiple of 3.
+         */
+        private int segmentSize = 3 * 1024 * 1024;
+
+        /**
+         * Maximum number of segments, that are encoded concurrently for one file.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(long threshold) {
+            this.threshold = threshold;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    /**
+     * Settings for the JSON uploads with Base64 attachments.
+     */
+    public static class Upload {
+
+        /**
+         * Maximum number of attachment files of one upload, that are written concurrently.
+         */
+        private int parallelWrites = 4;
+
+        /**
+         * Number of decoded chunks, that are buffered for each attachment file, while the upload is parsed further.
+         */
+        private int bufferedChunks = 32;
+
+        /**
+         * Size of one positional write, into which the small chunks of an upload are coalesced.
+         */
+        private int writeBatchSize = 256 * 1024;
+
+        /**
+         * Number of write batches of one upload, that are filled or written at the same time.
+         */
+        private int writeBatches = 4;
+
+        /**
+         * How uploaded files are forced to disk, before they replace the target file: none, per-file or group.
+         */
+        private FileCommitter.Policy force = FileCommitter.Policy.GROUP;
+
+        /**
+         * Time, a group commit waits for more uploaded files after the first one.
+         */
+        private Duration groupCommitWindow = Duration.ofMillis(2);
+
+        /**
+         * Number of uploaded files, that starts a group commit before the window ends.
+         */
+        private int groupCommitMaxFiles = 64;
+
+        /**
+         * The {@link FileIoEngine} threads, on which the uploaded files are written: aio or virtual-threads.
+         */
+        private FileIoEngine ioEngine = FileIoEngine.AIO;
+
+        /**
+         * Time between two deletions of the blobs, whose files were all replaced; 0 for none.
+         */
+        private Duration blobSweepInterval = Duration.ofMinutes(10);
+
+        public int getParallelWrites() {
+            return parallelWrites;
+        }
+
+        public void setParallelWrites(int parallelWrites) {
+            this.parallelWrites = parallelWrites;
+        }
+
+        public int getBufferedChunks() {
+            return bufferedChunks;
+        }
+
+        public void setBufferedChunks(int bufferedChunks) {
+            this.bufferedChunks = bufferedChunks;
+        }
+
+        public int getWriteBatchSize() {
+            return writeBatchSize;
+        }
+
+        public void setWriteBatchSize(int writeBatchSize) {
+            this.writeBatchSize = writeBatchSize;
+        }
+
+        public int getWriteBatches() {
+            return writeBatches;
+        }
+
+        public void setWriteBatches(int writeBatches) {
+            this.writeBatches = writeBatches;
+        }
+
+        public FileCommitter.Policy getForce() {
+            return force;
+        }
+
+        public void setForce(FileCommitter.Policy force) {
+            this.force = force;
+        }
+
+        public Duration getGroupCommitWindow() {
+            return groupCommitWindow;
+        }
+
+        public void setGroupCommitWindow(Duration groupCommitWindow) {
+            this.groupCommitWindow = groupCommitWindow;
+        }
+
+        public int getGroupCommitMaxFiles() {
+            return groupCommitMaxFiles;
+        }
+
+        public void setGroupCommitMaxFiles(int groupCommitMaxFiles) {
+            this.groupCommitMaxFiles = groupCommitMaxFiles;
+        }
+
+        public Duration getBlobSweepInterval() {
+            return blobSweepInterval;
+        }
+
+        public void setBlobSweepInterval(Duration blobSweepInterval) {
+            this.blobSweepInterval = blobSweepInterval;
+        }
+
+        public FileIoEngine getIoEngine() {
+            return ioEngine;
+        }
+
+        public void setIoEngine(FileIoEngine ioEngine) {
+            this.ioEngine = ioEngine;
+        }
+    }
+
+    /**
+     * Settings for the executors and the leak detection of the {@link FileChannelFactory}, by which all file
+     * channels are opened.
+     */
+    public static class Io {
+
+        /**
+         * Number of threads of the io-engine aio, that execute the file reads.
+         */
+        private int readThreads = 32;
+
+        /**
+         * Number of threads of the io-engine aio, that execute the file writes.
+         */
+        private int writeThreads = 16;
+
+        /**
+         * Use separate executors for reads and writes, so a burst of uploads does not delay downloads. Otherwise,
+         * reads and writes share an executor with {@code read-threads}.
+         */
+        private boolean splitPools = true;
+
+        /**
+         * How file channels, that are garbage collected without being closed, are detected: disabled, simple
+         * (where they were opened is logged for a sample) or paranoid (where they were opened is logged for all).
+         */
+        private FileChannelFactory.LeakDetection leakDetection = FileChannelFactory.LeakDetection.SIMPLE;
+
+        public int getReadThreads() {
+            return readThreads;
+        }
+
+        public void setReadThreads(int readThreads) {
+            this.readThreads = readThreads;
+        }
+
+        public int getWriteThreads() {
+            return writeThreads;
+        }
+
+        public void setWriteThreads(int writeThreads) {
+            this.writeThreads = writeThreads;
+        }
+
+        public boolean isSplitPools() {
+            return splitPools;
+        }
+
+        public void setSplitPools(boolean splitPools) {
+            this.splitPools = splitPools;
+        }
+
+        public FileChannelFactory.LeakDetection getLeakDetection() {
+            return leakDetection;
+        }
+
+        public void setLeakDetection(FileChannelFactory.LeakDetection leakDetection) {
+            this.leakDetection = leakDetection;
+        }
+    }
+
+    /**
+     * Settings for the pooled direct buffers of the file reads and the Base64 encoding, see
+     * {@link com.giraone.streaming.service.DirectBufferPool}.
+     */
+    public static class Buffers {
+
+        /**
+         * Maximum number of bytes of all direct buffers, that are kept for reuse. Together with the capacity of the
+         * {@link Cache} it must leave room for the buffers of Netty in the direct memory of the JVM.
+         */
+        private long maxPooledBytes = 32L * 1024 * 1024;
+        /**
+         * Maximum number of bytes of all direct buffers, that are in use by the reads, the encodings and the writes.
+         * Beyond it, heap buffers are used, so slow clients cannot use up the direct memory of the JVM.
+         */
+        private long maxOutstandingBytes = 64L * 1024 * 1024;
+
+        public long getMaxPooledBytes() {
+            return maxPooledBytes;
+        }
+
+        public void setMaxPooledBytes(long maxPooledBytes) {
+            this.maxPooledBytes = maxPooledBytes;
+        }
+
+        public long getMaxOutstandingBytes() {
+            return maxOutstandingBytes;
+        }
+
+        public void setMaxOutstandingBytes(long maxOutstandingBytes) {
+            this.maxOutstandingBytes = maxOutstandingBytes;
+        }
+    }
+
+    /**
+     * Settings for the {@link com.giraone.streaming.service.VirtualThreadExecutor} of the endpoints, whose
+     * {@link FileIoEngine} is virtual-threads.
+     */
+    public static class VirtualThreads {
+
+        /**
+         * Maximum number of file reads and writes, that are executed at the same time - per executor, see
+         * {@link Io#isSplitPools()}.
+         */
+        private int maxInFlight = 256;
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public void setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+}
@@ -2,35 +2,77 @@ package com.giraone.streaming.controller;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.giraone.streaming.config.StreamingProperties;
+import com.giraone.streaming.service.AdaptiveChunkSizePolicy;
+import com.giraone.streaming.service.BlobStore;
+import com.giraone.streaming.service.DirectBufferPool;
+import com.giraone.streaming.service.FileChannelFactory;
+import com.giraone.streaming.service.FileCommitter;
+import com.giraone.streaming.service.FileIoEngine;
+import com.giraone.streaming.service.FileValidators;
 import com.giraone.streaming.service.FluxUtil;
+import com.giraone.streaming.service.HotFileCache;
+import com.giraone.streaming.service.OpenFileCache;
+import com.giraone.streaming.service.ReadModePolicy;
 import com.giraone.streaming.service.base64.Base64Includer;
+import com.giraone.streaming.service.base64.Base64SidecarCache;
+import com.giraone.streaming.service.base64.CompiledTemplate;
+import com.giraone.streaming.service.base64.ContentEncoding;
+import com.giraone.streaming.service.base64.IncludePrefetch;
+import com.giraone.streaming.service.base64.JsonBase64UploadParser;
+import com.giraone.streaming.service.base64.ParallelBase64Encoder;
+import com.giraone.streaming.service.base64.StandardContentEncoding;
+import com.giraone.streaming.service.range.ByteRange;
+import com.giraone.streaming.service.range.MultipartByteRanges;
+import io.netty.util.internal.PlatformDependent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 import java.util.regex.Pattern;
 
-import static java.nio.file.StandardOpenOption.*;
 
 @RestController
 public class StreamingController {
@@ -44,110 +86,253 @@ public class StreamingController {
     private static final String ATTR_SUCCESS = "success";
     private static final String ATTR_SIZE = "size";
     private static final String ATTR_ERROR = "error";
+    private static final String ATTR_SHA256 = "sha256";
+    private static final String ATTR_METADATA = "metadata";
+    private static final String ATTR_CONTENT = "content";
+    private static final String ATTR_ATTACHMENTS = "attachments";
+    private static final String ATTR_POINTER = "pointer";
+    private static final String ATTR_FILE = "file";
+    // a slice of a mapping costs no copy, so the chunks of a mapped download need not adapt to the client
+    private static final int MAPPED_CHUNK_SIZE = 256 * 1024;
+
+    // An example for a JSON Java Pojo with one replacement token - serialized and parsed only once. The attributes
+    // are ordered, so the fingerprint of the template - a part of the ETag - is the same on each node and restart.
+    static final CompiledTemplate BASE64_1_TEMPLATE = compileJsonTemplate(
+        "attribute1", "one",
+        "attribute2", Base64Includer.CONTENT_TAG_1,
+        "attribute3", "three"
+    );
+    // An example for a JSON Java Pojo with two replacement tokens
+    static final CompiledTemplate BASE64_2_TEMPLATE = compileJsonTemplate(
+        "attribute1", "one",
+        "attribute2", Base64Includer.CONTENT_TAG_1,
+        "attribute3", "three",
+        "attribute4", Base64Includer.CONTENT_TAG_2,
+        "attribute5", "five"
+    );
+    // An example for a SOAP envelope with a MIME style wrapped xs:base64Binary element and the file name as attribute
+    static final CompiledTemplate XML_BASE64_TEMPLATE = CompiledTemplate.compileXml("""
+        <?xml version="1.0" encoding="UTF-8"?>
+        <soap:Envelope xmlns:soap="http://schemas.xmlsoap.org/soap/envelope/" xmlns:inc="urn:giraone:streaming:include">
+          <soap:Body>
+            <document inc:name="raw:filename">
+              <content><inc:content name="file" encoding="base64" wrap="76"/></content>
+            </document>
+          </soap:Body>
+        </soap:Envelope>
+        """);
+
+    private final StreamingProperties properties;
+    // null, when large files are not encoded in parallel
+    private final ParallelBase64Encoder parallelBase64Encoder;
+    private final IncludePrefetch includePrefetch;
+    // null, when the encoded files are not cached
+    private final Base64SidecarCache base64SidecarCache;
+    private final FileCommitter fileCommitter;
+    private final BlobStore blobStore;
+    private final FileValidators fileValidators;
+    // the same instance, when both use the same io-engine
+    private final OpenFileCache downloadFiles;
+    private final OpenFileCache base64Files;
+    // null, when small files are not cached
+    private final HotFileCache hotFileCache;
+    private final ReadModePolicy readModePolicy;
+    // the endpoints with the same io-engine share the same executors
+    private final FileChannelFactory downloadChannels;
+    private final FileChannelFactory base64Channels;
+    private final FileChannelFactory uploadChannels;
+
+    public StreamingController(StreamingProperties properties) {
+        this.properties = properties;
+        final Map<FileIoEngine, FileChannelFactory> channelFactories = new EnumMap<>(FileIoEngine.class);
+        this.downloadChannels = channelFactories.computeIfAbsent(properties.getDownload().getIoEngine(), this::createChannelFactory);
+        this.base64Channels = channelFactories.computeIfAbsent(properties.getBase64().getIoEngine(), this::createChannelFactory);
+        this.uploadChannels = channelFactories.computeIfAbsent(properties.getUpload().getIoEngine(), this::createChannelFactory);
+        final StreamingProperties.Parallel parallel = properties.getBase64().getParallel();
+        this.parallelBase64Encoder = parallel.isEnabled()
+            ? new ParallelBase64Encoder(parallel.getThreshold(), parallel.getSegmentSize(), parallel.getParallelism(), Schedulers.parallel())
+            : null;
+        final StreamingProperties.Prefetch prefetch = properties.getBase64().getPrefetch();
+        this.includePrefetch = new IncludePrefetch(prefetch.getIncludes(), prefetch.getMaxBytes());
+        final StreamingProperties.Sidecar sidecar = properties.getBase64().getSidecar();
+        try {
+            this.base64SidecarCache = sidecar.isEnabled()
+                ? new Base64SidecarCache(FILE_BASE.toPath().resolve(Base64SidecarCache.SIDECAR_DIRECTORY), sidecar.getMaxBytes(),
+                    base64Channels)
+                : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot use the directory of the Base64 sidecars!", e);
+        }
+        final StreamingProperties.Upload upload = properties.getUpload();
+        this.fileCommitter = new FileCommitter(upload.getForce(), upload.getGroupCommitWindow(), upload.getGroupCommitMaxFiles());
+        this.blobStore = new BlobStore(FILE_BASE.toPath(), fileCommitter, upload.getWriteBatchSize(), upload.getWriteBatches(),
+            uploadChannels, upload.getBlobSweepInterval());
+        this.fileValidators = new FileValidators(properties.getDownload().getValidatorCacheSize());
+        this.downloadFiles = createOpenFileCache(downloadChannels);
+        this.base64Files = base64Channels == downloadChannels ? downloadFiles : createOpenFileCache(base64Channels);
+        final StreamingProperties.Cache cache = properties.getDownload().getCache();
+        this.hotFileCache = cache.isEnabled() ? new HotFileCache(cache.getCapacity(), cache.getMaxFileSize()) : null;
+        final StreamingProperties.Buffers buffers = properties.getBuffers();
+        DirectBufferPool.DEFAULT.setMaxPooledBytes(buffers.getMaxPooledBytes());
+        DirectBufferPool.DEFAULT.setMaxOutstandingBytes(buffers.getMaxOutstandingBytes());
+        final long directBytes = buffers.getMaxPooledBytes() + buffers.getMaxOutstandingBytes()
+            + (cache.isEnabled() ? cache.getCapacity() : 0L);
+        if (directBytes > PlatformDependent.maxDirectMemory() / 2) {
+            LOGGER.warn("Pooled buffers and cached files may use {} of {} bytes direct memory, which leaves too little for Netty!",
+                directBytes, PlatformDependent.maxDirectMemory());
+        }
+        final StreamingProperties.Mapped mapped = properties.getDownload().getMapped();
+        this.readModePolicy = mapped.isEnabled()
+            ? ReadModePolicy.threshold(mapped.getThreshold())
+            : ReadModePolicy.fixed(ReadModePolicy.Mode.ASYNC);
+    }
 
     @SuppressWarnings("unused")
     @PostMapping("file/{filename}")
     Mono<ResponseEntity<Map<String, Object>>> uploadFile(@PathVariable String filename,
-                                                         @RequestBody Flux<ByteBuffer> content,
-                                                         @RequestHeader("Content-Length") Optional<String> contentLength) {
+                                                         @RequestBody Flux<ByteBuffer> content) {
 
         if (isFileNameInvalid(filename)) {
             return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Invalid target filename!")));
         }
         final File file = new File(FILE_BASE, filename);
-        final AsynchronousFileChannel channel;
-        try {
-            channel = AsynchronousFileChannel.open(file.toPath(), CREATE, WRITE);
-        } catch (IOException e) {
-            LOGGER.warn("Cannot open file to write to \"{}\"!", file.getAbsolutePath(), e);
-            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Cannot store file!")));
-        }
-        AtomicLong writtenBytes = new AtomicLong(0L);
-        return FluxUtil.writeFile(content, channel)
-            .doOnSuccess(voidIgnore -> {
-                try {
-                    channel.close();
-                    writtenBytes.set(file.length());
+        return blobStore.store(content, file.toPath())
+            .doOnNext(blob -> LOGGER.info("File \"{}\" with {} bytes stored as {} blob {}.", file.getAbsolutePath(),
+                blob.size(), blob.duplicate() ? "existing" : "new", blob.sha256()))
+            .doOnNext(this::registerDigest)
+            .doOnNext(blob -> invalidateCache(file))
+            .map(blob -> ResponseEntity.ok().eTag(blob.sha256()).body(Map.<String, Object>of(
+                ATTR_SUCCESS, true,
+                ATTR_SIZE, blob.size(),
+                ATTR_SHA256, blob.sha256()
+            )))
+            .onErrorResume(IOException.class, e -> {
+                LOGGER.warn("Cannot store file \"{}\"!", file.getAbsolutePath(), e);
+                return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Cannot store file!")));
+            });
+    }
 
-                    LOGGER.warn("File \"{}\" with {} bytes written.", file.getAbsolutePath(), writtenBytes.get());
-                } catch (IOException e) {
-                    LOGGER.warn("Cannot close file \"{}\"!", file.getAbsolutePath(), e);
+    @SuppressWarnings("unused")
+    @PostMapping("json-base64/{filename}")
+    Mono<ResponseEntity<Map<String, Object>>> uploadJsonBase64(@PathVariable String filename,
+                                                               @RequestParam("attribute") Optional<String> attribute,
+                                                               @RequestBody Flux<ByteBuffer> content) {
+
+        if (isFileNameInvalid(filename)) {
+            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Invalid target filename!")));
+        }
+        final File file = new File(FILE_BASE, filename);
+        final String name = attribute.orElse(ATTR_CONTENT);
+        final JsonBase64UploadParser parser = new JsonBase64UploadParser(List.of("/" + name.replace("~", "~0").replace("/", "~1")));
+        return storeAttachments(parser, content, number -> {
+                if (number > 1) {
+                    throw new IllegalArgumentException("Attribute \"" + name + "\" is used more than once!");
                 }
+                return file;
             })
-            .thenReturn(ResponseEntity.ok(Map.of(
-                ATTR_SUCCESS, true,
-                ATTR_SIZE, contentLength.orElse("-1").transform(Long::parseLong)
-            )));
+            .map(result -> {
+                final Map<String, Object> body = new LinkedHashMap<>();
+                body.put(ATTR_SUCCESS, true);
+                body.put(ATTR_SIZE, result.attachments().stream().mapToLong(a -> (long) a.get(ATTR_SIZE)).sum());
+                body.put(ATTR_METADATA, result.metadata());
+                return ResponseEntity.ok(body);
+            })
+            .onErrorResume(this::uploadError);
+    }
+
+    @SuppressWarnings("unused")
+    @PostMapping("json-attachments/{filename}")
+    Mono<ResponseEntity<Map<String, Object>>> uploadJsonAttachments(@PathVariable String filename,
+                                                                    @RequestParam("pointer") List<String> pointers,
+                                                                    @RequestBody Flux<ByteBuffer> content) {
+
+        if (isFileNameInvalid(filename)) {
+            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Invalid target filename!")));
+        }
+        final JsonBase64UploadParser parser;
+        try {
+            parser = new JsonBase64UploadParser(pointers);
+        } catch (IllegalArgumentException e) {
+            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, e.getMessage())));
+        }
+        // attachment n of "name.ext" is stored in "name-n.ext"
+        final int dot = filename.lastIndexOf('.');
+        return storeAttachments(parser, content,
+                number -> new File(FILE_BASE, filename.substring(0, dot) + "-" + number + filename.substring(dot)))
+            .map(result -> {
+                final Map<String, Object> body = new LinkedHashMap<>();
+                body.put(ATTR_SUCCESS, true);
+                body.put(ATTR_ATTACHMENTS, result.attachments());
+                body.put(ATTR_METADATA, result.metadata());
+                return ResponseEntity.ok(body);
+            })
+            .onErrorResume(this::uploadError);
     }
 
     @SuppressWarnings("unused")
     @GetMapping("file/{filename}")
-    ResponseEntity<Flux<ByteBuffer>> downloadFile(@PathVariable String filename) {
+    Mono<Void> downloadFile(@PathVariable String filename,
+                            @RequestParam("zero-copy") Optional<Boolean> zeroCopy,
+                            ServerWebExchange exchange) {
 
+        final ServerHttpResponse response = exchange.getResponse();
         if (isFileNameInvalid(filename)) {
-            return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Invalid download filename!").build();
+            return writeError(response, HttpStatus.BAD_REQUEST, "Invalid download filename!");
         }
         final File file = new File(FILE_BASE, filename);
-        final MediaType mediaType = mediaTypeFromFileName(filename);
-        final long contentLength = file.length();
-        final AsynchronousFileChannel channel;
+        final OpenFileCache.Handle handle;
         try {
-            channel = AsynchronousFileChannel.open(file.toPath(), READ);
+            handle = downloadFiles.acquire(file.toPath());
         } catch (NoSuchFileException nsfe) {
-            LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
-            return ResponseEntity.notFound().header(X_HEADER_ERROR, "File does not exist!").build();
+            LOGGER.warn("File \"{}\" does not exist!", file.getAbsolutePath());
+            return writeError(response, HttpStatus.NOT_FOUND, "File does not exist!");
         } catch (IOException e) {
-            LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
-            return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Cannot read file!").build();
+            LOGGER.warn("Cannot read attributes of \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            return writeError(response, HttpStatus.BAD_REQUEST, "Cannot read file!");
         }
-        return streamToWebClient(FluxUtil.readFile(channel), mediaType.toString(), contentLength);
+        // the shared channel of the file stays open, until the response is written
+        return Mono.using(() -> handle, h -> writeFile(exchange, file, h, zeroCopy), OpenFileCache.Handle::close);
     }
 
     @SuppressWarnings("unused")
     @GetMapping("base64-1/{filename}")
-    ResponseEntity<Flux<ByteBuffer>> downloadFile1Base64(@PathVariable String filename) {
+    ResponseEntity<Flux<DataBuffer>> downloadFile1Base64(@PathVariable String filename, ServerWebExchange exchange) {
 
         if (isFileNameInvalid(filename)) {
             return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Invalid inclusion filename!").build();
         }
 
-        // An example for a JSON Java Pojo with one replacement token
-        Map<String, Object> pojo = Map.of(
-            "attribute1", "one",
-            "attribute2", Base64Includer.CONTENT_TAG_1,
-            "attribute3", "three"
-        );
-        String json;
-        try {
-            json = OBJECT_MAPPER.writeValueAsString(pojo);
-        } catch (JsonProcessingException e) {
-            LOGGER.warn("Cannot create wrapper json from \"{}\"!", pojo, e);
-            return ResponseEntity.badRequest().body(Flux.just(ByteBuffer.wrap("Cannot create wrapper json!".getBytes(StandardCharsets.UTF_8))));
-        }
-
         // A file, that is read an included in the output as a replacement for the token
         final File file = new File(FILE_BASE, filename);
-        // If we want to support a content length in the HTTP response header, we can use this utility
-        final long contentLength = json.length() + Base64Includer.calculateBase64Size((int) file.length()) - Base64Includer.CONTENT_TAG_1.length();
-        final AsynchronousFileChannel channel;
+        final OpenFileCache.Handle handle;
         try {
-            channel = AsynchronousFileChannel.open(file.toPath(), READ);
+            handle = base64Files.acquire(file.toPath());
         } catch (NoSuchFileException nsfe) {
             LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
             return ResponseEntity.notFound().header(X_HEADER_ERROR, "File does not exist!").build();
         } catch (IOException e) {
-            LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            LOGGER.warn("Cannot read attributes of \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
             return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Cannot read file!").build();
         }
-        final Base64Includer base64Includer = new Base64Includer(json);
-        // Now we have a Flux<ByteBuffer>, that is the input for the "base64Includer"
-        final Flux<ByteBuffer> inputByteBufferFlux = FluxUtil.readFile(channel);
-        return streamToWebClient(base64Includer.streamWithContent(List.of(inputByteBufferFlux)), MediaType.APPLICATION_JSON_VALUE, contentLength);
+        // The ETag covers the template and the version of the included file
+        if (checkNotModified(exchange, FileValidators.combine(BASE64_1_TEMPLATE.fingerprint(), List.of(handle.validator())))) {
+            handle.close();
+            return ResponseEntity.status(exchange.getResponse().getStatusCode()).build();
+        }
+        final Base64Includer base64Includer = new Base64Includer(BASE64_1_TEMPLATE, includePrefetch);
+        final long fileSize = handle.validator().size();
+        // The exact byte length is known in advance, so we can support a content length in the HTTP response header
+        final long contentLength = base64Includer.contentLength(fileSize);
+        // The file is read into pooled buffers and encoded - in parallel, if it is large - or read from its sidecar
+        final Flux<DataBuffer> output = base64Includer.streamWithPooledEncodedContent(
+            (name, encoding) -> encodedContent(file, handle, encoding));
+        return streamToWebClient(output.doFinally(signalType -> handle.close()), MediaType.APPLICATION_JSON_VALUE, contentLength);
     }
 
     @SuppressWarnings("unused")
     @GetMapping("base64-2/{filename1}/{filename2}")
-    ResponseEntity<Flux<ByteBuffer>> downloadFile2Bas64(@PathVariable String filename1, @PathVariable String filename2) {
+    ResponseEntity<Flux<DataBuffer>> downloadFile2Bas64(@PathVariable String filename1, @PathVariable String filename2,
+                                                        ServerWebExchange exchange) {
 
         if (isFileNameInvalid(filename1)) {
             return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Invalid inclusion filename1!").build();
@@ -156,56 +341,281 @@ public class StreamingController {
             return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Invalid inclusion filename2!").build();
         }
 
-        // An example for a JSON Java Pojo with one replacement token
-        Map<String, Object> pojo = Map.of(
-            "attribute1", "one",
-            "attribute2", Base64Includer.CONTENT_TAG_1,
-            "attribute3", "three",
-            "attribute4", Base64Includer.CONTENT_TAG_2,
-            "attribute5", "five"
-        );
-        String json;
-        try {
-            json = OBJECT_MAPPER.writeValueAsString(pojo);
-        } catch (JsonProcessingException e) {
-            LOGGER.warn("Cannot create wrapper json from \"{}\"!", pojo, e);
-            return ResponseEntity.badRequest().body(Flux.just(ByteBuffer.wrap("Cannot create wrapper json!".getBytes(StandardCharsets.UTF_8))));
-        }
-
         final List<String> filenames = List.of(filename1, filename2);
-        final List<FileWithChannel> files = new ArrayList<>();
-        final List<Flux<ByteBuffer>> streams = new ArrayList<>();
-        long contentLength = json.length();
-        for (String filename : filenames) {
-            final File file = new File(FILE_BASE, filename);
-            final long base64Size = Base64Includer.calculateBase64Size((int) file.length());
-            contentLength += base64Size - Base64Includer.CONTENT_TAG_1.length();
-            final AsynchronousFileChannel channel;
+        final List<OpenFileCache.Handle> handles = new ArrayList<>();
+        final List<FileValidators.Validator> validators = new ArrayList<>();
+        final long[] fileSizes = new long[filenames.size()];
+        for (int i = 0; i < filenames.size(); i++) {
+            final File file = new File(FILE_BASE, filenames.get(i));
             try {
-                channel = AsynchronousFileChannel.open(file.toPath(), READ);
+                handles.add(base64Files.acquire(file.toPath()));
             } catch (NoSuchFileException nsfe) {
                 LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
+                handles.forEach(OpenFileCache.Handle::close);
                 return ResponseEntity.notFound().header(X_HEADER_ERROR, "File does not exist!").build();
             } catch (IOException e) {
-                LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+                LOGGER.warn("Cannot read attributes of \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+                handles.forEach(OpenFileCache.Handle::close);
                 return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Cannot read file!").build();
             }
-            files.add(new FileWithChannel(file, channel));
-            final Flux<ByteBuffer> inputByteBufferFlux = FluxUtil.readFile(channel);
-            streams.add(inputByteBufferFlux);
-            LOGGER.info("File \"{}\" opened", file);
+            validators.add(handles.get(i).validator());
+            fileSizes[i] = validators.get(i).size();
+        }
+        if (checkNotModified(exchange, FileValidators.combine(BASE64_2_TEMPLATE.fingerprint(), validators))) {
+            handles.forEach(OpenFileCache.Handle::close);
+            return ResponseEntity.status(exchange.getResponse().getStatusCode()).build();
         }
 
+        final Base64Includer base64Includer = new Base64Includer(BASE64_2_TEMPLATE, includePrefetch);
+        final long contentLength = base64Includer.contentLength(fileSizes);
         LOGGER.info("Calculated content-length={}", contentLength);
-        final Base64Includer base64Includer = new Base64Includer(json);
-        final Flux<ByteBuffer> output = base64Includer.streamWithContent(streams)
-            .doAfterTerminate(() -> closeChannels(files));
-        // Now we have a Flux<ByteBuffer>, that is the input for the "base64Includer"
-        return streamToWebClient(output, MediaType.APPLICATION_JSON_VALUE, contentLength);
+        // Each file is opened, when the output reaches its placeholder (or when it is prefetched)
+        final Flux<DataBuffer> output = base64Includer.streamWithPooledEncodedContent((name, encoding) -> {
+            final int index = CompiledTemplate.contentIndex(name, filenames.size());
+            return encodedContent(new File(FILE_BASE, filenames.get(index)), handles.get(index), encoding);
+        });
+        return streamToWebClient(output.doFinally(signalType -> handles.forEach(OpenFileCache.Handle::close)),
+            MediaType.APPLICATION_JSON_VALUE, contentLength);
+    }
+
+    @SuppressWarnings("unused")
+    @GetMapping("xml-base64/{filename}")
+    ResponseEntity<Flux<DataBuffer>> downloadFileXmlBase64(@PathVariable String filename, ServerWebExchange exchange) {
+
+        if (isFileNameInvalid(filename)) {
+            return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Invalid inclusion filename!").build();
+        }
+
+        final File file = new File(FILE_BASE, filename);
+        final OpenFileCache.Handle handle;
+        try {
+            handle = base64Files.acquire(file.toPath());
+        } catch (NoSuchFileException nsfe) {
+            LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
+            return ResponseEntity.notFound().header(X_HEADER_ERROR, "File does not exist!").build();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read attributes of \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            return ResponseEntity.badRequest().header(X_HEADER_ERROR, "Cannot read file!").build();
+        }
+        if (checkNotModified(exchange, FileValidators.combine(XML_BASE64_TEMPLATE.fingerprint(), List.of(handle.validator())))) {
+            handle.close();
+            return ResponseEntity.status(exchange.getResponse().getStatusCode()).build();
+        }
+        final Base64Includer base64Includer = new Base64Includer(XML_BASE64_TEMPLATE, includePrefetch);
+        final long fileSize = handle.validator().size();
+        // The file name is valid, so it needs no XML escaping
+        final byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
+        final long contentLength = base64Includer.contentLength(name -> name.equals("file") ? fileSize : filenameBytes.length);
+        final Flux<DataBuffer> output = base64Includer.streamWithPooledEncodedContent((name, encoding) -> name.equals("file")
+            ? encodedContent(file, handle, encoding)
+            : Base64Includer.encodePooled(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(filenameBytes)), encoding));
+        return streamToWebClient(output.doFinally(signalType -> handle.close()), MediaType.APPLICATION_XML_VALUE, contentLength);
     }
 
     //------------------------------------------------------------------------------------------------------------------
 
+    /*
+     * Write the requested ranges of a file, whose handle is released by the caller, when the response is complete.
+     */
+    private Mono<Void> writeFile(ServerWebExchange exchange, File file, OpenFileCache.Handle handle,
+                                 Optional<Boolean> zeroCopy) {
+
+        final ServerHttpRequest request = exchange.getRequest();
+        final ServerHttpResponse response = exchange.getResponse();
+        final FileValidators.Validator validator = handle.validator();
+        if (checkNotModified(exchange, validator)) {
+            return response.setComplete();
+        }
+        final MediaType mediaType = mediaTypeFromFileName(file.getName());
+        final long fileSize = validator.size();
+        // ZeroCopyHttpOutputMessage is not available with every server (e.g. not with a mock server)
+        final boolean useZeroCopy = zeroCopy.orElse(properties.getDownload().isZeroCopy())
+            && response instanceof ZeroCopyHttpOutputMessage;
+        response.getHeaders().set(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        final List<ByteRange> ranges;
+        try {
+            ranges = requestedRanges(request.getHeaders(), validator);
+        } catch (IllegalArgumentException e) {
+            LOGGER.info("Range not satisfiable for \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            response.getHeaders().set(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+            return writeError(response, HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Range not satisfiable!");
+        }
+        if (ranges.isEmpty()) {
+            return writeRegion(response, file, handle, mediaType, 0, fileSize, useZeroCopy);
+        }
+        response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        if (ranges.size() == 1) {
+            final ByteRange range = ranges.get(0);
+            response.getHeaders().set(HttpHeaders.CONTENT_RANGE, range.contentRange(fileSize));
+            return writeRegion(response, file, handle, mediaType, range.start(), range.length(), useZeroCopy);
+        }
+        // A multipart body mixes generated part headers with file content, so it is always streamed through the heap
+        final MultipartByteRanges multipart = new MultipartByteRanges(ranges, mediaType, fileSize);
+        final AsynchronousFileChannel channel;
+        try {
+            channel = handle.channel();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            return writeError(response, HttpStatus.BAD_REQUEST, "Cannot read file!");
+        }
+        response.getHeaders().setContentType(multipart.getMediaType());
+        response.getHeaders().setContentLength(multipart.contentLength());
+        return response.writeWith(multipart.stream(channel));
+    }
+
+    /*
+     * Parses a JSON upload in one pass and writes each attachment into its own file. The files are written
+     * concurrently up to a limit, each with its own backpressure, while the upload is parsed further.
+     */
+    private Mono<UploadResult> storeAttachments(JsonBase64UploadParser parser, Flux<ByteBuffer> content,
+                                                IntFunction<File> attachmentFile) {
+
+        final StreamingProperties.Upload upload = properties.getUpload();
+        // the other attributes and the attachments are returned in the order of the request
+        final Map<String, Object> metadata = Collections.synchronizedMap(new LinkedHashMap<>());
+        final List<Map<String, Object>> attachments = Collections.synchronizedList(new ArrayList<>());
+        // Each window starts with an attribute or an attachment, which is followed by its decoded data
+        return parser.parse(content)
+            .windowUntil(event -> !(event instanceof JsonBase64UploadParser.AttachmentData), true, upload.getBufferedChunks())
+            .flatMap(window -> window.switchOnFirst((first, events) -> {
+                if (first.get() instanceof JsonBase64UploadParser.Attribute attr) {
+                    metadata.put(attr.name(), attr.value());
+                } else if (first.get() instanceof JsonBase64UploadParser.AttachmentStart start) {
+                    final File file = attachmentFile.apply(attachments.size() + 1);
+                    final Map<String, Object> attachment = new LinkedHashMap<>();
+                    attachment.put(ATTR_POINTER, start.pointer());
+                    attachment.put(ATTR_FILE, file.getName());
+                    attachments.add(attachment);
+                    return writeAttachment(file, events.skip(1).map(event -> ((JsonBase64UploadParser.AttachmentData) event).data()), attachment);
+                }
+                return events.then();
+            }), upload.getParallelWrites())
+            .then(Mono.fromSupplier(() -> new UploadResult(metadata, attachments)));
+    }
+
+    private Mono<Void> writeAttachment(File file, Flux<ByteBuffer> data, Map<String, Object> attachment) {
+
+        final AtomicLong writtenBytes = new AtomicLong(0L);
+        return writeDurably(file, data.doOnNext(byteBuffer -> writtenBytes.addAndGet(byteBuffer.remaining())))
+            .doOnSuccess(voidIgnore -> {
+                invalidateCache(file);
+                attachment.put(ATTR_SIZE, writtenBytes.get());
+                LOGGER.info("File \"{}\" with {} bytes decoded.", file.getAbsolutePath(), writtenBytes.get());
+            });
+    }
+
+    /*
+     * Writes the data into a temporary file next to the target file, which replaces the target file, when all data
+     * is written. So a failed or cancelled upload leaves the old file and no stale bytes of a longer old file remain.
+     * The file committer defines, whether and how the file is forced to disk before.
+     */
+    private Mono<Void> writeDurably(File file, Flux<ByteBuffer> data) {
+
+        final StreamingProperties.Upload upload = properties.getUpload();
+        return fileCommitter.writeAndCommit(file.toPath(), uploadChannels,
+            channel -> FluxUtil.writeFile(data, channel, 0L, upload.getWriteBatchSize(), upload.getWriteBatches()));
+    }
+
+    private void invalidateCache(File file) {
+
+        if (hotFileCache != null) {
+            hotFileCache.invalidate(file.toPath());
+        }
+        downloadFiles.invalidate(file.toPath());
+        if (base64Files != downloadFiles) {
+            base64Files.invalidate(file.toPath());
+        }
+    }
+
+    private void registerDigest(BlobStore.StoredBlob blob) {
+
+        try {
+            fileValidators.register(blobStore.blobPath(blob.sha256()), blob.sha256());
+        } catch (IOException e) {
+            LOGGER.warn("Cannot register digest of blob {}! {}", blob.sha256(), e.getMessage());
+        }
+    }
+
+    private Mono<ResponseEntity<Map<String, Object>>> uploadError(Throwable throwable) {
+
+        if (throwable instanceof IllegalArgumentException) {
+            LOGGER.info("Invalid JSON upload! {}", throwable.getMessage());
+            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, throwable.getMessage())));
+        }
+        if (throwable instanceof IOException) {
+            LOGGER.warn("Cannot store attachment of JSON upload!", throwable);
+            return Mono.just(ResponseEntity.badRequest().body(Map.of(ATTR_SUCCESS, false, ATTR_ERROR, "Cannot store file!")));
+        }
+        return Mono.error(throwable);
+    }
+
+    /*
+     * The encoded content of an included file. Its Base64 sidecar is read, if it exists; otherwise the shared channel
+     * of the file is read and encoded. The sidecar is opened on subscription and closed, when the content is complete.
+     */
+    private Flux<DataBuffer> encodedContent(File file, OpenFileCache.Handle handle, ContentEncoding encoding) {
+
+        final FileValidators.Validator validator = handle.validator();
+        return Flux.defer(() -> {
+            final AsynchronousFileChannel sidecar = base64SidecarCache != null && encoding == StandardContentEncoding.BASE64
+                ? base64SidecarCache.open(file.toPath(), validator)
+                : null;
+            if (sidecar != null) {
+                final long encodedSize = Base64Includer.calculateBase64Size(validator.size());
+                return Flux.using(() -> sidecar,
+                    channel -> FluxUtil.readFilePooled(channel, 0L, encodedSize),
+                    channel -> closeChannel(channel, file));
+            }
+            final AsynchronousFileChannel channel;
+            try {
+                channel = handle.channel();
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            return encodedContent(channel, validator.size(), encoding);
+        });
+    }
+
+    private Flux<DataBuffer> encodedContent(AsynchronousFileChannel channel, long fileSize, ContentEncoding encoding) {
+
+        if (parallelBase64Encoder != null && encoding == StandardContentEncoding.BASE64) {
+            return parallelBase64Encoder.encode(channel, fileSize);
+        }
+        return Base64Includer.encodePooled(FluxUtil.readFilePooled(channel, 0L, fileSize), encoding);
+    }
+
+    private FileChannelFactory createChannelFactory(FileIoEngine engine) {
+
+        final StreamingProperties.Io io = properties.getIo();
+        if (engine == FileIoEngine.VIRTUAL_THREADS) {
+            final int maxInFlight = properties.getVirtualThreads().getMaxInFlight();
+            return FileChannelFactory.create(engine, maxInFlight, maxInFlight, io.isSplitPools(), io.getLeakDetection());
+        }
+        return FileChannelFactory.create(engine, io.getReadThreads(), io.getWriteThreads(), io.isSplitPools(),
+            io.getLeakDetection());
+    }
+
+    private OpenFileCache createOpenFileCache(FileChannelFactory channelFactory) {
+
+        final StreamingProperties.Handles handles = properties.getDownload().getHandles();
+        return new OpenFileCache(channelFactory, fileValidators, handles.isEnabled() ? handles.getMaxEntries() : 0,
+            handles.getMaxAge(), handles.getIdleTimeout());
+    }
+
+    private static CompiledTemplate compileJsonTemplate(String... namesAndValues) {
+
+        final Map<String, Object> pojo = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            pojo.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        try {
+            return CompiledTemplate.compile(OBJECT_MAPPER.writeValueAsString(pojo));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot create wrapper json from " + pojo, e);
+        }
+    }
+
     private static boolean isFileNameInvalid(String filename) {
         return !FILE_NAME_PATTERN.matcher(filename).matches();
     }
@@ -219,28 +629,185 @@ public class StreamingController {
         }
     }
 
-    private static ResponseEntity<Flux<ByteBuffer>> streamToWebClient(Flux<ByteBuffer> content, String mediaType, long contentLength) {
+    /*
+     * A negative content length is unknown in advance, e.g. for a json placeholder, so the response is chunked.
+     */
+    private static ResponseEntity<Flux<DataBuffer>> streamToWebClient(Flux<DataBuffer> content, String mediaType, long contentLength) {
 
-        return ResponseEntity
+        final ResponseEntity.BodyBuilder builder = ResponseEntity
             .ok()
-            .header("Content-Type", mediaType)
-            .header("Content-Length", Long.toString(contentLength))
-            .body(content);
+            .header("Content-Type", mediaType);
+        if (contentLength >= 0) {
+            builder.header("Content-Length", Long.toString(contentLength));
+        }
+        return builder.body(content);
     }
 
-    private static void closeChannels(List<FileWithChannel> fileWithChannels) {
+    /*
+     * Write the given region of the file with the status code, that is already set. A small file is served from
+     * the hot file cache, if it is cached or admitted to the cache, so the file is not opened again.
+     */
+    private Mono<Void> writeRegion(ServerHttpResponse response, File file, OpenFileCache.Handle handle,
+                                   MediaType mediaType, long offset, long length, boolean zeroCopy) {
 
-        fileWithChannels.stream().forEach(fileWithChannel -> {
-            try {
-                fileWithChannel.channel.close();
-                LOGGER.warn("Channel {} closed", fileWithChannel.file);
-            } catch (IOException e) {
-                LOGGER.warn("Cannot close {}", fileWithChannel.file, e);
-            }
-        });
+        final FileValidators.Validator validator = handle.validator();
+        response.getHeaders().setContentType(mediaType);
+        response.getHeaders().setContentLength(length);
+        if (hotFileCache == null) {
+            return writeFileRegion(response, file, handle, offset, length, zeroCopy);
+        }
+        final ByteBuffer cached = hotFileCache.get(file.toPath(), validator);
+        if (cached != null) {
+            return writeCached(response, cached, offset, length);
+        }
+        if (!hotFileCache.admit(file.toPath(), validator)) {
+            return writeFileRegion(response, file, handle, offset, length, zeroCopy);
+        }
+        return hotFileCache.load(file.toPath(), validator)
+            .map(Optional::of)
+            .onErrorResume(IOException.class, e -> {
+                LOGGER.info("Cannot cache \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+                return Mono.just(Optional.empty());
+            })
+            .flatMap(content -> content.isPresent()
+                ? writeCached(response, content.get(), offset, length)
+                : writeFileRegion(response, file, handle, offset, length, zeroCopy));
+    }
+
+    /*
+     * The Netty buffer wraps the read-only slice of the cached direct buffer, so the content is not copied.
+     */
+    private static Mono<Void> writeCached(ServerHttpResponse response, ByteBuffer content, long offset, long length) {
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(content.slice((int) offset, (int) length))));
+    }
+
+    /*
+     * Write the given region of the file. Reactor Netty implements ZeroCopyHttpOutputMessage with a FileRegion
+     * (sendfile on Linux), so with "zeroCopy" the file content is never copied into the JVM heap. Otherwise, the
+     * region is read by memory mappings or into pooled buffers, as chosen by the ReadModePolicy. The pooled buffers
+     * are read from the shared channel of the handle, that is not closed here.
+     */
+    private Mono<Void> writeFileRegion(ServerHttpResponse response, File file, OpenFileCache.Handle handle,
+                                       long offset, long length, boolean zeroCopy) {
+
+        if (zeroCopy) {
+            return ((ZeroCopyHttpOutputMessage) response).writeWith(file.toPath(), offset, length);
+        }
+        if (readModePolicy.mode(length) == ReadModePolicy.Mode.MAPPED) {
+            return writeMappedFileRegion(response, file, handle, offset, length);
+        }
+        final AsynchronousFileChannel channel;
+        try {
+            channel = handle.channel();
+        } catch (NoSuchFileException nsfe) {
+            LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
+            return writeError(response, HttpStatus.NOT_FOUND, "File does not exist!");
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            return writeError(response, HttpStatus.BAD_REQUEST, "Cannot read file!");
+        }
+        // the pooled buffers are released by the HTTP layer, after they are written
+        final int readAhead = properties.getDownload().getReadAhead();
+        return response.writeWith(FluxUtil.readFilePooled(channel, AdaptiveChunkSizePolicy.DEFAULT, readAhead, offset, length));
+    }
+
+    /*
+     * The Netty buffers wrap the read-only slices of the mappings, so the content is not copied. The mappings are
+     * created from the shared channel of the handle, that is not closed here; they stay valid, when it is closed.
+     */
+    private Mono<Void> writeMappedFileRegion(ServerHttpResponse response, File file, OpenFileCache.Handle handle,
+                                             long offset, long length) {
+
+        final FileChannel channel;
+        try {
+            channel = handle.mappableChannel();
+        } catch (NoSuchFileException nsfe) {
+            LOGGER.warn("File \"{}\" does not exist! {}", file.getAbsolutePath(), nsfe.getMessage());
+            return writeError(response, HttpStatus.NOT_FOUND, "File does not exist!");
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open file to read from \"{}\"! {}", file.getAbsolutePath(), e.getMessage());
+            return writeError(response, HttpStatus.BAD_REQUEST, "Cannot read file!");
+        }
+        final int windowSize = properties.getDownload().getMapped().getWindowSize();
+        return response.writeWith(FluxUtil.readFileMapped(channel, MAPPED_CHUNK_SIZE, windowSize, offset, length)
+            .map(response.bufferFactory()::wrap));
+    }
+
+    /*
+     * Evaluates "If-None-Match" and "If-Modified-Since" (and "If-Match" and "If-Unmodified-Since") before any file is
+     * opened. Returns true, if the status - 304 or 412 - is set and the response is complete without a body.
+     * In both cases the validators are set as the "ETag" and "Last-Modified" headers.
+     */
+    private static boolean checkNotModified(ServerWebExchange exchange, FileValidators.Validator validator) {
+        return exchange.checkNotModified(validator.eTag(), Instant.ofEpochMilli(validator.lastModified()));
+    }
+
+    /*
+     * The ranges of a "Range" header. An empty list means, that the full file is requested, either because there is
+     * no (valid) "Range" header, or because an "If-Range" condition does not match, or because the ranges would in
+     * sum be larger than the file.
+     */
+    private static List<ByteRange> requestedRanges(HttpHeaders requestHeaders, FileValidators.Validator validator) {
+
+        final long fileSize = validator.size();
+
+        final List<HttpRange> httpRanges;
+        try {
+            httpRanges = requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            // An invalid Range header field must be ignored
+            return List.of();
+        }
+        if (httpRanges.isEmpty() || !ifRangeMatches(requestHeaders.getFirst(HttpHeaders.IF_RANGE), validator)) {
+            return List.of();
+        }
+        final List<ByteRange> ranges = ByteRange.of(httpRanges, fileSize);
+        if (ByteRange.totalLength(ranges) > fileSize) {
+            return List.of();
+        }
+        return ranges;
+    }
+
+    /*
+     * "If-Range" with a date must exactly match the last modification date (in seconds). An entity tag must be
+     * strong and equal to the one of the file; a weak entity tag never matches.
+     */
+    private static boolean ifRangeMatches(String ifRange, FileValidators.Validator validator) {
+
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(validator.eTag());
+        }
+        try {
+            final long ifRangeSeconds = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return ifRangeSeconds == validator.lastModified() / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static Mono<Void> writeError(ServerHttpResponse response, HttpStatus status, String error) {
+
+        response.setStatusCode(status);
+        response.getHeaders().set(X_HEADER_ERROR, error);
+        return response.setComplete();
+    }
+
+    private static void closeChannel(Channel channel, File file) {
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close {}", file, e);
+        }
     }
 
-    record FileWithChannel(File file, AsynchronousFileChannel channel) {
+    record UploadResult(Map<String, Object> metadata, List<Map<String, Object>> attachments) {
 
     }
 }
@@ -0,0 +1,127 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ChunkSizePolicy}, that starts with a chunk size derived from the file size (small chunks for small files)
+ * and adapts it, while the file is read:
+ * <ul>
+ *     <li>The chunk size is doubled (up to the maximum), when the chunks are emitted as fast as they are read.
+ *     Larger reads are cheaper per byte for the disk and for the reactive pipeline.</li>
+ *     <li>The chunk size is halved (down to the minimum), when read chunks wait long to be emitted (slow client).</li>
+ * </ul>
+ * Netty requests about 128 chunks in advance, so the demand alone would let every download grow to the maximum.
+ * Therefore a chunk is emitted only, while the chunks emitted before and not yet written to the socket stay below
+ * {@code maxUnreleasedBytes}. A slow client makes the chunks wait for this and shrinks them; the limit bounds the
+ * memory held by one download.
+ */
+public final class AdaptiveChunkSizePolicy implements ChunkSizePolicy, MeterBinder {
+
+    /**
+     * The policy used by the {@link FluxUtil} read methods without an explicit chunk size. Even without the limit
+     * of 2 MB unreleased bytes, a download holds at most read-ahead (4) x 128 KB x Netty's prefetch (128) = 64 MB,
+     * which is the default of {@code streaming.buffers.max-outstanding-bytes}.
+     */
+    public static final AdaptiveChunkSizePolicy DEFAULT = new AdaptiveChunkSizePolicy(
+        16 * 1024, 128 * 1024, TimeUnit.MILLISECONDS.toNanos(2), TimeUnit.MILLISECONDS.toNanos(50), 2 * 1024 * 1024);
+
+    // the initial chunk size is 1/64 of the file, but at most this size, so the first bytes arrive fast
+    private static final int MAX_INITIAL_CHUNK_SIZE = 256 * 1024;
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final long fastConsumerNanos;
+    private final long slowConsumerNanos;
+    private final long maxUnreleasedBytes;
+
+    private volatile DistributionSummary chunkSizes;
+    private volatile Counter grown;
+    private volatile Counter shrunk;
+
+    /**
+     * Create a policy.
+     * @param minChunkSize the smallest chunk size in bytes (a power of two)
+     * @param maxChunkSize the largest chunk size in bytes (a power of two)
+     * @param fastConsumerNanos a chunk, that was emitted within this time after it was read, grows the chunk size
+     * @param slowConsumerNanos a chunk, that was not emitted within this time after it was read, shrinks the chunk size
+     * @param maxUnreleasedBytes the bytes of the emitted chunks, that may be not yet released by the subscriber
+     */
+    public AdaptiveChunkSizePolicy(int minChunkSize, int maxChunkSize, long fastConsumerNanos, long slowConsumerNanos,
+                                   long maxUnreleasedBytes) {
+        if (minChunkSize < 1 || maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size range " + minChunkSize + ".." + maxChunkSize);
+        }
+        if (maxUnreleasedBytes < maxChunkSize) {
+            throw new IllegalArgumentException("maxUnreleasedBytes cannot be less than " + maxChunkSize + ", but was "
+                + maxUnreleasedBytes);
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.fastConsumerNanos = fastConsumerNanos;
+        this.slowConsumerNanos = slowConsumerNanos;
+        this.maxUnreleasedBytes = maxUnreleasedBytes;
+    }
+
+    @Override
+    public int initialChunkSize(long length) {
+        final long wanted = Math.min(length / 64, Math.min(MAX_INITIAL_CHUNK_SIZE, maxChunkSize));
+        // a power of two fits exactly into the size classes of the DirectBufferPool
+        return Math.max(minChunkSize, Integer.highestOneBit((int) wanted));
+    }
+
+    @Override
+    public int nextChunkSize(int currentChunkSize, long readyNanos) {
+        if (readyNanos < fastConsumerNanos && currentChunkSize < maxChunkSize) {
+            count(grown);
+            return Math.min(maxChunkSize, currentChunkSize * 2);
+        }
+        if (readyNanos > slowConsumerNanos && currentChunkSize > minChunkSize) {
+            count(shrunk);
+            return Math.max(minChunkSize, currentChunkSize / 2);
+        }
+        return currentChunkSize;
+    }
+
+    @Override
+    public long maxUnreleasedBytes() {
+        return maxUnreleasedBytes;
+    }
+
+    @Override
+    public void chunkRead(int chunkSize) {
+        final DistributionSummary summary = chunkSizes;
+        if (summary != null) {
+            summary.record(chunkSize);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        chunkSizes = DistributionSummary.builder("streaming.read.chunk.size")
+            .description("Size of the chunks read from files")
+            .baseUnit("bytes")
+            .register(registry);
+        grown = Counter.builder("streaming.read.chunk.adjustments")
+            .description("Changes of the chunk size while reading a file")
+            .tag("direction", "grow")
+            .register(registry);
+        shrunk = Counter.builder("streaming.read.chunk.adjustments")
+            .description("Changes of the chunk size while reading a file")
+            .tag("direction", "shrink")
+            .register(registry);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static void count(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
@@ -10,25 +10,26 @@ import java.nio.channels.WritePendingException;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLongFieldUpdater;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Adapts {@link AsynchronousFileChannel} to {@link AsynchronousByteChannel}
+ * <p>
+ * Reads and writes share one position. Only one read may be pending, but up to {@code maxPendingWrites} writes, whose
+ * positions are assigned, when they are started - see {@link PipelinedFileWriter}. A write always writes the whole
+ * buffer. A read is not allowed, while a write is pending, and vice versa.
  */
 public class AsynchronousFileChannelAdapter implements AsynchronousByteChannel {
 
     private final AsynchronousFileChannel fileChannel;
-
-    private static final AtomicLongFieldUpdater<AsynchronousFileChannelAdapter> POSITION_ATOMIC_UPDATER =
-        AtomicLongFieldUpdater.newUpdater(AsynchronousFileChannelAdapter.class, "position");
-    private volatile long position;
+    private final PipelinedFileWriter writer;
 
     // AsynchronousByteChannel implementation may disallow concurrent reads and writes.
-    private static final AtomicReferenceFieldUpdater<AsynchronousFileChannelAdapter, Operation> PENDING_OPERATION_ATOMIC_UPDATER =
-        AtomicReferenceFieldUpdater.newUpdater(
-            AsynchronousFileChannelAdapter.class, Operation.class, "pendingOperation");
-    private volatile Operation pendingOperation = null;
+    private static final AtomicIntegerFieldUpdater<AsynchronousFileChannelAdapter> PENDING_ATOMIC_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(AsynchronousFileChannelAdapter.class, "pending");
+    private static final int READ_PENDING = -1;
+    // READ_PENDING, 0 or the number of pending writes
+    private volatile int pending;
 
     /**
      * Creates an instance of {@link AsynchronousFileChannelAdapter} that adapts {@link AsynchronousFileChannel} to
@@ -37,46 +38,62 @@ public class AsynchronousFileChannelAdapter implements AsynchronousByteChannel {
      * @param position The position to start reading from or writing to.
      */
     public AsynchronousFileChannelAdapter(AsynchronousFileChannel fileChannel, long position) {
+        this(fileChannel, position, 1);
+    }
+
+    /**
+     * Creates an instance of {@link AsynchronousFileChannelAdapter} that adapts {@link AsynchronousFileChannel} to
+     * {@link AsynchronousByteChannel} with pipelined writes.
+     * @param fileChannel The {@link AsynchronousFileChannel} to adapt.
+     * @param position The position to start reading from or writing to.
+     * @param maxPendingWrites The maximum number of writes in flight (at least 1).
+     */
+    public AsynchronousFileChannelAdapter(AsynchronousFileChannel fileChannel, long position, int maxPendingWrites) {
         this.fileChannel = Objects.requireNonNull(fileChannel);
-        this.position = position;
+        this.writer = new PipelinedFileWriter(fileChannel, position, maxPendingWrites);
     }
 
     @Override
     public <A> void read(ByteBuffer dst, A attachment, CompletionHandler<Integer, ? super A> handler) {
-        beginOperation(Operation.READ);
-        fileChannel.read(dst, POSITION_ATOMIC_UPDATER.get(this), attachment,
-            new DelegatingCompletionHandler<>(handler, Operation.READ));
+        beginRead();
+        fileChannel.read(dst, writer.getPosition(), attachment, new ReadCompletionHandler<>(handler));
     }
 
     @Override
     public Future<Integer> read(ByteBuffer dst) {
-        beginOperation(Operation.READ);
+        beginRead();
         CompletableFuture<Integer> future = new CompletableFuture<>();
-        fileChannel.read(dst, POSITION_ATOMIC_UPDATER.get(this), dst,
-            new DelegatingCompletionHandler<>(future, Operation.READ));
+        fileChannel.read(dst, writer.getPosition(), dst, new ReadCompletionHandler<>(toHandler(future)));
         return future;
     }
 
     @Override
     public <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
-        beginOperation(Operation.WRITE);
-        // We're implementing channel interface here, i.e. we don't have to consume whole buffer in one shot.
-        // Caller is responsible for that.
-        fileChannel.write(src, POSITION_ATOMIC_UPDATER.get(this), attachment,
-            new DelegatingCompletionHandler<>(handler, Operation.WRITE));
+        beginWrite();
+        try {
+            writer.write(src, attachment, new WriteCompletionHandler<>(handler));
+        } catch (RuntimeException e) {
+            endWrite();
+            throw e;
+        }
     }
 
     @Override
     public Future<Integer> write(ByteBuffer src) {
-        beginOperation(Operation.WRITE);
         CompletableFuture<Integer> future = new CompletableFuture<>();
-        // We're implementing channel interface here, i.e. we don't have to consume whole buffer in one shot.
-        // Caller is responsible for that.
-        fileChannel.write(src, POSITION_ATOMIC_UPDATER.get(this), src,
-            new DelegatingCompletionHandler<>(future, Operation.WRITE));
+        write(src, src, toHandler(future));
         return future;
     }
 
+    /**
+     * The contiguous high-water mark of the writes: all bytes up to this position are written.
+     * @return the position in the file
+     * @see PipelinedFileWriter#getWrittenPosition()
+     */
+    public long getWrittenPosition() {
+        return writer.getWrittenPosition();
+    }
+
     @Override
     public boolean isOpen() {
         return fileChannel.isOpen();
@@ -87,64 +104,86 @@ public class AsynchronousFileChannelAdapter implements AsynchronousByteChannel {
         fileChannel.close();
     }
 
-    private void beginOperation(Operation operation) {
-        if (!PENDING_OPERATION_ATOMIC_UPDATER.compareAndSet(this, null, operation)) {
-            switch (PENDING_OPERATION_ATOMIC_UPDATER.get(this)) {
-                case READ -> throw new ReadPendingException();
-                case WRITE -> throw new WritePendingException();
-                default -> throw new IllegalStateException("Unknown channel operation");
+    private void beginRead() {
+        if (!PENDING_ATOMIC_UPDATER.compareAndSet(this, 0, READ_PENDING)) {
+            if (PENDING_ATOMIC_UPDATER.get(this) == READ_PENDING) {
+                throw new ReadPendingException();
             }
+            throw new WritePendingException();
         }
     }
 
-    private void endOperation(Operation operation) {
-        if (!PENDING_OPERATION_ATOMIC_UPDATER.compareAndSet(this, operation, null)) {
-            throw new IllegalStateException("There's no pending " + operation);
+    private void beginWrite() {
+        while (true) {
+            final int current = PENDING_ATOMIC_UPDATER.get(this);
+            if (current == READ_PENDING) {
+                throw new ReadPendingException();
+            }
+            // the writer checks the maximum number of pending writes
+            if (PENDING_ATOMIC_UPDATER.compareAndSet(this, current, current + 1)) {
+                return;
+            }
         }
     }
 
-    private enum Operation {
-        READ, WRITE
+    private void endWrite() {
+        PENDING_ATOMIC_UPDATER.decrementAndGet(this);
+    }
+
+    private static <T> CompletionHandler<Integer, T> toHandler(CompletableFuture<Integer> future) {
+        return new CompletionHandler<>() {
+            @Override
+            public void completed(Integer result, T attachment) {
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(Throwable exc, T attachment) {
+                future.completeExceptionally(exc);
+            }
+        };
     }
 
-    private final class DelegatingCompletionHandler<T> implements CompletionHandler<Integer, T> {
+    private final class ReadCompletionHandler<T> implements CompletionHandler<Integer, T> {
         private final CompletionHandler<Integer, ? super T> handler;
-        private final CompletableFuture<Integer> future;
-        private final Operation operation;
 
-        private DelegatingCompletionHandler(CompletionHandler<Integer, ? super T> handler, Operation operation) {
+        private ReadCompletionHandler(CompletionHandler<Integer, ? super T> handler) {
             this.handler = handler;
-            this.future = null;
-            this.operation = operation;
-        }
-
-        private DelegatingCompletionHandler(CompletableFuture<Integer> future, Operation operation) {
-            this.handler = null;
-            this.future = future;
-            this.operation = operation;
         }
 
         @Override
         public void completed(Integer result, T attachment) {
             if (result > 0) {
-                POSITION_ATOMIC_UPDATER.addAndGet(AsynchronousFileChannelAdapter.this, result);
-            }
-            endOperation(this.operation);
-            if (handler != null) {
-                handler.completed(result, attachment);
-            } else if (future != null) {
-                future.complete(result);
+                writer.advance(result);
             }
+            PENDING_ATOMIC_UPDATER.set(AsynchronousFileChannelAdapter.this, 0);
+            handler.completed(result, attachment);
         }
 
         @Override
         public void failed(Throwable exc, T attachment) {
-            endOperation(this.operation);
-            if (handler != null) {
-                handler.failed(exc, attachment);
-            } else if (future != null) {
-                future.completeExceptionally(exc);
-            }
+            PENDING_ATOMIC_UPDATER.set(AsynchronousFileChannelAdapter.this, 0);
+            handler.failed(exc, attachment);
+        }
+    }
+
+    private final class WriteCompletionHandler<T> implements CompletionHandler<Integer, T> {
+        private final CompletionHandler<Integer, ? super T> handler;
+
+        private WriteCompletionHandler(CompletionHandler<Integer, ? super T> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void completed(Integer result, T attachment) {
+            endWrite();
+            handler.completed(result, attachment);
+        }
+
+        @Override
+        public void failed(Throwable exc, T attachment) {
+            endWrite();
+            handler.failed(exc, attachment);
         }
     }
 }
@@ -0,0 +1,313 @@
+package com.giraone.streaming.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed storage of uploaded files. The SHA-256 digest of an upload is computed, while it is written to
+ * a temporary file. The content is then stored once as a blob named by its digest and the target file becomes a
+ * hard link to the blob. When the blob already exists, the temporary file is deleted without being forced to disk,
+ * so duplicate content costs neither space nor disk flushes.
+ * <p>
+ * The blobs are stored in {@code .blobs/<2 hex digits>/<64 hex digits>} below the base directory. A blob is never
+ * changed, because a target file is always replaced by a new link. All links of a blob share its modification time,
+ * which is the time, the content was stored first. Only when a link replaces a file, that is not older than the blob,
+ * the blob's modification time is set to the current time, so the {@code Last-Modified} of the replaced name never
+ * goes back and an {@code If-Modified-Since} request cannot get a 304 for the new content. This makes the other names
+ * of the blob look modified, too, which costs them at most one full response. If the file system has no hard links,
+ * the blob is copied.
+ * <p>
+ * A blob, whose last name was replaced, has only one link left - the blob itself. Such blobs are deleted by
+ * {@link #sweep()}, which runs every {@code sweepInterval}.
+ */
+public final class BlobStore implements Closeable {
+
+    /**
+     * The directory of the blobs within the base directory.
+     */
+    public static final String BLOB_DIRECTORY = ".blobs";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlobStore.class);
+
+    private final Path blobDirectory;
+    private final FileCommitter fileCommitter;
+    private final int writeBatchSize;
+    private final int writeBatches;
+    private final FileChannelFactory fileChannelFactory;
+    // null, when the blobs are not swept periodically
+    private final Disposable sweepTask;
+    // digest -> number of uploads, that are storing or linking the blob; guarded by itself
+    private final Map<String, Integer> inUse = new HashMap<>();
+
+    /**
+     * The result of {@link #store(Flux, Path)}.
+     * @param sha256 the SHA-256 digest of the content as lower case hex digits
+     * @param size the number of bytes
+     * @param duplicate true, if the content was already stored
+     */
+    public record StoredBlob(String sha256, long size, boolean duplicate) {
+    }
+
+    /**
+     * Create a store.
+     * @param baseDirectory the directory of the target files, in which the blob directory is created
+     * @param fileCommitter the committer, which defines, how the blobs and links are forced to disk
+     * @param writeBatchSize the size of one positional write
+     * @param writeBatches the number of batches, that are filled or written at the same time
+     */
+    public BlobStore(Path baseDirectory, FileCommitter fileCommitter, int writeBatchSize, int writeBatches) {
+        this(baseDirectory, fileCommitter, writeBatchSize, writeBatches, FileChannelFactory.DEFAULT);
+    }
+
+    /**
+     * Create a store, that opens the files of the uploads with the given factory.
+     * @param baseDirectory the directory of the target files, in which the blob directory is created
+     * @param fileCommitter the committer, which defines, how the blobs and links are forced to disk
+     * @param writeBatchSize the size of one positional write
+     * @param writeBatches the number of batches, that are filled or written at the same time
+     * @param fileChannelFactory the factory, which defines the threads, on which the uploads are written
+     */
+    public BlobStore(Path baseDirectory, FileCommitter fileCommitter, int writeBatchSize, int writeBatches,
+                     FileChannelFactory fileChannelFactory) {
+        this(baseDirectory, fileCommitter, writeBatchSize, writeBatches, fileChannelFactory, Duration.ZERO);
+    }
+
+    /**
+     * Create a store, that opens the files of the uploads with the given factory and deletes the unused blobs
+     * periodically, starting at once.
+     * @param baseDirectory the directory of the target files, in which the blob directory is created
+     * @param fileCommitter the committer, which defines, how the blobs and links are forced to disk
+     * @param writeBatchSize the size of one positional write
+     * @param writeBatches the number of batches, that are filled or written at the same time
+     * @param fileChannelFactory the factory, which defines the threads, on which the uploads are written
+     * @param sweepInterval the time between two runs of {@link #sweep()}; 0 for none
+     */
+    public BlobStore(Path baseDirectory, FileCommitter fileCommitter, int writeBatchSize, int writeBatches,
+                     FileChannelFactory fileChannelFactory, Duration sweepInterval) {
+        this.blobDirectory = baseDirectory.resolve(BLOB_DIRECTORY);
+        this.fileCommitter = fileCommitter;
+        this.writeBatchSize = writeBatchSize;
+        this.writeBatches = writeBatches;
+        this.fileChannelFactory = fileChannelFactory;
+        this.sweepTask = sweepInterval.isZero() || sweepInterval.isNegative()
+            ? null
+            : Schedulers.boundedElastic().schedulePeriodically(this::sweepQuietly, 0L, sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Store content and make it visible as a target file, that replaces an existing one.
+     * @param content the content
+     * @param target the target file in the base directory
+     * @return a Mono with the digest, that completes, when the target file is committed
+     */
+    public Mono<StoredBlob> store(Flux<ByteBuffer> content, Path target) {
+
+        return Mono.defer(() -> {
+            try {
+                Files.createDirectories(blobDirectory);
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+            final MessageDigest digest = newDigest();
+            final AtomicLong size = new AtomicLong();
+            final Flux<ByteBuffer> digested = content.doOnNext(byteBuffer -> {
+                size.addAndGet(byteBuffer.remaining());
+                digest.update(byteBuffer.duplicate());
+            });
+            return FileCommitter.writeTempFile(blobDirectory.resolve("upload"), fileChannelFactory,
+                channel -> FluxUtil.writeFile(digested, channel, 0L, writeBatchSize, writeBatches),
+                (channel, temp) -> {
+                    final String sha256 = HexFormat.of().formatHex(digest.digest());
+                    // the sweep must not delete the blob, before the target is linked to it
+                    acquire(sha256);
+                    return commitBlob(channel, temp, blobPath(sha256))
+                        .map(duplicate -> new StoredBlob(sha256, size.get(), duplicate))
+                        .flatMap(storedBlob -> link(blobPath(sha256), target).thenReturn(storedBlob))
+                        .doFinally(signalType -> release(sha256));
+                });
+        });
+    }
+
+    /**
+     * Delete the blobs, that have no other link than the blob itself, because all of their target files were
+     * replaced. Blobs, that are just stored or linked, are kept. Nothing is deleted on a file system, that has no
+     * link counts, because there the target files are copies.
+     * @return the number of deleted blobs
+     * @throws IOException if the blob directory cannot be read
+     */
+    public int sweep() throws IOException {
+
+        if (!Files.isDirectory(blobDirectory)) {
+            return 0;
+        }
+        final List<Path> blobs;
+        try (Stream<Path> files = Files.walk(blobDirectory, 2)) {
+            // the temporary files of uploads are in the blob directory itself
+            blobs = files.filter(file -> !file.getParent().equals(blobDirectory) && Files.isRegularFile(file)).toList();
+        }
+        int deleted = 0;
+        for (Path blob : blobs) {
+            synchronized (inUse) {
+                if (inUse.containsKey(blob.getFileName().toString())) {
+                    continue;
+                }
+                try {
+                    if ((Integer) Files.getAttribute(blob, "unix:nlink") == 1) {
+                        Files.delete(blob);
+                        deleted++;
+                    }
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    LOGGER.debug("Cannot sweep blobs without link counts. {}", e.getMessage());
+                    return deleted;
+                } catch (NoSuchFileException e) {
+                    // deleted meanwhile
+                }
+            }
+        }
+        if (deleted > 0) {
+            LOGGER.info("{} unused blobs deleted.", deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Stop sweeping the blobs periodically.
+     */
+    @Override
+    public void close() {
+        if (sweepTask != null) {
+            sweepTask.dispose();
+        }
+    }
+
+    /**
+     * The blob file of a digest. The file exists, if content with this digest was stored.
+     * @param sha256 the SHA-256 digest as lower case hex digits
+     * @return the path of the blob
+     */
+    public Path blobPath(String sha256) {
+        return blobDirectory.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Emits true, if the blob already existed and the temporary file was dropped.
+     */
+    private Mono<Boolean> commitBlob(AsynchronousFileChannel channel, Path temp, Path blob) {
+
+        if (Files.exists(blob)) {
+            closeChannel(channel, temp);
+            FileCommitter.deleteTempFile(temp);
+            LOGGER.info("Blob {} exists already.", blob.getFileName());
+            return Mono.just(true);
+        }
+        try {
+            Files.createDirectories(blob.getParent());
+        } catch (IOException e) {
+            closeChannel(channel, temp);
+            FileCommitter.deleteTempFile(temp);
+            return Mono.error(e);
+        }
+        // a concurrent upload of the same content may commit the blob, too - the rename replaces it atomically
+        return fileCommitter.commit(channel, temp, blob).thenReturn(false);
+    }
+
+    private Mono<Void> link(Path blob, Path target) {
+
+        return Mono.fromCallable(() -> {
+                // renaming a link over another link of the same file does nothing, so the new link would be left
+                if (Files.exists(target) && Files.isSameFile(target, blob)) {
+                    return null;
+                }
+                keepLastModifiedAscending(blob, target);
+                final Path link = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+                try {
+                    Files.createLink(link, blob);
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    LOGGER.debug("Cannot link {}, copying it. {}", blob, e.getMessage());
+                    Files.copy(blob, link);
+                }
+                return link;
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(link -> fileCommitter.commit(link, target));
+    }
+
+    private void acquire(String sha256) {
+        synchronized (inUse) {
+            inUse.merge(sha256, 1, Integer::sum);
+        }
+    }
+
+    private void release(String sha256) {
+        synchronized (inUse) {
+            inUse.computeIfPresent(sha256, (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot sweep the blobs! {}", e.getMessage());
+        }
+    }
+
+    /*
+     * The links share the modification time of the blob, which must not be older than the one of the replaced file.
+     */
+    private static void keepLastModifiedAscending(Path blob, Path target) {
+        try {
+            if (Files.exists(target)
+                && Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(blob)) >= 0) {
+                Files.setLastModifiedTime(blob, FileTime.from(Instant.now()));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot touch {}", blob, e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeChannel(AsynchronousFileChannel channel, Path path) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close {}", path, e);
+        }
+    }
+}
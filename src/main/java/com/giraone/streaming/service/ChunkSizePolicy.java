@@ -0,0 +1,54 @@
+package com.giraone.streaming.service;
+
+/**
+ * Decides the size of the chunks, that are read by {@link FluxUtil#readFile} and {@link FluxUtil#readFilePooled}.
+ */
+public interface ChunkSizePolicy {
+
+    /**
+     * A policy using always the same chunk size.
+     * @param chunkSize the chunk size in bytes
+     * @return the policy
+     */
+    static ChunkSizePolicy fixed(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1, but was " + chunkSize);
+        }
+        return length -> chunkSize;
+    }
+
+    /**
+     * The chunk size of the first read.
+     * @param length the number of bytes, that will be read
+     * @return the chunk size in bytes
+     */
+    int initialChunkSize(long length);
+
+    /**
+     * The chunk size of the next read, called each time a chunk is emitted.
+     * @param currentChunkSize the chunk size of the last read
+     * @param readyNanos the time the emitted chunk was read, but not yet emitted - because the subscriber did not
+     *                   request it or did not release the chunks before, see {@link #maxUnreleasedBytes()}.
+     *                   A short time means, that the subscriber is waiting for the disk.
+     * @return the chunk size in bytes
+     */
+    default int nextChunkSize(int currentChunkSize, long readyNanos) {
+        return currentChunkSize;
+    }
+
+    /**
+     * The maximum number of bytes of the emitted chunks, that the subscriber has not yet released, e.g. because
+     * Netty has not yet written them to a slow client. Beyond it, no further chunk is emitted.
+     * @return the number of bytes; by default unlimited
+     */
+    default long maxUnreleasedBytes() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Called for each read, that is started, e.g. to record metrics.
+     * @param chunkSize the size of the read in bytes
+     */
+    default void chunkRead(int chunkSize) {
+    }
+}
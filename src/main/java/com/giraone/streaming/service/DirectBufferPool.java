@@ -0,0 +1,301 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.buffer.UnpooledHeapByteBuf;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer ByteBuffers} with power-of-two size classes. Buffers are handed out
+ * to the HTTP layer as Netty based {@link DataBuffer DataBuffers}, which return to the pool, when Netty
+ * releases them after they are written.
+ * <p>
+ * The buffers kept for reuse share one budget of bytes over all size classes. The direct buffers handed out and not
+ * yet released share a second budget; when it is used up, e.g. by many slow downloads, {@link #acquire(int)} falls
+ * back to heap buffers, which are neither counted nor pooled, instead of allocating more direct memory. Both budgets
+ * and the {@link HotFileCache} must fit together with the buffers of Netty into the direct memory of the JVM
+ * ({@code -XX:MaxDirectMemorySize}, which is {@code -Xmx} by default).
+ */
+public final class DirectBufferPool implements MeterBinder {
+
+    /**
+     * The pool used by {@link FluxUtil#readFilePooled(java.nio.channels.AsynchronousFileChannel)} and its overloads.
+     */
+    public static final DirectBufferPool DEFAULT = new DirectBufferPool(32L * 1024 * 1024, 64L * 1024 * 1024);
+
+    private static final int MIN_BUFFER_SIZE_SHIFT = 12; // 4 KB
+    private static final int MAX_BUFFER_SIZE_SHIFT = 22; // 4 MB
+
+    private final NettyDataBufferFactory dataBufferFactory = new NettyDataBufferFactory(ByteBufAllocator.DEFAULT);
+    private final List<Queue<ByteBuffer>> sizeClasses = new ArrayList<>();
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private volatile long maxPooledBytes;
+    private volatile long maxOutstandingBytes;
+
+    /**
+     * Create a pool, whose direct buffers in use are not limited.
+     * @param maxPooledBytes the maximum number of bytes of all buffers, that are kept for reuse
+     */
+    public DirectBufferPool(long maxPooledBytes) {
+        this(maxPooledBytes, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a pool.
+     * @param maxPooledBytes the maximum number of bytes of all buffers, that are kept for reuse
+     * @param maxOutstandingBytes the maximum number of bytes of all direct buffers, that are handed out
+     */
+    public DirectBufferPool(long maxPooledBytes, long maxOutstandingBytes) {
+        for (int shift = MIN_BUFFER_SIZE_SHIFT; shift <= MAX_BUFFER_SIZE_SHIFT; shift++) {
+            sizeClasses.add(new ConcurrentLinkedQueue<>());
+        }
+        setMaxPooledBytes(maxPooledBytes);
+        setMaxOutstandingBytes(maxOutstandingBytes);
+    }
+
+    /**
+     * Change the maximum number of bytes of all buffers, that are kept for reuse. When it is lowered, the
+     * largest pooled buffers are dropped for the GC, until the pool fits into the new budget.
+     * @param maxPooledBytes the maximum number of pooled bytes; 0 disables pooling
+     */
+    public void setMaxPooledBytes(long maxPooledBytes) {
+
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes cannot be less than 0, but was " + maxPooledBytes);
+        }
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = sizeClasses.size() - 1; i >= 0 && pooledBytes.get() > maxPooledBytes; i--) {
+            ByteBuffer buffer;
+            while (pooledBytes.get() > maxPooledBytes && (buffer = sizeClasses.get(i).poll()) != null) {
+                pooledBytes.addAndGet(-buffer.capacity());
+            }
+        }
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * Change the maximum number of bytes of all direct buffers, that are handed out and not yet released. Buffers,
+     * that are already handed out, are not affected.
+     * @param maxOutstandingBytes the maximum number of outstanding bytes; 0 hands out heap buffers only
+     */
+    public void setMaxOutstandingBytes(long maxOutstandingBytes) {
+
+        if (maxOutstandingBytes < 0) {
+            throw new IllegalArgumentException("maxOutstandingBytes cannot be less than 0, but was " + maxOutstandingBytes);
+        }
+        this.maxOutstandingBytes = maxOutstandingBytes;
+    }
+
+    public long getMaxOutstandingBytes() {
+        return maxOutstandingBytes;
+    }
+
+    /**
+     * Take a cleared buffer from the pool or allocate a new one. The limit of the buffer is set to {@code capacity}.
+     * The buffer must be given back by either {@link #release(ByteBuffer)} or {@link #toDataBuffer(ByteBuffer)}.
+     * @param capacity the needed capacity
+     * @return a direct buffer with at least the needed capacity or - when the outstanding direct buffers use up
+     * their budget - a heap buffer with the needed capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+
+        final int sizeClass = sizeClass(capacity);
+        final int size = sizeClass < sizeClasses.size() ? 1 << (sizeClass + MIN_BUFFER_SIZE_SHIFT) : capacity;
+        if (!reserve(outstandingBytes, size, maxOutstandingBytes)) {
+            fallbacks.incrementAndGet();
+            return ByteBuffer.allocate(capacity);
+        }
+        outstanding.incrementAndGet();
+        ByteBuffer buffer = sizeClass < sizeClasses.size() ? sizeClasses.get(sizeClass).poll() : null;
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back, that was taken by {@link #acquire(int)}.
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (!buffer.isDirect()) {
+            // a fallback of acquire(), that is left to the garbage collector
+            return;
+        }
+        outstanding.decrementAndGet();
+        outstandingBytes.addAndGet(-buffer.capacity());
+        final int sizeClass = sizeClass(buffer.capacity());
+        // buffers of other sizes (too large) are not pooled; a full pool drops the buffer for the GC
+        if (sizeClass < sizeClasses.size() && buffer.capacity() == 1 << (sizeClass + MIN_BUFFER_SIZE_SHIFT)
+            && reserve(pooledBytes, buffer.capacity(), maxPooledBytes)) {
+            sizeClasses.get(sizeClass).offer(buffer);
+        }
+    }
+
+    /**
+     * Wrap the readable bytes (position to limit) of a buffer, that was taken by {@link #acquire(int)},
+     * as a {@link DataBuffer}. The buffer is given back to the pool, when the {@link DataBuffer} is released.
+     * @param buffer the filled and flipped buffer
+     * @return a pooled data buffer
+     */
+    public DataBuffer toDataBuffer(ByteBuffer buffer) {
+        return toDataBuffer(buffer, null);
+    }
+
+    /**
+     * Wrap the readable bytes of a buffer like {@link #toDataBuffer(ByteBuffer)} and notify, when the
+     * {@link DataBuffer} is released, e.g. after Netty has written it to the socket.
+     * @param buffer the filled and flipped buffer
+     * @param released run once, when the data buffer is released; null, when no notification is needed
+     * @return a pooled data buffer
+     */
+    public DataBuffer toDataBuffer(ByteBuffer buffer, Runnable released) {
+        if (buffer.isDirect()) {
+            return dataBufferFactory.wrap(new PoolReturningByteBuf(this, buffer, released));
+        }
+        return released == null ? dataBufferFactory.wrap(buffer) : dataBufferFactory.wrap(new NotifyingHeapByteBuf(buffer, released));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+
+        FunctionCounter.builder("streaming.buffer.pool.hits", this, DirectBufferPool::getHits)
+            .description("Buffers taken from the pool")
+            .register(registry);
+        FunctionCounter.builder("streaming.buffer.pool.misses", this, DirectBufferPool::getMisses)
+            .description("Buffers newly allocated, because the pool had none of the needed size")
+            .register(registry);
+        Gauge.builder("streaming.buffer.pool.outstanding", this, DirectBufferPool::getOutstanding)
+            .description("Buffers handed out and not yet released")
+            .register(registry);
+        Gauge.builder("streaming.buffer.pool.outstanding.bytes", this, DirectBufferPool::getOutstandingBytes)
+            .description("Bytes of the direct buffers handed out and not yet released")
+            .baseUnit("bytes")
+            .register(registry);
+        FunctionCounter.builder("streaming.buffer.pool.fallbacks", this, DirectBufferPool::getFallbacks)
+            .description("Heap buffers handed out, because the outstanding direct buffers used up their budget")
+            .register(registry);
+        Gauge.builder("streaming.buffer.pool.pooled", this, DirectBufferPool::getPooledBytes)
+            .description("Bytes kept in the pool for reuse")
+            .baseUnit("bytes")
+            .register(registry);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static boolean reserve(AtomicLong used, int bytes, long max) {
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > max) {
+                return false;
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_BUFFER_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_BUFFER_SIZE_SHIFT;
+    }
+
+    /*
+     * A Netty buffer on top of a pooled ByteBuffer. Netty calls deallocate(), when the reference count drops to 0.
+     */
+    private static final class PoolReturningByteBuf extends UnpooledDirectByteBuf {
+
+        private final DirectBufferPool pool;
+        private final ByteBuffer pooledBuffer;
+        // null, when nobody waits for the release
+        private final Runnable released;
+
+        private PoolReturningByteBuf(DirectBufferPool pool, ByteBuffer pooledBuffer, Runnable released) {
+            // the ByteBuffer is sliced from position to limit and will not be freed by Netty itself
+            super(ByteBufAllocator.DEFAULT, pooledBuffer, pooledBuffer.remaining());
+            this.pool = pool;
+            this.pooledBuffer = pooledBuffer;
+            this.released = released;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            pool.release(pooledBuffer);
+            if (released != null) {
+                released.run();
+            }
+        }
+    }
+
+    /*
+     * A Netty buffer on top of the array of a heap ByteBuffer, which acquire() handed out instead of a direct one.
+     */
+    private static final class NotifyingHeapByteBuf extends UnpooledHeapByteBuf {
+
+        private final Runnable released;
+
+        private NotifyingHeapByteBuf(ByteBuffer heapBuffer, Runnable released) {
+            super(ByteBufAllocator.DEFAULT, heapBuffer.array(), heapBuffer.array().length);
+            setIndex(heapBuffer.arrayOffset() + heapBuffer.position(), heapBuffer.arrayOffset() + heapBuffer.limit());
+            this.released = released;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            released.run();
+        }
+    }
+}
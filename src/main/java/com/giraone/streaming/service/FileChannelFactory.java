@@ -0,0 +1,381 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Opens all {@link AsynchronousFileChannel AsynchronousFileChannels} on shared executors, so the threads, that execute
+ * the blocking reads and writes, are bounded and observable. Channels opened for reading and for writing can use
+ * separate executors, so a burst of uploads does not delay the reads of downloads.
+ * <p>
+ * {@link #read(Path, Function)} and {@link #write(Path, Function, OpenOption...)} scope a channel to a publisher,
+ * like {@link Flux#using}: it is closed, when the publisher completes, fails or is cancelled. A channel, that is
+ * garbage collected without being closed, is closed and logged as a leak, see {@link LeakDetection}.
+ * <p>
+ * The executors and channels are exported by {@link #METRICS}:
+ * <ul>
+ *     <li>{@code streaming.io.queued} - reads and writes, that wait for a thread (tags {@code engine} and
+ *     {@code pool})</li>
+ *     <li>{@code streaming.io.active} - reads and writes, that are executed (tags {@code engine} and {@code pool})</li>
+ *     <li>{@code streaming.io.completion} - time from the start of a read or write until its completion handler
+ *     returned, including the waiting time (tags {@code engine} and {@code pool})</li>
+ *     <li>{@code streaming.io.channels.open} - open channels (tag {@code mode}: read or write)</li>
+ *     <li>{@code streaming.io.channels.leaked} - channels, that were garbage collected without being closed</li>
+ * </ul>
+ */
+public final class FileChannelFactory {
+
+    /**
+     * The metrics of all executors, that were created by {@link #create(FileIoEngine, int, int, boolean)}.
+     */
+    public static final Metrics METRICS = new Metrics();
+
+    /**
+     * A factory using the hidden default thread pool of {@link AsynchronousFileChannel}, e.g. for tests.
+     */
+    public static final FileChannelFactory DEFAULT = new FileChannelFactory(null, null);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileChannelFactory.class);
+
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+    private final LeakDetection leakDetection;
+
+    /**
+     * How channels, that are garbage collected without being closed, are detected.
+     */
+    public enum LeakDetection {
+        /**
+         * Leaks are neither detected nor closed.
+         */
+        DISABLED,
+        /**
+         * Leaks are closed and logged; the stack trace of the code, that opened the channel, is recorded for a
+         * sample of the channels.
+         */
+        SIMPLE,
+        /**
+         * Leaks are closed and logged with the stack trace of the code, that opened the channel, which is
+         * recorded for each channel.
+         */
+        PARANOID
+    }
+
+    /**
+     * Create a factory with {@link LeakDetection#SIMPLE}.
+     * @param readExecutor the executor of the channels opened for reading, null for the default thread pool
+     * @param writeExecutor the executor of the channels opened for writing, null for the default thread pool
+     */
+    public FileChannelFactory(ExecutorService readExecutor, ExecutorService writeExecutor) {
+        this(readExecutor, writeExecutor, LeakDetection.SIMPLE);
+    }
+
+    /**
+     * Create a factory.
+     * @param readExecutor the executor of the channels opened for reading, null for the default thread pool
+     * @param writeExecutor the executor of the channels opened for writing, null for the default thread pool
+     * @param leakDetection how channels, that are not closed, are detected
+     */
+    public FileChannelFactory(ExecutorService readExecutor, ExecutorService writeExecutor, LeakDetection leakDetection) {
+        this.readExecutor = readExecutor;
+        this.writeExecutor = writeExecutor;
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * Create a factory with new, instrumented executors.
+     * @param engine the threads of the executors
+     * @param readThreads the maximum number of reads in flight
+     * @param writeThreads the maximum number of writes in flight
+     * @param splitPools true for separate executors for reads and writes, false for one executor with
+     *                   {@code readThreads} for both
+     * @return the factory
+     */
+    public static FileChannelFactory create(FileIoEngine engine, int readThreads, int writeThreads, boolean splitPools) {
+        return create(engine, readThreads, writeThreads, splitPools, LeakDetection.SIMPLE);
+    }
+
+    /**
+     * Create a factory with new, instrumented executors.
+     * @param engine the threads of the executors
+     * @param readThreads the maximum number of reads in flight
+     * @param writeThreads the maximum number of writes in flight
+     * @param splitPools true for separate executors for reads and writes, false for one executor with
+     *                   {@code readThreads} for both
+     * @param leakDetection how channels, that are not closed, are detected
+     * @return the factory
+     */
+    public static FileChannelFactory create(FileIoEngine engine, int readThreads, int writeThreads, boolean splitPools,
+                                            LeakDetection leakDetection) {
+
+        final ExecutorService readExecutor = newExecutor(engine, splitPools ? "read" : "shared", readThreads);
+        final ExecutorService writeExecutor = splitPools ? newExecutor(engine, "write", writeThreads) : readExecutor;
+        return new FileChannelFactory(readExecutor, writeExecutor, leakDetection);
+    }
+
+    /**
+     * Open a channel for reading.
+     * @param file the file
+     * @return the open channel, that must be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    public AsynchronousFileChannel openForRead(Path file) throws IOException {
+        return new TrackedFileChannel(open(file, readExecutor, StandardOpenOption.READ), file, METRICS.openReads,
+            leakDetection);
+    }
+
+    /**
+     * Open a channel for reading by memory mappings, e.g. by {@link FluxUtil#readFileMapped}. The channel does not use
+     * the executors, but it is counted and checked for leaks like the channels opened for reading.
+     * @param file the file
+     * @return the open channel, that must be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    public FileChannel openForMapping(Path file) throws IOException {
+        return new TrackedMappableChannel(FileChannel.open(file, StandardOpenOption.READ), file, METRICS.openReads,
+            leakDetection);
+    }
+
+    /**
+     * Open a channel for writing.
+     * @param file the file
+     * @param options the options, e.g. {@link StandardOpenOption#WRITE}
+     * @return the open channel, that must be closed by the caller
+     * @throws IOException if the file cannot be opened
+     */
+    public AsynchronousFileChannel openForWrite(Path file, OpenOption... options) throws IOException {
+        return new TrackedFileChannel(open(file, writeExecutor, options), file, METRICS.openWrites, leakDetection);
+    }
+
+    /**
+     * Read a file by a channel, that is opened on subscription and closed, when the publisher of the reader
+     * completes, fails or is cancelled.
+     * @param file the file
+     * @param reader creates the publisher, that reads the channel, e.g. {@link FluxUtil#readFile(AsynchronousFileChannel)}
+     * @param <T> the type of the elements
+     * @return the elements of the reader or an {@link IOException}, if the file cannot be opened
+     */
+    public <T> Flux<T> read(Path file, Function<AsynchronousFileChannel, ? extends Publisher<T>> reader) {
+        return Flux.using(() -> openForRead(file), reader, channel -> close(channel, file));
+    }
+
+    /**
+     * Write a file by a channel, that is opened on subscription and closed, when the Mono of the writer
+     * completes, fails or is cancelled.
+     * @param file the file
+     * @param writer creates the Mono, that writes the channel, e.g. by {@link FluxUtil#writeFile(Flux, AsynchronousFileChannel)}
+     * @param options the options, e.g. {@link StandardOpenOption#WRITE}
+     * @param <T> the type of the result
+     * @return the result of the writer or an {@link IOException}, if the file cannot be opened
+     */
+    public <T> Mono<T> write(Path file, Function<AsynchronousFileChannel, ? extends Mono<T>> writer, OpenOption... options) {
+        return Mono.using(() -> openForWrite(file, options), writer, channel -> close(channel, file));
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static AsynchronousFileChannel open(Path file, ExecutorService executor, OpenOption... options)
+        throws IOException {
+
+        if (executor == null) {
+            return AsynchronousFileChannel.open(file, options);
+        }
+        return AsynchronousFileChannel.open(file, Set.of(options), executor);
+    }
+
+    private static void close(AsynchronousFileChannel channel, Path file) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close {}", file, e);
+        }
+    }
+
+    private static ExecutorService newExecutor(FileIoEngine engine, String pool, int threads) {
+
+        final String name = "file-io-" + pool;
+        final InstrumentedExecutor executor;
+        if (engine == FileIoEngine.VIRTUAL_THREADS) {
+            final VirtualThreadExecutor virtualThreads = new VirtualThreadExecutor(name, threads);
+            executor = new InstrumentedExecutor(engine, pool, virtualThreads,
+                virtualThreads::getWaiting, virtualThreads::getInFlight);
+        } else {
+            final ThreadPoolExecutor platformThreads = VirtualThreadExecutor.newPlatformThreadPool(name, threads);
+            executor = new InstrumentedExecutor(engine, pool, platformThreads,
+                () -> platformThreads.getQueue().size(), platformThreads::getActiveCount);
+        }
+        METRICS.add(executor);
+        return executor;
+    }
+
+    /*
+     * Measures the time from the submission of a task - a read or write of a channel - until it is completed.
+     */
+    static final class InstrumentedExecutor extends AbstractExecutorService {
+
+        private final FileIoEngine engine;
+        private final String pool;
+        private final ExecutorService delegate;
+        private final IntSupplier queued;
+        private final IntSupplier active;
+        private volatile Timer completion;
+
+        InstrumentedExecutor(FileIoEngine engine, String pool, ExecutorService delegate,
+                             IntSupplier queued, IntSupplier active) {
+            this.engine = engine;
+            this.pool = pool;
+            this.delegate = delegate;
+            this.queued = queued;
+            this.active = active;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            final long start = System.nanoTime();
+            delegate.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    final Timer timer = completion;
+                    if (timer != null) {
+                        timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+
+        int getQueued() {
+            return queued.getAsInt();
+        }
+
+        int getActive() {
+            return active.getAsInt();
+        }
+
+        void bindTo(MeterRegistry registry) {
+            final String engineTag = engine.name().toLowerCase().replace('_', '-');
+            Gauge.builder("streaming.io.queued", this, InstrumentedExecutor::getQueued)
+                .description("File reads and writes, that wait for a thread")
+                .tag("engine", engineTag)
+                .tag("pool", pool)
+                .register(registry);
+            Gauge.builder("streaming.io.active", this, InstrumentedExecutor::getActive)
+                .description("File reads and writes, that are executed")
+                .tag("engine", engineTag)
+                .tag("pool", pool)
+                .register(registry);
+            completion = Timer.builder("streaming.io.completion")
+                .description("Time from the start of a file read or write until it is completed")
+                .tag("engine", engineTag)
+                .tag("pool", pool)
+                .register(registry);
+        }
+    }
+
+    /**
+     * The metrics of the executors and channels, see {@link FileChannelFactory}. Executors, that are created after
+     * the metrics were bound, are registered, when they are created.
+     */
+    public static final class Metrics implements MeterBinder {
+
+        private final AtomicLong openReads = new AtomicLong();
+        private final AtomicLong openWrites = new AtomicLong();
+        final AtomicLong leaked = new AtomicLong();
+        // guarded by this
+        private final List<InstrumentedExecutor> executors = new ArrayList<>();
+        private MeterRegistry registry;
+
+        private Metrics() {
+        }
+
+        /**
+         * The number of open channels.
+         * @return the channels, that were opened by any factory and are not closed
+         */
+        public long getOpen() {
+            return openReads.get() + openWrites.get();
+        }
+
+        /**
+         * The number of leaked channels.
+         * @return the channels, that were garbage collected without being closed
+         */
+        public long getLeaked() {
+            return leaked.get();
+        }
+
+        @Override
+        public synchronized void bindTo(MeterRegistry registry) {
+            this.registry = registry;
+            Gauge.builder("streaming.io.channels.open", openReads, AtomicLong::get)
+                .description("File channels, that are open")
+                .tag("mode", "read")
+                .register(registry);
+            Gauge.builder("streaming.io.channels.open", openWrites, AtomicLong::get)
+                .description("File channels, that are open")
+                .tag("mode", "write")
+                .register(registry);
+            FunctionCounter.builder("streaming.io.channels.leaked", leaked, AtomicLong::get)
+                .description("File channels, that were garbage collected without being closed")
+                .register(registry);
+            executors.forEach(executor -> executor.bindTo(registry));
+        }
+
+        private synchronized void add(InstrumentedExecutor executor) {
+            executors.add(executor);
+            if (registry != null) {
+                executor.bindTo(registry);
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Makes a file, that was written to a temporary file in the same directory, visible under its target name:
+ * the temporary file is forced to disk, closed and atomically renamed, then the directory is forced, so the new
+ * name is durable, too. Readers see either the old or the complete new file, but never a half-written one.
+ * <p>
+ * The {@link Policy} defines, how the files are forced:
+ * <ul>
+ *     <li>{@link Policy#NONE} - not at all; the rename is atomic, but not durable</li>
+ *     <li>{@link Policy#PER_FILE} - each file and its directory on its own</li>
+ *     <li>{@link Policy#GROUP} - the commits, that arrive within a short window, are forced together (group
+ *     commit): the files concurrently, so the file system can combine their journal commits, and each directory
+ *     only once for the whole group, after all of its files are renamed</li>
+ * </ul>
+ * The blocking file system calls run on {@link Schedulers#boundedElastic()}.
+ */
+public final class FileCommitter {
+
+    /**
+     * The metrics of all committers.
+     */
+    public static final Metrics METRICS = new Metrics();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileCommitter.class);
+    // a random name collides with an existing temporary file only by a very rare chance
+    private static final int MAX_TEMP_FILE_ATTEMPTS = 10;
+
+    /**
+     * How the committed files are forced to disk.
+     */
+    public enum Policy {
+        NONE, PER_FILE, GROUP
+    }
+
+    private final Policy policy;
+    private final long windowNanos;
+    private final int maxGroupSize;
+
+    // guarded by this
+    private List<Commit> pending = new ArrayList<>();
+    private long generation;
+
+    /**
+     * Create a committer.
+     * @param policy how the files are forced
+     * @param window the time, a group commit waits for more files after the first one
+     * @param maxGroupSize the number of files, that starts a group commit before the window ends
+     */
+    public FileCommitter(Policy policy, Duration window, int maxGroupSize) {
+        if (maxGroupSize < 1) {
+            throw new IllegalArgumentException("maxGroupSize must be positive, but was " + maxGroupSize);
+        }
+        this.policy = policy;
+        this.windowNanos = window.toNanos();
+        this.maxGroupSize = maxGroupSize;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Create an empty temporary file for a target file in the same directory, so it can be renamed atomically.
+     * Unlike {@link Files#createTempFile(Path, String, String)}, which restricts the file to its owner, the file gets
+     * the default permissions of the process (e.g. {@code rw-r--r--} with umask 022), which the rename keeps.
+     * @param target the target file
+     * @return the temporary file, that starts with a dot and ends with {@code .tmp}
+     * @throws IOException if the file cannot be created
+     */
+    public static Path createTempFile(Path target) throws IOException {
+
+        final Path directory = target.toAbsolutePath().getParent();
+        final String prefix = "." + target.getFileName() + ".";
+        for (int attempt = 1; ; attempt++) {
+            final String random = Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36);
+            final Path temp = directory.resolve(prefix + random + ".tmp");
+            try {
+                return Files.createFile(temp);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt == MAX_TEMP_FILE_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write into a temporary file next to a target file and commit it by this committer, when all is written.
+     * A failed or cancelled write deletes the temporary file and leaves the target file unchanged.
+     * @param target the target file, that is replaced
+     * @param fileChannelFactory the factory of the channel of the temporary file
+     * @param write writes the content into the channel, starting at position 0
+     * @return a Mono, that completes, when the file is committed according to the policy
+     */
+    public Mono<Void> writeAndCommit(Path target, FileChannelFactory fileChannelFactory,
+                                     Function<AsynchronousFileChannel, Mono<Void>> write) {
+        return writeTempFile(target, fileChannelFactory, write, (channel, temp) -> commit(channel, temp, target));
+    }
+
+    /**
+     * Write into a temporary file next to a target file and hand it over to a commit, when all is written. Until the
+     * commit is subscribed, a failed or cancelled write closes the channel and deletes the temporary file; from then
+     * on, the commit is responsible for both, like {@link #commit(AsynchronousFileChannel, Path, Path)}.
+     * @param target the target file, next to which the temporary file is created
+     * @param fileChannelFactory the factory of the channel of the temporary file
+     * @param write writes the content into the channel, starting at position 0
+     * @param commit commits the open channel and the temporary file, e.g. by renaming it
+     * @param <T> the result of the commit
+     * @return a Mono with the result of the commit
+     */
+    public static <T> Mono<T> writeTempFile(Path target, FileChannelFactory fileChannelFactory,
+                                            Function<AsynchronousFileChannel, Mono<Void>> write,
+                                            BiFunction<AsynchronousFileChannel, Path, Mono<T>> commit) {
+
+        return Mono.defer(() -> {
+            final Path temp;
+            final AsynchronousFileChannel channel;
+            try {
+                temp = createTempFile(target);
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+            try {
+                channel = fileChannelFactory.openForWrite(temp, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                deleteTempFile(temp);
+                return Mono.error(e);
+            }
+            // from here on, the commit closes the channel and cleans up
+            final AtomicBoolean committing = new AtomicBoolean(false);
+            return write.apply(channel)
+                .then(Mono.defer(() -> {
+                    committing.set(true);
+                    return commit.apply(channel, temp);
+                }))
+                .doFinally(signalType -> {
+                    if (!committing.get()) {
+                        closeChannel(channel, temp);
+                        deleteTempFile(temp);
+                    }
+                });
+        });
+    }
+
+    /**
+     * Commit a written temporary file. The channel is closed in any case. On an error the temporary file is deleted.
+     * @param channel the open channel of the temporary file
+     * @param temp the temporary file
+     * @param target the target file, that is replaced
+     * @return a Mono, that completes, when the file is committed according to the policy
+     */
+    public Mono<Void> commit(AsynchronousFileChannel channel, Path temp, Path target) {
+
+        return Mono.defer(() -> {
+            final Commit commit = new Commit(channel, temp, target, Sinks.one());
+            if (policy == Policy.GROUP) {
+                add(commit);
+            } else {
+                commitGroup(List.of(commit));
+            }
+            return commit.done.asMono();
+        });
+    }
+
+    /**
+     * Commit a temporary file, that is already complete on disk, e.g. a hard link to another committed file.
+     * Only the rename and the directory are forced according to the policy. On an error the temporary file is deleted.
+     * @param temp the temporary file
+     * @param target the target file, that is replaced
+     * @return a Mono, that completes, when the file is committed according to the policy
+     */
+    public Mono<Void> commit(Path temp, Path target) {
+        return commit(null, temp, target);
+    }
+
+    /**
+     * Delete a temporary file after an error, e.g. when an upload is cancelled.
+     * @param temp the temporary file
+     */
+    public static void deleteTempFile(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete temporary file \"{}\"!", temp, e);
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private void add(Commit commit) {
+
+        final List<Commit> group;
+        final long scheduledGeneration;
+        synchronized (this) {
+            pending.add(commit);
+            if (pending.size() >= maxGroupSize) {
+                group = takePending();
+                scheduledGeneration = -1L;
+            } else {
+                group = null;
+                scheduledGeneration = pending.size() == 1 ? generation : -1L;
+            }
+        }
+        if (group != null) {
+            commitGroup(group);
+        } else if (scheduledGeneration >= 0L) {
+            // the first commit of a group starts the window
+            Schedulers.parallel().schedule(() -> windowEnded(scheduledGeneration), windowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void windowEnded(long scheduledGeneration) {
+        final List<Commit> group;
+        synchronized (this) {
+            // the group was already committed, because it was full
+            if (scheduledGeneration != generation) {
+                return;
+            }
+            group = takePending();
+        }
+        commitGroup(group);
+    }
+
+    private List<Commit> takePending() {
+        final List<Commit> ret = pending;
+        pending = new ArrayList<>();
+        generation++;
+        return ret;
+    }
+
+    /*
+     * The files of a group are forced, closed and renamed concurrently, then each of their directories is forced once.
+     * A file, that cannot be committed, is failed at once; the others go on. The other files are done, when all
+     * directories are forced.
+     */
+    private void commitGroup(List<Commit> group) {
+
+        final long start = System.nanoTime();
+        final boolean force = policy != Policy.NONE;
+        Flux.fromIterable(group)
+            .flatMap(commit -> Mono.fromCallable(() -> commitFile(commit, force))
+                .subscribeOn(Schedulers.boundedElastic()), group.size())
+            .collect(Collectors.toCollection(LinkedHashSet::new))
+            .flatMapMany(directories -> force ? Flux.fromIterable(directories) : Flux.<Path>empty())
+            .flatMap(directory -> Mono.fromRunnable(() -> forceDirectory(directory))
+                .subscribeOn(Schedulers.boundedElastic()))
+            .subscribe(null,
+                // an unexpected error fails all commits, that are not yet done
+                e -> group.forEach(commit -> commit.done.tryEmitError(e)),
+                () -> {
+                    if (force) {
+                        METRICS.record(System.nanoTime() - start, group.size());
+                    }
+                    group.forEach(commit -> commit.done.tryEmitEmpty());
+                });
+    }
+
+    /*
+     * Returns the directory of the renamed file or null, if the commit failed.
+     */
+    private static Path commitFile(Commit commit, boolean force) {
+
+        try {
+            if (commit.channel != null) {
+                try {
+                    if (force) {
+                        commit.channel.force(true);
+                    }
+                } finally {
+                    commit.channel.close();
+                }
+            }
+            Files.move(commit.temp, commit.target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return commit.target.toAbsolutePath().getParent();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot commit \"{}\"!", commit.target, e);
+            deleteTempFile(commit.temp);
+            commit.done.tryEmitError(e);
+            return null;
+        }
+    }
+
+    private static void closeChannel(AsynchronousFileChannel channel, Path path) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close {}", path, e);
+        }
+    }
+
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open or force a directory, e.g. Windows
+            LOGGER.debug("Cannot force directory \"{}\"! {}", directory, e.getMessage());
+        }
+    }
+
+    // the channel is null for a file, that is already complete on disk
+    private record Commit(AsynchronousFileChannel channel, Path temp, Path target, Sinks.One<Void> done) {
+    }
+
+    /**
+     * The metrics of all committers, that force the files to disk.
+     */
+    public static final class Metrics implements MeterBinder {
+
+        private volatile Timer duration;
+        private volatile DistributionSummary groupSize;
+
+        private Metrics() {
+        }
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+
+            duration = Timer.builder("streaming.upload.commit")
+                .description("Time to force, rename and force the directory for a group of uploaded files")
+                .register(registry);
+            groupSize = DistributionSummary.builder("streaming.upload.commit.files")
+                .description("Number of uploaded files, that are forced together")
+                .register(registry);
+        }
+
+        private void record(long nanos, int files) {
+            final Timer timer = duration;
+            if (timer != null) {
+                timer.record(nanos, TimeUnit.NANOSECONDS);
+            }
+            final DistributionSummary summary = groupSize;
+            if (summary != null) {
+                summary.record(files);
+            }
+        }
+    }
+}
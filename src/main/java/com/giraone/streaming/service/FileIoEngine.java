@@ -0,0 +1,19 @@
+package com.giraone.streaming.service;
+
+/**
+ * The threads, on which the reads and writes of an {@link java.nio.channels.AsynchronousFileChannel} are executed,
+ * see {@link FileChannelFactory#create(FileIoEngine, int, int, boolean)}. The channels are used by the same
+ * {@link FluxUtil} methods with both engines.
+ */
+public enum FileIoEngine {
+
+    /**
+     * A bounded pool of platform threads, each of which executes one read or write at a time.
+     */
+    AIO,
+
+    /**
+     * Virtual threads with a bounded number of calls in flight, see {@link VirtualThreadExecutor}.
+     */
+    VIRTUAL_THREADS
+}
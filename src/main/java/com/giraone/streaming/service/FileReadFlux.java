@@ -1,6 +1,5 @@
 package com.giraone.streaming.service;
 
-import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import reactor.core.CoreSubscriber;
 import reactor.core.publisher.Flux;
@@ -9,65 +8,153 @@ import reactor.core.publisher.Operators;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Parts of this are copied from
  * https://github.com/Azure/azure-sdk-for-java/blob/main/sdk/core/azure-core/src/main/java/com/azure/core/util/FluxUtil.java
+ * @param <T> the type of the emitted chunks, e.g. {@link ByteBuffer} or a pooled
+ * {@link org.springframework.core.io.buffer.DataBuffer}
  */
-class FileReadFlux extends Flux<ByteBuffer> {
+class FileReadFlux<T> extends Flux<T> {
     private final AsynchronousFileChannel fileChannel;
-    private final int chunkSize;
+    private final ChunkAllocator<T> chunkAllocator;
+    private final ChunkSizePolicy chunkSizePolicy;
+    private final int readAhead;
     private final long offset;
     private final long length;
 
-    FileReadFlux(AsynchronousFileChannel fileChannel, int chunkSize, long offset, long length) {
+    FileReadFlux(AsynchronousFileChannel fileChannel, ChunkAllocator<T> chunkAllocator, ChunkSizePolicy chunkSizePolicy,
+                 int readAhead, long offset, long length) {
+        if (readAhead < 1) {
+            throw new IllegalArgumentException("readAhead must be at least 1, but was " + readAhead);
+        }
         this.fileChannel = fileChannel;
-        this.chunkSize = chunkSize;
+        this.chunkAllocator = chunkAllocator;
+        this.chunkSizePolicy = chunkSizePolicy;
+        this.readAhead = readAhead;
         this.offset = offset;
         this.length = length;
     }
 
     @Override
-    public void subscribe(CoreSubscriber<? super ByteBuffer> actual) {
-        FileReadSubscription subscription =
-            new FileReadSubscription(actual, fileChannel, chunkSize, offset, length);
+    public void subscribe(CoreSubscriber<? super T> actual) {
+        FileReadSubscription<T> subscription =
+            new FileReadSubscription<>(actual, fileChannel, chunkAllocator, chunkSizePolicy, readAhead, offset, length);
         actual.onSubscribe(subscription);
     }
 
-    static final class FileReadSubscription implements Subscription, CompletionHandler<Integer, ByteBuffer> {
-        private static final int NOT_SET = -1;
+    /**
+     * Allocation strategy for the buffers, into which the file chunks are read.
+     * @param <T> the type of the emitted chunks
+     */
+    interface ChunkAllocator<T> {
+
+        /**
+         * Chunks are fresh heap buffers, that are left to the garbage collector.
+         */
+        ChunkAllocator<ByteBuffer> HEAP = new ChunkAllocator<>() {
+            @Override
+            public ByteBuffer allocate(int capacity) {
+                return ByteBuffer.allocate(capacity);
+            }
+
+            @Override
+            public ByteBuffer toChunk(ByteBuffer buffer, Runnable released) {
+                // the garbage collector does not tell, when the subscriber is done with the chunk
+                released.run();
+                return buffer;
+            }
+
+            @Override
+            public void discard(ByteBuffer buffer) {
+                // left to the garbage collector
+            }
+        };
+
+        /**
+         * Provide an empty buffer to read into.
+         * @param capacity the number of bytes to read
+         * @return a buffer with {@code capacity} bytes remaining
+         */
+        ByteBuffer allocate(int capacity);
+
+        /**
+         * Convert a filled buffer to the emitted chunk. The subscriber is then responsible for the chunk.
+         * @param buffer the filled and flipped buffer
+         * @param released run once, when the subscriber has released the chunk - or at once, if this cannot be known
+         * @return the chunk to emit
+         */
+        T toChunk(ByteBuffer buffer, Runnable released);
+
+        /**
+         * Give back a buffer, that will not be emitted (read failure or cancellation).
+         * @param buffer the buffer returned by {@link #allocate(int)}
+         */
+        void discard(ByteBuffer buffer);
+    }
+
+    /**
+     * Reads the file with up to {@code readAhead} positional reads in flight. Each read fills one chunk, that starts
+     * at a fixed position. The chunks are queued in the order of their positions and emitted from the head of the
+     * queue only, so reads completing out of order are emitted in file order.
+     * <p>
+     * Netty requests many chunks in advance, so the demand of the subscriber does not tell, how fast a client
+     * receives the file. Therefore no chunk is emitted, while the emitted, but not yet released chunks have
+     * {@link ChunkSizePolicy#maxUnreleasedBytes()} or more bytes. A chunk waits then for a release, which shows up
+     * as a long ready time for the {@link ChunkSizePolicy}.
+     */
+    static final class FileReadSubscription<T> implements Subscription, CompletionHandler<Integer, FileReadSubscription.Chunk> {
 
-        private final Subscriber<? super ByteBuffer> subscriber;
-        private volatile long position;
+        private final CoreSubscriber<? super T> subscriber;
 
         private final AsynchronousFileChannel fileChannel;
-        private final int chunkSize;
-        private final long offset;
-        private final long length;
+        private final ChunkAllocator<T> chunkAllocator;
+        private final ChunkSizePolicy chunkSizePolicy;
+        private final int readAhead;
+        private final long maxUnreleasedBytes;
+        private final long end;
+
+        // only accessed within the drain loop
+        private final ArrayDeque<Chunk> chunks;
+        private long nextReadPosition;
+        private int chunkSize;
+        private boolean started;
 
-        private volatile boolean done;
-        private Throwable error;
-        private volatile ByteBuffer next;
         private volatile boolean cancelled;
+        private volatile boolean terminated;
 
         volatile int wip;
+        @SuppressWarnings("rawtypes")
         static final AtomicIntegerFieldUpdater<FileReadSubscription> ATOMIC_WIP =
             AtomicIntegerFieldUpdater.newUpdater(FileReadSubscription.class, "wip");
 
         volatile long requested;
+        @SuppressWarnings("rawtypes")
         static final AtomicLongFieldUpdater<FileReadSubscription> ATOMIC_REQUESTED =
             AtomicLongFieldUpdater.newUpdater(FileReadSubscription.class, "requested");
 
-        FileReadSubscription(Subscriber<? super ByteBuffer> subscriber, AsynchronousFileChannel fileChannel,
-                             int chunkSize, long offset, long length) {
+        // the bytes of the emitted chunks, that the subscriber has not yet released
+        volatile long unreleasedBytes;
+        @SuppressWarnings("rawtypes")
+        static final AtomicLongFieldUpdater<FileReadSubscription> ATOMIC_UNRELEASED_BYTES =
+            AtomicLongFieldUpdater.newUpdater(FileReadSubscription.class, "unreleasedBytes");
+
+        FileReadSubscription(CoreSubscriber<? super T> subscriber, AsynchronousFileChannel fileChannel,
+                             ChunkAllocator<T> chunkAllocator, ChunkSizePolicy chunkSizePolicy, int readAhead,
+                             long offset, long length) {
             this.subscriber = subscriber;
             this.fileChannel = fileChannel;
-            this.chunkSize = chunkSize;
-            this.offset = offset;
-            this.length = length;
-            this.position = NOT_SET;
+            this.chunkAllocator = chunkAllocator;
+            this.chunkSizePolicy = chunkSizePolicy;
+            this.chunkSize = chunkSizePolicy.initialChunkSize(length);
+            this.readAhead = readAhead;
+            this.maxUnreleasedBytes = chunkSizePolicy.maxUnreleasedBytes();
+            this.end = offset + length < 0 ? Long.MAX_VALUE : offset + length;
+            this.chunks = new ArrayDeque<>(readAhead);
+            this.nextReadPosition = offset;
         }
 
         @Override
@@ -80,37 +167,38 @@ class FileReadFlux extends Flux<ByteBuffer> {
 
         @Override
         public void cancel() {
+            // AsynchronousFileChannel cannot abort a single read, so no new reads are started and the buffers of
+            // the reads in flight are given back, when they complete
             this.cancelled = true;
+            drain();
         }
 
         @Override
-        public void completed(Integer bytesRead, ByteBuffer buffer) {
-            if (!cancelled) {
-                if (bytesRead == -1) {
-                    done = true;
-                } else {
-                    // use local variable to perform fewer volatile reads
-                    long pos = position;
-                    int bytesWanted = Math.min(bytesRead, maxRequired(pos));
-                    long position2 = pos + bytesWanted;
-                    position = position2;
-                    buffer.position(bytesWanted);
-                    buffer.flip();
-                    next = buffer;
-                    if (position2 >= offset + length) {
-                        done = true;
-                    }
-                }
-                drain();
+        public void completed(Integer bytesRead, Chunk chunk) {
+            final ByteBuffer buffer = chunk.buffer;
+            if (bytesRead == -1) {
+                chunk.endOfFile = true;
+            } else if (buffer.hasRemaining() && !terminated) {
+                // a short read - continue reading the rest of the chunk
+                fileChannel.read(buffer, chunk.position + buffer.position(), chunk, this);
+                return;
             }
+            ready(chunk);
         }
 
         @Override
-        public void failed(Throwable exc, ByteBuffer attachment) {
-            if (!cancelled) {
-                // must set error before setting done to true so that is visible in drain loop
-                error = exc;
-                done = true;
+        public void failed(Throwable exc, Chunk chunk) {
+            chunk.error = exc;
+            ready(chunk);
+        }
+
+        private void ready(Chunk chunk) {
+            chunk.readyNanos = System.nanoTime();
+            // must set the state before reading "terminated", see terminate()
+            chunk.state = Chunk.READY;
+            if (terminated) {
+                discard(chunk);
+            } else {
                 drain();
             }
         }
@@ -119,40 +207,53 @@ class FileReadFlux extends Flux<ByteBuffer> {
             if (ATOMIC_WIP.getAndIncrement(this) != 0) {
                 return;
             }
-            // on first drain (first request) we initiate the first read
-            if (position == NOT_SET) {
-                position = offset;
-                doRead();
+            // on first drain (first request) we initiate the first reads
+            if (!started && !cancelled) {
+                started = true;
+                fillReadAhead();
             }
             int missed = 1;
             while (true) {
                 if (cancelled) {
+                    terminate();
+                    // exit without reducing wip so that further drains will be NOOP
                     return;
                 }
-                if (ATOMIC_REQUESTED.get(this) > 0) {
-                    boolean emitted = false;
-                    // read d before next to avoid race
-                    boolean d = done;
-                    ByteBuffer bb = next;
-                    if (bb != null) {
-                        next = null;
-                        subscriber.onNext(bb);
-                        emitted = true;
-                    }
-                    if (d) {
-                        if (error != null) {
-                            subscriber.onError(error);
-                        } else {
-                            subscriber.onComplete();
-                        }
-                        // exit without reducing wip so that further drains will be NOOP
+                final Chunk head = chunks.peek();
+                if (head == null) {
+                    // all reads up to the end are emitted
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                if (head.state == Chunk.READY && (head.error != null
+                    || ATOMIC_REQUESTED.get(this) > 0 && ATOMIC_UNRELEASED_BYTES.get(this) < maxUnreleasedBytes)) {
+                    chunks.poll();
+                    if (head.error != null) {
+                        chunkAllocator.discard(head.buffer);
+                        terminate();
+                        subscriber.onError(head.error);
                         return;
                     }
-                    if (emitted) {
-                        // do this after checking d to avoid calling read when done
+                    chunkSize = chunkSizePolicy.nextChunkSize(chunkSize, System.nanoTime() - head.readyNanos);
+                    final ByteBuffer bb = head.buffer;
+                    bb.flip();
+                    if (bb.hasRemaining()) {
+                        final int size = bb.remaining();
+                        ATOMIC_UNRELEASED_BYTES.addAndGet(this, size);
+                        subscriber.onNext(chunkAllocator.toChunk(bb, () -> released(size)));
                         Operators.produced(ATOMIC_REQUESTED, this, 1);
-                        doRead();
+                    } else {
+                        chunkAllocator.discard(bb);
+                    }
+                    if (head.endOfFile) {
+                        // the file is shorter than expected - the reads behind this one are obsolete
+                        terminate();
+                        subscriber.onComplete();
+                        return;
                     }
+                    fillReadAhead();
+                    continue;
                 }
                 missed = ATOMIC_WIP.addAndGet(this, -missed);
                 if (missed == 0) {
@@ -161,27 +262,66 @@ class FileReadFlux extends Flux<ByteBuffer> {
             }
         }
 
-        private void doRead() {
-            // use local variable to limit volatile reads
-            long pos = position;
-            ByteBuffer innerBuf = ByteBuffer.allocate(Math.min(chunkSize, maxRequired(pos)));
-            fileChannel.read(innerBuf, pos, innerBuf, this);
+        private void released(int size) {
+            ATOMIC_UNRELEASED_BYTES.addAndGet(this, -size);
+            drain();
         }
 
-        private int maxRequired(long pos) {
-            long maxRequired = offset + length - pos;
-            if (maxRequired <= 0) {
-                return 0;
-            } else {
-                int m = (int) (maxRequired);
-                // support really large files by checking for overflow
-                if (m < 0) {
-                    return Integer.MAX_VALUE;
-                } else {
-                    return m;
+        private void fillReadAhead() {
+            while (chunks.size() < readAhead && nextReadPosition < end) {
+                final long pos = nextReadPosition;
+                final int size = (int) Math.min(chunkSize, end - pos);
+                final Chunk chunk = new Chunk(chunkAllocator.allocate(size), pos);
+                nextReadPosition = pos + size;
+                chunks.add(chunk);
+                chunkSizePolicy.chunkRead(size);
+                fileChannel.read(chunk.buffer, pos, chunk, this);
+            }
+        }
+
+        /*
+         * Give back the buffers of all queued chunks. A chunk, whose read is still in flight, is given back by
+         * ready(), which sees "terminated" after it has set its state.
+         */
+        private void terminate() {
+            terminated = true;
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                if (chunk.state == Chunk.READY) {
+                    discard(chunk);
                 }
             }
         }
+
+        private void discard(Chunk chunk) {
+            if (Chunk.ATOMIC_STATE.compareAndSet(chunk, Chunk.READY, Chunk.DISCARDED)) {
+                chunkAllocator.discard(chunk.buffer);
+            }
+        }
+
+        /*
+         * One positional read, that may need several calls of AsynchronousFileChannel.read, if a read is short.
+         */
+        static final class Chunk {
+            static final int READING = 0;
+            static final int READY = 1;
+            static final int DISCARDED = 2;
+
+            static final AtomicIntegerFieldUpdater<Chunk> ATOMIC_STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Chunk.class, "state");
+
+            final ByteBuffer buffer;
+            final long position;
+            // written before the volatile state, read after it
+            boolean endOfFile;
+            Throwable error;
+            long readyNanos;
+            volatile int state = READING;
+
+            Chunk(ByteBuffer buffer, long position) {
+                this.buffer = buffer;
+                this.position = position;
+            }
+        }
     }
 }
-
@@ -0,0 +1,150 @@
+package com.giraone.streaming.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validators ({@code ETag} and {@code Last-Modified}) of the downloadable files, so that conditional requests
+ * are answered by a {@code stat} of the file, without opening it.
+ * <p>
+ * The entity tag of an uploaded file is the SHA-256 digest of its content, that was computed at upload time and is
+ * registered by {@link #register(Path, String)} for the file's identity (its inode, see
+ * {@link BasicFileAttributes#fileKey()}). Because an upload is a hard link to an immutable blob, all files with the
+ * same content share this identity and so the digest. Other files - e.g. stored before the application was started
+ * or on a file system without file keys - get an entity tag made of their size, modification time and identity.
+ * The identity changes, when a file is replaced, because a replacement is always a new file, that is renamed.
+ * <p>
+ * At most {@code maxEntries} digests are kept; the least recently used ones are dropped. An instance is thread-safe.
+ */
+public final class FileValidators {
+
+    // fileKey -> digest; guarded by itself
+    private final Map<Object, Digest> digests;
+
+    /**
+     * The validators of a file or of a response, that is composed of several files.
+     * @param eTag the strong entity tag, including the double quotes
+     * @param lastModified the last modification time in milliseconds since the epoch
+     * @param size the size of the file in bytes or -1 for a composed response
+     * @param version the version of the file made of its size, modification time and identity, which - unlike a
+     *                registered digest - is the same after a restart; null for a composed response
+     */
+    public record Validator(String eTag, long lastModified, long size, String version) {
+    }
+
+    private record Digest(String sha256, long size) {
+    }
+
+    /**
+     * Create an empty instance.
+     * @param maxEntries the maximum number of registered digests
+     */
+    public FileValidators(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1, but was " + maxEntries);
+        }
+        this.digests = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Digest> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Register the SHA-256 digest of a file, e.g. of a blob, that was just stored.
+     * @param file the file, that is not changed any more
+     * @param sha256 the SHA-256 digest of its content as lower case hex digits
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public void register(Path file, String sha256) throws IOException {
+
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attributes.fileKey() == null) {
+            return;
+        }
+        synchronized (digests) {
+            digests.put(attributes.fileKey(), new Digest(sha256, attributes.size()));
+        }
+    }
+
+    /**
+     * The validators of a file.
+     * @param file the file
+     * @return the current validators
+     * @throws NoSuchFileException if the file does not exist or is not a regular file
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public Validator validator(Path file) throws IOException {
+
+        final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            throw new NoSuchFileException(file.toString());
+        }
+        final Object fileKey = attributes.fileKey();
+        Digest digest = null;
+        if (fileKey != null) {
+            synchronized (digests) {
+                digest = digests.get(fileKey);
+            }
+        }
+        final String version = metadataTag(attributes);
+        // the size protects against a file key, that is reused for another file
+        final String eTag = digest != null && digest.size() == attributes.size() ? digest.sha256() : version;
+        return new Validator(quote(eTag), attributes.lastModifiedTime().toMillis(), attributes.size(), version);
+    }
+
+    /**
+     * The validators of a response, that is composed of a fixed part - e.g. a template - and files. The entity tag
+     * changes, when the fixed part or any file changes. The last modification time is the one of the newest file.
+     * @param fingerprint a value, that changes, when the fixed part of the response changes
+     * @param validators the validators of the files in the order of the response
+     * @return the combined validators
+     */
+    public static Validator combine(String fingerprint, List<Validator> validators) {
+
+        final MessageDigest digest = newDigest();
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        long lastModified = 0L;
+        for (Validator validator : validators) {
+            digest.update((byte) '\n');
+            digest.update(validator.eTag().getBytes(StandardCharsets.UTF_8));
+            lastModified = Math.max(lastModified, validator.lastModified());
+        }
+        // 128 bits are enough to tell versions apart
+        return new Validator(quote(HexFormat.of().formatHex(digest.digest(), 0, 16)), lastModified, -1L, null);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static String metadataTag(BasicFileAttributes attributes) {
+
+        final String tag = Long.toHexString(attributes.size())
+            + "-" + Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS));
+        return attributes.fileKey() != null ? tag + "-" + Integer.toHexString(attributes.fileKey().hashCode()) : tag;
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.giraone.streaming.service;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.MonoSink;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Subscriber that writes a stream of {@link ByteBuffer ByteBuffers} to an {@link AsynchronousFileChannel} in large
+ * positional writes. The - often only a few KB small - incoming buffers are copied into pooled direct batch buffers of
+ * {@code batchSize} bytes, which are written, when they are full. Incoming buffers of at least {@code batchSize} bytes
+ * are written as they are without copying.
+ * <p>
+ * Up to {@code maxBatches} batches are filled or written at the same time, so the next batch is filled, while the
+ * last one is written. The buffers are requested in windows of {@code window} items, but only, when all delivered
+ * buffers are copied into batches. So at most {@code maxBatches} batches and one window of incoming buffers are held.
+ * <p>
+ * The batches are written by a {@link PipelinedFileWriter}, so they complete in any order. Unlike
+ * {@link AsynchronousByteChannelWriteSubscriber} the thread delivering the buffers never waits for a write.
+ */
+@SuppressWarnings("ReactiveStreamsSubscriberImplementation")
+public final class FileWriteSubscriber implements CoreSubscriber<ByteBuffer>, CompletionHandler<Integer, FileWriteSubscriber.Batch> {
+
+    private final PipelinedFileWriter writer;
+    private final MonoSink<Void> emitter;
+    private final int batchSize;
+    private final int maxBatches;
+    private final int window;
+
+    private final Queue<ByteBuffer> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<Batch> written = new ConcurrentLinkedQueue<>();
+
+    // only accessed within the drain loop
+    private Subscription subscription;
+    private Batch current;
+    private int writing;
+    private int outstanding;
+
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile boolean cancelled;
+    private volatile boolean terminated;
+
+    volatile int wip;
+    static final AtomicIntegerFieldUpdater<FileWriteSubscriber> ATOMIC_WIP =
+        AtomicIntegerFieldUpdater.newUpdater(FileWriteSubscriber.class, "wip");
+
+    /**
+     * Creates a subscriber that writes a stream of {@link ByteBuffer ByteBuffers} to an {@link AsynchronousFileChannel}.
+     * @param channel The channel to write the stream of {@link ByteBuffer ByteBuffers} to.
+     * @param position The position in the file to begin writing.
+     * @param batchSize The size of one positional write.
+     * @param maxBatches The maximum number of batches, that are filled or written at the same time (at least 1).
+     * @param window The number of buffers, that are requested at once.
+     * @param emitter The emitter to signal when the stream has been written, or an error has occurred.
+     */
+    public FileWriteSubscriber(AsynchronousFileChannel channel, long position, int batchSize, int maxBatches, int window,
+                               MonoSink<Void> emitter) {
+        if (batchSize < 1 || maxBatches < 1 || window < 1) {
+            throw new IllegalArgumentException("batchSize, maxBatches and window must be at least 1, but were "
+                + batchSize + ", " + maxBatches + ", " + window);
+        }
+        this.writer = new PipelinedFileWriter(channel, position, maxBatches);
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+        this.window = window;
+        this.emitter = emitter;
+        emitter.onCancel(() -> {
+            cancelled = true;
+            drain();
+        });
+    }
+
+    @Override
+    public Context currentContext() {
+        return Context.of(emitter.contextView());
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        // Only set the Subscription if one has not been previously set.
+        // Any additional Subscriptions will be cancelled.
+        if (Operators.validate(this.subscription, s)) {
+            subscription = s;
+            drain();
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer bytes) {
+        if (upstreamDone) {
+            // The subscription has indicated completion, don't allow erroneous onNext emissions to be processed.
+            Operators.onNextDropped(bytes, currentContext());
+            return;
+        }
+        incoming.offer(bytes);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (upstreamDone) {
+            Operators.onErrorDropped(throwable, currentContext());
+            return;
+        }
+        upstreamError = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void completed(Integer bytesWritten, Batch batch) {
+        written.offer(batch);
+        drain();
+    }
+
+    @Override
+    public void failed(Throwable exc, Batch batch) {
+        batch.error = exc;
+        written.offer(batch);
+        drain();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private void drain() {
+        if (ATOMIC_WIP.getAndIncrement(this) != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            if (!terminated) {
+                step();
+            }
+            if (terminated) {
+                // the batches in flight are given back, when their writes complete
+                releaseWritten();
+            }
+            missed = ATOMIC_WIP.addAndGet(this, -missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void step() {
+
+        Batch batch;
+        while ((batch = written.poll()) != null) {
+            writing--;
+            batch.release();
+            if (batch.error != null) {
+                terminate();
+                emitter.error(batch.error);
+                return;
+            }
+        }
+        if (cancelled) {
+            terminate();
+            return;
+        }
+        if (upstreamError != null) {
+            terminate();
+            emitter.error(upstreamError);
+            return;
+        }
+        if (subscription == null) {
+            return;
+        }
+        fillBatches();
+        if (upstreamDone && incoming.isEmpty()) {
+            if (current != null) {
+                write(current);
+                current = null;
+            }
+            if (current == null && writing == 0) {
+                terminate();
+                emitter.success();
+            }
+            return;
+        }
+        // request the next window, when the delivered buffers are copied and the window is mostly used up
+        if (!upstreamDone && incoming.isEmpty() && outstanding <= window / 4) {
+            final int n = window - outstanding;
+            outstanding = window;
+            subscription.request(n);
+        }
+    }
+
+    private void fillBatches() {
+
+        ByteBuffer head;
+        while ((head = incoming.peek()) != null) {
+            if (!head.hasRemaining()) {
+                consumed();
+                continue;
+            }
+            if (current == null) {
+                if (writing >= maxBatches) {
+                    // all batches are written - wait for a completed write
+                    return;
+                }
+                if (head.remaining() >= batchSize) {
+                    // large enough for a write on its own
+                    consumed();
+                    write(new Batch(head, null));
+                    continue;
+                }
+                current = new Batch(DirectBufferPool.DEFAULT.acquire(batchSize), DirectBufferPool.DEFAULT);
+            }
+            final ByteBuffer target = current.buffer;
+            if (head.remaining() <= target.remaining()) {
+                target.put(head);
+                consumed();
+            } else {
+                final int limit = head.limit();
+                head.limit(head.position() + target.remaining());
+                target.put(head);
+                head.limit(limit);
+            }
+            if (!target.hasRemaining()) {
+                final Batch full = current;
+                current = null;
+                write(full);
+            }
+        }
+    }
+
+    private void consumed() {
+        incoming.poll();
+        outstanding--;
+    }
+
+    private void write(Batch batch) {
+        if (batch.pool != null) {
+            batch.buffer.flip();
+        }
+        writing++;
+        try {
+            // the writer assigns the position and writes the whole batch
+            writer.write(batch.buffer, batch, this);
+        } catch (RuntimeException e) {
+            // e.g. the channel is not opened for writing
+            failed(e, batch);
+        }
+    }
+
+    private void terminate() {
+        terminated = true;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        incoming.clear();
+    }
+
+    private void releaseWritten() {
+        Batch batch;
+        while ((batch = written.poll()) != null) {
+            batch.release();
+        }
+    }
+
+    /*
+     * One positional write.
+     */
+    static final class Batch {
+
+        final ByteBuffer buffer;
+        // null, if the buffer is an incoming buffer, that is written as it is
+        final DirectBufferPool pool;
+        // written before the batch is queued, read after it
+        Throwable error;
+
+        Batch(ByteBuffer buffer, DirectBufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        void release() {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+}
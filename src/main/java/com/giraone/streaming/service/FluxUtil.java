@@ -2,6 +2,8 @@ package com.giraone.streaming.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -13,6 +15,7 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousByteChannel;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.StandardOpenOption;
 
@@ -24,8 +27,56 @@ public final class FluxUtil {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FluxUtil.class);
 
+    /**
+     * The chunk size, that was used by the read methods without an explicit chunk size, before they adapted it.
+     * @deprecated These methods now use {@link AdaptiveChunkSizePolicy#DEFAULT}, whose chunks are between 16 KB
+     * and 128 KB depending on the file size and the speed of the client. Pass this value to
+     * {@link #readFile(AsynchronousFileChannel, int, long, long)}, to read in fixed chunks of the former size.
+     */
+    @Deprecated
     public static final int DEFAULT_CHUNK_SIZE = 1024 * 64;
 
+    /**
+     * The default number of chunk reads, that are in flight at the same time.
+     */
+    public static final int DEFAULT_READ_AHEAD = 4;
+
+    /**
+     * The default size of one positional write of {@link #writeFile(Flux, AsynchronousFileChannel, long)}.
+     */
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 256 * 1024;
+
+    /**
+     * The default number of batches of {@link #writeFile(Flux, AsynchronousFileChannel, long)}, that are filled
+     * or written at the same time.
+     */
+    public static final int DEFAULT_WRITE_BATCHES = 4;
+
+    /**
+     * The default size of the memory mappings of {@link #readFileMapped(FileChannel, int, long, long)}.
+     */
+    public static final int DEFAULT_MAP_WINDOW_SIZE = 16 * 1024 * 1024;
+
+    // the number of incoming buffers requested at once by the FileWriteSubscriber
+    private static final int WRITE_REQUEST_WINDOW = 32;
+
+    private static final FileReadFlux.ChunkAllocator<DataBuffer> POOLED_CHUNK_ALLOCATOR = new FileReadFlux.ChunkAllocator<>() {
+        @Override
+        public ByteBuffer allocate(int capacity) {
+            return DirectBufferPool.DEFAULT.acquire(capacity);
+        }
+
+        @Override
+        public DataBuffer toChunk(ByteBuffer buffer, Runnable released) {
+            return DirectBufferPool.DEFAULT.toDataBuffer(buffer, released);
+        }
+
+        @Override
+        public void discard(ByteBuffer buffer) {
+            DirectBufferPool.DEFAULT.release(buffer);
+        }
+    };
+
     // Hide
     private FluxUtil() {
     }
@@ -82,6 +133,26 @@ public final class FluxUtil {
      * @throws IllegalArgumentException When {@code position} is negative.
      */
     public static Mono<Void> writeFile(Flux<ByteBuffer> content, AsynchronousFileChannel outFile, long position) {
+        return writeFile(content, outFile, position, DEFAULT_WRITE_BATCH_SIZE, DEFAULT_WRITE_BATCHES);
+    }
+
+    /**
+     * Writes the {@link ByteBuffer ByteBuffers} emitted by a {@link Flux} of {@link ByteBuffer} to an {@link
+     * AsynchronousFileChannel} starting at the given {@code position} in the file. The buffers are coalesced into
+     * positional writes of {@code batchSize} bytes with up to {@code maxBatches} batches filled or written at the
+     * same time, see {@link FileWriteSubscriber}.
+     * <p>
+     * The {@code outFile} is not closed by this call, closing of the {@code outFile} is managed by the caller.
+     * @param content The {@link Flux} of {@link ByteBuffer} content.
+     * @param outFile The {@link AsynchronousFileChannel}.
+     * @param position The position in the file to begin writing the {@code content}.
+     * @param batchSize The size of one positional write.
+     * @param maxBatches The maximum number of batches, that are filled or written at the same time (at least 1).
+     * @return A {@link Mono} which emits a completion status once the {@link Flux} has been written to the {@link AsynchronousFileChannel}.
+     * @see #writeFile(Flux, AsynchronousFileChannel, long)
+     */
+    public static Mono<Void> writeFile(Flux<ByteBuffer> content, AsynchronousFileChannel outFile, long position,
+                                       int batchSize, int maxBatches) {
         if (content == null && outFile == null) {
             return monoError(LOGGER, new NullPointerException("'content' and 'outFile' cannot be null."));
         } else if (content == null) {
@@ -92,7 +163,8 @@ public final class FluxUtil {
             return monoError(LOGGER, new IllegalArgumentException("'position' cannot be less than 0."));
         }
 
-        return writeToAsynchronousByteChannel(content, IoChannelUtils.toAsynchronousByteChannel(outFile, position));
+        return Mono.create(emitter -> content.subscribe(
+            new FileWriteSubscriber(outFile, position, batchSize, maxBatches, WRITE_REQUEST_WINDOW, emitter)));
     }
 
     /**
@@ -168,18 +240,49 @@ public final class FluxUtil {
      * @return the Flux.
      */
     public static Flux<ByteBuffer> readFile(AsynchronousFileChannel fileChannel, int chunkSize, long offset, long length) {
-        return new FileReadFlux(fileChannel, chunkSize, offset, length);
+        return readFile(fileChannel, chunkSize, DEFAULT_READ_AHEAD, offset, length);
     }
 
     /**
-     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file.
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into chunks of the
+     * given size with up to {@code readAhead} reads in flight. The chunks are emitted in file order.
+     * @param fileChannel The file channel.
+     * @param chunkSize the size of file chunks to read.
+     * @param readAhead the maximum number of concurrent reads (at least 1); 1 reads chunk by chunk.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     */
+    public static Flux<ByteBuffer> readFile(AsynchronousFileChannel fileChannel, int chunkSize, int readAhead,
+                                            long offset, long length) {
+        return readFile(fileChannel, ChunkSizePolicy.fixed(chunkSize), readAhead, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into chunks, whose
+     * sizes are chosen by a {@link ChunkSizePolicy}, with up to {@code readAhead} reads in flight.
+     * @param fileChannel The file channel.
+     * @param chunkSizePolicy the policy for the size of file chunks to read.
+     * @param readAhead the maximum number of concurrent reads (at least 1); 1 reads chunk by chunk.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     */
+    public static Flux<ByteBuffer> readFile(AsynchronousFileChannel fileChannel, ChunkSizePolicy chunkSizePolicy,
+                                            int readAhead, long offset, long length) {
+        return new FileReadFlux<>(fileChannel, FileReadFlux.ChunkAllocator.HEAP, chunkSizePolicy, readAhead, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file in chunks of the
+     * size given by {@link AdaptiveChunkSizePolicy#DEFAULT}.
      * @param fileChannel The file channel.
      * @param offset The offset in the file to begin reading.
      * @param length The number of bytes to read from the file.
      * @return the Flux.
      */
     public static Flux<ByteBuffer> readFile(AsynchronousFileChannel fileChannel, long offset, long length) {
-        return readFile(fileChannel, DEFAULT_CHUNK_SIZE, offset, length);
+        return readFile(fileChannel, AdaptiveChunkSizePolicy.DEFAULT, DEFAULT_READ_AHEAD, offset, length);
     }
 
     /**
@@ -198,19 +301,133 @@ public final class FluxUtil {
     }
 
     /**
-     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads the entire file.
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads the entire file in chunks of the
+     * size given by {@link AdaptiveChunkSizePolicy#DEFAULT}.
      * @param fileChannel The file channel.
      * @return The AsyncInputStream.
      */
     public static Flux<ByteBuffer> readFile(AsynchronousFileChannel fileChannel) {
         try {
             final long size = fileChannel.size();
-            return readFile(fileChannel, DEFAULT_CHUNK_SIZE, 0, size);
+            return readFile(fileChannel, 0, size);
         } catch (IOException e) {
             return Flux.error(new RuntimeException("Failed to read the file.", e));
         }
     }
 
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into pooled direct
+     * buffers ({@link DirectBufferPool#DEFAULT}) of the given size.
+     * <p>
+     * Every emitted {@link DataBuffer} must be released by the subscriber, e.g. by
+     * {@link DataBufferUtils#release(DataBuffer)}. When written to a WebFlux response, this is done by the HTTP layer.
+     * @param fileChannel The file channel.
+     * @param chunkSize the size of file chunks to read.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     */
+    public static Flux<DataBuffer> readFilePooled(AsynchronousFileChannel fileChannel, int chunkSize, long offset, long length) {
+        return readFilePooled(fileChannel, chunkSize, DEFAULT_READ_AHEAD, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into pooled direct
+     * buffers with up to {@code readAhead} reads in flight. The buffers must be released by the subscriber.
+     * @param fileChannel The file channel.
+     * @param chunkSize the size of file chunks to read.
+     * @param readAhead the maximum number of concurrent reads (at least 1); 1 reads chunk by chunk.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     * @see #readFilePooled(AsynchronousFileChannel, int, long, long)
+     */
+    public static Flux<DataBuffer> readFilePooled(AsynchronousFileChannel fileChannel, int chunkSize, int readAhead,
+                                                  long offset, long length) {
+        return readFilePooled(fileChannel, ChunkSizePolicy.fixed(chunkSize), readAhead, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into pooled direct
+     * buffers, whose sizes are chosen by a {@link ChunkSizePolicy}. The buffers must be released by the subscriber.
+     * @param fileChannel The file channel.
+     * @param chunkSizePolicy the policy for the size of file chunks to read.
+     * @param readAhead the maximum number of concurrent reads (at least 1); 1 reads chunk by chunk.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     * @see #readFilePooled(AsynchronousFileChannel, int, long, long)
+     */
+    public static Flux<DataBuffer> readFilePooled(AsynchronousFileChannel fileChannel, ChunkSizePolicy chunkSizePolicy,
+                                                  int readAhead, long offset, long length) {
+        return new FileReadFlux<>(fileChannel, POOLED_CHUNK_ALLOCATOR, chunkSizePolicy, readAhead, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads part of a file into pooled direct
+     * buffers, whose sizes are given by {@link AdaptiveChunkSizePolicy#DEFAULT}. The buffers must be released by
+     * the subscriber.
+     * @param fileChannel The file channel.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     * @see #readFilePooled(AsynchronousFileChannel, int, long, long)
+     */
+    public static Flux<DataBuffer> readFilePooled(AsynchronousFileChannel fileChannel, long offset, long length) {
+        return readFilePooled(fileChannel, AdaptiveChunkSizePolicy.DEFAULT, DEFAULT_READ_AHEAD, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from an {@link AsynchronousFileChannel} which reads the entire file into pooled direct
+     * buffers, whose sizes are given by {@link AdaptiveChunkSizePolicy#DEFAULT}. The buffers must be released by
+     * the subscriber.
+     * @param fileChannel The file channel.
+     * @return the Flux.
+     * @see #readFilePooled(AsynchronousFileChannel, int, long, long)
+     */
+    public static Flux<DataBuffer> readFilePooled(AsynchronousFileChannel fileChannel) {
+        try {
+            final long size = fileChannel.size();
+            return readFilePooled(fileChannel, 0, size);
+        } catch (IOException e) {
+            return Flux.error(new RuntimeException("Failed to read the file.", e));
+        }
+    }
+
+    /**
+     * Creates a {@link Flux} from a {@link FileChannel} which emits part of a file as read-only slices of memory
+     * mappings of {@link #DEFAULT_MAP_WINDOW_SIZE} bytes. The chunks are not copied, so a file in the page cache is
+     * read without any copy and without a thread hop.
+     * <p>
+     * The channel may be closed, when the flux terminates; the chunks stay valid. See {@link ReadModePolicy} for when
+     * this is faster than {@link #readFilePooled(AsynchronousFileChannel, long, long)}.
+     * @param fileChannel The file channel.
+     * @param chunkSize the size of the emitted chunks.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     */
+    public static Flux<ByteBuffer> readFileMapped(FileChannel fileChannel, int chunkSize, long offset, long length) {
+        return readFileMapped(fileChannel, chunkSize, DEFAULT_MAP_WINDOW_SIZE, offset, length);
+    }
+
+    /**
+     * Creates a {@link Flux} from a {@link FileChannel} which emits part of a file as read-only slices of memory
+     * mappings of at most {@code windowSize} bytes. While the chunks of one mapping are emitted, the next one is
+     * mapped and loaded in the background.
+     * @param fileChannel The file channel.
+     * @param chunkSize the size of the emitted chunks.
+     * @param windowSize the maximum size of one mapping; a mapping cannot be larger than 2 GB.
+     * @param offset The offset in the file to begin reading.
+     * @param length The number of bytes to read from the file.
+     * @return the Flux.
+     * @see #readFileMapped(FileChannel, int, long, long)
+     */
+    public static Flux<ByteBuffer> readFileMapped(FileChannel fileChannel, int chunkSize, int windowSize,
+                                                  long offset, long length) {
+        return new MappedFileReadFlux(fileChannel, chunkSize, windowSize, offset, length);
+    }
+
     //------------------------------------------------------------------------------------------------------------------
 
     /**
@@ -0,0 +1,83 @@
+package com.giraone.streaming.service;
+
+/**
+ * A count-min sketch, that estimates how often keys were accessed recently, in a fixed amount of memory.
+ * Each key increments one saturating counter (at most 15) in each of four rows. The estimate is the minimum of these
+ * counters, so collisions can only make it too high. After {@code 10 * width} increments all counters are halved,
+ * so the estimates follow a change of the popular keys (aging, as in TinyLFU).
+ * <p>
+ * An instance is thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    // guarded by this
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Create a sketch.
+     * @param expectedKeys the number of keys, whose frequency should be estimated well
+     */
+    FrequencySketch(int expectedKeys) {
+        final int width = Integer.highestOneBit(Math.max(16, Math.min(1 << 24, expectedKeys)) * 2 - 1);
+        this.counters = new byte[SEEDS.length][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    synchronized void increment(Object key) {
+
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final int index = index(hash, i);
+            if (counters[i][index] < MAX_COUNT) {
+                counters[i][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    synchronized int frequency(Object key) {
+
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, counters[i][index(hash, i)]);
+        }
+        return frequency;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private void reset() {
+
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        long x = (hash + SEEDS[row]) * SEEDS[row];
+        x ^= x >>> 32;
+        return (int) x & mask;
+    }
+
+    private static int spread(int hash) {
+        final int x = (hash ^ (hash >>> 16)) * 0x45d9f3b;
+        return x ^ (x >>> 16);
+    }
+}
@@ -0,0 +1,266 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of the content of small, frequently downloaded files. The content is stored in direct buffers
+ * outside the Java heap and is handed out as read-only buffers, that share it without a copy. Direct buffers are
+ * freed by the garbage collector, so an evicted buffer stays valid, while a response still writes it.
+ * <p>
+ * The entries are evicted in LRU order. A file is only admitted, if it fits into the free space or if it was
+ * requested more often than the entries, that it would evict - the frequencies are estimated by a
+ * {@link FrequencySketch} like in TinyLFU. So a scan over many files, that are requested once, does not flush
+ * the hot files.
+ * <p>
+ * An entry is valid, as long as the {@link FileValidators.Validator#eTag() entity tag} of the file is unchanged.
+ * An upload should {@link #invalidate(Path)} the entry of its target file nevertheless, to free the memory at once.
+ * An instance is thread-safe.
+ */
+public final class HotFileCache {
+
+    /**
+     * The metrics of all caches.
+     */
+    public static final Metrics METRICS = new Metrics();
+
+    private final long capacity;
+    private final int maxFileSize;
+    private final FrequencySketch sketch;
+    // LRU order; guarded by itself
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by entries
+    private long residentBytes;
+
+    private record Entry(String eTag, ByteBuffer content) {
+    }
+
+    /**
+     * Create an empty cache.
+     * @param capacity the maximum number of bytes of all cached files
+     * @param maxFileSize the maximum size of a cached file in bytes
+     */
+    public HotFileCache(long capacity, int maxFileSize) {
+        if (capacity < 0 || maxFileSize < 0) {
+            throw new IllegalArgumentException("capacity and maxFileSize cannot be less than 0.");
+        }
+        this.capacity = capacity;
+        this.maxFileSize = maxFileSize;
+        // enough counters for the entries, if the cached files have a size of 4 KB on average
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacity / 4096));
+    }
+
+    /**
+     * The cached content of a file and record the request of the file.
+     * @param file the file
+     * @param validator the current validators of the file
+     * @return a read-only buffer with the whole content, whose position and limit may be changed,
+     * or null, if the file is not cached or was changed
+     */
+    public ByteBuffer get(Path file, FileValidators.Validator validator) {
+
+        if (validator.size() > maxFileSize) {
+            return null;
+        }
+        sketch.increment(file);
+        synchronized (entries) {
+            final Entry entry = entries.get(file);
+            if (entry != null && entry.eTag().equals(validator.eTag())) {
+                METRICS.hits.incrementAndGet();
+                return entry.content().duplicate();
+            }
+            if (entry != null) {
+                remove(file);
+            }
+        }
+        METRICS.misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Decide, whether a file, that is not cached, should be {@link #load(Path, FileValidators.Validator) loaded}.
+     * @param file the file
+     * @param validator the current validators of the file
+     * @return true, if the file is small enough and fits into the free space or was requested more often than
+     * the least recently used entries, that must be evicted for it
+     */
+    public boolean admit(Path file, FileValidators.Validator validator) {
+
+        final long size = validator.size();
+        if (size > maxFileSize || size > capacity) {
+            return false;
+        }
+        final int frequency = sketch.frequency(file);
+        synchronized (entries) {
+            long needed = residentBytes + size - capacity;
+            final Iterator<Map.Entry<Path, Entry>> victims = entries.entrySet().iterator();
+            while (needed > 0 && victims.hasNext()) {
+                final Map.Entry<Path, Entry> victim = victims.next();
+                if (sketch.frequency(victim.getKey()) >= frequency) {
+                    METRICS.rejections.incrementAndGet();
+                    return false;
+                }
+                needed -= victim.getValue().content().capacity();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read a file into the cache, evicting the least recently used entries, if needed.
+     * The file is read by a blocking read on {@link Schedulers#boundedElastic()}, because it is small.
+     * @param file the file
+     * @param validator the validators of the file, that were used to {@link #admit(Path, FileValidators.Validator)} it
+     * @return a Mono with a read-only buffer with the whole content or an {@link IOException}, e.g. if the size
+     * of the file is not the one of the validator any more
+     */
+    public Mono<ByteBuffer> load(Path file, FileValidators.Validator validator) {
+
+        return Mono.fromCallable(() -> {
+                final ByteBuffer content;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (channel.size() != validator.size()) {
+                        throw new IOException("File " + file + " was changed, while it was cached.");
+                    }
+                    content = ByteBuffer.allocateDirect((int) validator.size());
+                    while (content.hasRemaining()) {
+                        if (channel.read(content) < 0) {
+                            throw new EOFException("File " + file + " was truncated, while it was cached.");
+                        }
+                    }
+                }
+                final ByteBuffer readOnly = content.flip().asReadOnlyBuffer();
+                put(file, new Entry(validator.eTag(), readOnly));
+                return readOnly.duplicate();
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Remove the entry of a file, e.g. because it is replaced by an upload.
+     * @param file the file
+     */
+    public void invalidate(Path file) {
+        synchronized (entries) {
+            remove(file);
+        }
+    }
+
+    /**
+     * The number of bytes of all cached files.
+     * @return the bytes in direct buffers
+     */
+    public long getResidentBytes() {
+        synchronized (entries) {
+            return residentBytes;
+        }
+    }
+
+    /**
+     * The number of cached files.
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private void put(Path file, Entry entry) {
+
+        final int size = entry.content().capacity();
+        synchronized (entries) {
+            remove(file);
+            final Iterator<Entry> victims = entries.values().iterator();
+            while (residentBytes + size > capacity && victims.hasNext()) {
+                final int victimSize = victims.next().content().capacity();
+                victims.remove();
+                residentBytes -= victimSize;
+                METRICS.residentBytes.addAndGet(-victimSize);
+                METRICS.entries.decrementAndGet();
+                METRICS.evictions.incrementAndGet();
+            }
+            entries.put(file, entry);
+            residentBytes += size;
+            METRICS.residentBytes.addAndGet(size);
+            METRICS.entries.incrementAndGet();
+        }
+    }
+
+    // guarded by entries
+    private void remove(Path file) {
+
+        final Entry entry = entries.remove(file);
+        if (entry != null) {
+            residentBytes -= entry.content().capacity();
+            METRICS.residentBytes.addAndGet(-entry.content().capacity());
+            METRICS.entries.decrementAndGet();
+        }
+    }
+
+    /**
+     * The metrics of all caches, see {@link HotFileCache}.
+     */
+    public static final class Metrics implements MeterBinder {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong rejections = new AtomicLong();
+        private final AtomicLong residentBytes = new AtomicLong();
+        private final AtomicLong entries = new AtomicLong();
+
+        private Metrics() {
+        }
+
+        public double getHitRatio() {
+            final long h = hits.get();
+            final long requests = h + misses.get();
+            return requests == 0 ? 0.0 : (double) h / requests;
+        }
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+
+            FunctionCounter.builder("streaming.download.cache.hits", hits, AtomicLong::get)
+                .description("Downloads of small files, that were served from the cache")
+                .register(registry);
+            FunctionCounter.builder("streaming.download.cache.misses", misses, AtomicLong::get)
+                .description("Downloads of small files, that were not in the cache")
+                .register(registry);
+            Gauge.builder("streaming.download.cache.hit.ratio", this, Metrics::getHitRatio)
+                .description("Hits divided by the requests of small files since the start")
+                .register(registry);
+            FunctionCounter.builder("streaming.download.cache.evictions", evictions, AtomicLong::get)
+                .description("Cached files, that were evicted for other files")
+                .register(registry);
+            FunctionCounter.builder("streaming.download.cache.rejections", rejections, AtomicLong::get)
+                .description("Files, that were not admitted, because they were requested less often than the evicted ones")
+                .register(registry);
+            Gauge.builder("streaming.download.cache.resident", residentBytes, AtomicLong::get)
+                .description("Bytes of the cached files in direct buffers")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("streaming.download.cache.entries", entries, AtomicLong::get)
+                .description("Number of cached files")
+                .register(registry);
+        }
+    }
+}
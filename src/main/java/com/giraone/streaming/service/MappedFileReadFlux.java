@@ -0,0 +1,117 @@
+package com.giraone.streaming.service;
+
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads part of a file as read-only slices of memory mappings, so a file in the page cache is neither copied nor
+ * read on another thread. The file is mapped in windows of at most {@code windowSize} bytes - a single mapping cannot
+ * be larger than 2 GB.
+ * <p>
+ * Each window - the first one, too - is mapped and {@link MappedByteBuffer#load() loaded} on
+ * {@link Schedulers#boundedElastic()}, so the thread, that requests the chunks - e.g. a Netty event loop - never waits
+ * for page faults. The next window is loaded, while the chunks of the current one are emitted; if it is not loaded,
+ * when the current one is done, the chunks continue, when it is loaded. A load starts only, when its window is
+ * subscribed, and it stops after the current step of {@code LOAD_STEP} bytes, when the subscriber cancels, e.g.
+ * because the client disconnected. A mapping stays valid after the channel is
+ * closed and is released by the garbage collector. The file must not be truncated while it is read, which would be a
+ * fatal error; files are only replaced by a rename in this application.
+ */
+class MappedFileReadFlux extends Flux<ByteBuffer> {
+
+    // the bytes of a window, that are loaded before the load checks for a cancellation
+    private static final int LOAD_STEP = 1024 * 1024;
+
+    private final FileChannel fileChannel;
+    private final int chunkSize;
+    private final int windowSize;
+    private final long offset;
+    private final long length;
+
+    MappedFileReadFlux(FileChannel fileChannel, int chunkSize, int windowSize, long offset, long length) {
+        if (chunkSize < 1 || windowSize < 1) {
+            throw new IllegalArgumentException("chunkSize and windowSize must be at least 1.");
+        }
+        this.fileChannel = fileChannel;
+        this.chunkSize = chunkSize;
+        this.windowSize = windowSize;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public void subscribe(CoreSubscriber<? super ByteBuffer> actual) {
+        Mono.fromCallable(fileChannel::size)
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMapMany(fileSize -> {
+                // like FileReadFlux, the flux completes at the end of a file, that is shorter than expected
+                final long requestedEnd = offset + length < 0 ? Long.MAX_VALUE : offset + length;
+                final long end = Math.min(requestedEnd, fileSize);
+                return Flux.<Mono<MappedByteBuffer>, Long>generate(() -> offset, (start, sink) -> {
+                        if (start >= end) {
+                            sink.complete();
+                            return start;
+                        }
+                        final int size = (int) Math.min(windowSize, end - start);
+                        sink.next(load(start, size));
+                        return start + size;
+                    })
+                    // the next window is subscribed - and its load started - when the chunks of the current window
+                    // begin; a cancel cancels both
+                    .flatMapSequential(window -> window.flatMapMany(this::slices), 2);
+            })
+            .subscribe(actual);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * The task is not disposed on a cancel, because the interrupt of a disposed task would close the shared channel
+     * during map(). Instead, the task checks for the cancel before it maps and between the steps of the load.
+     */
+    private Mono<MappedByteBuffer> load(long start, int size) {
+        return Mono.create(sink -> {
+            final AtomicBoolean cancelled = new AtomicBoolean();
+            sink.onCancel(() -> cancelled.set(true));
+            try {
+                Schedulers.boundedElastic().schedule(() -> {
+                    if (cancelled.get()) {
+                        return;
+                    }
+                    try {
+                        final MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                        for (int index = 0; index < size && !cancelled.get(); index += LOAD_STEP) {
+                            window.slice(index, Math.min(LOAD_STEP, size - index)).load();
+                        }
+                        sink.success(window);
+                    } catch (IOException | RuntimeException e) {
+                        sink.error(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                sink.error(e);
+            }
+        });
+    }
+
+    private Flux<ByteBuffer> slices(MappedByteBuffer window) {
+        return Flux.generate(() -> 0, (index, sink) -> {
+            if (index >= window.limit()) {
+                sink.complete();
+                return index;
+            }
+            final int size = Math.min(chunkSize, window.limit() - index);
+            sink.next(window.slice(index, size));
+            return index + size;
+        });
+    }
+}
@@ -0,0 +1,411 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the open, read-only channels and the {@link FileValidators.Validator validators} (size, modification
+ * time and entity tag) of the downloaded files, so a frequently requested file is neither opened nor {@code stat}ed
+ * for each request. Concurrent requests of the same file share one {@link AsynchronousFileChannel}, whose positional
+ * reads are independent of each other.
+ * <p>
+ * Each request {@link #acquire(Path) acquires} a {@link Handle} and closes it, when the response is complete. The
+ * channel of a handle is opened on the first call of {@link Handle#channel()} - or of {@link Handle#mappableChannel()}
+ * for memory mappings -, so a request, that needs only the validators - e.g. a conditional request or a zero-copy
+ * download - does not open the file. A channel is closed, when it was not used for {@code idleTimeout}, when its
+ * entry is evicted for other files or invalidated, but never, while a handle of it is open.
+ * <p>
+ * The validators are trusted for {@code maxAge}; afterwards the next request checks them by a {@code stat} and
+ * reopens the file, if it was changed. An upload must {@link #invalidate(Path)} the entry of its target file, so
+ * the replaced content is never served. With {@code maxEntries} 0, nothing is cached and each handle has its own
+ * channel. An instance is thread-safe.
+ */
+public final class OpenFileCache implements Closeable {
+
+    /**
+     * The metrics of all caches.
+     */
+    public static final Metrics METRICS = new Metrics();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenFileCache.class);
+
+    private final FileChannelFactory channelFactory;
+    private final FileValidators fileValidators;
+    private final int maxEntries;
+    private final long maxAgeNanos;
+    private final long idleTimeoutNanos;
+    // null, when idle channels are closed at once
+    private final Disposable idleTask;
+    // LRU order; guarded by itself
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // incremented by each invalidation; guarded by entries
+    private long invalidations;
+
+    /**
+     * Create an empty cache.
+     * @param channelFactory the factory, that opens the channels
+     * @param fileValidators the validators of the files
+     * @param maxEntries the maximum number of cached files, that are not in use
+     * @param maxAge the time, for which the validators of a file are used without a {@code stat}
+     * @param idleTimeout the time, after which a channel, that is not in use, is closed
+     */
+    public OpenFileCache(FileChannelFactory channelFactory, FileValidators fileValidators, int maxEntries,
+                         Duration maxAge, Duration idleTimeout) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries cannot be less than 0, but was " + maxEntries);
+        }
+        this.channelFactory = channelFactory;
+        this.fileValidators = fileValidators;
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = maxAge.toNanos();
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        if (maxEntries > 0 && idleTimeoutNanos > 0) {
+            final long period = Math.max(1L, idleTimeout.toMillis() / 2);
+            this.idleTask = Schedulers.parallel().schedulePeriodically(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.idleTask = null;
+        }
+    }
+
+    /**
+     * An open file, that is used by one request. The handle must be closed, when the request is complete;
+     * closing it more than once has no effect.
+     */
+    public final class Handle implements Closeable {
+
+        private final Entry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * The validators of the file, when it was opened or last checked.
+         * @return the validators
+         */
+        public FileValidators.Validator validator() {
+            return entry.validator;
+        }
+
+        /**
+         * The shared channel of the file, that is opened on the first call. It must not be closed by the caller.
+         * @return the open channel
+         * @throws IOException if the file cannot be opened
+         */
+        public AsynchronousFileChannel channel() throws IOException {
+            return entry.channel(channelFactory);
+        }
+
+        /**
+         * The shared channel of the file for memory mappings, that is opened on the first call. It must not be
+         * closed by the caller; the mappings stay valid, when the cache closes it.
+         * @return the open channel
+         * @throws IOException if the file cannot be opened
+         */
+        public FileChannel mappableChannel() throws IOException {
+            return entry.mappableChannel(channelFactory);
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+
+    /**
+     * Acquire a handle of a file.
+     * @param file the file
+     * @return the handle, that must be closed by the caller
+     * @throws java.nio.file.NoSuchFileException if the file does not exist or is not a regular file
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public Handle acquire(Path file) throws IOException {
+
+        final Entry cached;
+        final long generation;
+        synchronized (entries) {
+            cached = entries.get(file);
+            if (cached != null && System.nanoTime() - cached.validatedAt <= maxAgeNanos) {
+                METRICS.hits.incrementAndGet();
+                return reference(cached);
+            }
+            generation = invalidations;
+        }
+        final FileValidators.Validator validator = fileValidators.validator(file);
+        final List<Entry> closed = new ArrayList<>();
+        try {
+            synchronized (entries) {
+                if (cached != null && entries.get(file) == cached && generation == invalidations) {
+                    if (cached.validator.equals(validator)) {
+                        cached.validatedAt = System.nanoTime();
+                        METRICS.hits.incrementAndGet();
+                        return reference(cached);
+                    }
+                    retire(file, closed);
+                }
+                METRICS.misses.incrementAndGet();
+                final Entry entry = new Entry(file, validator);
+                // an upload, that replaced the file after it was checked, must not leave the old version cached
+                if (maxEntries > 0 && generation == invalidations && !entries.containsKey(file)) {
+                    entries.put(file, entry);
+                    entry.cached = true;
+                    METRICS.entries.incrementAndGet();
+                    evict(closed);
+                }
+                return reference(entry);
+            }
+        } finally {
+            closed.forEach(Entry::close);
+        }
+    }
+
+    /**
+     * Remove the entry of a file, e.g. because it is replaced by an upload. Its channel is closed, when the last
+     * handle of it is closed.
+     * @param file the file
+     */
+    public void invalidate(Path file) {
+
+        final List<Entry> closed = new ArrayList<>();
+        synchronized (entries) {
+            invalidations++;
+            retire(file, closed);
+        }
+        closed.forEach(Entry::close);
+    }
+
+    /**
+     * Close the channels, that were not used for {@code idleTimeout}. This is called periodically.
+     */
+    public void closeIdle() {
+
+        final long now = System.nanoTime();
+        final List<Entry> closed = new ArrayList<>();
+        synchronized (entries) {
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                if (entry.references == 0 && now - entry.releasedAt >= idleTimeoutNanos) {
+                    iterator.remove();
+                    uncache(entry, closed);
+                }
+            }
+        }
+        closed.forEach(Entry::close);
+    }
+
+    /**
+     * The number of cached files.
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Stop closing idle channels and remove all entries. The channels, that are in use, are closed with their
+     * last handle.
+     */
+    @Override
+    public void close() {
+
+        if (idleTask != null) {
+            idleTask.dispose();
+        }
+        final List<Entry> closed = new ArrayList<>();
+        synchronized (entries) {
+            entries.values().forEach(entry -> uncache(entry, closed));
+            entries.clear();
+        }
+        closed.forEach(Entry::close);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    // guarded by entries
+    private Handle reference(Entry entry) {
+        entry.references++;
+        return new Handle(entry);
+    }
+
+    private void release(Entry entry) {
+
+        final boolean close;
+        synchronized (entries) {
+            entry.references--;
+            entry.releasedAt = System.nanoTime();
+            close = entry.references == 0 && (!entry.cached || idleTimeoutNanos <= 0);
+            if (close && entry.cached) {
+                entries.remove(entry.file, entry);
+                entry.cached = false;
+                METRICS.entries.decrementAndGet();
+            }
+        }
+        if (close) {
+            entry.close();
+        }
+    }
+
+    // guarded by entries
+    private void retire(Path file, List<Entry> closed) {
+
+        final Entry entry = entries.remove(file);
+        if (entry != null) {
+            uncache(entry, closed);
+        }
+    }
+
+    // guarded by entries
+    private void evict(List<Entry> closed) {
+
+        final Iterator<Entry> victims = entries.values().iterator();
+        int removable = entries.size() - maxEntries;
+        while (removable > 0 && victims.hasNext()) {
+            final Entry victim = victims.next();
+            if (victim.references == 0) {
+                victims.remove();
+                uncache(victim, closed);
+                METRICS.evictions.incrementAndGet();
+                removable--;
+            }
+        }
+    }
+
+    // guarded by entries; the entry is already removed from the map
+    private static void uncache(Entry entry, List<Entry> closed) {
+
+        entry.cached = false;
+        METRICS.entries.decrementAndGet();
+        if (entry.references == 0) {
+            closed.add(entry);
+        }
+    }
+
+    /*
+     * A version of a file with its channel, which is opened lazily and closed only once.
+     */
+    private static final class Entry {
+
+        private final Path file;
+        private final FileValidators.Validator validator;
+        // guarded by the entries of the cache
+        private long validatedAt = System.nanoTime();
+        private long releasedAt;
+        private int references;
+        private boolean cached;
+        // guarded by this
+        private AsynchronousFileChannel channel;
+        private FileChannel mappableChannel;
+        private boolean closed;
+
+        private Entry(Path file, FileValidators.Validator validator) {
+            this.file = file;
+            this.validator = validator;
+        }
+
+        private synchronized AsynchronousFileChannel channel(FileChannelFactory channelFactory) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (channel == null) {
+                channel = channelFactory.openForRead(file);
+                METRICS.open.incrementAndGet();
+            }
+            return channel;
+        }
+
+        private synchronized FileChannel mappableChannel(FileChannelFactory channelFactory) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (mappableChannel == null) {
+                mappableChannel = channelFactory.openForMapping(file);
+                METRICS.open.incrementAndGet();
+            }
+            return mappableChannel;
+        }
+
+        private synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            close(channel);
+            close(mappableChannel);
+        }
+
+        // guarded by this
+        private void close(Channel openChannel) {
+            if (openChannel != null) {
+                METRICS.open.decrementAndGet();
+                try {
+                    openChannel.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot close {}", file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The metrics of all caches, see {@link OpenFileCache}.
+     */
+    public static final class Metrics implements MeterBinder {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong open = new AtomicLong();
+
+        private Metrics() {
+        }
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+
+            FunctionCounter.builder("streaming.download.handles.hits", hits, AtomicLong::get)
+                .description("Requests of files, whose validators and channel were cached")
+                .register(registry);
+            FunctionCounter.builder("streaming.download.handles.misses", misses, AtomicLong::get)
+                .description("Requests of files, that had to be checked by a stat")
+                .register(registry);
+            FunctionCounter.builder("streaming.download.handles.evictions", evictions, AtomicLong::get)
+                .description("Cached files, that were evicted for other files")
+                .register(registry);
+            Gauge.builder("streaming.download.handles.entries", entries, AtomicLong::get)
+                .description("Number of cached files")
+                .register(registry);
+            Gauge.builder("streaming.download.handles.open", open, AtomicLong::get)
+                .description("Number of channels, that are opened by the cache")
+                .register(registry);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.giraone.streaming.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.WritePendingException;
+import java.util.ArrayDeque;
+import java.util.Objects;
+
+/**
+ * Writes buffers one after the other to an {@link AsynchronousFileChannel} with up to {@code maxInFlight} positional
+ * writes in flight. The position of a buffer is assigned, when its write is started, so the writes may complete
+ * in any order. A buffer is always written completely - short writes are continued - before its handler is called.
+ * <p>
+ * The writer tracks the completions and reports the contiguous high-water mark {@link #getWrittenPosition()}:
+ * all bytes before it are written, even if later writes completed before earlier ones. After {@link #force(boolean)}
+ * the bytes before {@link #getDurablePosition()} are on the storage device, e.g. to resume an upload from there.
+ * <p>
+ * An instance is thread-safe. A write, that failed, stops the high-water mark at its position.
+ */
+public final class PipelinedFileWriter {
+
+    private final AsynchronousFileChannel channel;
+    private final int maxInFlight;
+
+    // the started writes in the order of their positions; guarded by this
+    private final ArrayDeque<Write<?>> writes;
+    // guarded by this
+    private long nextPosition;
+    private int inFlight;
+
+    private volatile long writtenPosition;
+    private volatile long durablePosition;
+
+    /**
+     * Create a writer.
+     * @param channel the channel opened for writing
+     * @param position the position of the first written byte
+     * @param maxInFlight the maximum number of writes in flight (at least 1)
+     */
+    public PipelinedFileWriter(AsynchronousFileChannel channel, long position, int maxInFlight) {
+        if (position < 0) {
+            throw new IllegalArgumentException("'position' cannot be less than 0.");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, but was " + maxInFlight);
+        }
+        this.channel = Objects.requireNonNull(channel);
+        this.maxInFlight = maxInFlight;
+        this.writes = new ArrayDeque<>(maxInFlight);
+        this.nextPosition = position;
+        this.writtenPosition = position;
+        this.durablePosition = position;
+    }
+
+    /**
+     * Start writing all remaining bytes of a buffer at the next position.
+     * @param src the buffer, that must not be changed until the handler is called
+     * @param attachment the object to attach to the I/O operation
+     * @param handler the handler, which is called with the number of written bytes, when the whole buffer is written
+     * @param <A> the type of the attachment
+     * @throws WritePendingException if {@code maxInFlight} writes are in flight
+     * @throws java.nio.channels.NonWritableChannelException if the channel was not opened for writing
+     */
+    public synchronized <A> void write(ByteBuffer src, A attachment, CompletionHandler<Integer, ? super A> handler) {
+
+        if (inFlight >= maxInFlight) {
+            throw new WritePendingException();
+        }
+        final Write<A> write = new Write<>(src, nextPosition, attachment, handler);
+        nextPosition = write.end;
+        inFlight++;
+        writes.add(write);
+        try {
+            // the completion may run on this thread, before write() returns - the lock is reentrant
+            channel.write(src, write.position, null, write);
+        } catch (RuntimeException e) {
+            // the write was not started and is the last one, as this thread holds the lock
+            writes.removeLast();
+            inFlight--;
+            nextPosition = write.position;
+            throw e;
+        }
+    }
+
+    /**
+     * The position, at which the next write starts.
+     * @return the position in the file
+     */
+    public synchronized long getPosition() {
+        return nextPosition;
+    }
+
+    /**
+     * The number of writes, that are started, but not yet completed.
+     * @return the writes in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * The contiguous high-water mark: all bytes from the first position up to this position are written.
+     * @return the position in the file
+     */
+    public long getWrittenPosition() {
+        return writtenPosition;
+    }
+
+    /**
+     * The contiguous high-water mark of the last {@link #force(boolean)}: all bytes from the first position up to
+     * this position are on the storage device.
+     * @return the position in the file
+     */
+    public long getDurablePosition() {
+        return durablePosition;
+    }
+
+    /**
+     * Force the written bytes to the storage device.
+     * @param metaData true, if the file's metadata must be written, too
+     * @return the new durable position
+     * @throws IOException if the channel cannot be forced
+     */
+    public long force(boolean metaData) throws IOException {
+        // only the bytes, that were written before the force started, are durable
+        final long written = writtenPosition;
+        channel.force(metaData);
+        synchronized (this) {
+            durablePosition = Math.max(durablePosition, written);
+            return durablePosition;
+        }
+    }
+
+    /*
+     * Moves the position on without writing, e.g. after a read, that shares the position. No write must be in flight.
+     */
+    synchronized void advance(long bytes) {
+        if (inFlight > 0) {
+            throw new WritePendingException();
+        }
+        nextPosition += bytes;
+        if (writes.isEmpty()) {
+            writtenPosition = nextPosition;
+        }
+    }
+
+    private void completed(Write<?> write) {
+        synchronized (this) {
+            inFlight--;
+            write.done = true;
+            Write<?> head;
+            while ((head = writes.peek()) != null && head.done && head.error == null) {
+                writes.poll();
+                writtenPosition = head.end;
+            }
+        }
+        write.notifyHandler();
+    }
+
+    /*
+     * One buffer at a fixed position, that may need several calls of AsynchronousFileChannel.write.
+     */
+    private final class Write<A> implements CompletionHandler<Integer, Void> {
+
+        final ByteBuffer src;
+        final long position;
+        final long end;
+        final int start;
+        final A attachment;
+        final CompletionHandler<Integer, ? super A> handler;
+        // guarded by the writer
+        boolean done;
+        Throwable error;
+
+        Write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            this.src = src;
+            this.position = position;
+            this.start = src.position();
+            this.end = position + src.remaining();
+            this.attachment = attachment;
+            this.handler = handler;
+        }
+
+        @Override
+        public void completed(Integer bytesWritten, Void ignored) {
+            if (src.hasRemaining()) {
+                // a short write - continue writing the rest of the buffer
+                try {
+                    channel.write(src, position + src.position() - start, null, this);
+                } catch (RuntimeException e) {
+                    failed(e, null);
+                }
+                return;
+            }
+            PipelinedFileWriter.this.completed(this);
+        }
+
+        @Override
+        public void failed(Throwable exc, Void ignored) {
+            synchronized (PipelinedFileWriter.this) {
+                error = exc;
+            }
+            PipelinedFileWriter.this.completed(this);
+        }
+
+        void notifyHandler() {
+            if (error != null) {
+                handler.failed(error, attachment);
+            } else {
+                handler.completed(src.position() - start, attachment);
+            }
+        }
+    }
+}
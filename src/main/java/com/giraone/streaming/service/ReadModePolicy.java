@@ -0,0 +1,67 @@
+package com.giraone.streaming.service;
+
+/**
+ * Decides, whether a file region is read by {@link FluxUtil#readFilePooled} (positional reads of an
+ * {@link java.nio.channels.AsynchronousFileChannel}) or by {@link FluxUtil#readFileMapped} (slices of a memory mapping).
+ * <p>
+ * A mapping saves the copy into a buffer and the thread pool hop of each read, so it is faster for a region in the
+ * page cache - about twice as fast from 256 KB on, see {@code FileReadBenchmark}. Small regions are not mapped, because
+ * the gain is small and each mapping holds an address range until the garbage collector releases it, while the number
+ * of mappings of a process is limited ({@code vm.max_map_count} on Linux). The pages of a file, that is not in the
+ * page cache, are loaded on {@code boundedElastic} before a window is sent, so the thread, that writes the response,
+ * does not wait for page faults.
+ */
+public interface ReadModePolicy {
+
+    /**
+     * The region length in bytes, from which {@link #DEFAULT} maps a file.
+     */
+    long DEFAULT_MAPPED_THRESHOLD = 256 * 1024;
+
+    /**
+     * A policy, that maps regions of at least {@link #DEFAULT_MAPPED_THRESHOLD} bytes.
+     */
+    ReadModePolicy DEFAULT = threshold(DEFAULT_MAPPED_THRESHOLD);
+
+    /**
+     * How a file region is read.
+     */
+    enum Mode {
+        /**
+         * Positional reads into pooled buffers.
+         */
+        ASYNC,
+        /**
+         * Read-only slices of a memory mapping.
+         */
+        MAPPED
+    }
+
+    /**
+     * A policy using always the same mode.
+     * @param mode the mode
+     * @return the policy
+     */
+    static ReadModePolicy fixed(Mode mode) {
+        return length -> mode;
+    }
+
+    /**
+     * A policy, that maps all regions of at least {@code mappedThreshold} bytes.
+     * @param mappedThreshold the minimum length of a mapped region in bytes; 0 maps always
+     * @return the policy
+     */
+    static ReadModePolicy threshold(long mappedThreshold) {
+        if (mappedThreshold < 0) {
+            throw new IllegalArgumentException("mappedThreshold cannot be less than 0, but was " + mappedThreshold);
+        }
+        return length -> length >= mappedThreshold ? Mode.MAPPED : Mode.ASYNC;
+    }
+
+    /**
+     * The mode of reading a region.
+     * @param length the number of bytes, that will be read
+     * @return the mode
+     */
+    Mode mode(long length);
+}
@@ -0,0 +1,175 @@
+package com.giraone.streaming.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A channel opened by a {@link FileChannelFactory}, that counts the open channels and detects channels, that are
+ * garbage collected without being closed. Such a channel is closed by the {@link Cleaner}, so its file descriptor is
+ * not lost, and reported with the stack trace of the code, that opened it, if this was recorded.
+ */
+final class TrackedFileChannel extends AsynchronousFileChannel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrackedFileChannel.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+    // with LeakDetection.SIMPLE, the allocation site of one in SAMPLING_INTERVAL channels is recorded
+    private static final int SAMPLING_INTERVAL = 128;
+
+    private final AsynchronousFileChannel delegate;
+    private final State state;
+    // null, when leaks are not detected
+    private final Cleaner.Cleanable cleanable;
+
+    TrackedFileChannel(AsynchronousFileChannel delegate, Path file, AtomicLong open,
+                       FileChannelFactory.LeakDetection leakDetection) {
+        this.delegate = delegate;
+        this.state = new State(delegate, file, open, leakDetection);
+        open.incrementAndGet();
+        this.cleanable = state.register(this, leakDetection);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        delegate.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        delegate.force(metaData);
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, A attachment,
+                         CompletionHandler<FileLock, ? super A> handler) {
+        delegate.lock(position, size, shared, attachment, handler);
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment,
+                         CompletionHandler<Integer, ? super A> handler) {
+        delegate.read(dst, position, attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        return delegate.read(dst, position);
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment,
+                          CompletionHandler<Integer, ? super A> handler) {
+        delegate.write(src, position, attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src, long position) {
+        return delegate.write(src, position);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        state.close(cleanable);
+        delegate.close();
+    }
+
+    /*
+     * The cleanup action, that must not refer to the channel, that it cleans up. It is shared with
+     * TrackedMappableChannel.
+     */
+    static final class State implements Runnable {
+
+        private final Channel delegate;
+        private final Path file;
+        private final AtomicLong open;
+        // null, when the allocation site was not recorded
+        private final Throwable allocationSite;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        State(Channel delegate, Path file, AtomicLong open, FileChannelFactory.LeakDetection leakDetection) {
+            this(delegate, file, open, recordSite(leakDetection) ? new Throwable("Channel of " + file + " opened") : null);
+        }
+
+        private State(Channel delegate, Path file, AtomicLong open, Throwable allocationSite) {
+            this.delegate = delegate;
+            this.file = file;
+            this.open = open;
+            this.allocationSite = allocationSite;
+        }
+
+        // null, when leaks are not detected
+        Cleaner.Cleanable register(Object channel, FileChannelFactory.LeakDetection leakDetection) {
+            return leakDetection != FileChannelFactory.LeakDetection.DISABLED ? CLEANER.register(channel, this) : null;
+        }
+
+        void close(Cleaner.Cleanable cleanable) {
+            if (closed.compareAndSet(false, true)) {
+                open.decrementAndGet();
+                if (cleanable != null) {
+                    // the state sees, that it is closed, so this only deregisters it
+                    cleanable.clean();
+                }
+            }
+        }
+
+        private static boolean recordSite(FileChannelFactory.LeakDetection leakDetection) {
+            return leakDetection == FileChannelFactory.LeakDetection.PARANOID
+                || leakDetection == FileChannelFactory.LeakDetection.SIMPLE
+                && ThreadLocalRandom.current().nextInt(SAMPLING_INTERVAL) == 0;
+        }
+
+        @Override
+        public void run() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            open.decrementAndGet();
+            FileChannelFactory.METRICS.leaked.incrementAndGet();
+            if (allocationSite != null) {
+                LOGGER.error("Channel of {} was garbage collected without being closed! It was opened at:", file,
+                    allocationSite);
+            } else {
+                LOGGER.error("Channel of {} was garbage collected without being closed! Set streaming.io.leak-detection"
+                    + " to paranoid to log, where it was opened.", file);
+            }
+            try {
+                delegate.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.giraone.streaming.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor for the blocking file system calls of an {@link java.nio.channels.AsynchronousFileChannel}, that is
+ * {@link java.nio.channels.AsynchronousFileChannel#open(java.nio.file.Path, java.util.Set, ExecutorService,
+ * java.nio.file.attribute.FileAttribute[]) opened} with it. On Linux, such a channel executes each read or write as a
+ * plain {@code pread} or {@code pwrite} on a thread of its executor, so all {@link FluxUtil} read and write methods
+ * work unchanged.
+ * <p>
+ * Each task runs on a new virtual thread (Java 21). At most {@code maxInFlight} tasks execute at the same time, the
+ * others wait as parked virtual threads. On Java 17, where there are no virtual threads, the tasks are executed by
+ * a pool of {@code maxInFlight} platform threads instead.
+ */
+public final class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final int maxInFlight;
+    private final Semaphore permits;
+
+    /**
+     * Create an executor.
+     * @param name the prefix of the thread names
+     * @param maxInFlight the maximum number of tasks, that execute at the same time
+     */
+    public VirtualThreadExecutor(String name, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, but was " + maxInFlight);
+        }
+        final ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor(name);
+        this.virtual = virtualThreads != null;
+        this.delegate = virtual ? virtualThreads : newPlatformThreadPool(name, maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+        if (!virtual) {
+            LOGGER.warn("Virtual threads need Java 21. Executor \"{}\" uses {} platform threads.", name, maxInFlight);
+        }
+    }
+
+    /**
+     * Whether the tasks run on virtual threads.
+     * @return false, if a pool of platform threads is used
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * The maximum number of tasks, that execute at the same time.
+     * @return the limit
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * The number of tasks, that execute at the moment.
+     * @return the number of tasks in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * The number of tasks, that wait for one of the tasks in flight to finish.
+     * @return an estimate of the waiting tasks
+     */
+    public int getWaiting() {
+        // the platform threads of the fallback never wait for a permit, the tasks wait in the queue of the pool
+        return virtual ? permits.getQueueLength() : ((ThreadPoolExecutor) delegate).getQueue().size();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(() -> {
+            // blocks a parked virtual thread, not a platform thread
+            permits.acquireUninterruptibly();
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name, 0).factory()) by reflection, so the code
+     * compiles for Java 17. Returns null, if virtual threads are not available.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            // Java 17 or the preview API of Java 19 and 20 without --enable-preview
+            return null;
+        }
+    }
+
+    static ThreadPoolExecutor newPlatformThreadPool(String name, int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
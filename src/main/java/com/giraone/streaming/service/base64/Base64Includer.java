@@ -1,27 +1,31 @@
 package com.giraone.streaming.service.base64;
 
-import com.giraone.streaming.service.pipe.ByteArrayOutputPart;
-import com.giraone.streaming.service.pipe.PipeFluxByteBuffer;
+import com.giraone.streaming.service.DirectBufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * A class to include base64 encoded content in JSON or XML structures.
- * A maximum of 9 tokens can be replaced by base64 encoded data streams.
  * Basically this is a kind of "templating", where variables are replaced by large data, that
- * is BASE64 encoded and fetched from a Flux<ByteBuffer>> stream.
+ * is encoded and fetched from a Flux<ByteBuffer>> stream. There is no limit on the number of placeholders.
+ * Besides the numbered tokens {@link #CONTENT_TAG_1} to {@link #CONTENT_TAG_9} there are named placeholders,
+ * each with its own encoding, e.g. {@code <base64:photo>}, {@code <base64url:thumbnail>}, {@code <hex:checksum>},
+ * {@code <raw:fragment>} or {@code <json:description>} - see {@link CompiledTemplate}.
  */
 public class Base64Includer {
 
@@ -37,34 +41,130 @@ public class Base64Includer {
     public static final String CONTENT_TAG_8 = "<base64-8>";
     public static final String CONTENT_TAG_9 = "<base64-9>";
 
-    private final List<Flux<ByteBuffer>> streams;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final CompiledTemplate template;
+    private final IncludePrefetch prefetch;
 
     /**
      * Create new instance using the given template string (JSON, XML), that can contain
-     * exactly one replacement token given by {@link ::CONTENT_TAG_1}
+     * replacement tokens given by {@link #CONTENT_TAG_1} to {@link #CONTENT_TAG_9} or named placeholders.
+     * The parsed template is taken from {@link CompiledTemplateCache#DEFAULT}.
      * @param json a JSON string
      */
     public Base64Includer(String json) {
-        this.streams = splitToFlux(json);
+        this(CompiledTemplateCache.DEFAULT.get(json));
+    }
+
+    /**
+     * Create new instance using an already parsed template.
+     * @param template the compiled template
+     */
+    public Base64Includer(CompiledTemplate template) {
+        this(template, IncludePrefetch.NONE);
+    }
+
+    /**
+     * Create new instance using an already parsed template, where the next includes are subscribed,
+     * while the current one is streamed.
+     * @param template the compiled template
+     * @param prefetch the number of includes and bytes, that are prefetched
+     */
+    public Base64Includer(CompiledTemplate template, IncludePrefetch prefetch) {
+        this.template = template;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * The exact number of bytes of the output.
+     * @param contentSizes the unencoded size of each content in bytes; index 0 is the content of {@link #CONTENT_TAG_1}
+     * @return the value for a {@code Content-Length} header or -1, if the size is not known in advance
+     */
+    public long contentLength(long... contentSizes) {
+        return template.contentLength(contentSizes);
+    }
+
+    /**
+     * The exact number of bytes of the output.
+     * @param contentSizes the unencoded size of the content in bytes for each placeholder name
+     * @return the value for a {@code Content-Length} header or -1, if the size is not known in advance
+     */
+    public long contentLength(ToLongFunction<String> contentSizes) {
+        return template.contentLength(contentSizes);
     }
 
     /**
      * Stream the stored JSON or XML structure together with the Base64 encoded content.
-     * @param contents List of contents to be base64 encoded and included in the output.
+     * @param contents List of contents to be base64 encoded and included in the output; index 0 is the content
+     *                 of {@link #CONTENT_TAG_1}
      * @return an output Flux of ByteBuffers
      */
     public Flux<ByteBuffer> streamWithContent(List<Flux<ByteBuffer>> contents) {
 
-        LOGGER.info("Stream {} contents with {} stream parts", contents.size(), streams.size());
-        final List<Flux<ByteBuffer>> publishers = new ArrayList<>();
-        int index = 0;
-        for (; index < streams.size() - 1; index++) {
-            publishers.add(streams.get(index));
-            publishers.add(base64Encode(contents.get(index)));
-        }
-        publishers.add(streams.get(index));
-        LOGGER.info("#Publishers = {}", publishers.size());
-        return Flux.concat(publishers);
+        return streamWithContent(name -> contents.get(CompiledTemplate.contentIndex(name, contents.size())));
+    }
+
+    /**
+     * Stream the stored JSON or XML structure together with the encoded content.
+     * @param contents the content for each placeholder name
+     * @return an output Flux of ByteBuffers
+     */
+    public Flux<ByteBuffer> streamWithContent(Map<String, Flux<ByteBuffer>> contents) {
+
+        return streamWithContent(contents::get);
+    }
+
+    /**
+     * Stream the stored JSON or XML structure together with the encoded content.
+     * The content for a placeholder is requested not before the output reaches the placeholder, so e.g. files
+     * are opened one after the other, even for templates with hundreds of placeholders.
+     * A content, that is used by more than one placeholder, is subscribed once for each of them.
+     * @param contents a function, that returns the content for a placeholder name
+     * @return an output Flux of ByteBuffers
+     */
+    public Flux<ByteBuffer> streamWithContent(Function<String, Flux<ByteBuffer>> contents) {
+
+        return streamWithEncodedContent((name, encoding) -> encode(content(contents, name), encoding),
+            ByteBuffer::wrap, ByteBuffer::remaining, byteBuffer -> { });
+    }
+
+    /**
+     * Stream the stored JSON or XML structure together with the Base64 encoded content, where the content is
+     * read into pooled buffers, e.g. by {@link com.giraone.streaming.service.FluxUtil#readFilePooled}.
+     * The input buffers are released, as soon as they are encoded. The encoded output is written into pooled
+     * buffers, that must be released by the subscriber - which is done by the HTTP layer.
+     * @param contents List of contents to be base64 encoded and included in the output; index 0 is the content
+     *                 of {@link #CONTENT_TAG_1}
+     * @return an output Flux of DataBuffers
+     */
+    public Flux<DataBuffer> streamWithPooledContent(List<Flux<DataBuffer>> contents) {
+
+        return streamWithPooledContent(name -> contents.get(CompiledTemplate.contentIndex(name, contents.size())));
+    }
+
+    /**
+     * Stream the stored JSON or XML structure together with the encoded content, where the content is
+     * read into pooled buffers - see {@link #streamWithPooledContent(List)}.
+     * The content for a placeholder is requested not before the output reaches the placeholder.
+     * @param contents a function, that returns the content for a placeholder name
+     * @return an output Flux of DataBuffers
+     */
+    public Flux<DataBuffer> streamWithPooledContent(Function<String, Flux<DataBuffer>> contents) {
+
+        return streamWithPooledEncodedContent((name, encoding) -> encodePooled(content(contents, name), encoding));
+    }
+
+    /**
+     * Stream the stored JSON or XML structure together with content, that is already encoded by the caller,
+     * e.g. by a {@link ParallelBase64Encoder}. The output buffers must be released by the subscriber.
+     * The content for a placeholder is requested not before the output reaches the placeholder.
+     * @param encodedContents a function, that returns the content for a placeholder name encoded with the given encoding
+     * @return an output Flux of DataBuffers
+     */
+    public Flux<DataBuffer> streamWithPooledEncodedContent(BiFunction<String, ContentEncoding, Flux<DataBuffer>> encodedContents) {
+
+        return streamWithEncodedContent(encodedContents,
+            DefaultDataBufferFactory.sharedInstance::wrap, DataBuffer::readableByteCount, DataBufferUtils::release);
     }
 
     /**
@@ -74,80 +174,124 @@ public class Base64Includer {
      */
     public static Flux<ByteBuffer> base64Encode(Flux<ByteBuffer> inputFlux) {
 
-        // Amount of remaining part (0-2)
-        final AtomicInteger lastOverhead = new AtomicInteger(0);
-        // The last 0-2 bytes of the remaining part
-        final byte[] lastOverheadBuffer = new byte[2];
-        final Function<byte[], ByteArrayOutputPart> fct = bytes -> {
-            final byte[] combinedInput = Base64Includer.buildArray(lastOverheadBuffer, lastOverhead.get(), bytes);
-            final int overheadSize = combinedInput.length % 3;
-            final int rawTargetByteSizeWithoutPadding = combinedInput.length * 4 / 3;
-            final byte[] result = new byte[rawTargetByteSizeWithoutPadding + 4];
-            Base64.getEncoder().encode(combinedInput, result);
-            lastOverhead.set(overheadSize);
-            System.arraycopy(combinedInput, combinedInput.length - overheadSize, lastOverheadBuffer, 0, overheadSize);
-            return new ByteArrayOutputPart(result, 0, rawTargetByteSizeWithoutPadding - (rawTargetByteSizeWithoutPadding % 4));
-        };
-        final Supplier<ByteArrayOutputPart> finalFct = () -> {
-            final byte[] input = new String(lastOverheadBuffer, 0, lastOverhead.get(), StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
-            final byte[] result = new byte[4];
-            final int encoded = Base64.getEncoder().encode(input, result);
-            return new ByteArrayOutputPart(result, 0, encoded);
-        };
-        return PipeFluxByteBuffer.pipe(inputFlux, fct, finalFct);
+        return encode(inputFlux, StandardContentEncoding.BASE64);
+    }
+
+    /**
+     * Encode a given Flux of ByteBuffers
+     * @param inputFlux the input Flux of ByteBuffers
+     * @param encoding the encoding
+     * @return an output Flux of ByteBuffers
+     */
+    public static Flux<ByteBuffer> encode(Flux<ByteBuffer> inputFlux, ContentEncoding encoding) {
+
+        return Flux.defer(() -> {
+            final ContentEncoder encoder = encoding.newEncoder();
+            return inputFlux
+                .map(input -> {
+                    final ByteBuffer output = ByteBuffer.allocate(encoder.encodedLength(input));
+                    encoder.encode(input, output);
+                    return output.flip();
+                })
+                .concatWith(Mono.fromSupplier(() -> {
+                    final ByteBuffer output = ByteBuffer.allocate(encoder.finalLength());
+                    encoder.finish(output);
+                    return output.flip();
+                }));
+        });
+    }
+
+    /**
+     * Base64 encode a given Flux of pooled DataBuffers. Each input buffer is released, after it was encoded.
+     * The output is written into buffers of the {@link DirectBufferPool#DEFAULT}, that must be released by the subscriber.
+     * @param inputFlux the input Flux of DataBuffers
+     * @return an output Flux of DataBuffers
+     */
+    public static Flux<DataBuffer> base64EncodePooled(Flux<DataBuffer> inputFlux) {
+
+        return encodePooled(inputFlux, StandardContentEncoding.BASE64);
+    }
+
+    /**
+     * Encode a given Flux of pooled DataBuffers - see {@link #base64EncodePooled(Flux)}.
+     * @param inputFlux the input Flux of DataBuffers
+     * @param encoding the encoding
+     * @return an output Flux of DataBuffers
+     */
+    public static Flux<DataBuffer> encodePooled(Flux<DataBuffer> inputFlux, ContentEncoding encoding) {
+
+        return Flux.defer(() -> {
+            final ContentEncoder encoder = encoding.newEncoder();
+            return inputFlux
+                .<DataBuffer>handle((input, sink) -> {
+                    try (DataBuffer.ByteBufferIterator iterator = input.readableByteBuffers()) {
+                        ByteBuffer byteBuffer = iterator.hasNext() ? iterator.next() : EMPTY;
+                        if (iterator.hasNext()) {
+                            // a composite buffer is copied, because the encoded length depends on all of its parts
+                            byteBuffer = ByteBuffer.allocate(input.readableByteCount());
+                            input.toByteBuffer(byteBuffer);
+                        }
+                        final int length = encoder.encodedLength(byteBuffer);
+                        if (length == 0) {
+                            // e.g. less than 3 bytes are kept in the Base64 encoder
+                            encoder.encode(byteBuffer, EMPTY);
+                            return;
+                        }
+                        final ByteBuffer output = DirectBufferPool.DEFAULT.acquire(length);
+                        encoder.encode(byteBuffer, output);
+                        sink.next(DirectBufferPool.DEFAULT.toDataBuffer(output.flip()));
+                    } finally {
+                        DataBufferUtils.release(input);
+                    }
+                })
+                // release input buffers, that are read, but dropped on cancellation
+                .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                .concatWith(Mono.fromSupplier(() -> {
+                    final ByteBuffer output = ByteBuffer.allocate(encoder.finalLength());
+                    encoder.finish(output);
+                    return DefaultDataBufferFactory.sharedInstance.wrap(output.flip());
+                }));
+        });
     }
 
     public static int calculateBase64Size(int inputSize) {
-        int ret = 4 * inputSize / 3;
-        if (inputSize % 3 != 0) {
-            ret += 4 - (inputSize % 3);
-        }
-        return ret;
+        return (int) calculateBase64Size((long) inputSize);
+    }
+
+    public static long calculateBase64Size(long inputSize) {
+        return (inputSize + 2) / 3 * 4;
     }
 
     //------------------------------------------------------------------------------------------------------------------
 
-    static byte[] buildArray(byte[] buffer1, int length1, byte[] buffer2) {
-        if (length1 == 0) {
-            return buffer2;
-        }
-        final byte[] newBuffer = new byte[length1 + buffer2.length];
-        System.arraycopy(buffer1, 0, newBuffer, 0, length1);
-        System.arraycopy(buffer2, 0, newBuffer, length1, buffer2.length);
-        return newBuffer;
-    }
-
-    static ByteArrayOutputPart encode(byte[] input) {
-        final byte[] output = new byte[input.length * 4 / 3 + 3];
-        final int encoded = Base64.getEncoder().encode(input, output);
-        return new ByteArrayOutputPart(output, 0, encoded);
-    }
-
-    static List<Flux<ByteBuffer>> splitToFlux(String input) {
-
-        final List<String> strings = split(input);
-        return strings.stream()
-            .map(s -> Flux.just(ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8))))
-            .toList();
-    }
-
-    static List<String> split(String input) {
-
-        String s = input;
-        List<String> ret = new ArrayList<>();
-        for (int index = 1; index <= 9; index++) {
-            final String tag = "^(.*)(<base64-" + index + ">)(.*)$";
-            final Pattern pattern = Pattern.compile(tag);
-            final Matcher matcher = pattern.matcher(s);
-            if (matcher.matches()) {
-                final String before = s.substring(0, matcher.start(2));
-                ret.add(before);
-                s = s.substring(matcher.start(3));
-            } else {
-                ret.add(s);
-                break;
-            }
+    private <T> Flux<T> streamWithEncodedContent(BiFunction<String, ContentEncoding, Flux<T>> encodedContents,
+                                                 Function<byte[], T> wrapper, ToIntFunction<T> sizeOf,
+                                                 Consumer<T> release) {
+
+        LOGGER.info("Stream {} placeholders with {} contents", template.placeholderCount(), template.names().size());
+        // each include is the text segment before a placeholder together with the encoded content
+        final List<Flux<T>> includes = new ArrayList<>();
+        int index = 0;
+        for (; index < template.placeholderCount(); index++) {
+            final CompiledTemplate.Placeholder placeholder = template.placeholder(index);
+            includes.add(segment(index, wrapper)
+                .concatWith(Flux.defer(() -> encodedContents.apply(placeholder.name(), placeholder.encoding()))));
         }
-        return ret;
+        includes.add(segment(index, wrapper));
+        return prefetch.concat(includes, sizeOf, release);
+    }
+
+    private static <T> Flux<T> content(Function<String, Flux<T>> contents, String name) {
+        return Flux.defer(() -> {
+            final Flux<T> content = contents.apply(name);
+            return content != null ? content
+                : Flux.error(new IllegalArgumentException("No content for placeholder \"" + name + "\"!"));
+        });
+    }
+
+    private <T> Flux<T> segment(int index, Function<byte[], T> wrapper) {
+        final byte[] segment = template.segment(index);
+        // a new wrapper per subscription, because the wrapper has a read position
+        return Flux.defer(() -> Flux.just(wrapper.apply(segment)));
     }
 }
@@ -0,0 +1,326 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.FileChannelFactory;
+import com.giraone.streaming.service.FileCommitter;
+import com.giraone.streaming.service.FileValidators;
+import com.giraone.streaming.service.FluxUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * A disk cache of the Base64 encoded form of included files. The encoded content of a file is stored in a sidecar
+ * file {@code <version>.b64}, so it is named by the {@link FileValidators.Validator#version() version} of the source
+ * file - its size, modification time and identity - and a changed source file is never served from an old sidecar.
+ * All names of an uploaded content share one sidecar, because they are hard links to the same blob. A sidecar is
+ * built in the background, when a file is included for the first time; until it is complete, the file is encoded on
+ * the fly. The sidecars use at most {@code maxBytes} of disk space; the least
+ * recently used ones are deleted to make room for new ones.
+ * <p>
+ * Only {@link StandardContentEncoding#BASE64} (with padding, without line breaks) is cached. The version does not
+ * depend on the digests, that are registered in memory, so the existing sidecars are reused after a restart in the
+ * order of their modification time. An instance is thread-safe.
+ */
+public final class Base64SidecarCache {
+
+    /**
+     * The directory of the sidecar files within the directory of the source files.
+     */
+    public static final String SIDECAR_DIRECTORY = ".base64";
+
+    /**
+     * The file name extension of the sidecar files.
+     */
+    public static final String SIDECAR_EXTENSION = ".b64";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Base64SidecarCache.class);
+    // the number of source files, whose sidecar is deleted at once, when they are changed; the sidecars of the
+    // other ones are evicted later, because they are not used any more
+    private static final int MAX_SOURCES = 10000;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final FileChannelFactory fileChannelFactory;
+    // the sidecars are only renamed, so they need not be forced to disk
+    private final FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.NONE, Duration.ZERO, 1);
+
+    // key -> size of the sidecar in LRU order; guarded by itself
+    private final LinkedHashMap<String, Long> sidecars = new LinkedHashMap<>(16, 0.75f, true);
+    // key -> sources, whose last opened version it is; the reverse of sources; guarded by sidecars
+    private final Map<String, Set<Path>> names = new HashMap<>();
+    // source -> key of its last opened version in LRU order; guarded by sidecars
+    private final LinkedHashMap<Path, String> sources = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, String> eldest) {
+            if (size() <= MAX_SOURCES) {
+                return false;
+            }
+            unlink(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+    private final Set<String> building = new HashSet<>();
+    private long diskBytes;
+
+    /**
+     * Create a cache and register the sidecars, that exist in the directory.
+     * @param directory the directory of the sidecar files, which is created, if needed
+     * @param maxBytes the maximum number of bytes of all sidecar files
+     * @throws IOException if the directory cannot be created or read
+     */
+    public Base64SidecarCache(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, FileChannelFactory.DEFAULT);
+    }
+
+    /**
+     * Create a cache, that opens the source and sidecar files with the given factory, and register the sidecars,
+     * that exist in the directory.
+     * @param directory the directory of the sidecar files, which is created, if needed
+     * @param maxBytes the maximum number of bytes of all sidecar files
+     * @param fileChannelFactory the factory of the channels
+     * @throws IOException if the directory cannot be created or read
+     */
+    public Base64SidecarCache(Path directory, long maxBytes, FileChannelFactory fileChannelFactory) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.fileChannelFactory = fileChannelFactory;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted(Comparator.comparing(Base64SidecarCache::lastModifiedTime)).toList()) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    // left over by a build, that was interrupted
+                    FileCommitter.deleteTempFile(file);
+                } else if (name.endsWith(SIDECAR_EXTENSION)) {
+                    final long size = Files.size(file);
+                    sidecars.put(name.substring(0, name.length() - SIDECAR_EXTENSION.length()), size);
+                    diskBytes += size;
+                }
+            }
+        }
+        synchronized (sidecars) {
+            evict();
+        }
+    }
+
+    /**
+     * Open the sidecar of a file. If there is none, a background build of it is started.
+     * @param source the source file
+     * @param validator the current validators of the source file
+     * @return a channel, that reads the encoded content from position 0 and must be closed by the caller,
+     * or null, if the file must be encoded on the fly
+     */
+    public AsynchronousFileChannel open(Path source, FileValidators.Validator validator) {
+
+        final String key = key(validator);
+        final long encodedSize = Base64Includer.calculateBase64Size(validator.size());
+        synchronized (sidecars) {
+            if (encodedSize > maxBytes) {
+                return null;
+            }
+            final String previous = sources.put(source, key);
+            if (!key.equals(previous)) {
+                names.computeIfAbsent(key, k -> new HashSet<>()).add(source);
+                if (previous != null && unlink(source, previous)) {
+                    // the source file was changed and no other name refers to the old version
+                    remove(previous);
+                }
+            }
+            if (sidecars.get(key) == null) {
+                if (building.add(key)) {
+                    build(source, key, encodedSize).subscribe();
+                }
+                return null;
+            }
+        }
+        try {
+            // the sidecar may be evicted, while it is read - an open file stays readable
+            return fileChannelFactory.openForRead(sidecarPath(key));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot open Base64 sidecar of \"{}\"! {}", source, e.getMessage());
+            synchronized (sidecars) {
+                remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The number of bytes of all sidecar files.
+     * @return the used disk space
+     */
+    public long getDiskBytes() {
+        synchronized (sidecars) {
+            return diskBytes;
+        }
+    }
+
+    /**
+     * The number of sidecar files.
+     * @return the number of complete sidecars
+     */
+    public int size() {
+        synchronized (sidecars) {
+            return sidecars.size();
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Encodes the source into a temporary file, that is renamed, when it is complete and has the expected size.
+     */
+    Mono<Void> build(Path source, String key, long encodedSize) {
+
+        final Path sidecar = sidecarPath(key);
+        return Mono.defer(() -> {
+                final Path temp;
+                final AsynchronousFileChannel out;
+                try {
+                    temp = FileCommitter.createTempFile(sidecar);
+                } catch (IOException e) {
+                    return Mono.error(e);
+                }
+                try {
+                    out = fileChannelFactory.openForWrite(temp, StandardOpenOption.WRITE);
+                } catch (IOException e) {
+                    FileCommitter.deleteTempFile(temp);
+                    return Mono.error(e);
+                }
+                // the source is closed, when it is read; the output is closed by the committer
+                final Flux<ByteBuffer> encoded = fileChannelFactory.read(source,
+                    in -> Base64Includer.base64Encode(FluxUtil.readFile(in)));
+                return FluxUtil.writeFile(encoded, out)
+                    .then(Mono.fromCallable(() -> out.size()))
+                    .onErrorResume(e -> {
+                        close(out, temp);
+                        FileCommitter.deleteTempFile(temp);
+                        return Mono.error(e);
+                    })
+                    .flatMap(size -> {
+                        if (size != encodedSize) {
+                            close(out, temp);
+                            FileCommitter.deleteTempFile(temp);
+                            return Mono.error(
+                                new IOException("Source " + source + " was changed, while it was encoded."));
+                        }
+                        return fileCommitter.commit(out, temp, sidecar);
+                    });
+            })
+            .doOnSuccess(voidIgnore -> {
+                synchronized (sidecars) {
+                    sidecars.put(key, encodedSize);
+                    diskBytes += encodedSize;
+                    evict();
+                }
+                LOGGER.info("Base64 sidecar of \"{}\" with {} bytes built.", source, encodedSize);
+            })
+            .doOnError(e -> LOGGER.warn("Cannot build Base64 sidecar of \"{}\"! {}", source, e.getMessage()))
+            .onErrorResume(e -> Mono.empty())
+            .doFinally(signalType -> {
+                synchronized (sidecars) {
+                    building.remove(key);
+                    if (!sidecars.containsKey(key)) {
+                        forget(key);
+                    }
+                }
+            });
+    }
+
+    // guarded by sidecars
+    private void evict() {
+
+        final Iterator<Map.Entry<String, Long>> eldest = sidecars.entrySet().iterator();
+        while (diskBytes > maxBytes && eldest.hasNext()) {
+            final Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.getValue();
+            delete(entry.getKey());
+            forget(entry.getKey());
+        }
+    }
+
+    // guarded by sidecars
+    private void remove(String key) {
+
+        final Long size = sidecars.remove(key);
+        if (size != null) {
+            diskBytes -= size;
+            delete(key);
+        }
+        forget(key);
+    }
+
+    // guarded by sidecars; the sources of a version without sidecar need not be known
+    private void forget(String key) {
+        final Set<Path> forgotten = names.remove(key);
+        if (forgotten != null) {
+            forgotten.forEach(sources::remove);
+        }
+    }
+
+    // guarded by sidecars; returns true, if no other source refers to the version
+    private boolean unlink(Path source, String key) {
+        final Set<Path> linked = names.get(key);
+        if (linked == null) {
+            return true;
+        }
+        linked.remove(source);
+        if (linked.isEmpty()) {
+            names.remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    private void delete(String key) {
+        try {
+            Files.deleteIfExists(sidecarPath(key));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete Base64 sidecar {}! {}", key, e.getMessage());
+        }
+    }
+
+    private Path sidecarPath(String key) {
+        return directory.resolve(key + SIDECAR_EXTENSION);
+    }
+
+    // a version consists of hex digits and '-', so it is a valid file name
+    private static String key(FileValidators.Validator validator) {
+        return validator.version();
+    }
+
+    private static FileTime lastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0L);
+        }
+    }
+
+    private static void close(AsynchronousFileChannel channel, Path path) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * A stateful Base64 decoder (RFC 4648) for content, that arrives in chunks - the inverse of {@link Base64StreamEncoder}.
+ * Line breaks, tabs and spaces are ignored, so MIME style content is decoded, too. The padding at the end is optional.
+ * <p>
+ * The characters are collected in a scratch array of a fixed size, that is decoded by
+ * {@link Base64.Decoder#decode(byte[], byte[])} when it is full. So the output of a chunk lags behind by less than
+ * one block and is written by {@link #finish(ByteBuffer)}.
+ * <p>
+ * An instance is used for one stream only and is not thread-safe.
+ */
+public final class Base64StreamDecoder {
+
+    // a multiple of 4
+    private static final int BLOCK_SIZE = 4096;
+    private static final int DECODED_BLOCK_SIZE = BLOCK_SIZE / 4 * 3;
+    private static final byte PAD = '=';
+
+    private final Base64.Decoder blockDecoder;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private final byte[] decoded = new byte[DECODED_BLOCK_SIZE];
+    // the number of characters in block
+    private int blockCount;
+    // true, after a block with padding was decoded - no more characters are allowed
+    private boolean padded;
+
+    /**
+     * Create a decoder for the standard alphabet.
+     */
+    public Base64StreamDecoder() {
+        this(false);
+    }
+
+    /**
+     * Create a decoder.
+     * @param urlSafe true for the URL and filename safe alphabet, false for the standard alphabet
+     */
+    public Base64StreamDecoder(boolean urlSafe) {
+        this.blockDecoder = urlSafe ? Base64.getUrlDecoder() : Base64.getDecoder();
+    }
+
+    /**
+     * The maximum number of bytes, that {@link #decode(ByteBuffer, ByteBuffer)} will write for the next input.
+     * @param inputBytes the number of remaining bytes of the next input
+     * @return the maximum number of output bytes
+     */
+    public int maxDecodedLength(int inputBytes) {
+        return (blockCount + inputBytes) / BLOCK_SIZE * DECODED_BLOCK_SIZE;
+    }
+
+    /**
+     * The maximum number of bytes, that {@link #finish(ByteBuffer)} will write.
+     * @return the maximum number of output bytes
+     */
+    public int maxFinalLength() {
+        return (blockCount + 3) / 4 * 3;
+    }
+
+    /**
+     * Decode all remaining characters of the input.
+     * @param input the input chunk with Base64 characters
+     * @param output the output with at least {@link #maxDecodedLength(int)} bytes remaining
+     * @throws IllegalArgumentException if the input is not valid Base64
+     */
+    public void decode(ByteBuffer input, ByteBuffer output) {
+
+        while (input.hasRemaining()) {
+            final byte c = input.get();
+            if (c == '\r' || c == '\n' || c == ' ' || c == '\t') {
+                continue;
+            }
+            if (padded) {
+                throw new IllegalArgumentException("Base64 character after padding!");
+            }
+            block[blockCount++] = c;
+            if (blockCount == BLOCK_SIZE) {
+                padded = c == PAD;
+                output.put(decoded, 0, blockDecoder.decode(block, decoded));
+                blockCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Decode the characters kept from the last chunks and reset the decoder.
+     * @param output the output with at least {@link #maxFinalLength()} bytes remaining
+     * @throws IllegalArgumentException if the input is not valid Base64, e.g. a single character is left
+     */
+    public void finish(ByteBuffer output) {
+
+        if (blockCount > 0) {
+            output.put(blockDecoder.decode(Arrays.copyOf(block, blockCount)));
+        }
+        blockCount = 0;
+        padded = false;
+    }
+}
@@ -0,0 +1,216 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * A stateful Base64 encoder (RFC 4648, no line breaks) for content, that arrives in chunks.
+ * Both the standard alphabet with padding and the URL and filename safe alphabet without padding are supported.
+ * The chunks are encoded from the input {@link ByteBuffer} into an output {@link ByteBuffer} (heap or direct).
+ * The 0-2 bytes at the end of a chunk, that do not fill a 3 byte group, are kept in the encoder and are
+ * prepended to the next chunk, so no per chunk arrays are needed.
+ * <p>
+ * The bytes are copied in blocks of fixed sizes through scratch arrays, that are allocated once per encoder.
+ * Full blocks are encoded by {@link Base64.Encoder#encode(byte[], byte[])}, which is a JVM intrinsic (AVX-512)
+ * on current x86 CPUs and much faster, than any loop in Java. Only the last 0-93 bytes of a chunk are encoded
+ * by a table lookup.
+ * <p>
+ * An instance is used for one stream only and is not thread-safe.
+ */
+public final class Base64StreamEncoder implements ContentEncoder {
+
+    private static final byte[] STANDARD_ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] URL_ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+    // two Base64 characters for each 12 bit value, so a 3 byte group needs 2 lookups
+    private static final short[] STANDARD_ALPHABET_12 = alphabet12(STANDARD_ALPHABET);
+    private static final short[] URL_ALPHABET_12 = alphabet12(URL_ALPHABET);
+    private static final byte PAD = '=';
+    // descending multiples of 3; the smallest is also used for the rest, that is not a full block
+    private static final int[] BLOCK_SIZES = {6144, 768, 96};
+
+    private final byte[] alphabet;
+    private final short[] alphabet12;
+    // only full 3 byte groups are passed to the JDK encoder, so its padding setting does not matter
+    private final Base64.Encoder blockEncoder;
+    private final boolean padding;
+    // the 0-2 bytes, that did not fill a 3 byte group, right aligned
+    private int leftover;
+    private int leftoverCount;
+    // input and output scratch array for each block size, allocated on first use
+    private final byte[][] scratchIn = new byte[BLOCK_SIZES.length][];
+    private final byte[][] scratchOut = new byte[BLOCK_SIZES.length][];
+
+    /**
+     * Create an encoder for the standard alphabet with padding.
+     */
+    public Base64StreamEncoder() {
+        this(false);
+    }
+
+    /**
+     * Create an encoder.
+     * @param urlSafe true for the URL and filename safe alphabet without padding,
+     *                false for the standard alphabet with padding
+     */
+    public Base64StreamEncoder(boolean urlSafe) {
+        this.alphabet = urlSafe ? URL_ALPHABET : STANDARD_ALPHABET;
+        this.alphabet12 = urlSafe ? URL_ALPHABET_12 : STANDARD_ALPHABET_12;
+        this.blockEncoder = urlSafe ? Base64.getUrlEncoder() : Base64.getEncoder();
+        this.padding = !urlSafe;
+    }
+
+    /**
+     * The number of bytes, that {@link #encode(ByteBuffer, ByteBuffer)} will write for the next input.
+     * @param inputBytes the number of remaining bytes of the next input
+     * @return the number of output bytes
+     */
+    public int encodedLength(int inputBytes) {
+        return (leftoverCount + inputBytes) / 3 * 4;
+    }
+
+    @Override
+    public int encodedLength(ByteBuffer input) {
+        return encodedLength(input.remaining());
+    }
+
+    /**
+     * The number of bytes, that {@link #finish(ByteBuffer)} will write.
+     * @return 0 or 4 with padding, 0, 2 or 3 without padding
+     */
+    @Override
+    public int finalLength() {
+        if (leftoverCount == 0) {
+            return 0;
+        }
+        return padding ? 4 : leftoverCount + 1;
+    }
+
+    /**
+     * The number of bytes of a whole encoded content.
+     * @param contentSize the unencoded size of the content in bytes
+     * @param padding true, if the last group is padded with {@code =}
+     * @return the size of the encoded content
+     */
+    public static long encodedLength(long contentSize, boolean padding) {
+        return padding ? (contentSize + 2) / 3 * 4 : (contentSize * 4 + 2) / 3;
+    }
+
+    /**
+     * Encode all remaining bytes of the input. The input position is moved to its limit and the output position is
+     * moved by {@link #encodedLength(int)} bytes, that was calculated before the call.
+     * @param input the input chunk
+     * @param output the output with at least {@link #encodedLength(int)} bytes remaining
+     */
+    @Override
+    public void encode(ByteBuffer input, ByteBuffer output) {
+
+        if (leftoverCount > 0) {
+            // complete the group started by the last chunk
+            while (leftoverCount < 3 && input.hasRemaining()) {
+                leftover = leftover << 8 | (input.get() & 0xff);
+                leftoverCount++;
+            }
+            if (leftoverCount < 3) {
+                return;
+            }
+            output.put(alphabet[leftover >>> 18 & 0x3f]);
+            output.put(alphabet[leftover >>> 12 & 0x3f]);
+            output.put(alphabet[leftover >>> 6 & 0x3f]);
+            output.put(alphabet[leftover & 0x3f]);
+            leftover = 0;
+            leftoverCount = 0;
+        }
+        int groupBytes = input.remaining() / 3 * 3;
+        for (int i = 0; i < BLOCK_SIZES.length; i++) {
+            final int blockSize = BLOCK_SIZES[i];
+            while (groupBytes >= blockSize) {
+                final byte[] in = scratchIn(i);
+                final byte[] out = scratchOut(i);
+                input.get(in);
+                blockEncoder.encode(in, out);
+                output.put(out);
+                groupBytes -= blockSize;
+            }
+        }
+        if (groupBytes > 0) {
+            final int last = BLOCK_SIZES.length - 1;
+            final byte[] in = scratchIn(last);
+            final byte[] out = scratchOut(last);
+            input.get(in, 0, groupBytes);
+            encodeGroups(in, groupBytes, out);
+            output.put(out, 0, groupBytes / 3 * 4);
+        }
+        while (input.hasRemaining()) {
+            leftover = leftover << 8 | (input.get() & 0xff);
+            leftoverCount++;
+        }
+    }
+
+    /**
+     * Write the last (padded) group for the bytes kept from the last chunk and reset the encoder.
+     * @param output the output with at least {@link #finalLength()} bytes remaining
+     */
+    @Override
+    public void finish(ByteBuffer output) {
+
+        if (leftoverCount == 1) {
+            output.put(alphabet[leftover >>> 2 & 0x3f]);
+            output.put(alphabet[leftover << 4 & 0x3f]);
+            if (padding) {
+                output.put(PAD);
+                output.put(PAD);
+            }
+        } else if (leftoverCount == 2) {
+            output.put(alphabet[leftover >>> 10 & 0x3f]);
+            output.put(alphabet[leftover >>> 4 & 0x3f]);
+            output.put(alphabet[leftover << 2 & 0x3f]);
+            if (padding) {
+                output.put(PAD);
+            }
+        }
+        leftover = 0;
+        leftoverCount = 0;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private byte[] scratchIn(int index) {
+        if (scratchIn[index] == null) {
+            scratchIn[index] = new byte[BLOCK_SIZES[index]];
+        }
+        return scratchIn[index];
+    }
+
+    private byte[] scratchOut(int index) {
+        if (scratchOut[index] == null) {
+            scratchOut[index] = new byte[BLOCK_SIZES[index] / 3 * 4];
+        }
+        return scratchOut[index];
+    }
+
+    /*
+     * Encode the first n bytes (a multiple of 3) of src.
+     */
+    private void encodeGroups(byte[] src, int n, byte[] dst) {
+        for (int sp = 0, dp = 0; sp < n; sp += 3, dp += 4) {
+            final int bits = (src[sp] & 0xff) << 16 | (src[sp + 1] & 0xff) << 8 | (src[sp + 2] & 0xff);
+            final short high = alphabet12[bits >>> 12];
+            final short low = alphabet12[bits & 0xfff];
+            dst[dp] = (byte) (high >> 8);
+            dst[dp + 1] = (byte) high;
+            dst[dp + 2] = (byte) (low >> 8);
+            dst[dp + 3] = (byte) low;
+        }
+    }
+
+    private static short[] alphabet12(byte[] alphabet) {
+        final short[] ret = new short[4096];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = (short) (alphabet[i >>> 6] << 8 | alphabet[i & 0x3f]);
+        }
+        return ret;
+    }
+}
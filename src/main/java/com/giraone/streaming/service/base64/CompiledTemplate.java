@@ -0,0 +1,275 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A JSON or XML template, that is parsed once into UTF-8 encoded text segments and placeholders.
+ * There is no limit on the number of placeholders. A placeholder is either
+ * <ul>
+ *     <li>a named placeholder {@code <encoding:name>}, e.g. {@code <base64:photo>} or {@code <hex:checksum>},
+ *     where the encoding is one of the {@link StandardContentEncoding StandardContentEncodings} or
+ *     defined by the caller and the name consists of letters, digits, {@code _}, {@code -} and {@code .}, or</li>
+ *     <li>one of the numbered tags {@link Base64Includer#CONTENT_TAG_1} to {@link Base64Includer#CONTENT_TAG_9},
+ *     which is the same as {@code <base64:1>} to {@code <base64:9>}.</li>
+ * </ul>
+ * The placeholders may appear in any order and a name may be used more than once; the name selects the content.
+ * Text in angle brackets, that is not a placeholder, e.g. an XML element, is kept as it is.
+ * <p>
+ * Templates, that are compiled by {@link #compileXml(String)}, are well-formed XML documents instead, whose
+ * placeholders are in the namespace {@link #XML_INCLUDE_NAMESPACE} - with any prefix, e.g. {@code inc}:
+ * <ul>
+ *     <li>in element text the empty element {@code <inc:content name="photo" encoding="base64" wrap="76"/>},
+ *     that is replaced by the content - the encoding defaults to {@code base64} and the optional {@code wrap}
+ *     breaks the output into lines of the given length like MIME, see {@link LineWrappingEncoding}, and</li>
+ *     <li>in attributes {@code inc:data="base64:photo"}, that is replaced by {@code data="..."} with the content.</li>
+ * </ul>
+ * <p>
+ * Instances are immutable and are shared between requests, see {@link CompiledTemplateCache}.
+ */
+public final class CompiledTemplate {
+
+    /**
+     * The namespace of the placeholders in XML templates.
+     */
+    public static final String XML_INCLUDE_NAMESPACE = "urn:giraone:streaming:include";
+
+    private static final String LEGACY_TAG_START = "base64-";
+
+    // n + 1 segments for n placeholders
+    private final List<byte[]> segments;
+    private final List<Placeholder> placeholders;
+    private final List<String> names;
+    private final long segmentsLength;
+    private final String fingerprint;
+
+    CompiledTemplate(List<byte[]> segments, List<Placeholder> placeholders) {
+        this.segments = segments;
+        this.placeholders = placeholders;
+        this.names = List.copyOf(new LinkedHashSet<>(placeholders.stream().map(Placeholder::name).toList()));
+        this.segmentsLength = segments.stream().mapToLong(segment -> segment.length).sum();
+        this.fingerprint = fingerprint(segments, placeholders);
+    }
+
+    /**
+     * Parse a template with the {@link StandardContentEncoding StandardContentEncodings}.
+     * @param template the JSON or XML template with placeholders
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String template) {
+        return compile(template, StandardContentEncoding::forPrefix);
+    }
+
+    /**
+     * Parse a template.
+     * @param template the JSON or XML template with placeholders
+     * @param encodings the encoding for a placeholder prefix or null, if the prefix is not an encoding
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String template, Function<String, ContentEncoding> encodings) {
+
+        final List<byte[]> segments = new ArrayList<>();
+        final List<Placeholder> placeholders = new ArrayList<>();
+        int start = 0;
+        int tagStart = template.indexOf('<');
+        while (tagStart >= 0) {
+            final int tagEnd = template.indexOf('>', tagStart + 1);
+            if (tagEnd < 0) {
+                break;
+            }
+            final Placeholder placeholder = parsePlaceholder(template.substring(tagStart + 1, tagEnd), encodings);
+            if (placeholder != null) {
+                segments.add(template.substring(start, tagStart).getBytes(StandardCharsets.UTF_8));
+                placeholders.add(placeholder);
+                start = tagEnd + 1;
+                tagStart = template.indexOf('<', start);
+            } else {
+                tagStart = template.indexOf('<', tagStart + 1);
+            }
+        }
+        segments.add(template.substring(start).getBytes(StandardCharsets.UTF_8));
+        return new CompiledTemplate(List.copyOf(segments), List.copyOf(placeholders));
+    }
+
+    /**
+     * Parse an XML template with the {@link StandardContentEncoding StandardContentEncodings}.
+     * @param template the XML template with placeholders in the namespace {@link #XML_INCLUDE_NAMESPACE}
+     * @return the compiled template
+     * @throws IllegalArgumentException if a placeholder or the markup around it is malformed
+     */
+    public static CompiledTemplate compileXml(String template) {
+        return compileXml(template, StandardContentEncoding::forPrefix);
+    }
+
+    /**
+     * Parse an XML template.
+     * @param template the XML template with placeholders in the namespace {@link #XML_INCLUDE_NAMESPACE}
+     * @param encodings the encoding for an encoding name or null, if it is unknown
+     * @return the compiled template
+     * @throws IllegalArgumentException if a placeholder or the markup around it is malformed
+     */
+    public static CompiledTemplate compileXml(String template, Function<String, ContentEncoding> encodings) {
+        return new XmlTemplateParser(template, encodings).parse();
+    }
+
+    /**
+     * The number of placeholders in the template.
+     * @return the number of placeholders
+     */
+    public int placeholderCount() {
+        return placeholders.size();
+    }
+
+    /**
+     * The UTF-8 encoded text before the placeholder with the given position (or after the last one).
+     * @param index 0 to {@link #placeholderCount()}
+     * @return the UTF-8 bytes, that must not be modified
+     */
+    public byte[] segment(int index) {
+        return segments.get(index);
+    }
+
+    /**
+     * The placeholder with the given position.
+     * @param index 0 to {@link #placeholderCount()} - 1
+     * @return the placeholder
+     */
+    public Placeholder placeholder(int index) {
+        return placeholders.get(index);
+    }
+
+    /**
+     * The distinct names of all placeholders in the order of their first appearance.
+     * @return the names; {@code "1"} for {@link Base64Includer#CONTENT_TAG_1}
+     */
+    public List<String> names() {
+        return names;
+    }
+
+    /**
+     * The exact number of bytes of the output, e.g. for a {@code Content-Length} header.
+     * @param contentSizes the unencoded size of the content for each placeholder name
+     * @return the number of bytes of the text segments plus the encoded contents
+     * or -1, if an encoding does not allow to calculate the size in advance
+     */
+    public long contentLength(ToLongFunction<String> contentSizes) {
+
+        long ret = segmentsLength;
+        for (Placeholder placeholder : placeholders) {
+            final long encodedLength = placeholder.encoding().encodedLength(contentSizes.applyAsLong(placeholder.name()));
+            if (encodedLength < 0) {
+                return -1;
+            }
+            ret += encodedLength;
+        }
+        return ret;
+    }
+
+    /**
+     * The exact number of bytes of the output for a template with the numbered placeholders.
+     * @param contentSizes the unencoded size of each content in bytes; index 0 is the content of {@code <base64-1>}
+     * @return the number of bytes of the text segments plus the encoded contents
+     * or -1, if an encoding does not allow to calculate the size in advance
+     */
+    public long contentLength(long... contentSizes) {
+        return contentLength(name -> contentSizes[contentIndex(name, contentSizes.length)]);
+    }
+
+    /**
+     * A digest of the text segments and placeholders, that is the same for equal templates, e.g. as part of
+     * an entity tag of the output.
+     * @return the SHA-256 digest as lower case hex digits
+     */
+    public String fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * The index of the content for a numbered placeholder.
+     * @param name the placeholder name, e.g. {@code "1"}
+     * @param contentCount the number of available contents
+     * @return 0 for the name {@code "1"}
+     * @throws IllegalArgumentException if the name is not a number between 1 and the content count
+     */
+    public static int contentIndex(String name, int contentCount) {
+        final int index;
+        try {
+            index = Integer.parseInt(name) - 1;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Placeholder \"" + name + "\" is not numbered!");
+        }
+        if (index < 0 || index >= contentCount) {
+            throw new IllegalArgumentException("No content for placeholder \"" + name + "\"!");
+        }
+        return index;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static Placeholder parsePlaceholder(String tag, Function<String, ContentEncoding> encodings) {
+
+        if (tag.length() == LEGACY_TAG_START.length() + 1 && tag.startsWith(LEGACY_TAG_START)) {
+            final char number = tag.charAt(LEGACY_TAG_START.length());
+            return number >= '1' && number <= '9'
+                ? new Placeholder(String.valueOf(number), StandardContentEncoding.BASE64)
+                : null;
+        }
+        final int colon = tag.indexOf(':');
+        if (colon <= 0 || !isName(tag, colon + 1)) {
+            return null;
+        }
+        final ContentEncoding encoding = encodings.apply(tag.substring(0, colon));
+        return encoding != null ? new Placeholder(tag.substring(colon + 1), encoding) : null;
+    }
+
+    private static String fingerprint(List<byte[]> segments, List<Placeholder> placeholders) {
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            digest.update(segments.get(i));
+            if (i < placeholders.size()) {
+                final Placeholder placeholder = placeholders.get(i);
+                final String wrap = placeholder.encoding() instanceof LineWrappingEncoding lineWrapping
+                    ? "/" + lineWrapping.getLineLength() : "";
+                // the NUL bytes cannot appear in the UTF-8 text of a JSON or XML template
+                digest.update(("\0" + placeholder.encoding().prefix() + wrap + ":" + placeholder.name() + "\0")
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static boolean isName(String tag, int start) {
+        if (start == tag.length()) {
+            return false;
+        }
+        for (int i = start; i < tag.length(); i++) {
+            final char c = tag.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A placeholder of the template.
+     * @param name the name, that selects the content
+     * @param encoding the encoding of the content
+     */
+    public record Placeholder(String name, ContentEncoding encoding) {
+    }
+}
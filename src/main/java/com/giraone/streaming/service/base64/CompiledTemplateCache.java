@@ -0,0 +1,58 @@
+package com.giraone.streaming.service.base64;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of {@link CompiledTemplate CompiledTemplates} keyed by the template text.
+ * When the cache is full, the least recently used template is removed.
+ */
+public final class CompiledTemplateCache {
+
+    /**
+     * The cache used by {@link Base64Includer#Base64Includer(String)}.
+     */
+    public static final CompiledTemplateCache DEFAULT = new CompiledTemplateCache(256);
+
+    private final Map<String, CompiledTemplate> templates;
+
+    /**
+     * Create a cache.
+     * @param maxEntries the maximum number of cached templates
+     */
+    public CompiledTemplateCache(int maxEntries) {
+        this.templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Return the compiled template for the given text, compiling it on first use. The template is compiled outside
+     * the lock of the cache, so other templates are returned meanwhile; if it is compiled concurrently, the first
+     * compiled template is kept.
+     * @param template the JSON or XML template with placeholders
+     * @return the compiled template
+     */
+    public CompiledTemplate get(String template) {
+        synchronized (templates) {
+            final CompiledTemplate cached = templates.get(template);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final CompiledTemplate compiled = CompiledTemplate.compile(template);
+        synchronized (templates) {
+            final CompiledTemplate previous = templates.putIfAbsent(template, compiled);
+            return previous != null ? previous : compiled;
+        }
+    }
+
+    public int size() {
+        synchronized (templates) {
+            return templates.size();
+        }
+    }
+}
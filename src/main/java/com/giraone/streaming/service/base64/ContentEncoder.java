@@ -0,0 +1,44 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A stateful encoder for content, that arrives in chunks, e.g. {@link Base64StreamEncoder}.
+ * Each chunk is encoded from an input {@link ByteBuffer} into an output {@link ByteBuffer} (heap or direct).
+ * Bytes, that cannot be encoded before the next chunk arrives, are kept in the encoder and are written
+ * by {@link #finish(ByteBuffer)}.
+ * <p>
+ * An instance is used for one stream only and is not thread-safe. Instances are created by a {@link ContentEncoding}.
+ */
+public interface ContentEncoder {
+
+    /**
+     * The number of bytes, that {@link #encode(ByteBuffer, ByteBuffer)} will write for the given input.
+     * @param input the next input; its position is not changed
+     * @return the number of output bytes
+     */
+    int encodedLength(ByteBuffer input);
+
+    /**
+     * Encode all remaining bytes of the input. The input position is moved to its limit and the output position is
+     * moved by {@link #encodedLength(ByteBuffer)} bytes, that was calculated before the call.
+     * @param input the input chunk
+     * @param output the output with at least {@link #encodedLength(ByteBuffer)} bytes remaining
+     */
+    void encode(ByteBuffer input, ByteBuffer output);
+
+    /**
+     * The number of bytes, that {@link #finish(ByteBuffer)} will write.
+     * @return the number of output bytes
+     */
+    default int finalLength() {
+        return 0;
+    }
+
+    /**
+     * Write the bytes kept from the last chunk and reset the encoder.
+     * @param output the output with at least {@link #finalLength()} bytes remaining
+     */
+    default void finish(ByteBuffer output) {
+    }
+}
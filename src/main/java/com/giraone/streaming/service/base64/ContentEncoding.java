@@ -0,0 +1,28 @@
+package com.giraone.streaming.service.base64;
+
+/**
+ * An encoding, that is selected by the prefix of a named placeholder, e.g. {@code base64} in {@code <base64:photo>}.
+ * The standard encodings are defined in {@link StandardContentEncoding}; others can be passed to
+ * {@link CompiledTemplate#compile(String, java.util.function.Function)}.
+ */
+public interface ContentEncoding {
+
+    /**
+     * The name used as the prefix of a placeholder.
+     * @return a name without {@code :}, {@code <} and {@code >}
+     */
+    String prefix();
+
+    /**
+     * Create an encoder for one content stream.
+     * @return a new encoder
+     */
+    ContentEncoder newEncoder();
+
+    /**
+     * The number of bytes of the encoded content, if it depends only on the size of the content.
+     * @param contentSize the unencoded size of the content in bytes
+     * @return the size of the encoded content or -1, if it depends on the bytes of the content
+     */
+    long encodedLength(long contentSize);
+}
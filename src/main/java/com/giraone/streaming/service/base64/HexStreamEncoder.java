@@ -0,0 +1,34 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stateless encoder to lower case hexadecimal digits, two for each byte.
+ */
+public final class HexStreamEncoder implements ContentEncoder {
+
+    private static final byte[] DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // both digits of each byte value
+    private static final short[] DIGITS_8 = new short[256];
+
+    static {
+        for (int i = 0; i < DIGITS_8.length; i++) {
+            DIGITS_8[i] = (short) (DIGITS[i >>> 4] << 8 | DIGITS[i & 0x0f]);
+        }
+    }
+
+    @Override
+    public int encodedLength(ByteBuffer input) {
+        return input.remaining() * 2;
+    }
+
+    @Override
+    public void encode(ByteBuffer input, ByteBuffer output) {
+        while (input.hasRemaining()) {
+            final short digits = DIGITS_8[input.get() & 0xff];
+            output.put((byte) (digits >> 8));
+            output.put((byte) digits);
+        }
+    }
+}
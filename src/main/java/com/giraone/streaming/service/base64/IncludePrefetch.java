@@ -0,0 +1,350 @@
+package com.giraone.streaming.service.base64;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.Context;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Concatenation of the includes of a template, where the next includes are already subscribed - e.g. files are
+ * opened, read and encoded - while the current include is streamed. So the latency of the first read of an include
+ * is hidden behind the transfer of the includes before.
+ * <p>
+ * The buffers of the prefetched includes are held, until it is their turn. Their size is bounded per request:
+ * a prefetched include requests its next buffer only, while the prefetched buffers of all includes of the request
+ * are smaller than {@code maxBufferedBytes}. On top of that each prefetched include holds its reads in flight.
+ * The current include is not limited.
+ * <p>
+ * The metrics show the time, that was hidden (from the subscription of an include until it became the current one
+ * or until its first buffer was ready - whichever was first) and the bytes, that were prefetched per include.
+ */
+public final class IncludePrefetch {
+
+    /**
+     * No prefetch: the includes are subscribed one after the other like {@link Flux#concat(Iterable)}.
+     */
+    public static final IncludePrefetch NONE = new IncludePrefetch(0, 0L);
+
+    /**
+     * The metrics of all requests.
+     */
+    public static final Metrics METRICS = new Metrics();
+
+    // demand, that is queued by flatMapSequential per include; the real demand is controlled by the Gate
+    private static final int INNER_PREFETCH = 32;
+
+    private final int includesAhead;
+    private final long maxBufferedBytes;
+
+    /**
+     * Create a prefetch setting.
+     * @param includesAhead the number of includes, that are subscribed in addition to the current one; 0 for none
+     * @param maxBufferedBytes the maximum number of bytes, that are prefetched for one request
+     */
+    public IncludePrefetch(int includesAhead, long maxBufferedBytes) {
+        if (includesAhead < 0) {
+            throw new IllegalArgumentException("includesAhead must not be negative, but was " + includesAhead);
+        }
+        this.includesAhead = includesAhead;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Concatenate the includes.
+     * @param includes the includes in the order of the output
+     * @param sizeOf the number of bytes of a buffer
+     * @param release the function to release a buffer, that is dropped on cancel
+     * @param <T> the buffer type
+     * @return the concatenated Flux
+     */
+    public <T> Flux<T> concat(List<Flux<T>> includes, ToIntFunction<T> sizeOf, Consumer<T> release) {
+
+        if (includesAhead == 0 || includes.size() < 2) {
+            return Flux.concat(includes);
+        }
+        return Flux.defer(() -> {
+            final Prefetch<T> prefetch = new Prefetch<>(includes.size(), maxBufferedBytes, sizeOf, release);
+            return Flux.range(0, includes.size())
+                .flatMapSequential(index -> includes.get(index).transform(prefetch.gate(index)), includesAhead + 1, INNER_PREFETCH)
+                .doOnNext(prefetch::emitted)
+                .doFinally(signalType -> {
+                    if (signalType != SignalType.ON_COMPLETE) {
+                        prefetch.releaseAll();
+                    }
+                });
+        });
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * The state of one request. All fields of the gates are guarded by the Prefetch instance. Requests and signals
+     * are passed on outside the lock.
+     */
+    private static final class Prefetch<T> {
+
+        private final Gate<T>[] gates;
+        private final long maxBufferedBytes;
+        private final ToIntFunction<T> sizeOf;
+        private final WaitingBuffers<T> waitingBuffers;
+        // the index of the current include - the includes before have completed
+        private int head;
+
+        @SuppressWarnings("unchecked")
+        Prefetch(int count, long maxBufferedBytes, ToIntFunction<T> sizeOf, Consumer<T> release) {
+            this.gates = (Gate<T>[]) new Gate<?>[count];
+            this.maxBufferedBytes = maxBufferedBytes;
+            this.sizeOf = sizeOf;
+            this.waitingBuffers = new WaitingBuffers<>(release);
+        }
+
+        Function<? super Publisher<T>, ? extends Publisher<T>> gate(int index) {
+            return Operators.lift((scannable, actual) -> new Gate<>(this, index, actual));
+        }
+
+        synchronized void subscribed(Gate<T> gate) {
+            gates[gate.index] = gate;
+            gate.subscribedNanos = System.nanoTime();
+            if (gate.index == head) {
+                becameHead(gate);
+            }
+        }
+
+        void request(Gate<T> gate, long n) {
+            synchronized (this) {
+                gate.demand = Operators.addCap(gate.demand, n);
+            }
+            pump(gate);
+        }
+
+        /*
+         * Returns false, if the request was cancelled and the buffer was released.
+         */
+        boolean received(Gate<T> gate, T buffer) {
+            final int size;
+            synchronized (this) {
+                gate.outstanding = false;
+                if (gate.index == head) {
+                    size = 0;
+                } else {
+                    size = sizeOf.applyAsInt(buffer);
+                    gate.prefetchedBytes += size;
+                    if (gate.firstBufferNanos == 0L) {
+                        gate.firstBufferNanos = System.nanoTime();
+                    }
+                }
+            }
+            if (!waitingBuffers.add(buffer, size)) {
+                return false;
+            }
+            METRICS.buffered.addAndGet(size);
+            return true;
+        }
+
+        void completed(Gate<T> gate) {
+            Gate<T> newHead = null;
+            synchronized (this) {
+                gate.done = true;
+                if (gate.index == head) {
+                    head++;
+                    // the includes, that completed while prefetched, are skipped
+                    while (head < gates.length && gates[head] != null) {
+                        becameHead(gates[head]);
+                        if (!gates[head].done) {
+                            newHead = gates[head];
+                            break;
+                        }
+                        head++;
+                    }
+                }
+            }
+            if (newHead != null) {
+                pump(newHead);
+            }
+        }
+
+        void emitted(T buffer) {
+            final int size = waitingBuffers.remove(buffer);
+            if (size > 0) {
+                METRICS.buffered.addAndGet(-size);
+                pumpAll();
+            }
+        }
+
+        void releaseAll() {
+            METRICS.buffered.addAndGet(-waitingBuffers.bytes());
+            waitingBuffers.releaseAll();
+        }
+
+        private void pumpAll() {
+            final Gate<?>[] snapshot;
+            synchronized (this) {
+                snapshot = gates.clone();
+            }
+            for (Gate<?> gate : snapshot) {
+                if (gate != null && !gate.done) {
+                    pump(gate);
+                }
+            }
+        }
+
+        private void pump(Gate<?> gate) {
+            final long n;
+            synchronized (this) {
+                if (gate.done || gate.upstream == null) {
+                    return;
+                }
+                if (gate.index == head) {
+                    n = gate.demand;
+                    gate.demand = 0L;
+                } else if (!gate.outstanding && gate.demand > 0L && waitingBuffers.bytes() < maxBufferedBytes) {
+                    // one buffer at a time, so the limit is exceeded by one buffer at most
+                    n = 1L;
+                    gate.demand--;
+                    gate.outstanding = true;
+                } else {
+                    n = 0L;
+                }
+            }
+            if (n > 0L) {
+                gate.upstream.request(n);
+            }
+        }
+
+        private void becameHead(Gate<T> gate) {
+            if (gate.index == 0) {
+                return;
+            }
+            final long now = System.nanoTime();
+            final long hiddenUntil = gate.firstBufferNanos != 0L ? Math.min(gate.firstBufferNanos, now) : now;
+            METRICS.record(hiddenUntil - gate.subscribedNanos, gate.prefetchedBytes);
+        }
+    }
+
+    /*
+     * Passes the demand of flatMapSequential for one include on - fully for the current include, one by one within
+     * the limit of bytes for a prefetched include.
+     */
+    private static final class Gate<T> implements CoreSubscriber<T>, Subscription {
+
+        private final Prefetch<T> prefetch;
+        private final int index;
+        private final CoreSubscriber<? super T> actual;
+        private Subscription upstream;
+        // guarded by prefetch
+        private long demand;
+        private boolean outstanding;
+        private boolean done;
+        private long subscribedNanos;
+        private long firstBufferNanos;
+        private long prefetchedBytes;
+
+        Gate(Prefetch<T> prefetch, int index, CoreSubscriber<? super T> actual) {
+            this.prefetch = prefetch;
+            this.index = index;
+            this.actual = actual;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            synchronized (prefetch) {
+                upstream = subscription;
+            }
+            prefetch.subscribed(this);
+            actual.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T buffer) {
+            if (prefetch.received(this, buffer)) {
+                actual.onNext(buffer);
+                prefetch.pump(this);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            actual.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            actual.onComplete();
+            prefetch.completed(this);
+        }
+
+        @Override
+        public void request(long n) {
+            prefetch.request(this, n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+    }
+
+    /**
+     * The metrics of all requests, see {@link IncludePrefetch}.
+     */
+    public static final class Metrics implements MeterBinder {
+
+        private final AtomicLong buffered = new AtomicLong();
+        private volatile Timer hidden;
+        private volatile DistributionSummary prefetched;
+
+        private Metrics() {
+        }
+
+        public long getBufferedBytes() {
+            return buffered.get();
+        }
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+
+            hidden = Timer.builder("streaming.include.prefetch.hidden")
+                .description("Time of an include, that passed before it was its turn, limited by its first buffer")
+                .register(registry);
+            prefetched = DistributionSummary.builder("streaming.include.prefetch.bytes")
+                .description("Bytes of an include, that were prefetched, before it was its turn")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("streaming.include.prefetch.buffered", buffered, AtomicLong::get)
+                .description("Bytes of prefetched includes, that wait to be sent")
+                .baseUnit("bytes")
+                .register(registry);
+        }
+
+        private void record(long hiddenNanos, long prefetchedBytes) {
+            final Timer timer = hidden;
+            if (timer != null) {
+                timer.record(hiddenNanos, TimeUnit.NANOSECONDS);
+            }
+            final DistributionSummary summary = prefetched;
+            if (summary != null) {
+                summary.record(prefetchedBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package com.giraone.streaming.service.base64;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A parser for a JSON object, that arrives in chunks, e.g. an upload, where some string values are large
+ * Base64 attachments - the inverse of {@link Base64Includer}. The attachments are selected by JSON pointers
+ * (RFC 6901), e.g. {@code /photo} or {@code /documents/0/content}, where the segment {@code *} matches any
+ * attribute name or array index, e.g. {@code /documents/*}{@code /content}. Their values are decoded, while they
+ * arrive. The other values are parsed by Jackson's non-blocking parser ({@link ByteArrayFeeder}).
+ * <p>
+ * Jackson keeps a whole string value in memory, before it is returned. So the bytes of the attachments are cut out
+ * by a scan of the raw JSON, before they reach Jackson, which sees an empty string instead. The memory used is
+ * bounded by the chunk size and the size of the other attributes, but not by the size of the attachments.
+ * All attachments are extracted in one pass.
+ * <p>
+ * The output is a Flux of {@link Event Events} in the order of the JSON document.
+ */
+public final class JsonBase64UploadParser {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    // longer names are not compared to the selectors
+    private static final int MAX_NAME_LENGTH = 256;
+    private static final String WILDCARD = "*";
+    private static final ByteBuffer SLASH = ByteBuffer.wrap(new byte[]{'/'}).asReadOnlyBuffer();
+
+    // the segments of each selector
+    private final List<String[]> selectors;
+
+    /**
+     * Create a parser.
+     * @param pointers the JSON pointers of the Base64 attachments, e.g. {@code /photo}
+     * @throws IllegalArgumentException if a pointer is not valid, e.g. does not start with {@code /}
+     */
+    public JsonBase64UploadParser(Collection<String> pointers) {
+        this.selectors = pointers.stream().map(JsonBase64UploadParser::parsePointer).toList();
+    }
+
+    /**
+     * Parse a JSON object.
+     * @param body the chunks of the UTF-8 encoded JSON object
+     * @return the events; an error with an {@link IllegalArgumentException}, if the JSON or the Base64 content is invalid
+     */
+    public Flux<Event> parse(Flux<ByteBuffer> body) {
+
+        return Flux.defer(() -> {
+            final State state = new State();
+            return body
+                .concatMapIterable(state::feed)
+                .concatWith(Flux.defer(() -> Flux.fromIterable(state.end())));
+        });
+    }
+
+    /**
+     * An event of the JSON object.
+     */
+    public interface Event {
+    }
+
+    /**
+     * A top level attribute, that is not an attachment. Attachments within its value are null.
+     * @param name the attribute name
+     * @param value the value as String, Number, Boolean, Map, List or null
+     */
+    public record Attribute(String name, Object value) implements Event {
+    }
+
+    /**
+     * The start of an attachment, that is followed by its {@link AttachmentData} events.
+     * @param pointer the JSON pointer of the attachment, e.g. {@code /documents/0/content}
+     */
+    public record AttachmentStart(String pointer) implements Event {
+    }
+
+    /**
+     * The next decoded bytes of the current attachment.
+     * @param data the decoded bytes
+     */
+    public record AttachmentData(ByteBuffer data) implements Event {
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static String[] parsePointer(String pointer) {
+
+        if (!pointer.startsWith("/")) {
+            throw new IllegalArgumentException("JSON pointer \"" + pointer + "\" does not start with '/'!");
+        }
+        final String[] segments = pointer.substring(1).split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = segments[i].replace("~1", "/").replace("~0", "~");
+        }
+        return segments;
+    }
+
+    /*
+     * An open object or array of the raw scan.
+     */
+    private static final class Frame {
+        private boolean object;
+        // the current attribute name or null, if it is escaped or too long
+        private String name;
+        private int index;
+        private boolean expectKey;
+
+        String segment() {
+            return object ? name : Integer.toString(index);
+        }
+    }
+
+    /*
+     * The state of one parse.
+     */
+    private final class State {
+
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private List<Event> events = new ArrayList<>();
+        // the copy of the current chunk, that is fed to Jackson
+        private byte[] chunk = new byte[0];
+
+        // the raw scan, that finds the attachments
+        private final List<Frame> frames = new ArrayList<>();
+        private int depth;
+        private boolean inString;
+        private boolean escape;
+        private boolean inKey;
+        private boolean keyEscaped;
+        private final ByteArrayOutputStream key = new ByteArrayOutputStream();
+        // not null, while the value of an attachment is scanned
+        private Base64StreamDecoder decoder;
+        private boolean attachmentEscape;
+
+        // the tokens of Jackson
+        private boolean rootStarted;
+        private boolean rootEnded;
+        private String fieldName;
+        // true, while the closing quote of an attachment is fed to Jackson
+        private boolean attachmentEnd;
+        // not null, while an object or array value is collected
+        private TokenBuffer tokenBuffer;
+        private int tokenBufferDepth;
+
+        State() {
+            try {
+                this.parser = OBJECT_MAPPER.getFactory().createNonBlockingByteArrayParser();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot create non-blocking JSON parser!", e);
+            }
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        List<Event> feed(ByteBuffer buffer) {
+
+            final int length = buffer.remaining();
+            if (chunk.length < length) {
+                chunk = new byte[length];
+            }
+            buffer.get(chunk, 0, length);
+            // the start of the bytes, that are not yet fed to Jackson
+            int fed = 0;
+            int i = 0;
+            while (i < length) {
+                if (decoder != null) {
+                    final int end = scanAttachment(i, length);
+                    if (end == length) {
+                        fed = length;
+                        break;
+                    }
+                    finishAttachment();
+                    // the closing quote is fed alone to Jackson, that sees an empty string
+                    attachmentEnd = true;
+                    feedJackson(end, end + 1);
+                    attachmentEnd = false;
+                    fed = end + 1;
+                    i = end + 1;
+                    continue;
+                }
+                if (scan(chunk[i])) {
+                    // the opening quote of an attachment value
+                    feedJackson(fed, i + 1);
+                    fed = i + 1;
+                    events.add(new AttachmentStart(pointer()));
+                    decoder = new Base64StreamDecoder();
+                }
+                i++;
+            }
+            feedJackson(fed, length);
+            return takeEvents();
+        }
+
+        List<Event> end() {
+
+            feeder.endOfInput();
+            drain();
+            if (decoder != null || depth != 0 || !rootStarted) {
+                throw new IllegalArgumentException("Unexpected end of JSON!");
+            }
+            return takeEvents();
+        }
+
+        /*
+         * Returns true, if the byte starts the value of an attachment.
+         */
+        private boolean scan(byte b) {
+
+            if (inString) {
+                if (escape) {
+                    escape = false;
+                } else if (b == '\\') {
+                    escape = true;
+                    keyEscaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                    if (inKey) {
+                        inKey = false;
+                        // escaped names are not unescaped, so they never match
+                        frame().name = !keyEscaped && key.size() <= MAX_NAME_LENGTH
+                            ? key.toString(StandardCharsets.UTF_8)
+                            : null;
+                    }
+                    return false;
+                }
+                if (inKey && key.size() <= MAX_NAME_LENGTH) {
+                    key.write(b);
+                }
+                return false;
+            }
+            switch (b) {
+                case '"' -> {
+                    if (depth > 0 && frame().object && frame().expectKey) {
+                        frame().expectKey = false;
+                        inString = true;
+                        inKey = true;
+                        keyEscaped = false;
+                        key.reset();
+                    } else if (isSelected()) {
+                        return true;
+                    } else {
+                        inString = true;
+                    }
+                }
+                case '{', '[' -> {
+                    final Frame frame = depth < frames.size() ? frames.get(depth) : newFrame();
+                    frame.object = b == '{';
+                    frame.name = null;
+                    frame.index = 0;
+                    frame.expectKey = frame.object;
+                    depth++;
+                }
+                case '}', ']' -> depth--;
+                case ',' -> {
+                    if (depth > 0) {
+                        final Frame frame = frame();
+                        if (frame.object) {
+                            frame.expectKey = true;
+                        } else {
+                            frame.index++;
+                        }
+                    }
+                }
+                default -> {
+                    // whitespace, ':' and the characters of numbers and literals
+                }
+            }
+            return false;
+        }
+
+        private Frame newFrame() {
+            final Frame frame = new Frame();
+            frames.add(frame);
+            return frame;
+        }
+
+        private Frame frame() {
+            return frames.get(depth - 1);
+        }
+
+        private boolean isSelected() {
+
+            for (String[] selector : selectors) {
+                if (selector.length != depth) {
+                    continue;
+                }
+                boolean matches = true;
+                for (int i = 0; i < depth && matches; i++) {
+                    final String segment = frames.get(i).segment();
+                    matches = segment != null && (selector[i].equals(WILDCARD) || selector[i].equals(segment));
+                }
+                if (matches) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String pointer() {
+            final StringBuilder ret = new StringBuilder();
+            for (int i = 0; i < depth; i++) {
+                ret.append('/').append(frames.get(i).segment().replace("~", "~0").replace("/", "~1"));
+            }
+            return ret.toString();
+        }
+
+        /*
+         * Decodes the attachment value and returns the index of its closing quote or the length of the chunk.
+         */
+        private int scanAttachment(int from, int length) {
+
+            final ByteBuffer output = ByteBuffer.allocate(decoder.maxDecodedLength(length - from));
+            int run = from;
+            int i = from;
+            for (; i < length; i++) {
+                final byte b = chunk[i];
+                if (attachmentEscape) {
+                    attachmentEscape = false;
+                    run = i + 1;
+                    if (b == '/') {
+                        decoder.decode(SLASH.duplicate(), output);
+                    } else if (b != 'n' && b != 'r' && b != 't') {
+                        throw new IllegalArgumentException("Invalid escape in Base64 attribute!");
+                    }
+                } else if (b == '\\') {
+                    decoder.decode(ByteBuffer.wrap(chunk, run, i - run), output);
+                    attachmentEscape = true;
+                } else if (b == '"') {
+                    break;
+                }
+            }
+            if (!attachmentEscape && run < i) {
+                decoder.decode(ByteBuffer.wrap(chunk, run, i - run), output);
+            }
+            addData(output);
+            return i;
+        }
+
+        private void finishAttachment() {
+            final ByteBuffer output = ByteBuffer.allocate(decoder.maxFinalLength());
+            decoder.finish(output);
+            addData(output);
+            decoder = null;
+        }
+
+        private void addData(ByteBuffer output) {
+            if (output.position() > 0) {
+                events.add(new AttachmentData(output.flip()));
+            }
+        }
+
+        private void feedJackson(int from, int to) {
+            if (from < to) {
+                try {
+                    feeder.feedInput(chunk, from, to);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+                }
+                drain();
+            }
+        }
+
+        private void drain() {
+
+            try {
+                JsonToken token;
+                while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                    handleToken(token);
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Invalid JSON: " + e.getMessage(), e);
+            }
+        }
+
+        private void handleToken(JsonToken token) throws IOException {
+
+            if (tokenBuffer != null) {
+                if (attachmentEnd) {
+                    tokenBuffer.writeNull();
+                } else {
+                    tokenBuffer.copyCurrentEvent(parser);
+                }
+                if (token.isStructStart()) {
+                    tokenBufferDepth++;
+                } else if (token.isStructEnd() && --tokenBufferDepth == 0) {
+                    events.add(new Attribute(fieldName, OBJECT_MAPPER.readValue(tokenBuffer.asParser(), Object.class)));
+                    tokenBuffer = null;
+                }
+                return;
+            }
+            if (rootEnded) {
+                throw new IllegalArgumentException("Unexpected content after the JSON object!");
+            }
+            if (!rootStarted) {
+                if (token != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("JSON is not an object!");
+                }
+                rootStarted = true;
+                return;
+            }
+            if (token == JsonToken.FIELD_NAME) {
+                fieldName = parser.currentName();
+            } else if (token == JsonToken.END_OBJECT) {
+                rootEnded = true;
+            } else if (token.isStructStart()) {
+                tokenBuffer = new TokenBuffer(parser);
+                tokenBuffer.copyCurrentEvent(parser);
+                tokenBufferDepth = 1;
+            } else if (!attachmentEnd) {
+                events.add(new Attribute(fieldName, scalarValue(token)));
+            }
+        }
+
+        private Object scalarValue(JsonToken token) throws IOException {
+            return switch (token) {
+                case VALUE_STRING -> parser.getText();
+                case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> parser.getNumberValue();
+                case VALUE_TRUE, VALUE_FALSE -> parser.getBooleanValue();
+                default -> null;
+            };
+        }
+
+        private List<Event> takeEvents() {
+            final List<Event> ret = events;
+            events = new ArrayList<>();
+            return ret;
+        }
+    }
+}
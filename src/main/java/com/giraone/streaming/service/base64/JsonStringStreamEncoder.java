@@ -0,0 +1,60 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stateless encoder for UTF-8 text, that is included within a JSON string value (RFC 8259).
+ * Quotation marks, backslashes and control characters are escaped; all other bytes - including the bytes of
+ * multibyte UTF-8 sequences - are copied, so a sequence may be split between two chunks.
+ * The length of the output depends on the text, so it is not known in advance.
+ */
+public final class JsonStringStreamEncoder implements ContentEncoder {
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // the escape sequence for each byte value below 0x80, or null, if the byte is copied
+    private static final byte[][] ESCAPES = new byte[0x80][];
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = new byte[]{'\\', 'u', '0', '0', HEX_DIGITS[i >>> 4], HEX_DIGITS[i & 0x0f]};
+        }
+        ESCAPES['\b'] = new byte[]{'\\', 'b'};
+        ESCAPES['\f'] = new byte[]{'\\', 'f'};
+        ESCAPES['\n'] = new byte[]{'\\', 'n'};
+        ESCAPES['\r'] = new byte[]{'\\', 'r'};
+        ESCAPES['\t'] = new byte[]{'\\', 't'};
+        ESCAPES['"'] = new byte[]{'\\', '"'};
+        ESCAPES['\\'] = new byte[]{'\\', '\\'};
+    }
+
+    @Override
+    public int encodedLength(ByteBuffer input) {
+        int ret = 0;
+        for (int i = input.position(); i < input.limit(); i++) {
+            final byte[] escape = escape(input.get(i));
+            ret += escape == null ? 1 : escape.length;
+        }
+        return ret;
+    }
+
+    @Override
+    public void encode(ByteBuffer input, ByteBuffer output) {
+        while (input.hasRemaining()) {
+            final byte b = input.get();
+            final byte[] escape = escape(b);
+            if (escape == null) {
+                output.put(b);
+            } else {
+                output.put(escape);
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static byte[] escape(byte b) {
+        // bytes of multibyte sequences are negative
+        return b < 0 ? null : ESCAPES[b];
+    }
+}
@@ -0,0 +1,143 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An encoding, that breaks the output of another encoding into lines of a fixed length separated by CRLF, e.g.
+ * MIME style Base64 with 76 characters per line like {@link java.util.Base64#getMimeEncoder()}.
+ * There is no line separator after the last line. The encoded output must be ASCII, e.g. Base64 or hex.
+ */
+public final class LineWrappingEncoding implements ContentEncoding {
+
+    /**
+     * The line length of MIME (RFC 2045).
+     */
+    public static final int MIME_LINE_LENGTH = 76;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final ContentEncoding encoding;
+    private final int lineLength;
+
+    /**
+     * Create a line wrapping encoding.
+     * @param encoding the encoding, whose output is wrapped
+     * @param lineLength the number of characters per line
+     */
+    public LineWrappingEncoding(ContentEncoding encoding, int lineLength) {
+        if (lineLength < 1) {
+            throw new IllegalArgumentException("Line length must be positive, but was " + lineLength);
+        }
+        this.encoding = encoding;
+        this.lineLength = lineLength;
+    }
+
+    @Override
+    public String prefix() {
+        return encoding.prefix();
+    }
+
+    @Override
+    public ContentEncoder newEncoder() {
+        return new LineWrappingEncoder(encoding.newEncoder(), lineLength);
+    }
+
+    @Override
+    public long encodedLength(long contentSize) {
+        final long length = encoding.encodedLength(contentSize);
+        if (length <= 0) {
+            return length;
+        }
+        return length + (length - 1) / lineLength * CRLF.length;
+    }
+
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Encodes into a scratch buffer, that is copied to the output with the line separators. The input is encoded in
+     * slices of a fixed size, so the scratch buffer does not grow with the size of the input chunks.
+     */
+    private static final class LineWrappingEncoder implements ContentEncoder {
+
+        // 64 MIME lines of Base64 (57 input bytes per line)
+        private static final int SLICE_BYTES = 57 * 64;
+
+        private final ContentEncoder encoder;
+        private final int lineLength;
+        // the number of characters written without the line separators
+        private long written;
+        private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+        private LineWrappingEncoder(ContentEncoder encoder, int lineLength) {
+            this.encoder = encoder;
+            this.lineLength = lineLength;
+        }
+
+        @Override
+        public int encodedLength(ByteBuffer input) {
+            final int length = encoder.encodedLength(input);
+            return length + separators(length);
+        }
+
+        @Override
+        public void encode(ByteBuffer input, ByteBuffer output) {
+            while (input.hasRemaining()) {
+                final int length = Math.min(input.remaining(), SLICE_BYTES);
+                final ByteBuffer slice = input.slice(input.position(), length);
+                encoder.encode(slice, scratch(encoder.encodedLength(slice)));
+                input.position(input.position() + length);
+                copy(output);
+            }
+        }
+
+        @Override
+        public int finalLength() {
+            final int length = encoder.finalLength();
+            return length + separators(length);
+        }
+
+        @Override
+        public void finish(ByteBuffer output) {
+            encoder.finish(scratch(encoder.finalLength()));
+            copy(output);
+            written = 0L;
+        }
+
+        private ByteBuffer scratch(int length) {
+            if (scratch.capacity() < length) {
+                scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+            }
+            return scratch.clear();
+        }
+
+        private void copy(ByteBuffer output) {
+            scratch.flip();
+            while (scratch.hasRemaining()) {
+                final int column = (int) (written % lineLength);
+                if (column == 0 && written > 0L) {
+                    output.put(CRLF);
+                }
+                final int run = Math.min(lineLength - column, scratch.remaining());
+                output.put(scratch.slice(scratch.position(), run));
+                scratch.position(scratch.position() + run);
+                written += run;
+            }
+        }
+
+        /*
+         * A separator is written before each character, whose index is a multiple of the line length (except 0).
+         */
+        private int separators(int length) {
+            if (length == 0) {
+                return 0;
+            }
+            final long first = Math.max(written, 1L);
+            final long last = written + length - 1;
+            return (int) ((last / lineLength - (first - 1) / lineLength) * CRLF.length);
+        }
+    }
+}
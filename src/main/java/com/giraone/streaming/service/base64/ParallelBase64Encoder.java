@@ -0,0 +1,125 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.AdaptiveChunkSizePolicy;
+import com.giraone.streaming.service.FluxUtil;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+
+import java.nio.channels.AsynchronousFileChannel;
+
+/**
+ * Base64 encoding of large files on more than one thread.
+ * The Base64 output for an input offset, that is a multiple of 3, does not depend on the bytes before, so the file is
+ * split into segments, whose size is a multiple of 3. The segments are read by positional reads, encoded concurrently
+ * on a {@link Scheduler} and emitted in the order of the file. The I/O threads of the channel only read.
+ * <p>
+ * The memory is bounded: at most {@code parallelism} segments are in progress and each of them buffers only a few
+ * chunks, until it is its turn to be emitted.
+ * Files smaller than the threshold are encoded sequentially like {@link Base64Includer#base64EncodePooled(Flux)}.
+ */
+public final class ParallelBase64Encoder {
+
+    // encoded chunks buffered per segment, until the segments before are emitted
+    private static final int PREFETCH = 4;
+    // chunk reads in flight per segment; the parallelism is the number of segments
+    private static final int READ_AHEAD = 2;
+
+    private final long threshold;
+    private final int segmentSize;
+    private final int parallelism;
+    private final Scheduler scheduler;
+
+    /**
+     * Create an encoder.
+     * @param threshold the minimum file size in bytes, from which on the file is encoded in parallel
+     * @param segmentSize the number of bytes of a segment; a multiple of 3
+     * @param parallelism the maximum number of segments, that are read and encoded concurrently
+     * @param scheduler the scheduler for encoding, e.g. {@link reactor.core.scheduler.Schedulers#parallel()}
+     */
+    public ParallelBase64Encoder(long threshold, int segmentSize, int parallelism, Scheduler scheduler) {
+        if (segmentSize <= 0 || segmentSize % 3 != 0) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is not a positive multiple of 3!");
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism " + parallelism + " is not positive!");
+        }
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        this.parallelism = parallelism;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Base64 encode a file. The output is written into pooled buffers, that must be released by the subscriber.
+     * @param fileChannel the file to read from
+     * @param length the number of bytes of the file
+     * @return an output Flux of DataBuffers
+     */
+    public Flux<DataBuffer> encode(AsynchronousFileChannel fileChannel, long length) {
+
+        if (length < threshold || length <= segmentSize) {
+            return Base64Includer.base64EncodePooled(FluxUtil.readFilePooled(fileChannel, 0L, length));
+        }
+        final long segments = (length + segmentSize - 1) / segmentSize;
+        return Flux.defer(() -> {
+            // flatMapSequential drops the buffers of the later segments on cancel without a discard hook
+            final WaitingBuffers<DataBuffer> waitingBuffers = new WaitingBuffers<>(DataBufferUtils::release);
+            return Flux.range(0, Math.toIntExact(segments))
+                .flatMapSequential(segment -> {
+                    final long offset = (long) segment * segmentSize;
+                    return encodeSegment(fileChannel, offset, Math.min(segmentSize, length - offset))
+                        .doOnNext(dataBuffer -> waitingBuffers.add(dataBuffer, 0));
+                }, parallelism, PREFETCH)
+                .doOnNext(waitingBuffers::remove)
+                .doFinally(signalType -> {
+                    if (signalType != SignalType.ON_COMPLETE) {
+                        waitingBuffers.releaseAll();
+                    }
+                });
+        });
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private Flux<DataBuffer> encodeSegment(AsynchronousFileChannel fileChannel, long offset, long length) {
+
+        // Only the last segment is not a multiple of 3 and is padded.
+        // The chunks are handed over from the thread, that completed the read, to the scheduler, so the bounded
+        // executor of the reads is not blocked by encoding. publishOn does not release the chunks in its queue, when
+        // its worker is disposed before it drained them, so the chunks are tracked, until they are encoded. They are
+        // wrapped, so the discard hook of the encoder does not release a chunk a second time.
+        return Flux.defer(() -> {
+            final WaitingBuffers<DataBuffer> handedOver = new WaitingBuffers<>(DataBufferUtils::release);
+            return Base64Includer.base64EncodePooled(
+                    FluxUtil.readFilePooled(fileChannel, AdaptiveChunkSizePolicy.DEFAULT, READ_AHEAD, offset, length)
+                        .map(dataBuffer -> {
+                            // a chunk, that is read after the cancel, is released at once and never encoded
+                            handedOver.add(dataBuffer, 1);
+                            return new Chunk(dataBuffer);
+                        })
+                        .publishOn(scheduler, READ_AHEAD)
+                        .<DataBuffer>handle((chunk, sink) -> {
+                            if (handedOver.remove(chunk.dataBuffer()) > 0) {
+                                sink.next(chunk.dataBuffer());
+                            }
+                        })
+                        .doOnDiscard(Chunk.class, chunk -> {
+                            if (handedOver.remove(chunk.dataBuffer()) > 0) {
+                                DataBufferUtils.release(chunk.dataBuffer());
+                            }
+                        }))
+                .doFinally(signalType -> {
+                    if (signalType != SignalType.ON_COMPLETE) {
+                        handedOver.releaseAll();
+                    }
+                });
+        });
+    }
+
+    // a read chunk on its way to the scheduler
+    private record Chunk(DataBuffer dataBuffer) {
+    }
+}
@@ -0,0 +1,120 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encodings, that can be used in named placeholders of a {@link CompiledTemplate}.
+ */
+public enum StandardContentEncoding implements ContentEncoding {
+
+    /**
+     * Base64 with the standard alphabet and padding, e.g. {@code <base64:photo>}.
+     */
+    BASE64("base64") {
+        @Override
+        public ContentEncoder newEncoder() {
+            return new Base64StreamEncoder();
+        }
+
+        @Override
+        public long encodedLength(long contentSize) {
+            return Base64StreamEncoder.encodedLength(contentSize, true);
+        }
+    },
+    /**
+     * Base64 with the URL and filename safe alphabet and without padding, e.g. {@code <base64url:photo>}.
+     */
+    BASE64URL("base64url") {
+        @Override
+        public ContentEncoder newEncoder() {
+            return new Base64StreamEncoder(true);
+        }
+
+        @Override
+        public long encodedLength(long contentSize) {
+            return Base64StreamEncoder.encodedLength(contentSize, false);
+        }
+    },
+    /**
+     * Lower case hexadecimal digits, e.g. {@code <hex:checksum>}.
+     */
+    HEX("hex") {
+        @Override
+        public ContentEncoder newEncoder() {
+            return new HexStreamEncoder();
+        }
+
+        @Override
+        public long encodedLength(long contentSize) {
+            return contentSize * 2;
+        }
+    },
+    /**
+     * The content is copied unchanged, e.g. {@code <raw:fragment>} for a JSON or XML fragment.
+     */
+    RAW("raw") {
+        @Override
+        public ContentEncoder newEncoder() {
+            return RawEncoder.INSTANCE;
+        }
+
+        @Override
+        public long encodedLength(long contentSize) {
+            return contentSize;
+        }
+    },
+    /**
+     * UTF-8 text escaped for a JSON string value, e.g. {@code <json:description>}.
+     */
+    JSON("json") {
+        @Override
+        public ContentEncoder newEncoder() {
+            return new JsonStringStreamEncoder();
+        }
+
+        @Override
+        public long encodedLength(long contentSize) {
+            return -1;
+        }
+    };
+
+    private final String prefix;
+
+    StandardContentEncoding(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public String prefix() {
+        return prefix;
+    }
+
+    /**
+     * Find the encoding for a placeholder prefix.
+     * @param prefix the prefix, e.g. {@code base64}
+     * @return the encoding or null, if there is none with this prefix
+     */
+    public static ContentEncoding forPrefix(String prefix) {
+        for (StandardContentEncoding encoding : values()) {
+            if (encoding.prefix.equals(prefix)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    private static final class RawEncoder implements ContentEncoder {
+
+        private static final RawEncoder INSTANCE = new RawEncoder();
+
+        @Override
+        public int encodedLength(ByteBuffer input) {
+            return input.remaining();
+        }
+
+        @Override
+        public void encode(ByteBuffer input, ByteBuffer output) {
+            output.put(input);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.giraone.streaming.service.base64;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The buffers, that are emitted by the inner publishers of a {@code flatMapSequential}, but not yet by its output.
+ * {@code flatMapSequential} drops the buffers of its inner queues on cancel without a discard hook, so they
+ * are tracked here and released by {@link #releaseAll()}. The same holds for the queue of a {@code publishOn},
+ * whose worker is disposed, before it drained the queue.
+ * @param <T> the buffer type, e.g. DataBuffer
+ */
+final class WaitingBuffers<T> {
+
+    private final Consumer<T> release;
+    // the buffers with the number of bytes, they count for bytes()
+    private final Map<T, Integer> buffers = new IdentityHashMap<>();
+    private long bytes;
+    private boolean released;
+
+    WaitingBuffers(Consumer<T> release) {
+        this.release = release;
+    }
+
+    /**
+     * Add a buffer, that is emitted by an inner publisher.
+     * @param buffer the buffer
+     * @param size the number of bytes, that the buffer counts for {@link #bytes()}
+     * @return false, if the buffers were already released - then the buffer is released, too
+     */
+    synchronized boolean add(T buffer, int size) {
+        if (released) {
+            // an inner publisher, that was emitting while the output was cancelled
+            release.accept(buffer);
+            return false;
+        }
+        buffers.put(buffer, size);
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Remove a buffer, that is emitted by the output.
+     * @param buffer the buffer
+     * @return the number of bytes, that the buffer counted for {@link #bytes()}
+     */
+    synchronized int remove(T buffer) {
+        final Integer size = buffers.remove(buffer);
+        if (size == null) {
+            return 0;
+        }
+        bytes -= size;
+        return size;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized void releaseAll() {
+        released = true;
+        buffers.keySet().forEach(release);
+        buffers.clear();
+        bytes = 0;
+    }
+}
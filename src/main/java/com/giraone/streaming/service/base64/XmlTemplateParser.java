@@ -0,0 +1,277 @@
+package com.giraone.streaming.service.base64;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The parser of {@link CompiledTemplate#compileXml(String, Function)}. It scans the markup of the template for the
+ * placeholders of the namespace {@link CompiledTemplate#XML_INCLUDE_NAMESPACE} and keeps everything else as it is.
+ * Comments, CDATA sections, processing instructions and the document type declaration are skipped.
+ * The template is not validated beyond what is needed to find the placeholders.
+ */
+final class XmlTemplateParser {
+
+    private static final String CONTENT_ELEMENT = "content";
+    private static final String DEFAULT_ENCODING = "base64";
+
+    private final String template;
+    private final Function<String, ContentEncoding> encodings;
+    private final List<byte[]> segments = new ArrayList<>();
+    private final List<CompiledTemplate.Placeholder> placeholders = new ArrayList<>();
+    // the text of the current segment
+    private final StringBuilder text = new StringBuilder();
+    // the namespace declarations in scope for each open element - prefix "" is the default namespace
+    private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+    private int position;
+
+    XmlTemplateParser(String template, Function<String, ContentEncoding> encodings) {
+        this.template = template;
+        this.encodings = encodings;
+    }
+
+    CompiledTemplate parse() {
+
+        while (position < template.length()) {
+            final int tagStart = template.indexOf('<', position);
+            if (tagStart < 0) {
+                text.append(template, position, template.length());
+                break;
+            }
+            text.append(template, position, tagStart);
+            if (template.startsWith("<!--", tagStart)) {
+                copyUntil("-->", tagStart);
+            } else if (template.startsWith("<![CDATA[", tagStart)) {
+                copyUntil("]]>", tagStart);
+            } else if (template.startsWith("<?", tagStart)) {
+                copyUntil("?>", tagStart);
+            } else if (template.startsWith("<!", tagStart)) {
+                copyUntil(">", tagStart);
+            } else if (template.startsWith("</", tagStart)) {
+                copyUntil(">", tagStart);
+                scopes.poll();
+            } else {
+                startTag(tagStart);
+            }
+        }
+        segments.add(text.toString().getBytes(StandardCharsets.UTF_8));
+        return new CompiledTemplate(List.copyOf(segments), List.copyOf(placeholders));
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private void copyUntil(String end, int from) {
+        final int index = template.indexOf(end, from);
+        if (index < 0) {
+            throw malformed(from);
+        }
+        position = index + end.length();
+        text.append(template, from, position);
+    }
+
+    private void startTag(int tagStart) {
+
+        final StartTag tag = parseStartTag(tagStart);
+        final Map<String, String> scope = new HashMap<>(scopes.isEmpty() ? Map.of() : scopes.peek());
+        for (Attribute attribute : tag.attributes) {
+            if (attribute.name.equals("xmlns")) {
+                scope.put("", attribute.value(template));
+            } else if (attribute.name.startsWith("xmlns:")) {
+                scope.put(attribute.name.substring("xmlns:".length()), attribute.value(template));
+            }
+        }
+
+        if (isInclude(tag.name, scope, "") && localName(tag.name).equals(CONTENT_ELEMENT)) {
+            contentElement(tag);
+            return;
+        }
+        int copied = tagStart;
+        for (Attribute attribute : tag.attributes) {
+            // attributes without a prefix are in no namespace
+            if (attribute.name.indexOf(':') > 0 && isInclude(attribute.name, scope, null)) {
+                text.append(template, copied, attribute.nameStart)
+                    .append(localName(attribute.name)).append('=').append(template.charAt(attribute.valueEnd));
+                addPlaceholder(attribute.value(template), attribute.nameStart);
+                copied = attribute.valueEnd;
+            }
+        }
+        text.append(template, copied, tag.end);
+        position = tag.end;
+        if (!tag.empty) {
+            scopes.push(scope);
+        }
+    }
+
+    /*
+     * <inc:content name="photo" encoding="base64" wrap="76"/> is replaced by the content.
+     */
+    private void contentElement(StartTag tag) {
+
+        String name = null;
+        String encodingPrefix = DEFAULT_ENCODING;
+        int lineLength = 0;
+        for (Attribute attribute : tag.attributes) {
+            switch (attribute.name) {
+                case "name" -> name = attribute.value(template);
+                case "encoding" -> encodingPrefix = attribute.value(template);
+                case "wrap" -> lineLength = parseLineLength(attribute.value(template), tag.start);
+                default -> {
+                    // namespace declarations and other attributes are ignored
+                }
+            }
+        }
+        if (name == null) {
+            throw new IllegalArgumentException("Include element at offset " + tag.start + " has no name attribute!");
+        }
+        position = tag.end;
+        if (!tag.empty) {
+            // only an immediate end tag is allowed
+            final String endTag = "</" + tag.name;
+            int end = position + endTag.length();
+            while (end < template.length() && Character.isWhitespace(template.charAt(end))) {
+                end++;
+            }
+            if (!template.startsWith(endTag, position) || end >= template.length() || template.charAt(end) != '>') {
+                throw new IllegalArgumentException("Include element at offset " + tag.start + " must be empty!");
+            }
+            position = end + 1;
+        }
+        final ContentEncoding encoding = encoding(encodingPrefix, tag.start);
+        addPlaceholder(name, lineLength > 0 ? new LineWrappingEncoding(encoding, lineLength) : encoding, tag.start);
+    }
+
+    /*
+     * inc:data="base64:photo" is replaced by data="..." with the content.
+     */
+    private void addPlaceholder(String value, int offset) {
+        final int colon = value.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Include attribute at offset " + offset + " is not \"encoding:name\"!");
+        }
+        addPlaceholder(value.substring(colon + 1), encoding(value.substring(0, colon), offset), offset);
+    }
+
+    private void addPlaceholder(String name, ContentEncoding encoding, int offset) {
+        if (!CompiledTemplate.isName(name, 0)) {
+            throw new IllegalArgumentException("Invalid placeholder name \"" + name + "\" at offset " + offset + "!");
+        }
+        segments.add(text.toString().getBytes(StandardCharsets.UTF_8));
+        text.setLength(0);
+        placeholders.add(new CompiledTemplate.Placeholder(name, encoding));
+    }
+
+    private ContentEncoding encoding(String prefix, int offset) {
+        final ContentEncoding encoding = encodings.apply(prefix);
+        if (encoding == null) {
+            throw new IllegalArgumentException("Unknown encoding \"" + prefix + "\" at offset " + offset + "!");
+        }
+        return encoding;
+    }
+
+    private static int parseLineLength(String value, int offset) {
+        try {
+            final int lineLength = Integer.parseInt(value);
+            if (lineLength > 0) {
+                return lineLength;
+            }
+        } catch (NumberFormatException nfe) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid wrap \"" + value + "\" at offset " + offset + "!");
+    }
+
+    /*
+     * The default namespace applies to elements only, so attributes pass null as the default prefix.
+     */
+    private static boolean isInclude(String qualifiedName, Map<String, String> scope, String defaultPrefix) {
+        final int colon = qualifiedName.indexOf(':');
+        final String prefix = colon > 0 ? qualifiedName.substring(0, colon) : defaultPrefix;
+        return prefix != null && CompiledTemplate.XML_INCLUDE_NAMESPACE.equals(scope.get(prefix));
+    }
+
+    private static String localName(String qualifiedName) {
+        return qualifiedName.substring(qualifiedName.indexOf(':') + 1);
+    }
+
+    private StartTag parseStartTag(int tagStart) {
+
+        int i = nameEnd(tagStart + 1);
+        if (i == tagStart + 1) {
+            throw malformed(tagStart);
+        }
+        final String name = template.substring(tagStart + 1, i);
+        final List<Attribute> attributes = new ArrayList<>();
+        while (true) {
+            i = skipWhitespace(i);
+            if (i >= template.length()) {
+                throw malformed(tagStart);
+            }
+            final char c = template.charAt(i);
+            if (c == '>') {
+                return new StartTag(tagStart, i + 1, name, attributes, false);
+            }
+            if (c == '/') {
+                if (i + 1 >= template.length() || template.charAt(i + 1) != '>') {
+                    throw malformed(tagStart);
+                }
+                return new StartTag(tagStart, i + 2, name, attributes, true);
+            }
+            final int nameStart = i;
+            i = nameEnd(i);
+            final String attributeName = template.substring(nameStart, i);
+            i = skipWhitespace(i);
+            if (attributeName.isEmpty() || i >= template.length() || template.charAt(i) != '=') {
+                throw malformed(tagStart);
+            }
+            i = skipWhitespace(i + 1);
+            if (i >= template.length() || template.charAt(i) != '"' && template.charAt(i) != '\'') {
+                throw malformed(tagStart);
+            }
+            final int valueEnd = template.indexOf(template.charAt(i), i + 1);
+            if (valueEnd < 0) {
+                throw malformed(tagStart);
+            }
+            attributes.add(new Attribute(nameStart, attributeName, i + 1, valueEnd));
+            i = valueEnd + 1;
+        }
+    }
+
+    private int nameEnd(int start) {
+        int i = start;
+        while (i < template.length()) {
+            final char c = template.charAt(i);
+            if (Character.isWhitespace(c) || c == '=' || c == '/' || c == '>' || c == '<') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private int skipWhitespace(int start) {
+        int i = start;
+        while (i < template.length() && Character.isWhitespace(template.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static IllegalArgumentException malformed(int offset) {
+        return new IllegalArgumentException("Malformed XML template at offset " + offset + "!");
+    }
+
+    private record StartTag(int start, int end, String name, List<Attribute> attributes, boolean empty) {
+    }
+
+    // valueEnd is the offset of the closing quote
+    private record Attribute(int nameStart, String name, int valueStart, int valueEnd) {
+        String value(String template) {
+            return template.substring(valueStart, valueEnd);
+        }
+    }
+}
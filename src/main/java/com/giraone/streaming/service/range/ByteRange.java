@@ -0,0 +1,70 @@
+package com.giraone.streaming.service.range;
+
+import org.springframework.http.HttpRange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A satisfiable byte range of a file with known size.
+ * @param start the first byte position (inclusive)
+ * @param end the last byte position (inclusive)
+ */
+public record ByteRange(long start, long end) {
+
+    /**
+     * Number of bytes within the range.
+     * @return end - start + 1
+     */
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Build the value for a HTTP Content-Range header.
+     * @param totalSize the size of the whole file
+     * @return e.g. "bytes 0-99/10240"
+     */
+    public String contentRange(long totalSize) {
+        return "bytes " + start + "-" + end + "/" + totalSize;
+    }
+
+    /**
+     * Resolve parsed HTTP ranges against the size of a file. Ranges, that start behind the end of the file,
+     * are skipped.
+     * @param httpRanges the ranges, e.g. from {@link org.springframework.http.HttpHeaders#getRange()}
+     * @param totalSize the size of the whole file
+     * @return the satisfiable ranges in the requested order
+     * @throws IllegalArgumentException when none of the ranges is satisfiable
+     */
+    public static List<ByteRange> of(List<HttpRange> httpRanges, long totalSize) {
+
+        final List<ByteRange> ret = new ArrayList<>(httpRanges.size());
+        for (HttpRange httpRange : httpRanges) {
+            final long start;
+            final long end;
+            try {
+                start = httpRange.getRangeStart(totalSize);
+                end = httpRange.getRangeEnd(totalSize);
+            } catch (IllegalArgumentException unsatisfiable) {
+                continue;
+            }
+            if (start <= end) {
+                ret.add(new ByteRange(start, end));
+            }
+        }
+        if (ret.isEmpty()) {
+            throw new IllegalArgumentException("No satisfiable range for size " + totalSize + " in " + httpRanges);
+        }
+        return ret;
+    }
+
+    /**
+     * Sum of the length of all ranges.
+     * @param ranges the ranges
+     * @return the sum of all ranges
+     */
+    public static long totalLength(List<ByteRange> ranges) {
+        return ranges.stream().mapToLong(ByteRange::length).sum();
+    }
+}
@@ -0,0 +1,90 @@
+package com.giraone.streaming.service.range;
+
+import com.giraone.streaming.service.FluxUtil;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeTypeUtils;
+import reactor.core.publisher.Flux;
+
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A "multipart/byteranges" response body (RFC 9110, section 14.6), where the part contents are read
+ * from an {@link AsynchronousFileChannel} using {@link FluxUtil#readFile(AsynchronousFileChannel, long, long)}.
+ * All part headers are built upfront, so the exact content length is known before streaming.
+ */
+public class MultipartByteRanges {
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<ByteRange> ranges;
+    private final String boundary;
+    private final List<byte[]> partHeaders;
+    private final byte[] closeDelimiter;
+
+    /**
+     * Create the multipart body for the given ranges.
+     * @param ranges the satisfiable ranges
+     * @param partMediaType the media type of the file, that is used for every part
+     * @param totalSize the size of the whole file
+     */
+    public MultipartByteRanges(List<ByteRange> ranges, MediaType partMediaType, long totalSize) {
+        this.ranges = List.copyOf(ranges);
+        this.boundary = new String(MimeTypeUtils.generateMultipartBoundary(), StandardCharsets.US_ASCII);
+        this.partHeaders = new ArrayList<>(ranges.size());
+        for (ByteRange range : ranges) {
+            // The leading CRLF of the first part is allowed as an empty preamble
+            final String header = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: " + partMediaType + "\r\n"
+                + "Content-Range: " + range.contentRange(totalSize) + "\r\n"
+                + "\r\n";
+            partHeaders.add(header.getBytes(StandardCharsets.US_ASCII));
+        }
+        this.closeDelimiter = ("\r\n--" + boundary + "--").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The media type for the HTTP Content-Type header including the boundary parameter.
+     * @return "multipart/byteranges; boundary=..."
+     */
+    public MediaType getMediaType() {
+        return new MediaType("multipart", "byteranges", Map.of("boundary", boundary));
+    }
+
+    /**
+     * The exact number of bytes, that will be streamed by {@link #stream(AsynchronousFileChannel)}.
+     * @return the value for the HTTP Content-Length header
+     */
+    public long contentLength() {
+        long ret = closeDelimiter.length + CRLF.length;
+        for (byte[] partHeader : partHeaders) {
+            ret += partHeader.length;
+        }
+        return ret + ByteRange.totalLength(ranges);
+    }
+
+    /**
+     * Stream all parts.
+     * @param fileChannel the channel of the file, from which the parts are read
+     * @return the body as a Flux of DataBuffers, where the file content is in pooled buffers
+     */
+    public Flux<DataBuffer> stream(AsynchronousFileChannel fileChannel) {
+
+        final DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+        final List<Flux<DataBuffer>> publishers = new ArrayList<>(ranges.size() * 2 + 1);
+        for (int i = 0; i < ranges.size(); i++) {
+            final ByteRange range = ranges.get(i);
+            final byte[] partHeader = partHeaders.get(i);
+            publishers.add(Flux.defer(() -> Flux.just(bufferFactory.wrap(partHeader))));
+            publishers.add(FluxUtil.readFilePooled(fileChannel, range.start(), range.length()));
+        }
+        publishers.add(Flux.defer(() -> Flux.just(bufferFactory.wrap(closeDelimiter), bufferFactory.wrap(CRLF))));
+        return Flux.concat(publishers);
+    }
+}
@@ -4,25 +4,41 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.giraone.streaming.service.FluxUtil;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.web.reactive.function.BodyInserters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import reactor.core.publisher.Flux;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -30,7 +46,7 @@ import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.WRITE;
 import static org.assertj.core.api.Assertions.assertThat;
 
-@SpringBootTest
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
 @AutoConfigureWebTestClient
 class StreamingControllerIT {
 
@@ -64,6 +80,288 @@ class StreamingControllerIT {
         assertThat(target).exists().hasSize(expectedFileSize);
     }
 
+    @Test
+    void downloadFileWithoutZeroCopy() throws IOException {
+
+        final long expectedFileSize = 10240L;
+        Flux<ByteBuffer> content = webTestClient.get()
+            .uri("/file/file-10k.bin?zero-copy=false")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .expectHeader().contentLength(expectedFileSize)
+            .returnResult(ByteBuffer.class)
+            .getResponseBody();
+        File target = File.createTempFile("test-", ".bin");
+        LOGGER.info("Write to {}", target);
+        target.deleteOnExit();
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(target.toPath(), CREATE, WRITE);
+        FluxUtil.writeFile(content, channel).block();
+        assertThat(target).exists().hasSize(expectedFileSize);
+    }
+
+    @Test
+    void downloadLargeFileMapped() {
+
+        // larger than the files of the cache and the threshold of the mapped read mode
+        String filename = "mapped-" + UUID.randomUUID() + ".bin";
+        byte[] content = new byte[1536 * 1024];
+        new Random(1536).nextBytes(content);
+        webTestClient.post()
+            .uri("/file/{filename}", filename)
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .bodyValue(content)
+            .exchange()
+            .expectStatus().isOk();
+
+        Flux<ByteBuffer> body = webTestClient.get()
+            .uri("/file/{filename}?zero-copy=false", filename)
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentLength(content.length)
+            .returnResult(ByteBuffer.class)
+            .getResponseBody();
+        assertThat(toByteArray(body)).isEqualTo(content);
+        Flux<ByteBuffer> range = webTestClient.get()
+            .uri("/file/{filename}?zero-copy=false", filename)
+            .header(HttpHeaders.RANGE, "bytes=1000-1299999")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .returnResult(ByteBuffer.class)
+            .getResponseBody();
+        assertThat(toByteArray(range)).isEqualTo(Arrays.copyOfRange(content, 1000, 1300000));
+        assertThat(new File(StreamingController.FILE_BASE, filename).delete()).isTrue();
+    }
+
+    @Test
+    void downloadFileFromCache() throws IOException {
+
+        byte[] expected = Files.readAllBytes(new File(StreamingController.FILE_BASE, "file-20k.bin").toPath());
+        for (int i = 0; i < 3; i++) {
+            webTestClient.get()
+                .uri("/file/file-20k.bin")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class).isEqualTo(expected);
+        }
+        webTestClient.get()
+            .uri("/file/file-20k.bin")
+            .header(HttpHeaders.RANGE, "bytes=10-19")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectBody(String.class).isEqualTo("0123456789");
+
+        webTestClient.get()
+            .uri("/actuator/metrics/streaming.download.cache.hits")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(MAP)
+            .value(value -> assertThat(value.get("measurements")).asString().doesNotContain("value=0.0"));
+    }
+
+    @Test
+    void channelMetrics() {
+
+        webTestClient.get()
+            .uri("/actuator/metrics/streaming.io.channels.open?tag=mode:read")
+            .exchange()
+            .expectStatus().isOk();
+        webTestClient.get()
+            .uri("/actuator/metrics/streaming.io.channels.leaked")
+            .exchange()
+            .expectStatus().isOk();
+    }
+
+    @Test
+    void downloadFileNotFound() {
+
+        webTestClient.get()
+            .uri("/file/does-not-exist.bin")
+            .exchange()
+            .expectStatus().isNotFound()
+            .expectHeader().exists(StreamingController.X_HEADER_ERROR);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "true",
+        "false"
+    })
+    void downloadFileSingleRange(boolean zeroCopy) {
+
+        byte[] body = webTestClient.get()
+            .uri("/file/file-10k.bin?zero-copy={zeroCopy}", zeroCopy)
+            .header(HttpHeaders.RANGE, "bytes=10-19")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().valueEquals(HttpHeaders.ACCEPT_RANGES, "bytes")
+            .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes 10-19/10240")
+            .expectHeader().contentLength(10)
+            .expectBody(byte[].class)
+            .returnResult()
+            .getResponseBody();
+        assertThat(new String(body, StandardCharsets.UTF_8)).isEqualTo("0123456789");
+    }
+
+    @Test
+    void downloadFileMultipleRanges() {
+
+        EntityExchangeResult<byte[]> result = webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.RANGE, "bytes=0-4,-5")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectBody(byte[].class)
+            .returnResult();
+        MediaType contentType = result.getResponseHeaders().getContentType();
+        assertThat(contentType).isNotNull();
+        assertThat(contentType.isCompatibleWith(MediaType.parseMediaType("multipart/byteranges"))).isTrue();
+        String body = new String(result.getResponseBody(), StandardCharsets.UTF_8);
+        assertThat(body.length()).isEqualTo(result.getResponseHeaders().getContentLength());
+        assertThat(body)
+            .contains("Content-Range: bytes 0-4/10240\r\n\r\n01234\r\n")
+            .contains("Content-Range: bytes 10235-10239/10240\r\n\r\n56789\r\n")
+            .endsWith("--" + contentType.getParameter("boundary") + "--\r\n");
+    }
+
+    @Test
+    void downloadFileRangeNotSatisfiable() {
+
+        webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.RANGE, "bytes=20000-")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .expectHeader().valueEquals(HttpHeaders.CONTENT_RANGE, "bytes */10240");
+    }
+
+    @Test
+    void downloadFileIfRangeNotMatching() {
+
+        webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.RANGE, "bytes=0-9")
+            .header(HttpHeaders.IF_RANGE, "Mon, 01 Jan 2001 00:00:00 GMT")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentLength(10240L);
+    }
+
+    @Test
+    void downloadFileNotModified() {
+
+        String eTag = webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().exists(HttpHeaders.LAST_MODIFIED)
+            .returnResult(ByteBuffer.class)
+            .getResponseHeaders().getETag();
+        assertThat(eTag).startsWith("\"");
+
+        webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.IF_NONE_MATCH, eTag)
+            .exchange()
+            .expectStatus().isNotModified()
+            .expectHeader().valueEquals(HttpHeaders.ETAG, eTag)
+            .expectBody().isEmpty();
+        webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.IF_MODIFIED_SINCE, "Fri, 31 Dec 2100 00:00:00 GMT")
+            .exchange()
+            .expectStatus().isNotModified();
+        webTestClient.get()
+            .uri("/file/file-10k.bin")
+            .header(HttpHeaders.RANGE, "bytes=0-9")
+            .header(HttpHeaders.IF_RANGE, eTag)
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+            .expectHeader().contentLength(10L);
+    }
+
+    @Test
+    void downloadUploadedFileNotModified() {
+
+        String filename = "post-" + UUID.randomUUID() + ".txt";
+        String sha256 = sha256Hex("first version".getBytes(StandardCharsets.UTF_8));
+        upload(filename, "first version");
+        webTestClient.get()
+            .uri("/file/{filename}", filename)
+            .header(HttpHeaders.IF_NONE_MATCH, "\"" + sha256 + "\"")
+            .exchange()
+            .expectStatus().isNotModified();
+
+        upload(filename, "second version");
+        webTestClient.get()
+            .uri("/file/{filename}", filename)
+            .header(HttpHeaders.IF_NONE_MATCH, "\"" + sha256 + "\"")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().valueEquals(HttpHeaders.ETAG, "\"" + sha256Hex("second version".getBytes(StandardCharsets.UTF_8)) + "\"")
+            .expectBody(String.class).isEqualTo("second version");
+        assertThat(new File(StreamingController.FILE_BASE, filename).delete()).isTrue();
+    }
+
+    @Test
+    void downloadBase64NotModified() {
+
+        String eTag1 = webTestClient.get()
+            .uri("/base64-2/file-10k.bin/file-20k.bin")
+            .exchange()
+            .expectStatus().isOk()
+            .returnResult(ByteBuffer.class)
+            .getResponseHeaders().getETag();
+        String eTag2 = webTestClient.get()
+            .uri("/base64-2/file-20k.bin/file-10k.bin")
+            .exchange()
+            .expectStatus().isOk()
+            .returnResult(ByteBuffer.class)
+            .getResponseHeaders().getETag();
+        String eTag3 = webTestClient.get()
+            .uri("/xml-base64/file-10k.bin")
+            .exchange()
+            .expectStatus().isOk()
+            .returnResult(ByteBuffer.class)
+            .getResponseHeaders().getETag();
+        assertThat(List.of(eTag1, eTag2, eTag3)).doesNotHaveDuplicates();
+
+        webTestClient.get()
+            .uri("/base64-2/file-10k.bin/file-20k.bin")
+            .header(HttpHeaders.IF_NONE_MATCH, eTag1)
+            .exchange()
+            .expectStatus().isNotModified()
+            .expectHeader().valueEquals(HttpHeaders.ETAG, eTag1)
+            .expectBody().isEmpty();
+        webTestClient.get()
+            .uri("/xml-base64/file-10k.bin")
+            .header(HttpHeaders.IF_NONE_MATCH, eTag1 + ", " + eTag3)
+            .exchange()
+            .expectStatus().isNotModified();
+        webTestClient.get()
+            .uri("/base64-1/file-10k.bin")
+            .header(HttpHeaders.IF_MODIFIED_SINCE, "Fri, 31 Dec 2100 00:00:00 GMT")
+            .exchange()
+            .expectStatus().isNotModified();
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "1,63d071701624761bc6508cbdcdd9e4e6235c1a8fe76f46fb191c8e10ba6c102d",
+        "2,106e2b8ea51480ef3493fdad128d2eee3bd59301b5d7a790bc93c3ea91cf73bf",
+        "3,2899260411dbd666fed8e2d71410556c750bbcf5a8d009f605fa72056811cb58"
+    })
+    void templateFingerprintIsStable(int template, String expectedFingerprint) {
+
+        // the fingerprint is a part of the ETag, so it must not differ between restarts and nodes
+        String fingerprint = switch (template) {
+            case 1 -> StreamingController.BASE64_1_TEMPLATE.fingerprint();
+            case 2 -> StreamingController.BASE64_2_TEMPLATE.fingerprint();
+            default -> StreamingController.XML_BASE64_TEMPLATE.fingerprint();
+        };
+        assertThat(fingerprint).isEqualTo(expectedFingerprint);
+    }
+
     @Test
     void downloadJson1Base64() throws IOException {
 
@@ -112,6 +410,26 @@ class StreamingControllerIT {
         assertThat(new String(Base64.getDecoder().decode(base64_2), StandardCharsets.UTF_8)).startsWith("0123456789");
     }
 
+    @Test
+    void downloadXmlBase64() throws Exception {
+
+        byte[] body = webTestClient.get()
+            .uri("/xml-base64/file-10k.bin")
+            .exchange()
+            .expectStatus().isOk()
+            .expectHeader().contentType(MediaType.APPLICATION_XML_VALUE)
+            .expectBody(byte[].class)
+            .returnResult()
+            .getResponseBody();
+        assertThat(body).isNotNull();
+        Document document = DocumentBuilderFactory.newDefaultNSInstance().newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        Element element = (Element) document.getElementsByTagName("document").item(0);
+        assertThat(element.getAttribute("name")).isEqualTo("file-10k.bin");
+        String base64 = element.getElementsByTagName("content").item(0).getTextContent();
+        assertThat(base64.split("\n")).allSatisfy(line -> assertThat(line.length()).isLessThanOrEqualTo(76));
+        assertThat(new String(Base64.getMimeDecoder().decode(base64), StandardCharsets.UTF_8)).startsWith("0123456789");
+    }
+
     @Test
     void uploadFileSmall() {
         String filename = "post-" + UUID.randomUUID() + ".txt";
@@ -126,7 +444,8 @@ class StreamingControllerIT {
             .expectBody(MAP)
             .value(value -> assertThat(value).containsExactlyInAnyOrderEntriesOf(Map.of(
                 "success", true,
-                "size", fileSize
+                "size", fileSize,
+                "sha256", sha256Hex(body)
             )));
 
         File target = new File(StreamingController.FILE_BASE, filename);
@@ -154,11 +473,179 @@ class StreamingControllerIT {
             .expectBody(MAP)
             .value(value -> assertThat(value).containsExactlyInAnyOrderEntriesOf(Map.of(
                 "success", true,
-                "size", -1
+                "size", fileSize.intValue(),
+                "sha256", sha256Hex("0123456789".repeat(1000).getBytes(StandardCharsets.UTF_8))
             )));
 
         File target = new File(StreamingController.FILE_BASE, filename);
         assertThat(target).exists().hasSize(fileSize.get());
         assertThat(target.delete()).isTrue();
     }
-}
\ No newline at end of file
+
+    @Test
+    void uploadFileDuplicate() throws IOException {
+
+        byte[] body = "duplicate content".getBytes(StandardCharsets.UTF_8);
+        String sha256 = "b79f8c07798dcc75d6f288e6a620644a88a9c67e74019a57b88a5bfd918e4b0f";
+        String first = "post-" + UUID.randomUUID() + ".txt";
+        String second = "post-" + UUID.randomUUID() + ".txt";
+        for (String filename : List.of(first, second)) {
+            webTestClient.post()
+                .uri("/file/{filename}", filename)
+                .contentType(MediaType.TEXT_PLAIN)
+                .bodyValue(body)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, "\"" + sha256 + "\"")
+                .expectBody(MAP)
+                .value(value -> assertThat(value).containsEntry("sha256", sha256));
+        }
+
+        File firstFile = new File(StreamingController.FILE_BASE, first);
+        File secondFile = new File(StreamingController.FILE_BASE, second);
+        assertThat(Files.isSameFile(firstFile.toPath(), secondFile.toPath())).isTrue();
+        assertThat(firstFile.delete()).isTrue();
+        assertThat(secondFile.delete()).isTrue();
+    }
+
+    @Test
+    void uploadFileReplacesLongerFile() throws IOException {
+
+        String filename = "post-" + UUID.randomUUID() + ".txt";
+        File target = new File(StreamingController.FILE_BASE, filename);
+        Files.writeString(target.toPath(), "0123456789".repeat(100));
+        webTestClient.post()
+            .uri("/file/{filename}", filename)
+            .contentType(MediaType.TEXT_PLAIN)
+            .bodyValue("short".getBytes(StandardCharsets.UTF_8))
+            .exchange()
+            .expectStatus().isOk();
+
+        assertThat(target).hasContent("short");
+        assertThat(StreamingController.FILE_BASE.list((dir, name) -> name.startsWith("." + filename))).isEmpty();
+        assertThat(target.delete()).isTrue();
+    }
+
+    @Test
+    void downloadFileReplacedByUpload() {
+
+        String filename = "post-" + UUID.randomUUID() + ".txt";
+        for (String content : List.of("0123456789".repeat(100), "short")) {
+            webTestClient.post()
+                .uri("/file/{filename}", filename)
+                .contentType(MediaType.TEXT_PLAIN)
+                .bodyValue(content.getBytes(StandardCharsets.UTF_8))
+                .exchange()
+                .expectStatus().isOk();
+            // the included file is read by the shared channel, which must not be used for the second version
+            webTestClient.get()
+                .uri("/base64-1/{filename}", filename)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(MAP)
+                .value(value -> assertThat(value).containsEntry("attribute2",
+                    Base64.getEncoder().encodeToString(content.getBytes(StandardCharsets.UTF_8))));
+        }
+        assertThat(new File(StreamingController.FILE_BASE, filename).delete()).isTrue();
+    }
+
+    @Test
+    void uploadJsonBase64() {
+
+        byte[] content = "0123456789".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        String base64 = Base64.getEncoder().encodeToString(content);
+        Flux<ByteBuffer> publisher = Flux.just("{\"title\":\"ten\",\"data\":\"", base64, "\",\"tags\":[\"a\"]}")
+            .map(part -> ByteBuffer.wrap(part.getBytes(StandardCharsets.UTF_8)));
+        String filename = "post-" + UUID.randomUUID() + ".txt";
+        webTestClient.post()
+            .uri("/json-base64/{filename}?attribute=data", filename)
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(BodyInserters.fromPublisher(publisher, ByteBuffer.class))
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(MAP)
+            .value(value -> assertThat(value).containsExactlyInAnyOrderEntriesOf(Map.of(
+                "success", true,
+                "size", content.length,
+                "metadata", Map.of("title", "ten", "tags", List.of("a"))
+            )));
+
+        File target = new File(StreamingController.FILE_BASE, filename);
+        assertThat(target).exists().hasBinaryContent(content);
+        assertThat(target.delete()).isTrue();
+    }
+
+    @Test
+    void uploadJsonBase64Invalid() {
+
+        String filename = "post-" + UUID.randomUUID() + ".txt";
+        webTestClient.post()
+            .uri("/json-base64/{filename}", filename)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue("{\"content\":\"b25*\"}")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody(MAP)
+            .value(value -> assertThat(value).containsEntry("success", false));
+
+        // the file may have been created before the error was detected
+        new File(StreamingController.FILE_BASE, filename).delete();
+    }
+
+    @Test
+    void uploadJsonAttachments() {
+
+        String base = "post-" + UUID.randomUUID();
+        StringBuilder json = new StringBuilder("{\"id\":7,\"documents\":[");
+        for (int i = 1; i <= 3; i++) {
+            String base64 = Base64.getEncoder().encodeToString(("document" + i).repeat(1000 * i).getBytes(StandardCharsets.UTF_8));
+            json.append(i > 1 ? "," : "").append("{\"name\":\"d").append(i).append("\",\"data\":\"").append(base64).append("\"}");
+        }
+        json.append("]}");
+        webTestClient.post()
+            .uri("/json-attachments/{filename}?pointer=/documents/*/data", base + ".bin")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(json.toString())
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody(MAP)
+            .value(value -> {
+                assertThat(value).containsEntry("success", true);
+                // the attachments are null in the metadata
+                assertThat(value.get("metadata")).hasToString("{id=7, documents=[{name=d1, data=null}, {name=d2, data=null}, {name=d3, data=null}]}");
+                assertThat(value.get("attachments")).isEqualTo(List.of(
+                    Map.of("pointer", "/documents/0/data", "file", base + "-1.bin", "size", 9000),
+                    Map.of("pointer", "/documents/1/data", "file", base + "-2.bin", "size", 18000),
+                    Map.of("pointer", "/documents/2/data", "file", base + "-3.bin", "size", 27000)));
+            });
+
+        for (int i = 1; i <= 3; i++) {
+            File target = new File(StreamingController.FILE_BASE, base + "-" + i + ".bin");
+            assertThat(target).hasBinaryContent(("document" + i).repeat(1000 * i).getBytes(StandardCharsets.UTF_8));
+            assertThat(target.delete()).isTrue();
+        }
+    }
+
+    private void upload(String filename, String content) {
+        webTestClient.post()
+            .uri("/file/{filename}", filename)
+            .contentType(MediaType.TEXT_PLAIN)
+            .bodyValue(content.getBytes(StandardCharsets.UTF_8))
+            .exchange()
+            .expectStatus().isOk();
+    }
+
+    private static byte[] toByteArray(Flux<ByteBuffer> body) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FluxUtil.writeToOutputStream(body, byteArrayOutputStream).block();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static String sha256Hex(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
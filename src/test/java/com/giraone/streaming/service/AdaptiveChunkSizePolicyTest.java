@@ -0,0 +1,70 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdaptiveChunkSizePolicyTest {
+
+    private static final AdaptiveChunkSizePolicy POLICY = new AdaptiveChunkSizePolicy(16384, 4194304, 2_000_000L, 50_000_000L,
+        8388608L);
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,16384",
+        "10000,16384",
+        "1048576,16384",
+        "2097152,32768",
+        "10000000,131072",
+        "16777216,262144",
+        "10000000000,262144"
+    })
+    void initialChunkSize(long length, int expectedChunkSize) {
+
+        // act
+        int chunkSize = POLICY.initialChunkSize(length);
+        // assert
+        assertThat(chunkSize).isEqualTo(expectedChunkSize);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "65536,0,131072",
+        "65536,1999999,131072",
+        "4194304,0,4194304",
+        "65536,2000000,65536",
+        "65536,50000000,65536",
+        "65536,50000001,32768",
+        "16384,900000000,16384"
+    })
+    void nextChunkSize(int currentChunkSize, long readyNanos, int expectedChunkSize) {
+
+        // act
+        int chunkSize = POLICY.nextChunkSize(currentChunkSize, readyNanos);
+        // assert
+        assertThat(chunkSize).isEqualTo(expectedChunkSize);
+    }
+
+    @Test
+    void defaultFitsIntoOutstandingBuffers() {
+
+        // arrange - a fast consumer grows the chunks up to the maximum
+        AdaptiveChunkSizePolicy policy = AdaptiveChunkSizePolicy.DEFAULT;
+        int largestChunkSize = policy.nextChunkSize(policy.initialChunkSize(Long.MAX_VALUE), 0L);
+        // act - read-ahead x largest chunk x prefetch of Netty
+        long worstCase = FluxUtil.DEFAULT_READ_AHEAD * (long) largestChunkSize * 128;
+        // assert
+        assertThat(worstCase).isLessThanOrEqualTo(64L * 1024 * 1024);
+        assertThat(policy.maxUnreleasedBytes()).isEqualTo(2L * 1024 * 1024);
+    }
+
+    @Test
+    void maxUnreleasedBytesBelowMaxChunkSize() {
+
+        assertThatThrownBy(() -> new AdaptiveChunkSizePolicy(16384, 65536, 0L, 0L, 65535))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,160 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @CsvSource({
+        "'',e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+        "abc,ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"
+    })
+    void storeComputesDigest(String content, String expectedSha256) throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        Path target = directory.resolve("file.txt");
+        // act
+        BlobStore.StoredBlob storedBlob = blobStore.store(chunks(content, 2), target).block(Duration.ofSeconds(10));
+        // assert
+        assertThat(storedBlob).isEqualTo(new BlobStore.StoredBlob(expectedSha256, content.length(), false));
+        assertThat(Files.readString(target)).isEqualTo(content);
+        assertThat(Files.isSameFile(target, blobStore.blobPath(expectedSha256))).isTrue();
+    }
+
+    @Test
+    void storeDuplicate() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        String content = "0123456789".repeat(1000);
+        BlobStore.StoredBlob first = blobStore.store(chunks(content, 1000), directory.resolve("first.txt")).block(Duration.ofSeconds(10));
+        // act
+        BlobStore.StoredBlob second = blobStore.store(chunks(content, 333), directory.resolve("second.txt")).block(Duration.ofSeconds(10));
+        // assert
+        assertThat(first.duplicate()).isFalse();
+        assertThat(second.duplicate()).isTrue();
+        assertThat(second.sha256()).isEqualTo(first.sha256());
+        assertThat(Files.isSameFile(directory.resolve("first.txt"), directory.resolve("second.txt"))).isTrue();
+        assertThat(countFiles()).isEqualTo(3);
+    }
+
+    @Test
+    void storeDuplicateUnderSameName() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        Path target = directory.resolve("file.txt");
+        blobStore.store(chunks("content", 4), target).block(Duration.ofSeconds(10));
+        // act
+        BlobStore.StoredBlob second = blobStore.store(chunks("content", 3), target).block(Duration.ofSeconds(10));
+        // assert - no temporary link is left
+        assertThat(second.duplicate()).isTrue();
+        assertThat(Files.readString(target)).isEqualTo("content");
+        assertThat(countFiles()).isEqualTo(2);
+    }
+
+    @Test
+    void storeReplacesTarget() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        Path target = directory.resolve("file.txt");
+        BlobStore.StoredBlob old = blobStore.store(chunks("old content", 4), target).block(Duration.ofSeconds(10));
+        // act
+        blobStore.store(chunks("new", 4), target).block(Duration.ofSeconds(10));
+        // assert - the old blob is unchanged
+        assertThat(Files.readString(target)).isEqualTo("new");
+        assertThat(Files.readString(blobStore.blobPath(old.sha256()))).isEqualTo("old content");
+        assertThat(countFiles()).isEqualTo(3);
+    }
+
+    @Test
+    void storeDuplicateKeepsLastModified() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        BlobStore.StoredBlob first = blobStore.store(chunks("content", 4), directory.resolve("first.txt")).block(Duration.ofSeconds(10));
+        Path blob = blobStore.blobPath(first.sha256());
+        FileTime stored = FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS));
+        Files.setLastModifiedTime(blob, stored);
+        // act
+        blobStore.store(chunks("content", 3), directory.resolve("second.txt")).block(Duration.ofSeconds(10));
+        // assert - the names of the blob are not modified by another name
+        assertThat(Files.getLastModifiedTime(directory.resolve("first.txt"))).isEqualTo(stored);
+    }
+
+    @Test
+    void storeOverNewerFileTouchesBlob() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        BlobStore.StoredBlob first = blobStore.store(chunks("content", 4), directory.resolve("first.txt")).block(Duration.ofSeconds(10));
+        Files.setLastModifiedTime(blobStore.blobPath(first.sha256()), FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        Path target = Files.writeString(directory.resolve("second.txt"), "newer");
+        FileTime replaced = Files.getLastModifiedTime(target);
+        // act
+        blobStore.store(chunks("content", 3), target).block(Duration.ofSeconds(10));
+        // assert - the Last-Modified of the replaced name does not go back
+        assertThat(Files.readString(target)).isEqualTo("content");
+        assertThat(Files.getLastModifiedTime(target)).isGreaterThanOrEqualTo(replaced);
+    }
+
+    @Test
+    void sweepDeletesUnusedBlobs() throws IOException {
+
+        // arrange
+        BlobStore blobStore = newBlobStore();
+        Path target = directory.resolve("file.txt");
+        BlobStore.StoredBlob old = blobStore.store(chunks("old content", 4), target).block(Duration.ofSeconds(10));
+        BlobStore.StoredBlob shared = blobStore.store(chunks("shared", 4), directory.resolve("other.txt")).block(Duration.ofSeconds(10));
+        blobStore.store(chunks("shared", 4), target).block(Duration.ofSeconds(10));
+        // act
+        int deleted = blobStore.sweep();
+        // assert
+        assertThat(deleted).isEqualTo(1);
+        assertThat(blobStore.blobPath(old.sha256())).doesNotExist();
+        assertThat(Files.readString(blobStore.blobPath(shared.sha256()))).isEqualTo("shared");
+        assertThat(Files.readString(target)).isEqualTo("shared");
+        assertThat(blobStore.sweep()).isZero();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private BlobStore newBlobStore() {
+        return new BlobStore(directory, new FileCommitter(FileCommitter.Policy.NONE, Duration.ZERO, 1), 4096, 2);
+    }
+
+    private static Flux<ByteBuffer> chunks(String content, int chunkSize) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return Flux.range(0, (bytes.length + chunkSize - 1) / chunkSize)
+            .map(i -> ByteBuffer.wrap(bytes, i * chunkSize, Math.min(chunkSize, bytes.length - i * chunkSize)));
+    }
+
+    // the target files and the blobs, but no temporary files
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DirectBufferPoolTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "1,4096",
+        "4096,4096",
+        "4097,8192",
+        "65536,65536",
+        "4194304,4194304",
+        "4194305,4194305"
+    })
+    void acquire(int capacity, int expectedCapacity) {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        // act
+        ByteBuffer buffer = pool.acquire(capacity);
+        // assert
+        assertThat(buffer.isDirect()).isTrue();
+        assertThat(buffer.capacity()).isEqualTo(expectedCapacity);
+        assertThat(buffer.limit()).isEqualTo(capacity);
+        assertThat(pool.getOutstanding()).isEqualTo(1L);
+    }
+
+    @Test
+    void acquireAfterReleaseIsHit() {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        ByteBuffer first = pool.acquire(10000);
+        pool.release(first);
+        // act
+        ByteBuffer second = pool.acquire(9000);
+        // assert
+        assertThat(second).isSameAs(first);
+        assertThat(pool.getMisses()).isEqualTo(1L);
+        assertThat(pool.getHits()).isEqualTo(1L);
+        assertThat(pool.getOutstanding()).isEqualTo(1L);
+    }
+
+    @Test
+    void releasedDataBufferReturnsToPool() {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.acquire(4096);
+        buffer.put("0123456789".getBytes(StandardCharsets.UTF_8)).flip();
+        // act
+        DataBuffer dataBuffer = pool.toDataBuffer(buffer);
+        String content = dataBuffer.toString(StandardCharsets.UTF_8);
+        DataBufferUtils.release(dataBuffer);
+        // assert
+        assertThat(content).isEqualTo("0123456789");
+        assertThat(pool.getOutstanding()).isZero();
+        assertThat(pool.getPooledBytes()).isEqualTo(4096L);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "1048576,true",
+        "0,false"
+    })
+    void releasedDataBufferNotifies(long maxOutstandingBytes, boolean expectedDirect) {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024, maxOutstandingBytes);
+        ByteBuffer buffer = pool.acquire(4096);
+        buffer.put("0123456789".getBytes(StandardCharsets.UTF_8)).flip();
+        AtomicInteger released = new AtomicInteger();
+        // act
+        DataBuffer dataBuffer = pool.toDataBuffer(buffer, released::incrementAndGet);
+        String content = dataBuffer.toString(StandardCharsets.UTF_8);
+        int releasedBefore = released.get();
+        DataBufferUtils.release(dataBuffer);
+        // assert
+        assertThat(buffer.isDirect()).isEqualTo(expectedDirect);
+        assertThat(content).isEqualTo("0123456789");
+        assertThat(releasedBefore).isZero();
+        assertThat(released.get()).isEqualTo(1);
+        assertThat(pool.getOutstanding()).isZero();
+    }
+
+    @Test
+    void pooledBytesAreLimitedOverAllSizeClasses() {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(16384);
+        ByteBuffer small1 = pool.acquire(4096);
+        ByteBuffer small2 = pool.acquire(4096);
+        ByteBuffer medium = pool.acquire(8192);
+        ByteBuffer large = pool.acquire(8192);
+        // act
+        pool.release(small1);
+        pool.release(medium);
+        pool.release(large);
+        pool.release(small2);
+        // assert
+        assertThat(pool.getPooledBytes()).isEqualTo(16384L);
+        assertThat(pool.acquire(8192)).isSameAs(medium);
+        assertThat(pool.acquire(8192)).isNotSameAs(large);
+        assertThat(pool.getHits()).isEqualTo(1L);
+    }
+
+    @Test
+    void outstandingBytesAreLimited() {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024, 12288);
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(8192);
+        // act
+        ByteBuffer fallback = pool.acquire(4096);
+        DataBuffer fallbackDataBuffer = pool.toDataBuffer(fallback.put((byte) 'x').flip());
+        String fallbackContent = fallbackDataBuffer.toString(StandardCharsets.UTF_8);
+        DataBufferUtils.release(fallbackDataBuffer);
+        pool.release(first);
+        ByteBuffer third = pool.acquire(4096);
+        // assert
+        assertThat(first.isDirect()).isTrue();
+        assertThat(second.isDirect()).isTrue();
+        assertThat(fallback.isDirect()).isFalse();
+        assertThat(fallback.capacity()).isEqualTo(4096);
+        assertThat(fallbackContent).isEqualTo("x");
+        assertThat(third).isSameAs(first);
+        assertThat(pool.getFallbacks()).isEqualTo(1L);
+        assertThat(pool.getOutstanding()).isEqualTo(2L);
+        assertThat(pool.getOutstandingBytes()).isEqualTo(12288L);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "65536,28672",
+        "16384,12288",
+        "4096,4096",
+        "0,0"
+    })
+    void setMaxPooledBytes(long maxPooledBytes, long expectedPooledBytes) {
+
+        // arrange
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        ByteBuffer small = pool.acquire(4096);
+        ByteBuffer medium = pool.acquire(8192);
+        ByteBuffer large = pool.acquire(16384);
+        pool.release(small);
+        pool.release(medium);
+        pool.release(large);
+        // act
+        pool.setMaxPooledBytes(maxPooledBytes);
+        // assert
+        assertThat(pool.getPooledBytes()).isEqualTo(expectedPooledBytes);
+        assertThat(pool.getMaxPooledBytes()).isEqualTo(maxPooledBytes);
+    }
+}
@@ -0,0 +1,157 @@
+package com.giraone.streaming.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileChannelFactoryTest {
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @CsvSource({
+        "AIO,true",
+        "AIO,false",
+        "VIRTUAL_THREADS,true",
+        "VIRTUAL_THREADS,false",
+    })
+    void writeAndRead(FileIoEngine engine, boolean splitPools) throws IOException {
+
+        // arrange
+        FileChannelFactory factory = FileChannelFactory.create(engine, 2, 2, splitPools);
+        byte[] content = new byte[300000];
+        new Random(300000).nextBytes(content);
+        Path path = directory.resolve("file.bin");
+        Flux<ByteBuffer> chunks = Flux.range(0, content.length / 1000)
+            .map(i -> ByteBuffer.wrap(content, i * 1000, 1000));
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        // act
+        try (AsynchronousFileChannel channel = factory.openForWrite(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            FluxUtil.writeFile(chunks, channel, 0L, 65536, 4).block();
+        }
+        try (AsynchronousFileChannel channel = factory.openForRead(path)) {
+            FluxUtil.writeToOutputStream(FluxUtil.readFile(channel, 4096, 4, 0, content.length), byteArrayOutputStream).block();
+        }
+        // assert
+        assertThat(Files.readAllBytes(path)).isEqualTo(content);
+        assertThat(byteArrayOutputStream.toByteArray()).isEqualTo(content);
+    }
+
+    @Test
+    void metrics() throws IOException, InterruptedException {
+
+        // arrange
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        FileChannelFactory.METRICS.bindTo(registry);
+        FileChannelFactory factory = FileChannelFactory.create(FileIoEngine.AIO, 2, 1, true);
+        byte[] content = new byte[10000];
+        Path path = directory.resolve("metrics.bin");
+        Files.write(path, content);
+        // act
+        try (AsynchronousFileChannel channel = factory.openForRead(path)) {
+            FluxUtil.writeToOutputStream(FluxUtil.readFile(channel, 4096, 1, 0, content.length), new ByteArrayOutputStream()).block();
+        }
+        // assert - a completion is recorded, after its handler returned, so the last one may follow the response
+        Timer completion = registry.find("streaming.io.completion").tag("engine", "aio").tag("pool", "read").timer();
+        assertThat(completion).isNotNull();
+        for (int i = 0; i < 100 && completion.count() < 3L; i++) {
+            Thread.sleep(10);
+        }
+        assertThat(completion.count()).isEqualTo(3L);
+        assertThat(registry.find("streaming.io.queued").tag("pool", "read").gauge()).isNotNull();
+        assertThat(registry.find("streaming.io.active").tag("pool", "write").gauge()).isNotNull();
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "complete",
+        "error",
+        "cancel"
+    })
+    void readAndWriteCloseChannel(String outcome) throws IOException {
+
+        // arrange
+        long open = FileChannelFactory.METRICS.getOpen();
+        Path path = directory.resolve("scoped.bin");
+        Flux<ByteBuffer> chunks = Flux.range(0, 100).map(i -> ByteBuffer.wrap(new byte[1000]));
+        // act
+        FileChannelFactory.DEFAULT.write(path, channel -> FluxUtil.writeFile(chunks, channel),
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).block();
+        Flux<ByteBuffer> read = FileChannelFactory.DEFAULT.read(path, channel -> switch (outcome) {
+            case "error" -> FluxUtil.readFile(channel, 1000).concatWith(Flux.error(new IOException("failed")));
+            case "cancel" -> FluxUtil.readFile(channel, 1000).take(3);
+            default -> FluxUtil.readFile(channel, 1000);
+        });
+        // assert
+        if (outcome.equals("error")) {
+            assertThatThrownBy(read::blockLast).hasCauseInstanceOf(IOException.class);
+        } else {
+            assertThat(read.collectList().block()).hasSize(outcome.equals("cancel") ? 3 : 100);
+        }
+        assertThat(Files.size(path)).isEqualTo(100000L);
+        assertThat(FileChannelFactory.METRICS.getOpen()).isEqualTo(open);
+    }
+
+    @Test
+    void mappingChannelIsCounted() throws IOException {
+
+        // arrange
+        Path path = Files.write(directory.resolve("mapped.bin"), new byte[10]);
+        long open = FileChannelFactory.METRICS.getOpen();
+        // act
+        FileChannel channel = FileChannelFactory.DEFAULT.openForMapping(path);
+        long openWhileMapped = FileChannelFactory.METRICS.getOpen();
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0L, 10L);
+        channel.close();
+        channel.close();
+        // assert - the mapping stays valid
+        assertThat(openWhileMapped).isEqualTo(open + 1);
+        assertThat(FileChannelFactory.METRICS.getOpen()).isEqualTo(open);
+        assertThat(mapped.get(9)).isZero();
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "false",
+        "true"
+    })
+    void leakedChannelIsClosed(boolean mapping) throws IOException, InterruptedException {
+
+        // arrange
+        Path path = Files.write(directory.resolve("leaked.bin"), new byte[10]);
+        long open = FileChannelFactory.METRICS.getOpen();
+        long leaked = FileChannelFactory.METRICS.getLeaked();
+        FileChannelFactory factory = new FileChannelFactory(null, null, FileChannelFactory.LeakDetection.PARANOID);
+        // act - the channel is never closed
+        if (mapping) {
+            factory.openForMapping(path);
+        } else {
+            factory.openForRead(path);
+        }
+        for (int i = 0; i < 100 && FileChannelFactory.METRICS.getLeaked() == leaked; i++) {
+            System.gc();
+            Thread.sleep(50L);
+        }
+        // assert
+        assertThat(FileChannelFactory.METRICS.getLeaked()).isEqualTo(leaked + 1);
+        assertThat(FileChannelFactory.METRICS.getOpen()).isEqualTo(open);
+    }
+}
@@ -0,0 +1,157 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FileCommitterTest {
+
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @EnumSource(FileCommitter.Policy.class)
+    void commitReplacesTarget(FileCommitter.Policy policy) throws IOException {
+
+        // arrange
+        FileCommitter fileCommitter = new FileCommitter(policy, Duration.ofMillis(1), 8);
+        Path target = directory.resolve("file.txt");
+        Files.writeString(target, "old content, that is longer");
+        // act
+        write(fileCommitter, target, "new content").block(Duration.ofSeconds(10));
+        // assert
+        assertThat(Files.readString(target)).isEqualTo("new content");
+        assertThat(listDirectory()).containsExactly("file.txt");
+    }
+
+    @Test
+    void commitKeepsDefaultPermissions() throws IOException {
+
+        // arrange - a file created without explicit permissions gets those of the umask
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path reference = Files.createFile(directory.resolve("reference.txt"));
+        Set<PosixFilePermission> expected = Files.getPosixFilePermissions(reference);
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.NONE, Duration.ofMillis(1), 8);
+        Path target = directory.resolve("file.txt");
+        // act
+        write(fileCommitter, target, "new content").block(Duration.ofSeconds(10));
+        // assert
+        assertThat(Files.getPosixFilePermissions(target)).isEqualTo(expected);
+    }
+
+    @Test
+    void groupCommitWhenFull() throws IOException {
+
+        // arrange - the window never ends within the test
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.GROUP, Duration.ofHours(1), 3);
+        List<Mono<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            commits.add(write(fileCommitter, directory.resolve("file-" + i + ".txt"), "content-" + i));
+        }
+        // act
+        Mono.when(commits).block(Duration.ofSeconds(10));
+        // assert
+        assertThat(listDirectory()).containsExactly("file-0.txt", "file-1.txt", "file-2.txt");
+        assertThat(Files.readString(directory.resolve("file-2.txt"))).isEqualTo("content-2");
+    }
+
+    @Test
+    void groupCommitWhenWindowEnds() throws IOException {
+
+        // arrange
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.GROUP, Duration.ofMillis(20), 100);
+        List<Mono<Void>> commits = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            commits.add(write(fileCommitter, directory.resolve("file-" + i + ".txt"), "content-" + i));
+        }
+        // act
+        Mono.when(commits).block(Duration.ofSeconds(10));
+        // assert
+        assertThat(listDirectory()).hasSize(5);
+    }
+
+    @Test
+    void failedCommitDeletesTempFile() throws IOException {
+
+        // arrange - a non-empty directory cannot be replaced by a file
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.GROUP, Duration.ofMillis(1), 8);
+        Path target = directory.resolve("sub");
+        Files.createDirectory(target);
+        Files.writeString(target.resolve("other.txt"), "other");
+        Mono<Void> commit = write(fileCommitter, target, "content");
+        // act + assert
+        assertThatThrownBy(() -> commit.block(Duration.ofSeconds(10))).hasCauseInstanceOf(IOException.class);
+        assertThat(listDirectory()).containsExactly("sub");
+    }
+
+    @Test
+    void failedWriteDeletesTempFile() throws IOException {
+
+        // arrange
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.PER_FILE, Duration.ofMillis(1), 8);
+        Path target = directory.resolve("file.txt");
+        Files.writeString(target, "old content");
+        Flux<ByteBuffer> failing = Flux.concat(Flux.just(ByteBuffer.wrap(new byte[] { 1, 2, 3 })),
+            Flux.error(new IOException("Upload aborted")));
+        Mono<Void> commit = fileCommitter.writeAndCommit(target, FileChannelFactory.DEFAULT,
+            channel -> FluxUtil.writeFile(failing, channel));
+        // act + assert
+        assertThatThrownBy(() -> commit.block(Duration.ofSeconds(10))).hasCauseInstanceOf(IOException.class);
+        assertThat(listDirectory()).containsExactly("file.txt");
+        assertThat(Files.readString(target)).isEqualTo("old content");
+    }
+
+    @Test
+    void groupCommitWithFailedFile() throws IOException {
+
+        // arrange - the window never ends within the test
+        FileCommitter fileCommitter = new FileCommitter(FileCommitter.Policy.GROUP, Duration.ofHours(1), 3);
+        Path failing = directory.resolve("sub");
+        Files.createDirectory(failing);
+        Files.writeString(failing.resolve("other.txt"), "other");
+        Mono<Void> failed = write(fileCommitter, failing, "content").cache();
+        List<Mono<Void>> commits = List.of(
+            write(fileCommitter, directory.resolve("file-0.txt"), "content-0"),
+            failed.onErrorResume(IOException.class, e -> Mono.empty()),
+            write(fileCommitter, directory.resolve("file-1.txt"), "content-1"));
+        // act
+        Mono.when(commits).block(Duration.ofSeconds(10));
+        // assert - the other files of the group are committed
+        assertThatThrownBy(() -> failed.block(Duration.ofSeconds(10))).hasCauseInstanceOf(IOException.class);
+        assertThat(listDirectory()).containsExactly("file-0.txt", "file-1.txt", "sub");
+        assertThat(Files.readString(directory.resolve("file-1.txt"))).isEqualTo("content-1");
+    }
+
+    private static Mono<Void> write(FileCommitter fileCommitter, Path target, String content) {
+
+        return fileCommitter.writeAndCommit(target, FileChannelFactory.DEFAULT, channel -> FluxUtil.writeFile(
+            Flux.just(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8))), channel));
+    }
+
+    private List<String> listDirectory() throws IOException {
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+}
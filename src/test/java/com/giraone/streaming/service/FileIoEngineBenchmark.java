@@ -0,0 +1,123 @@
+package com.giraone.streaming.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link FileIoEngine engines} for concurrent downloads and uploads of 4 MiB files: each of 8 benchmark
+ * threads opens a file, reads or writes it with the same {@link FluxUtil} methods and closes it. The sample mode
+ * reports the percentiles (e.g. {@code p0.99}) of one operation. The channels are opened by a
+ * {@link FileChannelFactory} with 64 reads and 64 writes in flight. The number of platform threads - the engine
+ * {@link FileIoEngine#AIO} starts a thread per concurrent read, virtual threads share the carrier threads - is
+ * printed after each iteration as {@code live} and {@code peak} threads.
+ * <p>
+ * Run {@link #main(String[])} from the IDE or with the test classpath after {@code mvn test-compile}. On Java 17 the
+ * engine {@link FileIoEngine#VIRTUAL_THREADS} falls back to a bounded pool of platform threads, so use a Java 21
+ * runtime to measure virtual threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class FileIoEngineBenchmark {
+
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"AIO", "VIRTUAL_THREADS"})
+    public FileIoEngine engine;
+
+    private FileChannelFactory channels;
+    private Path path;
+    private ByteBuffer[] chunks;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    @Setup
+    public void setup() throws IOException {
+        channels = FileChannelFactory.create(engine, 64, 64, true);
+        final byte[] content = new byte[FILE_SIZE];
+        new Random(0).nextBytes(content);
+        path = Files.createTempFile("engine-benchmark-", ".bin");
+        Files.write(path, content);
+        chunks = new ByteBuffer[FILE_SIZE / CHUNK_SIZE];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.wrap(content, i * CHUNK_SIZE, CHUNK_SIZE).slice();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(path);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeakThreads() {
+        threads.resetPeakThreadCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printThreads() {
+        System.out.printf("  threads: live=%d peak=%d%n", threads.getThreadCount(), threads.getPeakThreadCount());
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        try (AsynchronousFileChannel channel = channels.openForRead(path)) {
+            return FluxUtil.readFilePooled(channel, CHUNK_SIZE * 8, FluxUtil.DEFAULT_READ_AHEAD, 0, FILE_SIZE)
+                .map(dataBuffer -> {
+                    final int size = dataBuffer.readableByteCount();
+                    DataBufferUtils.release(dataBuffer);
+                    return (long) size;
+                })
+                .reduce(0L, Long::sum)
+                .block();
+        }
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        final Path target = Files.createTempFile(path.getParent(), "engine-benchmark-", ".tmp");
+        try (AsynchronousFileChannel channel = channels.openForWrite(target, StandardOpenOption.WRITE)) {
+            FluxUtil.writeFile(Flux.fromArray(chunks).map(ByteBuffer::duplicate), channel).block();
+        } finally {
+            Files.delete(target);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FileIoEngineBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,115 @@
+package com.giraone.streaming.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two modes of {@link ReadModePolicy} for a file in the page cache: positional reads into pooled buffers
+ * ({@link FluxUtil#readFilePooled}) and slices of memory mappings ({@link FluxUtil#readFileMapped}). Each operation
+ * opens the file, reads it in 64 KiB chunks and copies each chunk into a direct buffer, as a socket write would do,
+ * so the score is the average time of one download without the HTTP layer. The result decides the threshold of
+ * {@link ReadModePolicy#DEFAULT}.
+ * <p>
+ * Run {@link #main(String[])} from the IDE or with the test classpath after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileReadBenchmark {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param({"16384", "262144", "1048576", "16777216", "67108864"})
+    public int fileSize;
+
+    private Path path;
+    private ByteBuffer socket;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        path = Files.createTempFile("read-benchmark-", ".bin");
+        Files.write(path, content);
+        socket = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(path);
+    }
+
+    @Benchmark
+    public long async() throws IOException {
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            return FluxUtil.readFilePooled(channel, CHUNK_SIZE, FluxUtil.DEFAULT_READ_AHEAD, 0, fileSize)
+                .map(dataBuffer -> {
+                    try (var iterator = dataBuffer.readableByteBuffers()) {
+                        long copied = 0L;
+                        while (iterator.hasNext()) {
+                            copied += write(iterator.next());
+                        }
+                        return copied;
+                    } finally {
+                        DataBufferUtils.release(dataBuffer);
+                    }
+                })
+                .reduce(0L, Long::sum)
+                .block();
+        }
+    }
+
+    @Benchmark
+    public long mapped() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return FluxUtil.readFileMapped(channel, CHUNK_SIZE, 0, fileSize)
+                .map(this::write)
+                .reduce(0L, Long::sum)
+                .block();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FileReadBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private long write(ByteBuffer chunk) {
+        final int size = chunk.remaining();
+        socket.clear();
+        socket.put(chunk);
+        return size;
+    }
+}
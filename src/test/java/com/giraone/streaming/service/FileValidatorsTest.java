@@ -0,0 +1,117 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileValidatorsTest {
+
+    private static final String SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void validatorOfRegisteredFile() throws IOException {
+
+        // arrange
+        FileValidators fileValidators = new FileValidators(10);
+        Path blob = Files.writeString(directory.resolve("blob"), "abc");
+        Path link = Files.createLink(directory.resolve("link.txt"), blob);
+        // act
+        fileValidators.register(blob, SHA256);
+        FileValidators.Validator validator = fileValidators.validator(link);
+        // assert
+        assertThat(validator.eTag()).isEqualTo("\"" + SHA256 + "\"");
+        assertThat(validator.size()).isEqualTo(3L);
+        assertThat(validator.lastModified()).isEqualTo(Files.getLastModifiedTime(blob).toMillis());
+        assertThat(validator.version()).isEqualTo(new FileValidators(10).validator(link).eTag().replace("\"", ""));
+    }
+
+    @Test
+    void validatorOfReplacedFile() throws IOException {
+
+        // arrange
+        FileValidators fileValidators = new FileValidators(10);
+        Path file = Files.writeString(directory.resolve("file.txt"), "abc");
+        fileValidators.register(file, SHA256);
+        FileValidators.Validator old = fileValidators.validator(file);
+        // act - a replacement is a new file, that is renamed
+        Path temp = Files.writeString(directory.resolve("temp"), "xyz");
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileValidators.Validator validator = fileValidators.validator(file);
+        // assert
+        assertThat(validator.eTag()).isNotEqualTo(old.eTag()).startsWith("\"3-").endsWith("\"");
+        assertThat(fileValidators.validator(file)).isEqualTo(validator);
+    }
+
+    @Test
+    void validatorOfLeastRecentlyUsedDigestIsDropped() throws IOException {
+
+        // arrange
+        FileValidators fileValidators = new FileValidators(1);
+        Path first = Files.writeString(directory.resolve("first.txt"), "abc");
+        Path second = Files.writeString(directory.resolve("second.txt"), "def");
+        fileValidators.register(first, SHA256);
+        // act
+        fileValidators.register(second, SHA256.replace('a', 'b'));
+        // assert
+        assertThat(fileValidators.validator(first).eTag()).isNotEqualTo("\"" + SHA256 + "\"");
+        assertThat(fileValidators.validator(second).eTag()).isEqualTo("\"" + SHA256.replace('a', 'b') + "\"");
+    }
+
+    @Test
+    void validatorOfMissingFile() {
+
+        // arrange
+        FileValidators fileValidators = new FileValidators(10);
+        // act + assert
+        assertThatThrownBy(() -> fileValidators.validator(directory.resolve("missing.txt")))
+            .isInstanceOf(NoSuchFileException.class);
+        assertThatThrownBy(() -> fileValidators.validator(directory))
+            .isInstanceOf(NoSuchFileException.class);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "t,'\"a\" \"b\"',t,'\"a\" \"b\"',true",
+        "t,'\"a\" \"b\"',u,'\"a\" \"b\"',false",
+        "t,'\"a\" \"b\"',t,'\"b\" \"a\"',false",
+        "t,'\"a\" \"b\"',t,'\"a\" \"c\"',false",
+        "t,'\"a\"',t,'\"a\" \"a\"',false"
+    })
+    void combine(String fingerprint1, String eTags1, String fingerprint2, String eTags2, boolean expectedEqual) {
+
+        // act
+        FileValidators.Validator validator1 = FileValidators.combine(fingerprint1, validators(eTags1));
+        FileValidators.Validator validator2 = FileValidators.combine(fingerprint2, validators(eTags2));
+        // assert
+        assertThat(validator1.eTag()).hasSize(34);
+        assertThat(validator1.eTag().equals(validator2.eTag())).isEqualTo(expectedEqual);
+        assertThat(validator1.lastModified()).isEqualTo(eTags1.split(" ").length * 1000L);
+        assertThat(validator1.size()).isEqualTo(-1L);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    // the n-th validator was modified at n seconds
+    private static List<FileValidators.Validator> validators(String eTags) {
+
+        final String[] split = eTags.split(" ");
+        return IntStream.range(0, split.length)
+            .mapToObj(i -> new FileValidators.Validator(split[i], (i + 1) * 1000L, 1L, split[i]))
+            .toList();
+    }
+}
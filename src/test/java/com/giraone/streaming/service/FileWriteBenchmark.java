@@ -0,0 +1,194 @@
+package com.giraone.streaming.service;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the former one-write-per-chunk upload ({@link AsynchronousByteChannelWriteSubscriber}) with the
+ * coalescing {@link FileWriteSubscriber}. Each operation writes 16 MiB in chunks of the size, that Netty typically
+ * delivers for a request body, so the score in ops/s multiplied by 16 is the throughput in MiB/s. The number of
+ * {@link AsynchronousFileChannel#write} calls per operation - each one is at least one pwrite system call - is
+ * reported as {@code writes}.
+ * <p>
+ * This is the repeatable form of {@code load-test-upload.sh} without the HTTP layer.
+ * Run {@link #main(String[])} from the IDE or with the test classpath after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileWriteBenchmark {
+
+    private static final int TOTAL_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1024", "8192"})
+    public int chunkSize;
+
+    private ByteBuffer[] chunks;
+    private Path path;
+    private CountingFileChannel channel;
+
+    /**
+     * The write calls per operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Writes {
+        public long writes;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] content = new byte[TOTAL_SIZE];
+        new Random(0).nextBytes(content);
+        chunks = new ByteBuffer[TOTAL_SIZE / chunkSize];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.wrap(content, i * chunkSize, chunkSize).slice();
+        }
+        path = Files.createTempFile("write-benchmark-", ".bin");
+        channel = new CountingFileChannel(AsynchronousFileChannel.open(path, StandardOpenOption.WRITE));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.delete(path);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetCounter() {
+        channel.writes.set(0L);
+    }
+
+    @Benchmark
+    public void chunkByChunk(Writes writes) {
+        FluxUtil.writeToAsynchronousByteChannel(input(), IoChannelUtils.toAsynchronousByteChannel(channel, 0L)).block();
+        writes.writes += channel.writes.get();
+    }
+
+    @Benchmark
+    public void coalesced(Writes writes) {
+        FluxUtil.writeFile(input(), channel, 0L).block();
+        writes.writes += channel.writes.get();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FileWriteBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private Flux<ByteBuffer> input() {
+        return Flux.fromArray(chunks).map(ByteBuffer::duplicate);
+    }
+
+    /*
+     * Counts the write calls and delegates everything else.
+     */
+    static final class CountingFileChannel extends AsynchronousFileChannel {
+
+        private final AsynchronousFileChannel delegate;
+        final AtomicLong writes = new AtomicLong();
+
+        CountingFileChannel(AsynchronousFileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            writes.incrementAndGet();
+            delegate.write(src, position, attachment, handler);
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            writes.incrementAndGet();
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) throws IOException {
+            return delegate.truncate(size);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+            delegate.lock(position, size, shared, attachment, handler);
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            delegate.read(dst, position, attachment, handler);
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -1,14 +1,34 @@
 package com.giraone.streaming.service;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class FluxUtilTest {
 
@@ -45,4 +65,214 @@ class FluxUtilTest {
         // assert
         assertThat(byteArrayOutputStream.toString(StandardCharsets.UTF_8)).isEqualTo("0123456789");
     }
-}
\ No newline at end of file
+
+    @ParameterizedTest
+    @CsvSource({
+        "100000,4096,1,0,100000",
+        "100000,4096,4,0,100000",
+        "100000,1000,16,10,99990",
+        "100000,65536,4,50000,50000",
+        "100000,4096,4,0,200000",
+        "0,4096,4,0,0"
+    })
+    void readFileWithReadAhead(int fileSize, int chunkSize, int readAhead, long offset, long length) throws IOException {
+
+        // arrange
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Path path = Files.createTempFile("read-ahead-", ".bin");
+        Files.write(path, content);
+        int expectedLength = (int) Math.min(length, fileSize - offset);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            FluxUtil.writeToOutputStream(FluxUtil.readFile(channel, chunkSize, readAhead, offset, length), byteArrayOutputStream).block();
+        } finally {
+            Files.delete(path);
+        }
+        // assert
+        assertThat(byteArrayOutputStream.toByteArray()).isEqualTo(Arrays.copyOfRange(content, (int) offset, (int) offset + expectedLength));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "100000,4096,1048576,0,100000",
+        "100000,4096,10000,0,100000",
+        "100000,1000,4096,10,99990",
+        "100000,65536,30000,50000,50000",
+        "100000,4096,16384,0,200000",
+        "0,4096,4096,0,0"
+    })
+    void readFileMapped(int fileSize, int chunkSize, int windowSize, long offset, long length) throws IOException {
+
+        // arrange
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Path path = Files.createTempFile("mapped-", ".bin");
+        Files.write(path, content);
+        int expectedLength = (int) Math.min(length, fileSize - offset);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            Flux<ByteBuffer> chunks = FluxUtil.readFileMapped(channel, chunkSize, windowSize, offset, length)
+                .doOnNext(chunk -> assertThat(chunk.isReadOnly()).isTrue())
+                .doOnNext(chunk -> assertThat(chunk.remaining()).isLessThanOrEqualTo(chunkSize));
+            FluxUtil.writeToOutputStream(chunks, byteArrayOutputStream).block();
+        } finally {
+            Files.delete(path);
+        }
+        // assert
+        assertThat(byteArrayOutputStream.toByteArray()).isEqualTo(Arrays.copyOfRange(content, (int) offset, (int) offset + expectedLength));
+    }
+
+    @Test
+    void readFileMappedNotOnRequestingThread() throws IOException {
+
+        // arrange
+        Path path = Files.createTempFile("mapped-", ".bin");
+        Files.write(path, new byte[100000]);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // act - the first chunk of each window is emitted by the thread, that loaded the window
+            String thread = FluxUtil.readFileMapped(channel, 4096, 16384, 0, 100000)
+                .map(chunk -> Thread.currentThread().getName())
+                .blockFirst();
+            // assert
+            assertThat(thread).startsWith("boundedElastic");
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void readFilePooledIsReleasedOnCancel() throws IOException, InterruptedException {
+
+        // arrange
+        Path path = Files.createTempFile("read-ahead-", ".bin");
+        Files.write(path, new byte[1024 * 1024]);
+        long outstandingBefore = DirectBufferPool.DEFAULT.getOutstanding();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            FluxUtil.readFilePooled(channel, 4096, 8, 0, 1024 * 1024)
+                .take(3)
+                .doOnNext(DataBufferUtils::release)
+                .blockLast();
+        } finally {
+            Files.delete(path);
+        }
+        // assert - the reads in flight give their buffers back, when they complete
+        for (int i = 0; i < 50 && DirectBufferPool.DEFAULT.getOutstanding() != outstandingBefore; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(DirectBufferPool.DEFAULT.getOutstanding()).isEqualTo(outstandingBefore);
+    }
+
+    @Test
+    void readFilePooledWaitsForRelease() throws Exception {
+
+        // arrange - a subscriber, that requests all, but holds the chunks like Netty for a slow client
+        Path path = Files.createTempFile("read-ahead-", ".bin");
+        Files.write(path, new byte[1024 * 1024]);
+        AdaptiveChunkSizePolicy policy = new AdaptiveChunkSizePolicy(4096, 4096, 0L, Long.MAX_VALUE, 16384);
+        Queue<DataBuffer> held = new ConcurrentLinkedQueue<>();
+        AtomicBoolean releaseAll = new AtomicBoolean();
+        AtomicInteger emitted = new AtomicInteger();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            CompletableFuture<Void> done = FluxUtil.readFilePooled(channel, policy, 4, 0, 1024 * 1024)
+                .doOnNext(dataBuffer -> {
+                    emitted.incrementAndGet();
+                    if (releaseAll.get()) {
+                        DataBufferUtils.release(dataBuffer);
+                    } else {
+                        held.add(dataBuffer);
+                    }
+                })
+                .then()
+                .toFuture();
+            // act
+            for (int i = 0; i < 50 && emitted.get() < 4; i++) {
+                Thread.sleep(20);
+            }
+            Thread.sleep(100);
+            int emittedWhileHeld = emitted.get();
+            releaseAll.set(true);
+            held.forEach(DataBufferUtils::release);
+            done.get(10, TimeUnit.SECONDS);
+            // assert
+            assertThat(emittedWhileHeld).isEqualTo(4);
+            assertThat(emitted.get()).isEqualTo(256);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1000,4096,2,0",
+        "100000,1000,4096,2,0",
+        "100000,4096,4096,1,0",
+        "100000,8192,4096,4,0",
+        "100000,3000,65536,4,10",
+        "1000000,7000,262144,4,0",
+        "1000000,1000000,65536,2,0"
+    })
+    void writeFileCoalesced(int fileSize, int chunkSize, int batchSize, int maxBatches, long position) throws IOException {
+
+        // arrange
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Flux<ByteBuffer> chunks = Flux.range(0, (fileSize + chunkSize - 1) / chunkSize)
+            .map(i -> ByteBuffer.wrap(content, i * chunkSize, Math.min(chunkSize, fileSize - i * chunkSize)));
+        Path path = Files.createTempFile("write-batches-", ".bin");
+        long outstandingBefore = DirectBufferPool.DEFAULT.getOutstanding();
+        byte[] written;
+        try {
+            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE)) {
+                // act
+                FluxUtil.writeFile(chunks, channel, position, batchSize, maxBatches).block();
+            }
+            written = Files.readAllBytes(path);
+        } finally {
+            Files.delete(path);
+        }
+        // assert
+        assertThat(written).hasSize((int) position + fileSize);
+        assertThat(Arrays.copyOfRange(written, (int) position, written.length)).isEqualTo(content);
+        assertThat(DirectBufferPool.DEFAULT.getOutstanding()).isEqualTo(outstandingBefore);
+    }
+
+    @Test
+    void writeFileFailsOnUpstreamError() throws IOException {
+
+        // arrange
+        Flux<ByteBuffer> chunks = Flux.concat(
+            Flux.just(ByteBuffer.wrap(new byte[1000])),
+            Flux.error(new IllegalStateException("upload aborted")));
+        Path path = Files.createTempFile("write-batches-", ".bin");
+        long outstandingBefore = DirectBufferPool.DEFAULT.getOutstanding();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE)) {
+            // act
+            Mono<Void> write = FluxUtil.writeFile(chunks, channel, 0L, 4096, 2);
+            // assert
+            assertThatThrownBy(write::block).isInstanceOf(IllegalStateException.class).hasMessage("upload aborted");
+        } finally {
+            Files.delete(path);
+        }
+        assertThat(DirectBufferPool.DEFAULT.getOutstanding()).isEqualTo(outstandingBefore);
+    }
+
+    @Test
+    void writeFileFailsOnReadOnlyChannel() throws IOException {
+
+        // arrange
+        Flux<ByteBuffer> chunks = Flux.just(ByteBuffer.wrap(new byte[1000]));
+        Path path = Files.createTempFile("write-batches-", ".bin");
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            Mono<Void> write = FluxUtil.writeFile(chunks, channel);
+            // assert
+            assertThatThrownBy(write::block).isInstanceOf(NonWritableChannelException.class);
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
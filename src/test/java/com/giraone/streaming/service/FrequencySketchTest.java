@@ -0,0 +1,47 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FrequencySketchTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,0",
+        "1,1",
+        "7,7",
+        "15,15",
+        "100,15"
+    })
+    void frequencyIsSaturated(int increments, int expectedFrequency) {
+
+        // arrange
+        FrequencySketch sketch = new FrequencySketch(1000);
+        // act
+        for (int i = 0; i < increments; i++) {
+            sketch.increment("key");
+        }
+        // assert
+        assertThat(sketch.frequency("key")).isEqualTo(expectedFrequency);
+        assertThat(sketch.frequency("other")).isZero();
+    }
+
+    @Test
+    void frequenciesAreHalvedAfterSample() {
+
+        // arrange - 16 counters, so the sample size is 160
+        FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("hot");
+        }
+        // act
+        for (int i = 0; i < 150; i++) {
+            sketch.increment("cold-" + i);
+        }
+        // assert
+        assertThat(sketch.frequency("hot")).isBetween(1, 9);
+    }
+}
@@ -0,0 +1,162 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class HotFileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final FileValidators fileValidators = new FileValidators(10);
+
+    @Test
+    void loadAndGet() throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(1000, 100);
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        FileValidators.Validator validator = fileValidators.validator(file);
+        assertThat(cache.get(file, validator)).isNull();
+        assertThat(cache.admit(file, validator)).isTrue();
+        // act
+        ByteBuffer loaded = cache.load(file, validator).block(Duration.ofSeconds(10));
+        ByteBuffer cached = cache.get(file, validator);
+        // assert
+        assertThat(loaded).isNotNull();
+        assertThat(cached).isNotNull();
+        assertThat(cached.isDirect()).isTrue();
+        assertThat(cached.isReadOnly()).isTrue();
+        assertThat(StandardCharsets.US_ASCII.decode(cached.slice(2, 3)).toString()).isEqualTo("234");
+        assertThat(cache.getResidentBytes()).isEqualTo(10L);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "1000,100,101,false",
+        "1000,100,100,true",
+        "50,100,51,false",
+        "0,0,0,true"
+    })
+    void admitBySize(long capacity, int maxFileSize, int fileSize, boolean expectedAdmitted) throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(capacity, maxFileSize);
+        Path file = Files.write(directory.resolve("a.bin"), new byte[fileSize]);
+        // act
+        boolean admitted = cache.admit(file, fileValidators.validator(file));
+        // assert
+        assertThat(admitted).isEqualTo(expectedAdmitted);
+    }
+
+    @Test
+    void changedFileIsNotServed() throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(1000, 100);
+        Path file = Files.writeString(directory.resolve("a.txt"), "old");
+        cache.load(file, fileValidators.validator(file)).block(Duration.ofSeconds(10));
+        // act
+        Path temp = Files.writeString(directory.resolve("temp"), "new content");
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        // assert
+        assertThat(cache.get(file, fileValidators.validator(file))).isNull();
+        assertThat(cache.size()).isZero();
+        assertThat(cache.getResidentBytes()).isZero();
+    }
+
+    @Test
+    void loadOfChangedFileFails() throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(1000, 100);
+        Path file = Files.writeString(directory.resolve("a.txt"), "old");
+        FileValidators.Validator validator = fileValidators.validator(file);
+        Files.writeString(file, "longer");
+        // act + assert
+        assertThatThrownBy(() -> cache.load(file, validator).block(Duration.ofSeconds(10)))
+            .hasCauseInstanceOf(IOException.class);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void invalidate() throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(1000, 100);
+        Path file = Files.writeString(directory.resolve("a.txt"), "content");
+        FileValidators.Validator validator = fileValidators.validator(file);
+        cache.load(file, validator).block(Duration.ofSeconds(10));
+        // act
+        cache.invalidate(file);
+        // assert
+        assertThat(cache.get(file, validator)).isNull();
+        assertThat(cache.getResidentBytes()).isZero();
+    }
+
+    @Test
+    void hotFilesAreNotEvictedByColdFiles() throws IOException {
+
+        // arrange - room for two files of 10 bytes
+        HotFileCache cache = new HotFileCache(20, 100);
+        Path hot1 = Files.write(directory.resolve("hot1.bin"), new byte[10]);
+        Path hot2 = Files.write(directory.resolve("hot2.bin"), new byte[10]);
+        for (Path file : new Path[] { hot1, hot2 }) {
+            FileValidators.Validator validator = fileValidators.validator(file);
+            for (int i = 0; i < 5; i++) {
+                if (cache.get(file, validator) == null && cache.admit(file, validator)) {
+                    cache.load(file, validator).block(Duration.ofSeconds(10));
+                }
+            }
+        }
+        Path cold = Files.write(directory.resolve("cold.bin"), new byte[10]);
+        FileValidators.Validator coldValidator = fileValidators.validator(cold);
+        // act
+        boolean admittedOnce = cache.get(cold, coldValidator) == null && cache.admit(cold, coldValidator);
+        // assert
+        assertThat(admittedOnce).isFalse();
+        assertThat(cache.get(hot1, fileValidators.validator(hot1))).isNotNull();
+        assertThat(cache.get(hot2, fileValidators.validator(hot2))).isNotNull();
+    }
+
+    @Test
+    void frequentFileEvictsLeastRecentlyUsed() throws IOException {
+
+        // arrange
+        HotFileCache cache = new HotFileCache(20, 100);
+        Path first = Files.write(directory.resolve("first.bin"), new byte[10]);
+        Path second = Files.write(directory.resolve("second.bin"), new byte[10]);
+        Path third = Files.write(directory.resolve("third.bin"), new byte[10]);
+        for (Path file : new Path[] { first, second }) {
+            FileValidators.Validator validator = fileValidators.validator(file);
+            cache.get(file, validator);
+            cache.load(file, validator).block(Duration.ofSeconds(10));
+        }
+        FileValidators.Validator validator = fileValidators.validator(third);
+        for (int i = 0; i < 3; i++) {
+            cache.get(third, validator);
+        }
+        // act
+        boolean admitted = cache.admit(third, validator);
+        cache.load(third, validator).block(Duration.ofSeconds(10));
+        // assert
+        assertThat(admitted).isTrue();
+        assertThat(cache.get(first, fileValidators.validator(first))).isNull();
+        assertThat(cache.get(second, fileValidators.validator(second))).isNotNull();
+        assertThat(cache.getResidentBytes()).isEqualTo(20L);
+    }
+}
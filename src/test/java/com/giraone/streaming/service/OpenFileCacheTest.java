@@ -0,0 +1,197 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class OpenFileCacheTest {
+
+    private static final Duration LONG = Duration.ofMinutes(10);
+
+    @TempDir
+    Path directory;
+
+    private final FileValidators fileValidators = new FileValidators(10);
+
+    @Test
+    void acquireSharesChannel() throws IOException {
+
+        // arrange
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10, LONG, LONG)) {
+            OpenFileCache.Handle first = cache.acquire(file);
+            OpenFileCache.Handle second = cache.acquire(file);
+            // act
+            AsynchronousFileChannel channel = first.channel();
+            first.close();
+            second.close();
+            OpenFileCache.Handle third = cache.acquire(file);
+            // assert
+            assertThat(second.channel()).isSameAs(channel);
+            assertThat(third.channel()).isSameAs(channel);
+            assertThat(channel.isOpen()).isTrue();
+            assertThat(third.validator().size()).isEqualTo(10L);
+            assertThat(read(third.channel(), 10)).isEqualTo("0123456789");
+            assertThat(cache.size()).isEqualTo(1);
+            third.close();
+        }
+    }
+
+    @Test
+    void invalidateClosesChannelAfterLastHandle() throws IOException {
+
+        // arrange
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10, LONG, LONG)) {
+            OpenFileCache.Handle handle = cache.acquire(file);
+            AsynchronousFileChannel channel = handle.channel();
+            replace(file, "abc");
+            // act
+            cache.invalidate(file);
+            boolean openWhileInUse = channel.isOpen();
+            handle.close();
+            OpenFileCache.Handle replaced = cache.acquire(file);
+            // assert
+            assertThat(openWhileInUse).isTrue();
+            assertThat(channel.isOpen()).isFalse();
+            assertThat(replaced.validator().size()).isEqualTo(3L);
+            assertThat(read(replaced.channel(), 3)).isEqualTo("abc");
+            replaced.close();
+        }
+    }
+
+    @Test
+    void mappableChannelIsSharedAndClosedWithEntry() throws IOException {
+
+        // arrange
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10, LONG, LONG)) {
+            OpenFileCache.Handle first = cache.acquire(file);
+            OpenFileCache.Handle second = cache.acquire(file);
+            FileChannel channel = first.mappableChannel();
+            // act
+            boolean shared = second.mappableChannel() == channel;
+            first.close();
+            cache.invalidate(file);
+            boolean openWhileInUse = channel.isOpen();
+            second.close();
+            // assert
+            assertThat(shared).isTrue();
+            assertThat(openWhileInUse).isTrue();
+            assertThat(channel.isOpen()).isFalse();
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,true",
+        "600,false"
+    })
+    void maxAge(long maxAgeSeconds, boolean expectedChanged) throws IOException {
+
+        // arrange
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10,
+            Duration.ofSeconds(maxAgeSeconds), LONG)) {
+            cache.acquire(file).close();
+            replace(file, "abc");
+            // act
+            OpenFileCache.Handle handle = cache.acquire(file);
+            // assert
+            assertThat(handle.validator().size() == 3L).isEqualTo(expectedChanged);
+            handle.close();
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,10,0",
+        "1,10,1",
+        "10,0,0",
+        "10,10,2"
+    })
+    void cachedEntries(int maxEntries, long idleTimeoutSeconds, int expectedSize) throws IOException {
+
+        // arrange
+        Path a = Files.writeString(directory.resolve("a.txt"), "a");
+        Path b = Files.writeString(directory.resolve("b.txt"), "b");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, maxEntries,
+            LONG, Duration.ofSeconds(idleTimeoutSeconds))) {
+            OpenFileCache.Handle handleA = cache.acquire(a);
+            AsynchronousFileChannel channelA = handleA.channel();
+            // act
+            handleA.close();
+            OpenFileCache.Handle handleB = cache.acquire(b);
+            handleB.channel();
+            handleB.close();
+            // assert
+            assertThat(cache.size()).isEqualTo(expectedSize);
+            assertThat(channelA.isOpen()).isEqualTo(expectedSize == 2);
+        }
+    }
+
+    @Test
+    void closeIdle() throws IOException {
+
+        // arrange
+        Path file = Files.writeString(directory.resolve("a.txt"), "0123456789");
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10, LONG,
+            Duration.ofNanos(1))) {
+            OpenFileCache.Handle inUse = cache.acquire(file);
+            AsynchronousFileChannel channel = inUse.channel();
+            cache.closeIdle();
+            boolean openWhileInUse = channel.isOpen();
+            inUse.close();
+            // act
+            cache.closeIdle();
+            // assert
+            assertThat(openWhileInUse).isTrue();
+            assertThat(channel.isOpen()).isFalse();
+            assertThat(cache.size()).isZero();
+        }
+    }
+
+    @Test
+    void acquireMissingFile() {
+
+        try (OpenFileCache cache = new OpenFileCache(FileChannelFactory.DEFAULT, fileValidators, 10, LONG, LONG)) {
+            assertThatThrownBy(() -> cache.acquire(directory.resolve("missing.txt")))
+                .isInstanceOf(NoSuchFileException.class);
+            assertThat(cache.size()).isZero();
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    // like an upload, a new file is renamed over the old one
+    private void replace(Path file, String content) throws IOException {
+        Path temp = Files.writeString(directory.resolve("temp.txt"), content);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String read(AsynchronousFileChannel channel, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        try {
+            channel.read(buffer, 0L).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+        return new String(buffer.array(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,273 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritePendingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PipelinedFileWriterTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1,2,10,20,30",
+        "1,0,2,0,20,30",
+        "2,1,0,0,0,30",
+        "0,2,1,10,10,30"
+    })
+    void writtenPositionIsContiguous(int first, int second, int third, long expectedFirst, long expectedSecond, long expectedThird) {
+
+        // arrange
+        ManualFileChannel channel = new ManualFileChannel();
+        PipelinedFileWriter writer = new PipelinedFileWriter(channel, 0L, 3);
+        List<Integer> completed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            writer.write(ByteBuffer.wrap(new byte[10]), i, handler(completed));
+        }
+        // act + assert
+        channel.complete(first, Integer.MAX_VALUE);
+        assertThat(writer.getWrittenPosition()).isEqualTo(expectedFirst);
+        channel.complete(second, Integer.MAX_VALUE);
+        assertThat(writer.getWrittenPosition()).isEqualTo(expectedSecond);
+        channel.complete(third, Integer.MAX_VALUE);
+        assertThat(writer.getWrittenPosition()).isEqualTo(expectedThird);
+        assertThat(completed).containsExactly(first, second, third);
+        assertThat(channel.positions).containsExactly(0L, 10L, 20L);
+    }
+
+    @Test
+    void shortWritesAreContinued() {
+
+        // arrange
+        ManualFileChannel channel = new ManualFileChannel();
+        PipelinedFileWriter writer = new PipelinedFileWriter(channel, 100L, 2);
+        List<Integer> completed = new ArrayList<>();
+        writer.write(ByteBuffer.wrap(new byte[10]), 0, handler(completed));
+        // act
+        channel.complete(0, 4);
+        // assert
+        assertThat(completed).isEmpty();
+        assertThat(channel.positions).containsExactly(100L, 104L);
+        channel.complete(0, Integer.MAX_VALUE);
+        assertThat(completed).containsExactly(0);
+        assertThat(writer.getWrittenPosition()).isEqualTo(110L);
+        assertThat(writer.getPosition()).isEqualTo(110L);
+    }
+
+    @Test
+    void tooManyWritesInFlight() {
+
+        // arrange
+        ManualFileChannel channel = new ManualFileChannel();
+        PipelinedFileWriter writer = new PipelinedFileWriter(channel, 0L, 1);
+        writer.write(ByteBuffer.wrap(new byte[10]), 0, handler(new ArrayList<>()));
+        // act + assert
+        assertThatThrownBy(() -> writer.write(ByteBuffer.wrap(new byte[10]), 1, handler(new ArrayList<>())))
+            .isInstanceOf(WritePendingException.class);
+        assertThat(writer.getInFlight()).isEqualTo(1);
+        assertThat(writer.getPosition()).isEqualTo(10L);
+    }
+
+    @Test
+    void failedWriteStopsWrittenPosition() {
+
+        // arrange
+        ManualFileChannel channel = new ManualFileChannel();
+        PipelinedFileWriter writer = new PipelinedFileWriter(channel, 0L, 2);
+        List<Integer> completed = new ArrayList<>();
+        writer.write(ByteBuffer.wrap(new byte[10]), 0, handler(completed));
+        writer.write(ByteBuffer.wrap(new byte[10]), 1, handler(completed));
+        // act
+        channel.fail(0);
+        channel.complete(1, Integer.MAX_VALUE);
+        // assert
+        assertThat(completed).containsExactly(-1, 1);
+        assertThat(writer.getWrittenPosition()).isZero();
+        assertThat(writer.getInFlight()).isZero();
+    }
+
+    @Test
+    void forceMakesWrittenPositionDurable() throws IOException {
+
+        // arrange
+        Path path = Files.createTempFile("pipelined-", ".bin");
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.WRITE)) {
+            PipelinedFileWriter writer = new PipelinedFileWriter(channel, 0L, 4);
+            CompletableFuture<Integer> done = new CompletableFuture<>();
+            writer.write(ByteBuffer.wrap("0123456789".getBytes(StandardCharsets.US_ASCII)), null, new CompletionHandler<Integer, Object>() {
+                @Override
+                public void completed(Integer result, Object attachment) {
+                    done.complete(result);
+                }
+
+                @Override
+                public void failed(Throwable exc, Object attachment) {
+                    done.completeExceptionally(exc);
+                }
+            });
+            assertThat(done.join()).isEqualTo(10);
+            assertThat(writer.getDurablePosition()).isZero();
+            // act
+            long durablePosition = writer.force(false);
+            // assert
+            assertThat(durablePosition).isEqualTo(10L);
+            assertThat(writer.getDurablePosition()).isEqualTo(10L);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void adapterWithPipelinedWrites() throws Exception {
+
+        // arrange
+        Path path = Files.createTempFile("pipelined-", ".bin");
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            AsynchronousFileChannelAdapter adapter = new AsynchronousFileChannelAdapter(channel, 0L, 3);
+            // act
+            Future<Integer> first = adapter.write(ByteBuffer.wrap("01234".getBytes(StandardCharsets.US_ASCII)));
+            Future<Integer> second = adapter.write(ByteBuffer.wrap("56789".getBytes(StandardCharsets.US_ASCII)));
+            // assert
+            assertThat(first.get() + second.get()).isEqualTo(10);
+            assertThat(adapter.getWrittenPosition()).isEqualTo(10L);
+            assertThat(Files.readString(path)).isEqualTo("0123456789");
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static CompletionHandler<Integer, Integer> handler(List<Integer> completed) {
+        return new CompletionHandler<>() {
+            @Override
+            public void completed(Integer result, Integer attachment) {
+                completed.add(attachment);
+            }
+
+            @Override
+            public void failed(Throwable exc, Integer attachment) {
+                completed.add(-1);
+            }
+        };
+    }
+
+    /*
+     * Keeps the writes pending, until the test completes them.
+     */
+    private static final class ManualFileChannel extends AsynchronousFileChannel {
+
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private final List<CompletionHandler<Integer, Object>> handlers = new ArrayList<>();
+        private final List<Object> attachments = new ArrayList<>();
+        final List<Long> positions = new ArrayList<>();
+
+        // completes the latest write of the n-th buffer with at most maxBytes bytes
+        void complete(int n, int maxBytes) {
+            final int index = latestWrite(n);
+            final ByteBuffer buffer = buffers.get(index);
+            final int bytes = Math.min(maxBytes, buffer.remaining());
+            buffer.position(buffer.position() + bytes);
+            handlers.get(index).completed(bytes, attachments.get(index));
+        }
+
+        void fail(int n) {
+            final int index = latestWrite(n);
+            handlers.get(index).failed(new IOException("disk full"), attachments.get(index));
+        }
+
+        // ByteBuffer.equals compares the content, so the buffers are compared by identity
+        private int latestWrite(int n) {
+            final List<ByteBuffer> distinct = new ArrayList<>();
+            for (ByteBuffer buffer : buffers) {
+                if (distinct.stream().noneMatch(b -> b == buffer)) {
+                    distinct.add(buffer);
+                }
+            }
+            int index = buffers.size() - 1;
+            while (buffers.get(index) != distinct.get(n)) {
+                index--;
+            }
+            return index;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            buffers.add(src);
+            positions.add(position);
+            attachments.add(attachment);
+            handlers.add((CompletionHandler<Integer, Object>) handler);
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long size() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ReadModePolicyTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,ASYNC",
+        "262143,ASYNC",
+        "262144,MAPPED",
+        "10000000000,MAPPED"
+    })
+    void defaultPolicy(long length, ReadModePolicy.Mode expectedMode) {
+
+        // act
+        ReadModePolicy.Mode mode = ReadModePolicy.DEFAULT.mode(length);
+        // assert
+        assertThat(mode).isEqualTo(expectedMode);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "ASYNC,0",
+        "ASYNC,10000000000",
+        "MAPPED,0",
+        "MAPPED,10000000000"
+    })
+    void fixedPolicy(ReadModePolicy.Mode fixedMode, long length) {
+
+        // act
+        ReadModePolicy.Mode mode = ReadModePolicy.fixed(fixedMode).mode(length);
+        // assert
+        assertThat(mode).isEqualTo(fixedMode);
+    }
+
+    @Test
+    void thresholdCannotBeNegative() {
+
+        assertThatThrownBy(() -> ReadModePolicy.threshold(-1L)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,73 @@
+package com.giraone.streaming.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VirtualThreadExecutorTest {
+
+    @Test
+    void usesVirtualThreadsFromJava21() throws InterruptedException {
+
+        // arrange
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 2);
+        AtomicReference<String> threadName = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            // act
+            executor.execute(() -> {
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            });
+            // assert
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.isVirtual()).isEqualTo(Runtime.version().feature() >= 21);
+            assertThat(threadName.get()).startsWith("test-");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void boundsTasksInFlight() throws InterruptedException {
+
+        // arrange
+        VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+        try {
+            // act
+            for (int i = 0; i < 20; i++) {
+                executor.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            // assert
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(maxRunning.get()).isBetween(1, 3);
+            assertThat(executor.getInFlight()).isZero();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void maxInFlightMustBePositive() {
+
+        assertThatThrownBy(() -> new VirtualThreadExecutor("test", 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,99 @@
+package com.giraone.streaming.service.base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Base64 encoding of {@link Base64StreamEncoder} into heap buffers with the one into pooled direct buffers.
+ * Each operation encodes 1 MiB, so the score in ops/s is the throughput in MiB/s. The bytes allocated per operation
+ * are reported by the GC profiler as {@code gc.alloc.rate.norm}.
+ * <p>
+ * Run {@link #main(String[])} from the IDE or with the test classpath after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64EncodeBenchmark {
+
+    private static final int TOTAL_SIZE = 1024 * 1024;
+
+    @Param({"4096", "65536"})
+    public int chunkSize;
+
+    private List<ByteBuffer> chunks;
+
+    @Setup
+    public void setup() {
+        final byte[] content = new byte[TOTAL_SIZE];
+        new Random(0).nextBytes(content);
+        chunks = new ArrayList<>();
+        for (int offset = 0; offset < TOTAL_SIZE; offset += chunkSize) {
+            // odd chunk boundaries, so that the 0-2 leftover bytes are carried
+            final int length = Math.min(chunkSize + 1, TOTAL_SIZE - offset);
+            chunks.add(ByteBuffer.wrap(content, offset, length).slice());
+            offset++;
+        }
+    }
+
+    @Benchmark
+    public long streamEncoderHeap() {
+        return sum(Base64Includer.base64Encode(input()));
+    }
+
+    @Benchmark
+    public long streamEncoderPooled() {
+        final Flux<DataBuffer> input = Flux.fromIterable(chunks)
+            .map(chunk -> DefaultDataBufferFactory.sharedInstance.wrap(chunk.duplicate()));
+        return Base64Includer.base64EncodePooled(input)
+            .map(dataBuffer -> {
+                final int length = dataBuffer.readableByteCount();
+                DataBufferUtils.release(dataBuffer);
+                return (long) length;
+            })
+            .reduce(0L, Long::sum)
+            .block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(Base64EncodeBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private Flux<ByteBuffer> input() {
+        return Flux.fromIterable(chunks).map(ByteBuffer::duplicate);
+    }
+
+    private static long sum(Flux<ByteBuffer> output) {
+        return output.map(byteBuffer -> (long) byteBuffer.remaining()).reduce(0L, Long::sum).block();
+    }
+}
@@ -4,7 +4,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.giraone.streaming.controller.StreamingController;
 import com.giraone.streaming.service.FluxUtil;
-import com.giraone.streaming.service.pipe.ByteArrayOutputPart;
 import com.giraone.streaming.util.ObjectMapperBuilder;
 import org.assertj.core.data.Offset;
 import org.junit.jupiter.params.ParameterizedTest;
@@ -51,57 +50,19 @@ class Base64IncluderTest {
     void encode(String inputString, String expected) {
 
         // arrange
-        byte[] input = inputString.getBytes(StandardCharsets.UTF_8);
+        Flux<ByteBuffer> input = Flux.just(ByteBuffer.wrap(inputString.getBytes(StandardCharsets.UTF_8)));
         // act
-        ByteArrayOutputPart output = Base64Includer.encode(input);
+        Flux<ByteBuffer> output = Base64Includer.base64Encode(input);
         // assert - compare to expected
-        String outputString = output.toString();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FluxUtil.writeToOutputStream(output, byteArrayOutputStream).block();
+        String outputString = byteArrayOutputStream.toString(StandardCharsets.UTF_8);
         assertThat(outputString).isEqualTo(expected);
         // assert - compare to expected decoding again
         String decodedAgain = new String(Base64.getDecoder().decode(outputString.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
         assertThat(decodedAgain).isEqualTo(inputString);
     }
 
-    @ParameterizedTest
-    @CsvSource({
-        "'',0,'',''",
-        "x,1,'',x",
-        "xy,2,'',xy",
-        "xy,2,01,xy01",
-        "'',0,01,01",
-    })
-    void buildArray(String s1, int l1, String s2, String expected) {
-
-        // act
-        byte[] actual = Base64Includer.buildArray(s1.getBytes(StandardCharsets.UTF_8), l1, s2.getBytes(StandardCharsets.UTF_8));
-        // assert
-        assertThat(new String(actual, StandardCharsets.UTF_8)).isEqualTo(expected);
-    }
-
-    @ParameterizedTest
-    @CsvSource({
-        "any,any,,,",
-        "header<base64-1>footer,header,footer,,",
-        "header<base64-1>intermediate1<base64-2>footer,header,intermediate1,footer,",
-        "header<base64-1>intermediate1<base64-2>intermediate2<base64-3>footer,header,intermediate1,intermediate2,footer"
-    })
-    void split(String jsonString, String expected0, String expected1, String expected2, String expected3) {
-
-        // act
-        List<String> t = Base64Includer.split(jsonString);
-        // assert
-        assertThat(t.get(0)).isEqualTo(expected0);
-        if (expected1 != null) {
-            assertThat(t.get(1)).isEqualTo(expected1);
-        }
-        if (expected2 != null) {
-            assertThat(t.get(2)).isEqualTo(expected2);
-        }
-        if (expected3 != null) {
-            assertThat(t.get(3)).isEqualTo(expected3);
-        }
-    }
-
     @ParameterizedTest
     @CsvSource({
         "xyz,xyz",
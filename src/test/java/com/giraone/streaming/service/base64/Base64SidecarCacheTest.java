@@ -0,0 +1,185 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.FileValidators;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.concurrent.ExecutionException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Base64SidecarCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final FileValidators fileValidators = new FileValidators(10);
+
+    @ParameterizedTest
+    @CsvSource({
+        "0",
+        "1",
+        "2",
+        "3",
+        "100000"
+    })
+    void openAfterBuild(int size) throws Exception {
+
+        // arrange
+        Base64SidecarCache cache = new Base64SidecarCache(directory.resolve(".base64"), 1000000);
+        Path source = Files.write(directory.resolve("source.bin"), content(size));
+        FileValidators.Validator validator = fileValidators.validator(source);
+        // act
+        AsynchronousFileChannel first = cache.open(source, validator);
+        awaitSidecars(cache, 1);
+        AsynchronousFileChannel second = cache.open(source, validator);
+        // assert
+        assertThat(first).isNull();
+        assertThat(second).isNotNull();
+        try (second) {
+            assertThat(read(second)).isEqualTo(Base64.getEncoder().encodeToString(content(size)));
+        }
+        assertThat(cache.getDiskBytes()).isEqualTo(Base64Includer.calculateBase64Size((long) size));
+    }
+
+    @Test
+    void changedSourceRemovesOldSidecar() throws Exception {
+
+        // arrange
+        Path sidecars = directory.resolve(".base64");
+        Base64SidecarCache cache = new Base64SidecarCache(sidecars, 1000000);
+        Path source = Files.writeString(directory.resolve("source.txt"), "old");
+        cache.open(source, fileValidators.validator(source));
+        awaitSidecars(cache, 1);
+        // act
+        Path temp = Files.writeString(directory.resolve("temp"), "new content");
+        Files.move(temp, source, StandardCopyOption.REPLACE_EXISTING);
+        AsynchronousFileChannel channel = cache.open(source, fileValidators.validator(source));
+        awaitSidecars(cache, 1);
+        // assert
+        assertThat(channel).isNull();
+        try (AsynchronousFileChannel sidecar = cache.open(source, fileValidators.validator(source))) {
+            assertThat(read(sidecar)).isEqualTo("bmV3IGNvbnRlbnQ=");
+        }
+        assertThat(listSidecars(sidecars)).hasSize(1);
+    }
+
+    @Test
+    void sidecarIsKeptWhileAnotherNameRefersToIt() throws Exception {
+
+        // arrange
+        Path sidecars = directory.resolve(".base64");
+        Base64SidecarCache cache = new Base64SidecarCache(sidecars, 1000000);
+        Path first = Files.writeString(directory.resolve("first.txt"), "old");
+        Path second = Files.createLink(directory.resolve("second.txt"), first);
+        cache.open(first, fileValidators.validator(first));
+        awaitSidecars(cache, 1);
+        cache.open(second, fileValidators.validator(second)).close();
+        String oldKey = key(first);
+        // act
+        Files.move(Files.writeString(directory.resolve("temp"), "new"), first, StandardCopyOption.REPLACE_EXISTING);
+        cache.open(first, fileValidators.validator(first));
+        awaitSidecars(cache, 2);
+        boolean keptForSecond = Files.exists(sidecars.resolve(oldKey));
+        Files.move(Files.writeString(directory.resolve("temp"), "other"), second, StandardCopyOption.REPLACE_EXISTING);
+        cache.open(second, fileValidators.validator(second));
+        // assert
+        assertThat(keptForSecond).isTrue();
+        assertThat(Files.exists(sidecars.resolve(oldKey))).isFalse();
+    }
+
+    @Test
+    void leastRecentlyUsedSidecarIsEvicted() throws Exception {
+
+        // arrange - room for two sidecars of 8 bytes
+        Path sidecars = directory.resolve(".base64");
+        Base64SidecarCache cache = new Base64SidecarCache(sidecars, 16);
+        Path first = Files.writeString(directory.resolve("first.txt"), "first");
+        Path second = Files.writeString(directory.resolve("second.txt"), "secnd");
+        Path third = Files.writeString(directory.resolve("third.txt"), "third");
+        cache.open(first, fileValidators.validator(first));
+        awaitSidecars(cache, 1);
+        cache.open(second, fileValidators.validator(second));
+        awaitSidecars(cache, 2);
+        cache.open(first, fileValidators.validator(first)).close();
+        // act
+        cache.open(third, fileValidators.validator(third));
+        for (int i = 0; i < 500 && Files.exists(sidecars.resolve(key(second))); i++) {
+            Thread.sleep(10);
+        }
+        // assert
+        assertThat(Files.exists(sidecars.resolve(key(second)))).isFalse();
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.getDiskBytes()).isEqualTo(16L);
+        try (AsynchronousFileChannel sidecar = cache.open(first, fileValidators.validator(first))) {
+            assertThat(sidecar).isNotNull();
+        }
+    }
+
+    @Test
+    void sidecarsAreReusedAfterRestart() throws Exception {
+
+        // arrange
+        Path sidecars = directory.resolve(".base64");
+        Path source = Files.writeString(directory.resolve("source.txt"), "abc");
+        Base64SidecarCache cache = new Base64SidecarCache(sidecars, 1000);
+        // the digest of an upload is only registered in memory
+        fileValidators.register(source, "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        cache.open(source, fileValidators.validator(source));
+        awaitSidecars(cache, 1);
+        Files.writeString(sidecars.resolve(".x.b64.123.tmp"), "interrupted");
+        // act
+        Base64SidecarCache restarted = new Base64SidecarCache(sidecars, 1000);
+        // assert
+        assertThat(restarted.size()).isEqualTo(1);
+        assertThat(listSidecars(sidecars)).hasSize(1);
+        try (AsynchronousFileChannel sidecar = restarted.open(source, new FileValidators(10).validator(source))) {
+            assertThat(sidecar).isNotNull();
+            assertThat(read(sidecar)).isEqualTo("YWJj");
+        }
+    }
+
+    //------------------------------------------------------------------------------------------------------------------
+
+    private static byte[] content(int size) {
+        byte[] ret = new byte[size];
+        for (int i = 0; i < size; i++) {
+            ret[i] = (byte) (i * 31);
+        }
+        return ret;
+    }
+
+    private static String read(AsynchronousFileChannel channel)
+        throws IOException, ExecutionException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining()) {
+            channel.read(buffer, buffer.position()).get();
+        }
+        return new String(buffer.array(), StandardCharsets.US_ASCII);
+    }
+
+    // the sidecar is built in the background
+    private static void awaitSidecars(Base64SidecarCache cache, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && cache.size() != expected; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private String key(Path source) throws IOException {
+        return fileValidators.validator(source).eTag().replace("\"", "") + Base64SidecarCache.SIDECAR_EXTENSION;
+    }
+
+    private static String[] listSidecars(Path sidecars) {
+        return sidecars.toFile().list((dir, name) -> name.endsWith(Base64SidecarCache.SIDECAR_EXTENSION));
+    }
+}
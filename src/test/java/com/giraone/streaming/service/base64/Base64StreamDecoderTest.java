@@ -0,0 +1,85 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class Base64StreamDecoderTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1,false,false",
+        "1,1,false,false",
+        "2,1,false,false",
+        "3,1,false,false",
+        "1000,7,false,false",
+        "3072,4096,false,false",
+        "3073,4096,false,false",
+        "65536,1000,false,false",
+        "65537,4096,true,false",
+        "1001,3,false,true",
+        "65537,4096,false,true"
+    })
+    void decode(int size, int chunkSize, boolean mime, boolean urlSafe) {
+
+        // arrange
+        byte[] expected = new byte[size];
+        new Random(size).nextBytes(expected);
+        Base64.Encoder reference = mime ? Base64.getMimeEncoder() : urlSafe ? Base64.getUrlEncoder().withoutPadding() : Base64.getEncoder();
+        byte[] input = reference.encode(expected);
+        Base64StreamDecoder decoder = new Base64StreamDecoder(urlSafe);
+        ByteBuffer output = ByteBuffer.allocate(size + 3);
+        // act
+        for (int offset = 0; offset < input.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(input, offset, Math.min(chunkSize, input.length - offset));
+            int maxLength = decoder.maxDecodedLength(chunk.remaining());
+            int before = output.position();
+            decoder.decode(chunk, output);
+            assertThat(output.position() - before).isLessThanOrEqualTo(maxLength);
+        }
+        assertThat(output.remaining()).isGreaterThanOrEqualTo(decoder.maxFinalLength());
+        decoder.finish(output);
+        // assert
+        assertThat(Arrays.copyOf(output.array(), output.position())).isEqualTo(expected);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "A",
+        "AB*C",
+        "AB==CD==",
+        "ABCDE"
+    })
+    void decodeInvalid(String input) {
+
+        // arrange
+        Base64StreamDecoder decoder = new Base64StreamDecoder();
+        ByteBuffer output = ByteBuffer.allocate(16);
+        // act + assert
+        assertThatThrownBy(() -> {
+            decoder.decode(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII)), output);
+            decoder.finish(output);
+        }).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void decodeAfterPaddedBlockIsInvalid() {
+
+        // arrange
+        byte[] input = (Base64.getEncoder().encodeToString(new byte[3071]) + "AAAA").getBytes(StandardCharsets.US_ASCII);
+        Base64StreamDecoder decoder = new Base64StreamDecoder();
+        ByteBuffer output = ByteBuffer.allocate(4096);
+        // act + assert
+        assertThatThrownBy(() -> decoder.decode(ByteBuffer.wrap(input), output))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
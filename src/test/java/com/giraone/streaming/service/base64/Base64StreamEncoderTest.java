@@ -0,0 +1,79 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class Base64StreamEncoderTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1,false,false",
+        "1,1,false,false",
+        "2,1,false,false",
+        "3,1,false,false",
+        "10,1,false,false",
+        "10,2,true,false",
+        "1000,7,false,false",
+        "1000,7,true,false",
+        "1001,3,true,false",
+        "1002,1000,false,false",
+        "65536,4096,true,false",
+        "1,1,false,true",
+        "2,1,false,true",
+        "1001,3,true,true",
+        "1002,1000,false,true",
+        "65537,4096,true,true"
+    })
+    void encode(int size, int chunkSize, boolean direct, boolean urlSafe) {
+
+        // arrange
+        byte[] input = new byte[size];
+        new Random(size).nextBytes(input);
+        Base64StreamEncoder encoder = new Base64StreamEncoder(urlSafe);
+        Base64.Encoder reference = urlSafe ? Base64.getUrlEncoder().withoutPadding() : Base64.getEncoder();
+        ByteBuffer output = ByteBuffer.allocate(reference.encode(input).length);
+        assertThat(Base64StreamEncoder.encodedLength(size, !urlSafe)).isEqualTo(output.capacity());
+        // act
+        for (int offset = 0; offset < size; offset += chunkSize) {
+            ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(Math.min(chunkSize, size - offset)) : ByteBuffer.allocate(Math.min(chunkSize, size - offset));
+            chunk.put(input, offset, chunk.capacity()).flip();
+            int expectedLength = encoder.encodedLength(chunk.remaining());
+            int before = output.position();
+            encoder.encode(chunk, output);
+            assertThat(output.position() - before).isEqualTo(expectedLength);
+            assertThat(chunk.hasRemaining()).isFalse();
+        }
+        assertThat(output.remaining()).isEqualTo(encoder.finalLength());
+        encoder.finish(output);
+        // assert
+        assertThat(new String(output.array(), StandardCharsets.US_ASCII)).isEqualTo(reference.encodeToString(input));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "'',''",
+        "x,eA==",
+        "xy,eHk=",
+        "xyz,eHl6",
+        "xyzx,eHl6eA=="
+    })
+    void encodeLittleEndianOutput(String input, String expected) {
+
+        // arrange
+        Base64StreamEncoder encoder = new Base64StreamEncoder();
+        ByteBuffer output = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        // act
+        encoder.encode(ByteBuffer.wrap(input.getBytes(StandardCharsets.US_ASCII)), output);
+        encoder.finish(output);
+        // assert
+        assertThat(new String(output.array(), 0, output.position(), StandardCharsets.US_ASCII)).isEqualTo(expected);
+    }
+}
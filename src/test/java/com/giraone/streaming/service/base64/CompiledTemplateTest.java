@@ -0,0 +1,227 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.FluxUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompiledTemplateTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "any,1,''",
+        "'',1,''",
+        "header<base64-1>footer,2,base64:1",
+        "header<base64-2>middle<base64-1>footer,3,base64:2 base64:1",
+        "<base64-1><base64-1>,3,base64:1 base64:1",
+        "<base64-0><base64-x><base64-1,1,''",
+        "<base64-<base64-3>>,2,base64:3",
+        "<a><base64:photo></a><hex:sum><raw:x.y_z-1><json:text><base64url:1>,6,base64:photo hex:sum raw:x.y_z-1 json:text base64url:1",
+        "<xs:element><base64:><base64:a b><:a><unknown:a>,1,''"
+    })
+    void compile(String template, int expectedSegments, String expectedPlaceholders) {
+
+        // act
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(template);
+        // assert
+        assertThat(compiledTemplate.placeholderCount()).isEqualTo(expectedSegments - 1);
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < compiledTemplate.placeholderCount(); i++) {
+            CompiledTemplate.Placeholder placeholder = compiledTemplate.placeholder(i);
+            placeholders.append(i > 0 ? " " : "").append(placeholder.encoding().prefix()).append(':').append(placeholder.name());
+        }
+        assertThat(placeholders).hasToString(expectedPlaceholders);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "any,any,,,",
+        "header<base64-1>footer,header,footer,,",
+        "header<base64-1>intermediate1<base64-2>footer,header,intermediate1,footer,",
+        "header<base64-1>intermediate1<base64-2>intermediate2<base64-3>footer,header,intermediate1,intermediate2,footer"
+    })
+    void segments(String template, String expected0, String expected1, String expected2, String expected3) {
+
+        // act
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(template);
+        // assert
+        List<String> expected = Stream.of(expected0, expected1, expected2, expected3).filter(Objects::nonNull).toList();
+        assertThat(compiledTemplate.placeholderCount()).isEqualTo(expected.size() - 1);
+        for (int index = 0; index < expected.size(); index++) {
+            assertThat(new String(compiledTemplate.segment(index), StandardCharsets.UTF_8)).isEqualTo(expected.get(index));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "a<base64-1>b,a<base64:1>b,true",
+        "a<base64-1>b,a<base64-1>c,false",
+        "a<base64:x>b,a<hex:x>b,false",
+        "a<base64:x>b,a<base64:y>b,false",
+        "<base64:x>a,a<base64:x>,false"
+    })
+    void fingerprint(String template1, String template2, boolean expectedEqual) {
+
+        // act
+        String fingerprint1 = CompiledTemplate.compile(template1).fingerprint();
+        String fingerprint2 = CompiledTemplate.compile(template2).fingerprint();
+        // assert
+        assertThat(fingerprint1).hasSize(64);
+        assertThat(fingerprint1.equals(fingerprint2)).isEqualTo(expectedEqual);
+    }
+
+    @Test
+    void fingerprintCoversLineLength() {
+
+        // arrange
+        String xml = "<a xmlns:inc=\"urn:giraone:streaming:include\"><inc:content name=\"f\" wrap=\"%d\"/></a>";
+        // act
+        String fingerprint76 = CompiledTemplate.compileXml(xml.formatted(76)).fingerprint();
+        String fingerprint64 = CompiledTemplate.compileXml(xml.formatted(64)).fingerprint();
+        // assert
+        assertThat(fingerprint76).isNotEqualTo(fingerprint64);
+        assertThat(CompiledTemplate.compileXml(xml.formatted(76)).fingerprint()).isEqualTo(fingerprint76);
+    }
+
+    @Test
+    void compileManyPlaceholders() {
+
+        // arrange
+        StringBuilder template = new StringBuilder("[");
+        for (int i = 0; i < 500; i++) {
+            template.append(i > 0 ? "," : "").append("\"<base64:a").append(i).append(">\"");
+        }
+        template.append(']');
+        // act
+        CompiledTemplate compiledTemplate = CompiledTemplate.compile(template.toString());
+        // assert
+        assertThat(compiledTemplate.placeholderCount()).isEqualTo(500);
+        assertThat(compiledTemplate.names()).hasSize(500);
+        assertThat(compiledTemplate.contentLength(name -> 3L)).isEqualTo(2 + 500 * 4 + 499 + 1000);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "'{\"a\":\"<base64-1>\"}',0,8",
+        "'{\"a\":\"<base64-1>\"}',1,12",
+        "'{\"a\":\"<base64-1>\"}',3,12",
+        "'{\"ä\":\"<base64-1>\"}',4,17",
+        "'{\"€\":\"<base64-1>\",\"b\":\"<base64-1>\"}',2,25",
+        "'{\"a\":\"<base64url:1>\"}',4,14",
+        "'{\"a\":\"<hex:1>\"}',4,16",
+        "'{\"a\":\"<raw:1>\"}',4,12",
+        "'{\"a\":\"<json:1>\"}',4,-1"
+    })
+    void contentLength(String template, long contentSize, long expected) {
+
+        // act
+        long contentLength = CompiledTemplate.compile(template).contentLength(contentSize);
+        // assert
+        assertThat(contentLength).isEqualTo(expected);
+    }
+
+    @Test
+    void streamWithContentInTagOrder() {
+
+        // arrange
+        Base64Includer base64Includer = new Base64Includer(CompiledTemplate.compile("[\"<base64-2>\",\"<base64-1>\"]"));
+        Flux<ByteBuffer> input1 = Flux.just(ByteBuffer.wrap("one".getBytes(StandardCharsets.UTF_8)));
+        Flux<ByteBuffer> input2 = Flux.just(ByteBuffer.wrap("two".getBytes(StandardCharsets.UTF_8)));
+        // act
+        Flux<ByteBuffer> output = base64Includer.streamWithContent(List.of(input1, input2));
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FluxUtil.writeToOutputStream(output, byteArrayOutputStream).block();
+        // assert
+        assertThat(byteArrayOutputStream.toString(StandardCharsets.UTF_8)).isEqualTo("[\"dHdv\",\"b25l\"]");
+        assertThat(byteArrayOutputStream.size()).isEqualTo(base64Includer.contentLength(3, 3));
+    }
+
+    @Test
+    void streamWithNamedContent() {
+
+        // arrange
+        Base64Includer base64Includer = new Base64Includer(CompiledTemplate.compile(
+            "{\"b\":\"<base64url:bin>\",\"h\":\"<hex:bin>\",\"t\":\"<json:text>\",\"r\":<raw:fragment>}"));
+        Map<String, Flux<ByteBuffer>> contents = Map.of(
+            // subscribed once for each of the two placeholders
+            "bin", Flux.defer(() -> Flux.just(ByteBuffer.wrap(new byte[]{(byte) 0xfb, (byte) 0xff}))),
+            "text", Flux.just(ByteBuffer.wrap("a\"\n€".getBytes(StandardCharsets.UTF_8))),
+            "fragment", Flux.just(ByteBuffer.wrap("[1,2]".getBytes(StandardCharsets.UTF_8))));
+        // act
+        Flux<ByteBuffer> output = base64Includer.streamWithContent(contents);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FluxUtil.writeToOutputStream(output, byteArrayOutputStream).block();
+        // assert
+        assertThat(byteArrayOutputStream.toString(StandardCharsets.UTF_8))
+            .isEqualTo("{\"b\":\"-_8\",\"h\":\"fbff\",\"t\":\"a\\\"\\n€\",\"r\":[1,2]}");
+    }
+
+    @Test
+    void streamWithMissingContent() {
+
+        // arrange
+        Base64Includer base64Includer = new Base64Includer(CompiledTemplate.compile("<base64:a><base64:b>"));
+        // act
+        Flux<ByteBuffer> output = base64Includer.streamWithContent(Map.of("a", Flux.empty()));
+        // assert
+        assertThatThrownBy(() -> output.blockLast())
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("\"b\"");
+    }
+
+    @Test
+    void cacheReturnsSameInstance() {
+
+        // arrange
+        CompiledTemplateCache cache = new CompiledTemplateCache(2);
+        // act
+        CompiledTemplate first = cache.get("a<base64-1>");
+        cache.get("b<base64-1>");
+        CompiledTemplate again = cache.get("a<base64-1>");
+        cache.get("c<base64-1>");
+        // assert
+        assertThat(again).isSameAs(first);
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("a<base64-1>")).isSameAs(first);
+    }
+
+    @Test
+    void cacheReturnsSameInstanceConcurrently() throws Exception {
+
+        // arrange
+        CompiledTemplateCache cache = new CompiledTemplateCache(2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // act
+        List<Future<CompiledTemplate>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(executor.submit(() -> cache.get("a<base64-1>")));
+        }
+        Set<CompiledTemplate> compiled = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<CompiledTemplate> future : futures) {
+            compiled.add(future.get());
+        }
+        executor.shutdown();
+        // assert
+        assertThat(compiled).hasSize(1);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+}
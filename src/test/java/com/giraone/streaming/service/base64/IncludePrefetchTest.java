@@ -0,0 +1,111 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IncludePrefetchTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,0",
+        "1,0",
+        "1,1000000",
+        "3,10",
+        "10,1000000"
+    })
+    void concatKeepsOrder(int includesAhead, long maxBufferedBytes) {
+
+        // arrange
+        IncludePrefetch prefetch = new IncludePrefetch(includesAhead, maxBufferedBytes);
+        List<Flux<ByteBuffer>> includes = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            // the later includes are faster, so they are ready before it is their turn
+            includes.add(Flux.range(0, 4)
+                .map(n -> ByteBuffer.wrap(String.valueOf(n).getBytes(StandardCharsets.US_ASCII)))
+                .delayElements(Duration.ofMillis(10L - 2L * i)));
+        }
+        // act
+        String output = prefetch.concat(includes, ByteBuffer::remaining, byteBuffer -> { })
+            .map(byteBuffer -> StandardCharsets.US_ASCII.decode(byteBuffer).toString())
+            .collect(Collectors.joining())
+            .block();
+        // assert
+        assertThat(output).isEqualTo("01230123012301230123");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,false",
+        "1,true"
+    })
+    void nextIncludeIsSubscribedEarly(int includesAhead, boolean expectedSubscribed) {
+
+        // arrange
+        IncludePrefetch prefetch = new IncludePrefetch(includesAhead, 1000L);
+        Sinks.Many<ByteBuffer> first = Sinks.many().unicast().onBackpressureBuffer();
+        AtomicBoolean secondSubscribed = new AtomicBoolean();
+        Flux<ByteBuffer> second = Flux.just(ByteBuffer.allocate(10)).doOnSubscribe(subscription -> secondSubscribed.set(true));
+        // act
+        Disposable disposable = prefetch.concat(List.of(first.asFlux(), second), ByteBuffer::remaining, byteBuffer -> { })
+            .subscribe();
+        first.tryEmitNext(ByteBuffer.allocate(10));
+        // assert
+        assertThat(secondSubscribed.get()).isEqualTo(expectedSubscribed);
+        disposable.dispose();
+    }
+
+    @Test
+    void prefetchIsLimitedAndReleasedOnCancel() {
+
+        // arrange
+        IncludePrefetch prefetch = new IncludePrefetch(1, 250L);
+        Sinks.Many<ByteBuffer> first = Sinks.many().unicast().onBackpressureBuffer();
+        AtomicInteger secondEmitted = new AtomicInteger();
+        Flux<ByteBuffer> second = Flux.range(0, 100).map(n -> ByteBuffer.allocate(100)).doOnNext(byteBuffer -> secondEmitted.incrementAndGet());
+        AtomicInteger released = new AtomicInteger();
+        // act
+        Disposable disposable = prefetch.concat(List.of(first.asFlux(), second), ByteBuffer::remaining, byteBuffer -> released.incrementAndGet())
+            .subscribe();
+        first.tryEmitNext(ByteBuffer.allocate(10));
+        // assert - one buffer above the limit at most
+        assertThat(secondEmitted.get()).isEqualTo(3);
+        assertThat(IncludePrefetch.METRICS.getBufferedBytes()).isEqualTo(300L);
+        disposable.dispose();
+        assertThat(released.get()).isEqualTo(3);
+        assertThat(IncludePrefetch.METRICS.getBufferedBytes()).isZero();
+    }
+
+    @Test
+    void prefetchContinuesWhenItIsTheTurn() {
+
+        // arrange
+        IncludePrefetch prefetch = new IncludePrefetch(1, 250L);
+        Sinks.Many<ByteBuffer> first = Sinks.many().unicast().onBackpressureBuffer();
+        Flux<ByteBuffer> second = Flux.range(0, 100).map(n -> ByteBuffer.allocate(100));
+        AtomicInteger bytes = new AtomicInteger();
+        // act
+        Disposable disposable = prefetch.concat(List.of(first.asFlux(), second), ByteBuffer::remaining, byteBuffer -> { })
+            .subscribe(byteBuffer -> bytes.addAndGet(byteBuffer.remaining()));
+        first.tryEmitNext(ByteBuffer.allocate(10));
+        first.tryEmitComplete();
+        // assert
+        assertThat(bytes.get()).isEqualTo(10 + 100 * 100);
+        assertThat(IncludePrefetch.METRICS.getBufferedBytes()).isZero();
+        disposable.dispose();
+    }
+}
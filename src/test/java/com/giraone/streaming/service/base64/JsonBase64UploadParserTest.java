@@ -0,0 +1,169 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JsonBase64UploadParserTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1",
+        "1,1",
+        "100,1",
+        "100,7",
+        "10000,13",
+        "100000,4096",
+        "100000,1000000"
+    })
+    void parse(int size, int chunkSize) {
+
+        // arrange
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        // slashes are escaped, as some JSON writers do
+        String base64 = Base64.getEncoder().encodeToString(content).replace("/", "\\/");
+        String json = "{\"name\":\"a\\\"b\",\"content\":\"" + base64 + "\",\"n\":1.5,\"nested\":{\"content\":\"x\",\"l\":[1,true,null]},"
+            + "\"other\" : \"[\\\\\\/]\"}";
+        // act
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        new JsonBase64UploadParser(List.of("/content")).parse(chunks(json, chunkSize))
+            .doOnNext(event -> {
+                if (event instanceof JsonBase64UploadParser.Attribute attribute) {
+                    attributes.put(attribute.name(), attribute.value());
+                } else if (event instanceof JsonBase64UploadParser.AttachmentData data) {
+                    decoded.write(data.data().array(), data.data().arrayOffset() + data.data().position(), data.data().remaining());
+                }
+            })
+            .blockLast();
+        // assert
+        assertThat(decoded.toByteArray()).isEqualTo(content);
+        assertThat(attributes).containsExactly(
+            Map.entry("name", "a\"b"),
+            Map.entry("n", 1.5),
+            Map.entry("nested", Map.of("content", "x", "l", Arrays.asList(1, true, null))),
+            Map.entry("other", "[\\/]"));
+    }
+
+    @Test
+    void parseEventOrder() {
+
+        // arrange
+        String json = "{\"a\":1,\"f1\":\"b25l\",\"b\":null,\"f2\":null,\"f2\":\"dHdv\"}";
+        // act
+        List<String> events = new JsonBase64UploadParser(List.of("/f1", "/f2")).parse(chunks(json, 3))
+            .map(event -> {
+                if (event instanceof JsonBase64UploadParser.Attribute attribute) {
+                    return attribute.name() + "=" + attribute.value();
+                } else if (event instanceof JsonBase64UploadParser.AttachmentStart start) {
+                    return "start " + start.pointer();
+                }
+                return StandardCharsets.UTF_8.decode(((JsonBase64UploadParser.AttachmentData) event).data()).toString();
+            })
+            .collectList()
+            .block();
+        // assert
+        assertThat(events).containsExactly("a=1", "start /f1", "one", "b=null", "f2=null", "start /f2", "two");
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "''|Unexpected end",
+        "[1]|not an object",
+        "{\"content\":\"b25l|Unexpected end",
+        "{\"content\":\"b25*\"}|Illegal",
+        "{\"content\":\"b2\\u0035l\"}|Invalid escape",
+        "{\"a\":1|Unexpected end",
+        "{\"a\":x}|Invalid JSON",
+        "{\"a\":1}{}|after the JSON object"
+    })
+    void parseInvalid(String json, String expectedMessage) {
+
+        // act
+        Flux<JsonBase64UploadParser.Event> events = new JsonBase64UploadParser(List.of("/content")).parse(chunks(json, 2));
+        // assert
+        assertThatThrownBy(events::blockLast)
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining(expectedMessage);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "/a|/a",
+        "/b/c|/b/c",
+        "/b/*|/b/c /b/d",
+        "/l/1|/l/1",
+        "/l/*|/l/0 /l/1",
+        "/m/*/x|/m/0/x /m/2/x",
+        "/*|/a /s~1t",
+        "/s~1t|/s~1t",
+        "/e\\u0041|''",
+        "/n|''"
+    })
+    void parseWithPointers(String pointers, String expectedAttachments) {
+
+        // arrange
+        String json = "{\"a\":\"QQ==\",\"b\":{\"c\":\"Qw==\",\"d\":\"RA==\"},\"l\":[\"MA==\",\"MQ==\"],"
+            + "\"m\":[{\"x\":\"eA==\"},{\"y\":\"eQ==\"},{\"x\":\"eA==\",\"z\":[\"\\\"\"]}],\"s/t\":\"Uw==\",\"e\\u0041\":\"RQ==\",\"n\":1}";
+        // act
+        List<String> starts = new JsonBase64UploadParser(List.of(pointers.split(" "))).parse(chunks(json, 5))
+            .ofType(JsonBase64UploadParser.AttachmentStart.class)
+            .map(JsonBase64UploadParser.AttachmentStart::pointer)
+            .collectList()
+            .block();
+        // assert
+        assertThat(String.join(" ", starts)).isEqualTo(expectedAttachments);
+    }
+
+    @Test
+    void parseNestedAttachmentIsNullInAttribute() {
+
+        // arrange
+        String json = "{\"doc\":{\"title\":\"t\",\"data\":\"b25l\"},\"list\":[\"dHdv\",2]}";
+        // act
+        List<JsonBase64UploadParser.Event> events = new JsonBase64UploadParser(List.of("/doc/data", "/list/0")).parse(chunks(json, 4))
+            .filter(event -> event instanceof JsonBase64UploadParser.Attribute)
+            .collectList()
+            .block();
+        // assert
+        assertThat(events).containsExactly(
+            new JsonBase64UploadParser.Attribute("doc", docWithNullData()),
+            new JsonBase64UploadParser.Attribute("list", Arrays.asList(null, 2)));
+    }
+
+    @Test
+    void invalidPointer() {
+
+        // act + assert
+        assertThatThrownBy(() -> new JsonBase64UploadParser(List.of("content")))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static Map<String, Object> docWithNullData() {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("title", "t");
+        ret.put("data", null);
+        return ret;
+    }
+
+    private static Flux<ByteBuffer> chunks(String json, int chunkSize) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return Flux.range(0, (bytes.length + chunkSize - 1) / chunkSize)
+            .map(i -> ByteBuffer.wrap(bytes, i * chunkSize, Math.min(chunkSize, bytes.length - i * chunkSize)));
+    }
+}
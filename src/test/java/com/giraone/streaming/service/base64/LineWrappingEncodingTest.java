@@ -0,0 +1,85 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LineWrappingEncodingTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,1",
+        "1,1",
+        "56,1",
+        "57,1",
+        "58,1",
+        "58,7",
+        "114,3",
+        "115,3",
+        "1000,17",
+        "10000,1000",
+        "10000,3649",
+        "100000,100000"
+    })
+    void encodeLikeMimeEncoder(int size, int chunkSize) {
+
+        // arrange
+        byte[] input = new byte[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (byte) (i * 31);
+        }
+        LineWrappingEncoding encoding = new LineWrappingEncoding(StandardContentEncoding.BASE64, LineWrappingEncoding.MIME_LINE_LENGTH);
+        Flux<ByteBuffer> chunks = Flux.range(0, (size + chunkSize - 1) / chunkSize)
+            .map(i -> ByteBuffer.wrap(input, i * chunkSize, Math.min(chunkSize, size - i * chunkSize)));
+        // act
+        String output = Base64Includer.encode(chunks, encoding)
+            .map(byteBuffer -> StandardCharsets.US_ASCII.decode(byteBuffer).toString())
+            .collect(Collectors.joining())
+            .block();
+        // assert
+        assertThat(output).isEqualTo(Base64.getMimeEncoder().encodeToString(input));
+        assertThat(encoding.encodedLength(size)).isEqualTo(output.length());
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,4,0",
+        "2,4,4",
+        "2,3,6",
+        "6,4,16",
+        "6,6,14"
+    })
+    void encodedLength(long contentSize, int lineLength, long expected) {
+
+        // act
+        long encodedLength = new LineWrappingEncoding(StandardContentEncoding.HEX, lineLength).encodedLength(contentSize);
+        // assert
+        assertThat(encodedLength).isEqualTo(expected);
+    }
+
+    @Test
+    void encodedLengthUnknown() {
+
+        // act
+        long encodedLength = new LineWrappingEncoding(StandardContentEncoding.JSON, 10).encodedLength(100L);
+        // assert
+        assertThat(encodedLength).isEqualTo(-1L);
+    }
+
+    @Test
+    void invalidLineLength() {
+
+        // act + assert
+        assertThatThrownBy(() -> new LineWrappingEncoding(StandardContentEncoding.BASE64, 0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,133 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.DirectBufferPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ParallelBase64EncoderTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,0,3000,4",
+        "2999,0,3000,4",
+        "3000,0,3000,4",
+        "3001,0,3000,4",
+        "100000,0,3000,4",
+        "100001,0,3000,1",
+        "100002,0,65535,8",
+        "100000,200000,3000,4",
+        "1000000,0,30000,3"
+    })
+    void encode(int fileSize, long threshold, int segmentSize, int parallelism) throws IOException {
+
+        // arrange
+        byte[] content = new byte[fileSize];
+        new Random(fileSize).nextBytes(content);
+        Path path = Files.createTempFile("parallel-base64-", ".bin");
+        Files.write(path, content);
+        ParallelBase64Encoder encoder = new ParallelBase64Encoder(threshold, segmentSize, parallelism, Schedulers.parallel());
+        long outstanding = DirectBufferPool.DEFAULT.getOutstanding();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            encoder.encode(channel, fileSize)
+                .doOnNext(dataBuffer -> {
+                    byte[] bytes = new byte[dataBuffer.readableByteCount()];
+                    dataBuffer.read(bytes);
+                    byteArrayOutputStream.writeBytes(bytes);
+                    DataBufferUtils.release(dataBuffer);
+                })
+                .blockLast();
+        } finally {
+            Files.delete(path);
+        }
+        // assert
+        assertThat(byteArrayOutputStream.toString(StandardCharsets.US_ASCII)).isEqualTo(Base64.getEncoder().encodeToString(content));
+        assertThat(DirectBufferPool.DEFAULT.getOutstanding()).isEqualTo(outstanding);
+    }
+
+    @Test
+    void encodeOnScheduler() throws IOException {
+
+        // arrange
+        byte[] content = new byte[300000];
+        new Random(0).nextBytes(content);
+        Path path = Files.createTempFile("parallel-base64-", ".bin");
+        Files.write(path, content);
+        Scheduler scheduler = Schedulers.newParallel("encode-test", 2);
+        ParallelBase64Encoder encoder = new ParallelBase64Encoder(0, 30000, 4, scheduler);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            encoder.encode(channel, content.length)
+                .doOnNext(dataBuffer -> {
+                    threads.add(Thread.currentThread().getName());
+                    DataBufferUtils.release(dataBuffer);
+                })
+                .blockLast();
+        } finally {
+            scheduler.dispose();
+            Files.delete(path);
+        }
+        // assert
+        assertThat(threads).isNotEmpty().allMatch(name -> name.startsWith("encode-test"));
+    }
+
+    @Test
+    void encodeIsReleasedOnCancel() throws IOException, InterruptedException {
+
+        // arrange
+        byte[] content = new byte[1000000];
+        new Random(0).nextBytes(content);
+        Path path = Files.createTempFile("parallel-base64-", ".bin");
+        Files.write(path, content);
+        ParallelBase64Encoder encoder = new ParallelBase64Encoder(0, 30000, 4, Schedulers.parallel());
+        long outstanding = DirectBufferPool.DEFAULT.getOutstanding();
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ)) {
+            // act
+            encoder.encode(channel, content.length)
+                .take(3)
+                .doOnNext(DataBufferUtils::release)
+                .blockLast();
+            // assert - reads, that are in flight, release their buffers, when they complete
+            for (int i = 0; i < 100 && DirectBufferPool.DEFAULT.getOutstanding() != outstanding; i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            Files.delete(path);
+        }
+        assertThat(DirectBufferPool.DEFAULT.getOutstanding()).isEqualTo(outstanding);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "0,4",
+        "3001,4",
+        "3000,0"
+    })
+    void invalidSettings(int segmentSize, int parallelism) {
+
+        assertThatThrownBy(() -> new ParallelBase64Encoder(0, segmentSize, parallelism, Schedulers.parallel()))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,67 @@
+package com.giraone.streaming.service.base64;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StandardContentEncodingTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "HEX,'',''",
+        "HEX,a,61",
+        "HEX,'aÿ',61c3bf",
+        "RAW,'',''",
+        "RAW,'<a>€</a>','<a>€</a>'",
+        "JSON,'',''",
+        "JSON,'text','text'",
+        "JSON,'\"quoted\"','\\\"quoted\\\"'",
+        "JSON,'a\\b','a\\\\b'",
+        "JSON,'€\t\u0001\u007f','€\\t\\u0001\u007f'",
+        "BASE64URL,'??>','Pz8-'",
+        "BASE64URL,'??','Pz8'"
+    })
+    void encodeInChunksOfOneByte(StandardContentEncoding encoding, String input, String expected) {
+
+        // arrange
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        ContentEncoder encoder = encoding.newEncoder();
+        ByteBuffer output = ByteBuffer.allocate(expected.length() * 2);
+        // act
+        for (byte b : bytes) {
+            ByteBuffer chunk = ByteBuffer.wrap(new byte[]{b});
+            int expectedLength = encoder.encodedLength(chunk);
+            int before = output.position();
+            encoder.encode(chunk, output);
+            assertThat(output.position() - before).isEqualTo(expectedLength);
+        }
+        assertThat(encoder.finalLength()).isLessThanOrEqualTo(output.remaining());
+        encoder.finish(output);
+        // assert
+        assertThat(new String(output.array(), 0, output.position(), StandardCharsets.UTF_8)).isEqualTo(expected);
+        long encodedLength = encoding.encodedLength(bytes.length);
+        if (encodedLength >= 0) {
+            assertThat(encodedLength).isEqualTo(output.position());
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+        "base64,BASE64",
+        "base64url,BASE64URL",
+        "hex,HEX",
+        "raw,RAW",
+        "json,JSON"
+    })
+    void forPrefix(String prefix, StandardContentEncoding expected) {
+
+        // act
+        ContentEncoding encoding = StandardContentEncoding.forPrefix(prefix);
+        // assert
+        assertThat(encoding).isSameAs(expected);
+    }
+}
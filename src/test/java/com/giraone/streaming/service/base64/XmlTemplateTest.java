@@ -0,0 +1,87 @@
+package com.giraone.streaming.service.base64;
+
+import com.giraone.streaming.service.FluxUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class XmlTemplateTest {
+
+    private static final String NS = "xmlns:i=\"urn:giraone:streaming:include\"";
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "<a/>|''",
+        "<a " + NS + "><i:content name=\"x\"/></a>|base64:x",
+        "<a " + NS + "><i:content name='x' encoding='hex'></i:content><b i:data='raw:y'/></a>|hex:x raw:y",
+        "<a xmlns=\"urn:giraone:streaming:include\"><content name=\"x\"/><b data=\"raw:y\"/></a>|base64:x",
+        "<a><i:content name=\"x\"/></a>|''",
+        "<a " + NS + "/><i:content name=\"x\"/>|''",
+        "<a><b " + NS + "/><i:content name=\"x\"/></a>|''",
+        "<a " + NS + "><!-- <i:content name=\"x\"/> --><![CDATA[<i:content name=\"y\"/>]]><?pi <i:content?></a>|''",
+        "<j:a xmlns:j=\"urn:giraone:streaming:include\"><xs:element j:v=\"base64url:z\"/></j:a>|base64url:z"
+    })
+    void compileXml(String template, String expectedPlaceholders) {
+
+        // act
+        CompiledTemplate compiledTemplate = CompiledTemplate.compileXml(template);
+        // assert
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < compiledTemplate.placeholderCount(); i++) {
+            CompiledTemplate.Placeholder placeholder = compiledTemplate.placeholder(i);
+            placeholders.append(i > 0 ? " " : "").append(placeholder.encoding().prefix()).append(':').append(placeholder.name());
+        }
+        assertThat(placeholders).hasToString(expectedPlaceholders);
+    }
+
+    @ParameterizedTest
+    @CsvSource(delimiter = '|', value = {
+        "<a " + NS + "><i:content/></a>|no name",
+        "<a " + NS + "><i:content name=\"x\">text</i:content></a>|must be empty",
+        "<a " + NS + "><i:content name=\"x\" encoding=\"unknown\"/></a>|Unknown encoding",
+        "<a " + NS + "><i:content name=\"x\" wrap=\"0\"/></a>|Invalid wrap",
+        "<a " + NS + "><i:content name=\"x y\"/></a>|Invalid placeholder name",
+        "<a " + NS + " i:data=\"photo\"/>|encoding:name",
+        "<a " + NS + "><i:content name=\"x\"</a>|Malformed",
+        "<a><!-- </a>|Malformed"
+    })
+    void compileXmlInvalid(String template, String expectedMessage) {
+
+        // act + assert
+        assertThatThrownBy(() -> CompiledTemplate.compileXml(template))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining(expectedMessage);
+    }
+
+    @Test
+    void streamWithContent() {
+
+        // arrange
+        Base64Includer base64Includer = new Base64Includer(CompiledTemplate.compileXml(
+            "<s:Envelope xmlns:s=\"urn:s\" " + NS + "><doc i:name=\"raw:name\" size='1'>"
+                + "<data><i:content name=\"bin\" wrap=\"8\"/></data></doc></s:Envelope>"));
+        byte[] bin = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        Map<String, Flux<ByteBuffer>> contents = Map.of(
+            "bin", Flux.just(ByteBuffer.wrap(bin, 0, 4), ByteBuffer.wrap(bin, 4, 6)),
+            "name", Flux.just(ByteBuffer.wrap("a.bin".getBytes(StandardCharsets.UTF_8))));
+        // act
+        Flux<ByteBuffer> output = base64Includer.streamWithContent(contents);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        FluxUtil.writeToOutputStream(output, byteArrayOutputStream).block();
+        // assert
+        assertThat(byteArrayOutputStream.toString(StandardCharsets.UTF_8)).isEqualTo(
+            "<s:Envelope xmlns:s=\"urn:s\" " + NS + "><doc name=\"a.bin\" size='1'>"
+                + "<data>MDEyMzQ1\r\nNjc4OQ==</data></doc></s:Envelope>");
+        assertThat(byteArrayOutputStream.size())
+            .isEqualTo(base64Includer.contentLength(name -> name.equals("bin") ? bin.length : 5L));
+    }
+}
@@ -0,0 +1,79 @@
+package com.giraone.streaming.service.range;
+
+import com.giraone.streaming.controller.StreamingController;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Flux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MultipartByteRangesTest {
+
+    @ParameterizedTest
+    @CsvSource({
+        "bytes=0-9,0,9",
+        "bytes=10-,10,10239",
+        "bytes=-10,10230,10239",
+        "bytes=10200-20000,10200,10239",
+        "'bytes=20000-30000,0-0',0,0",
+    })
+    void byteRangeOf(String header, long expectedStart, long expectedEnd) {
+
+        // arrange
+        List<HttpRange> httpRanges = HttpRange.parseRanges(header);
+        // act
+        List<ByteRange> ranges = ByteRange.of(httpRanges, 10240L);
+        // assert
+        assertThat(ranges).containsExactly(new ByteRange(expectedStart, expectedEnd));
+    }
+
+    @Test
+    void byteRangeOf_notSatisfiable() {
+
+        // arrange
+        List<HttpRange> httpRanges = HttpRange.parseRanges("bytes=10240-");
+        // act/assert
+        assertThatThrownBy(() -> ByteRange.of(httpRanges, 10240L)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void stream() throws IOException {
+
+        // arrange
+        File file = new File(StreamingController.FILE_BASE, "file-10k.bin");
+        long fileSize = file.length();
+        List<ByteRange> ranges = List.of(new ByteRange(0, 9), new ByteRange(100, 104));
+        MultipartByteRanges multipart = new MultipartByteRanges(ranges, MediaType.TEXT_PLAIN, fileSize);
+        String boundary = multipart.getMediaType().getParameter("boundary");
+        // act
+        String output;
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), READ)) {
+            Flux<DataBuffer> body = multipart.stream(channel);
+            DataBuffer joined = DataBufferUtils.join(body).block();
+            output = joined.toString(StandardCharsets.US_ASCII);
+            DataBufferUtils.release(joined);
+        }
+        // assert
+        assertThat(multipart.getMediaType().toString()).startsWith("multipart/byteranges;boundary=");
+        assertThat(output).isEqualTo(
+            "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-9/10240\r\n\r\n"
+                + "0123456789"
+                + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 100-104/10240\r\n\r\n"
+                + "01234"
+                + "\r\n--" + boundary + "--\r\n");
+        assertThat(multipart.contentLength()).isEqualTo(output.length());
+    }
+}